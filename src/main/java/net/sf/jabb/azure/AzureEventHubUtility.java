@@ -8,6 +8,7 @@ import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
@@ -16,6 +17,7 @@ import java.util.Base64;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
@@ -31,9 +33,14 @@ import javax.jms.MessageConsumer;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
 
+import net.sf.jabb.dstream.LazyJmsMessage;
+import net.sf.jabb.dstream.MergedStreamDataSupplier;
 import net.sf.jabb.dstream.StreamDataSupplierWithId;
+import net.sf.jabb.dstream.WrappedJmsConnectionPool;
 import net.sf.jabb.dstream.eventhub.EventHubQpidStreamDataSupplier;
 import net.sf.jabb.util.jms.JmsUtility;
+import net.sf.jabb.util.parallel.BackoffStrategies;
+import net.sf.jabb.util.parallel.WaitStrategies;
 
 import org.apache.qpid.amqp_1_0.jms.impl.MessageImpl;
 
@@ -54,11 +61,30 @@ public class AzureEventHubUtility {
 	static public final String DEFAULT_CONSUMER_GROUP = "$Default";
 	static private DateTimeFormatter iso8601Formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US).withZone(ZoneId.of("UTC"));
 	
+	/**
+	 * The message whose annotations were decoded most recently in the current thread, together with the decoded annotations.
+	 * Position, enqueued time and range checks of the same message are normally done one after another in the same thread,
+	 * so that this avoids decoding the annotations of a message more than once.
+	 */
+	static private final ThreadLocal<Object[]> lastDecoded = ThreadLocal.withInitial(() -> new Object[2]);
+	
+	/**
+	 * Get the Event Hub annotations of the message. 
+	 * The decoded annotations of the last message are cached in the current thread,
+	 * therefore calling this method repeatedly for the same message is cheap.
+	 * @param message	the message
+	 * @return	the annotations, or null if the message is null
+	 */
 	public static EventHubAnnotations getEventHubAnnotations(Message message){
 		if (message == null){
 			return null;
 		}
 		
+		Object[] cache = lastDecoded.get();
+		if (cache[0] == message){
+			return (EventHubAnnotations) cache[1];
+		}
+		
 		String json = null;
 		try {
 			json = message.getStringProperty(MessageImpl.JMS_AMQP_MESSAGE_ANNOTATIONS);
@@ -66,9 +92,29 @@ public class AzureEventHubUtility {
 			throw Throwables.propagate(e);
 		}
 		EventHubAnnotations annotations = new EventHubAnnotations(json);
+		cache[0] = message;
+		cache[1] = annotations;
 		return annotations;
 	}
 	
+	/**
+	 * Get the offset of the message
+	 * @param message	the message, must not be null
+	 * @return	the offset
+	 */
+	public static long getOffset(Message message){
+		return getEventHubAnnotations(message).getOffset();
+	}
+	
+	/**
+	 * Get the enqueued time of the message without creating an Instant
+	 * @param message	the message, must not be null
+	 * @return	the enqueued time as milliseconds since epoch
+	 */
+	public static long getEnqueuedTimeMillis(Message message){
+		return getEventHubAnnotations(message).getEnqueuedTimeMillis();
+	}
+	
 	static public String[] getPartitions(String server, String policyName, String policyKey, 
 			String eventHubName) throws JMSException {
 		Connection connection = null;
@@ -141,6 +187,57 @@ public class AzureEventHubUtility {
 		return suppliers;
 	}
 	
+	/**
+	 * Create a list of {@link StreamDataSupplierWithId}s from an Event Hub, with partitions spread across a limited number of shared connections.
+	 * Connections are returned to the pool when the suppliers are stopped.
+	 * @param <M>		type of the message
+	 * @param connectionPool	the pool of connections, which can be shared with suppliers of other Event Hubs
+	 * @param server		the server name containing name space of the Event Hub
+	 * @param policyName	policy with read permission
+	 * @param policyKey		key of the policy
+	 * @param eventHubName	name of the Event Hub
+	 * @param consumerGroup		consumer group name
+	 * @param messageConverter	JMS message converter
+	 * @return					a list of {@link StreamDataSupplierWithId}s, one per partition
+	 * @throws JMSException		If list of partitions cannot be fetched
+	 */
+	public static <M> List<StreamDataSupplierWithId<M>> createStreamDataSuppliers(WrappedJmsConnectionPool connectionPool, String server, String policyName, String policyKey, 
+			String eventHubName, String consumerGroup, Function<Message, M> messageConverter) throws JMSException{
+		String[] partitions = getPartitions(server, policyName, policyKey, eventHubName);
+		List<StreamDataSupplierWithId<M>> suppliers = new ArrayList<>(partitions.length);
+		for (String partition: partitions){
+			EventHubQpidStreamDataSupplier<M> supplier = new EventHubQpidStreamDataSupplier<>(connectionPool, server, eventHubName, policyName, policyKey,
+					consumerGroup, partition, 
+					BackoffStrategies.fibonacciBackoff(1000, 20, TimeUnit.SECONDS), WaitStrategies.threadSleepStrategy(),
+					messageConverter);
+			suppliers.add(new StreamDataSupplierWithId<>(partition, supplier));
+		}
+		return suppliers;
+	}
+	
+	/**
+	 * Create a {@link MergedStreamDataSupplier} that delivers messages from all the partitions of an Event Hub
+	 * in approximate enqueued time order. Messages are delivered as {@link LazyJmsMessage}s, 
+	 * so that their positions and enqueued times can be found out without converting them.
+	 * @param <M>		type of the message
+	 * @param server		the server name containing name space of the Event Hub
+	 * @param policyName	policy with read permission
+	 * @param policyKey		key of the policy
+	 * @param eventHubName	name of the Event Hub
+	 * @param consumerGroup		consumer group name
+	 * @param messageConverter	JMS message converter
+	 * @param reorderWindow		maximum time a message can be held back waiting for messages from idle partitions
+	 * @return					the merged supplier, with partitions as IDs of the underlying suppliers
+	 * @throws JMSException		If list of partitions cannot be fetched
+	 */
+	public static <M> MergedStreamDataSupplier<LazyJmsMessage<M>> createMergedStreamDataSupplier(String server, String policyName, String policyKey, 
+			String eventHubName, String consumerGroup, Function<Message, M> messageConverter, Duration reorderWindow) throws JMSException{
+		List<StreamDataSupplierWithId<LazyJmsMessage<M>>> suppliers = createStreamDataSuppliers(server, policyName, policyKey, 
+				eventHubName, consumerGroup, EventHubQpidStreamDataSupplier.lazyConverter(messageConverter));
+		return new MergedStreamDataSupplier<>(suppliers, LazyJmsMessage::getPosition, LazyJmsMessage::getEnqueuedTime, 
+				reorderWindow, MergedStreamDataSupplier.DEFAULT_MAX_BUFFERED_MESSAGES_PER_SUPPLIER);
+	}
+	
 	public static String generateSharedAccessSignature(String stringToSign, byte[] keyBytes){
 		SecretKey key256;
 		Mac hmacSha256;
@@ -2,8 +2,6 @@ package net.sf.jabb.azure;
 
 import java.time.Instant;
 
-import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.commons.lang3.builder.ToStringStyle;
 
@@ -14,67 +12,120 @@ import org.apache.commons.lang3.builder.ToStringStyle;
  *
  */
 public class EventHubAnnotations{
+	static private final String SEQUENCE_NUMBER = "x-opt-sequence-number";
+	static private final String OFFSET = "x-opt-offset";
+	static private final String ENQUEUED_TIME = "x-opt-enqueued-time";
+	
 	private long sequenceNumber;
 	private long offset;
-	private Instant enqueuedTime;
+	private long enqueuedTimeMillis;
 	
 	/**
-	 * Constructor
+	 * Constructor. The JSON is parsed in a single pass without creating intermediate strings.
 	 * @param json  such as: 
 	 * 		<pre>
 	 * 		{ "x-opt-sequence-number" : { "long" : 19650 }, "x-opt-offset" : "4302249320", "x-opt-enqueued-time" : { "timestamp" : 1438740137186 } }
 	 * 		</pre>
 	 */
 	public EventHubAnnotations(String json){
-		Validate.notBlank(json, "Event Hub x-opt-* meta data cannot be blank: " + json);
-		
-		String strSequenceNumber = findValue(json, "x-opt-sequence-number", "long");
-		String strOffset = findValue(json, "x-opt-offset");
-		String strEnqueuedTime = findValue(json, "x-opt-enqueued-time", "timestamp");
+		if (json == null || json.isEmpty()){
+			throw new IllegalArgumentException("Event Hub x-opt-* meta data cannot be blank: " + json);
+		}
 		
-		Validate.isTrue(StringUtils.isNotBlank(strSequenceNumber) && StringUtils.isNotBlank(strOffset) && StringUtils.isNotBlank(strEnqueuedTime),
-				"Event Hub x-opt-* meta data must cantain valid information: " + json);
+		boolean foundSequenceNumber = false;
+		boolean foundOffset = false;
+		boolean foundEnqueuedTime = false;
+		int length = json.length();
+		int i = 0;
+		while (i < length){
+			if (json.charAt(i++) != '"'){
+				continue;
+			}
+			if (isLabel(json, i, SEQUENCE_NUMBER)){
+				i += SEQUENCE_NUMBER.length() + 1;
+				i = skipToNumber(json, i);
+				sequenceNumber = parseLong(json, i);
+				foundSequenceNumber = true;
+			}else if (isLabel(json, i, OFFSET)){
+				i += OFFSET.length() + 1;
+				i = skipToNumber(json, i);
+				offset = parseLong(json, i);
+				foundOffset = true;
+			}else if (isLabel(json, i, ENQUEUED_TIME)){
+				i += ENQUEUED_TIME.length() + 1;
+				i = skipToNumber(json, i);
+				enqueuedTimeMillis = parseLong(json, i);
+				foundEnqueuedTime = true;
+			}else{
+				while (i < length && json.charAt(i) != '"'){		// skip other labels and string values
+					i ++;
+				}
+				i ++;
+				continue;
+			}
+			while (i < length && isNumberChar(json.charAt(i))){
+				i ++;
+			}
+			if (i < length && json.charAt(i) == '"'){		// closing quote of a quoted number
+				i ++;
+			}
+		}
 		
-		sequenceNumber = Long.parseLong(strSequenceNumber);
-		offset = Long.parseLong(strOffset);
-		enqueuedTime = Instant.ofEpochMilli(Long.parseLong(strEnqueuedTime));
+		if (!(foundSequenceNumber && foundOffset && foundEnqueuedTime)){
+			throw invalid(json);
+		}
 	}
 	
-	private String findValue(String json, String label){
-		return findValue(json, 0, label);
+	static private IllegalArgumentException invalid(String json){
+		return new IllegalArgumentException("Event Hub x-opt-* meta data must cantain valid information: " + json);
 	}
 	
-	private String findValue(String json, int startPos, String label){
-		int i = json.indexOf(label, startPos);
-		if (i >= 0){
-			i = json.indexOf(':', i + label.length());
-			if (i >= 0){
-				int start = i + 1;
-				i = json.indexOf(',', start);
-				if (i < 0){
-					i = json.indexOf('}', start);
+	static private boolean isLabel(String json, int start, String label){
+		int end = start + label.length();
+		return end < json.length() && json.charAt(end) == '"' && json.regionMatches(start, label, 0, label.length());
+	}
+	
+	static private boolean isNumberChar(char c){
+		return c >= '0' && c <= '9' || c == '-';
+	}
+	
+	static private int skipToNumber(String json, int start){
+		int i = start;
+		int length = json.length();
+		while (i < length && !isNumberChar(json.charAt(i))){
+			if (json.charAt(i) == '"'){
+				if (i + 1 < length && isNumberChar(json.charAt(i + 1))){		// quoted number
+					return i + 1;
 				}
-				if (i >= 0){
-					return trimValue(json.substring(start, i - 1));
+				i = json.indexOf('"', i + 1);		// skip labels like "long" and "timestamp"
+				if (i < 0){
+					return length;
 				}
 			}
+			i ++;
 		}
-		return null;
+		return i;
 	}
 	
-	private String findValue(String json, String label, String sublabel){
-		int i = json.indexOf(label);
-		if (i >= 0){
-			i = json.indexOf(':', i + label.length());
-			if (i >= 0){
-				return findValue(json, i + 1, sublabel);
+	static private long parseLong(String json, int start){
+		int length = json.length();
+		int i = start;
+		boolean negative = i < length && json.charAt(i) == '-';
+		if (negative){
+			i ++;
+		}
+		if (i >= length || json.charAt(i) < '0' || json.charAt(i) > '9'){
+			throw invalid(json);
+		}
+		long result = 0;
+		while (i < length){
+			char c = json.charAt(i++);
+			if (c < '0' || c > '9'){
+				break;
 			}
+			result = result * 10 + (c - '0');
 		}
-		return null;
-	}
-	
-	private String trimValue(String value){
-		return StringUtils.removeEnd(StringUtils.removeStart(value.trim(), "\""), "\"");
+		return negative ? -result : result;
 	}
 	
 	@Override
@@ -90,6 +141,14 @@ public class EventHubAnnotations{
 		return sequenceNumber;
 	}
 	public Instant getEnqueuedTime() {
-		return enqueuedTime;
+		return Instant.ofEpochMilli(enqueuedTimeMillis);
+	}
+
+	/**
+	 * Get the enqueued time without creating an Instant
+	 * @return	the enqueued time as milliseconds since epoch
+	 */
+	public long getEnqueuedTimeMillis() {
+		return enqueuedTimeMillis;
 	}
 }
\ No newline at end of file
@@ -5,14 +5,22 @@ package net.sf.jabb.dstream;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -29,8 +37,11 @@ import net.sf.jabb.util.bean.DoubleValueBean;
 import net.sf.jabb.util.ex.ExceptionUncheckUtility.FunctionThrowsExceptions;
 import net.sf.jabb.util.jms.JmsUtility;
 
+import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.jgroups.util.UUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.SimpleTimeLimiter;
@@ -42,12 +53,27 @@ import com.google.common.util.concurrent.UncheckedTimeoutException;
  * There is an assumption that <code>MessageConsumer</code> won't remove the received message.
  * Note: {@link #startAsyncReceiving(Consumer, String)} and {@link #stopAsyncReceiving(String)} should be called from the same thread
  * because the underlying <code>Session</code> and <code>MessageConsumer</code> objects are not thread safe.
+ * <p>
+ * The <code>Session</code> and <code>MessageConsumer</code> used by fetch/receive are kept warm after the request.
+ * If the start position of the next fetch/receive continues from where the previous one stopped, 
+ * the warm consumer is reused so that the cost of creating a consumer with a message selector is avoided.
+ * Otherwise, or if the warm consumer has been idle for too long ({@link #setWarmConsumerMaxIdle(Duration)}), 
+ * it is closed and a new one is created.
+ * </p>
+ * <p>
+ * {@link #startAsyncReceiving(Consumer, String, Executor, int, int)} provides asynchronous receiving with flow control.
+ * Messages are pulled by a dedicated thread into a bounded buffer, one credit for each, and pulling pauses when credits run out.
+ * Buffered messages are converted and delivered in batches by tasks submitted to the specified executor,
+ * and credits are returned after every batch. A slow consumer therefore only stops its own subscription
+ * instead of blocking the dispatcher thread shared by all the subscriptions on the connection.
+ * </p>
  * 
  * @author James Hu
  * @param <M> type of the message object
  *
  */
 abstract public class JmsConsumerStreamDataSupplier<M> implements StreamDataSupplier<M>{
+	static private final Logger logger = LoggerFactory.getLogger(JmsConsumerStreamDataSupplier.class);
 	
 	protected static TimeLimiter timeLimiter = new SimpleTimeLimiter(
 			new ThreadPoolExecutor(0, Integer.MAX_VALUE,
@@ -55,8 +81,24 @@ abstract public class JmsConsumerStreamDataSupplier<M> implements StreamDataSupp
 					new SynchronousQueue<Runnable>(), 
 					new BasicThreadFactory.Builder().namingPattern(JmsConsumerStreamDataSupplier.class.getSimpleName() + "-time-limiter-%d").build()));
 
+	public static final Duration DEFAULT_WARM_CONSUMER_MAX_IDLE = Duration.ofMinutes(2);
+
+	/**
+	 * How long the thread pulling messages for flow controlled asynchronous receiving can go without checking whether it should stop
+	 */
+	protected static final long PULL_SLICE_MILLIS = 200;
+
+	protected static final ThreadFactory pullerThreadFactory = new BasicThreadFactory.Builder()
+			.namingPattern(JmsConsumerStreamDataSupplier.class.getSimpleName() + "-puller-%d")
+			.daemon(true)
+			.build();
+
 	protected Queue destination;
 	protected Map<String, DoubleValueBean<Session, MessageConsumer>> receivingConsumers = new ConcurrentHashMap<>();
+	protected Map<String, FlowControlledReceiving> flowControlledReceivings = new ConcurrentHashMap<>();
+	
+	protected AtomicReference<WarmConsumer> warmConsumer = new AtomicReference<>();
+	protected long warmConsumerMaxIdleMillis = DEFAULT_WARM_CONSUMER_MAX_IDLE.toMillis();
 
 	abstract protected Connection getConnection();
 	abstract protected String messageSelector(String startPosition);
@@ -65,6 +107,39 @@ abstract public class JmsConsumerStreamDataSupplier<M> implements StreamDataSupp
 	abstract protected String position(Message message);
 	abstract protected Instant enqueuedTime(Message message);
 	
+	/**
+	 * Called for every message received by fetch, receive and asynchronous receiving, before it is checked against the range.
+	 * It is called again with <code>last</code> being true for the last message delivered by a fetch or receive.
+	 * Subclasses can override this method to learn from the messages passing through. The default implementation does nothing.
+	 * @param message	the message received
+	 * @param last		true if it is the last message delivered by a fetch or receive
+	 */
+	protected void received(Message message, boolean last){
+		// do nothing
+	}
+	
+	/**
+	 * Check if the position of a message is within the range defined by an end position.
+	 * Subclasses can override this method to avoid converting the position of every message into a string.
+	 * @param message		the message
+	 * @param endPosition	the end position
+	 * @return	true if in range, false otherwise
+	 */
+	protected boolean isInRange(Message message, String endPosition){
+		return isInRange(position(message), endPosition);
+	}
+	
+	/**
+	 * Check if the enqueued time of a message is within the range defined by an end enqueued time.
+	 * Subclasses can override this method to avoid creating an Instant for every message.
+	 * @param message			the message
+	 * @param endEnqueuedTime	the end enqueued time
+	 * @return	true if in range, false otherwise
+	 */
+	protected boolean isInRange(Message message, Instant endEnqueuedTime){
+		return isInRange(enqueuedTime(message), endEnqueuedTime);
+	}
+	
 	protected ReceiveStatus fetch(List<? super M> list, Duration timeoutDuration, FunctionThrowsExceptions<java.util.Queue<Message>, Boolean> fetcher)  throws DataStreamInfrastructureException, InterruptedException{
 		ConcurrentLinkedQueue<Message> fetched = new ConcurrentLinkedQueue<>();
 		boolean outOfRangeReached = false;
@@ -94,54 +169,91 @@ abstract public class JmsConsumerStreamDataSupplier<M> implements StreamDataSupp
 	}
 	
 	protected ReceiveStatus fetch(List<? super M> list, String messageSelector, Predicate<Message> outOfRangeCheck, int maxItems, Duration timeoutDuration) throws DataStreamInfrastructureException, InterruptedException {
+		return fetch(list, null, null, messageSelector, outOfRangeCheck, maxItems, timeoutDuration);
+	}
+	
+	/**
+	 * Fetch messages with a warm consumer if the start position continues from the previous fetch/receive, 
+	 * or with a new consumer created with the message selector.
+	 * @param list				list into which the data/messages will be added
+	 * @param startPosition		the start position, or null if the request does not start from a position
+	 * @param endPosition		the end position, or null if the request does not end at a position
+	 * @param messageSelector	the message selector for creating a new consumer
+	 * @param outOfRangeCheck	predicate for checking if a message is out of range
+	 * @param maxItems			maximum number of items that will be fetched and added into the list
+	 * @param timeoutDuration	maximum total duration allowed for fetch those data
+	 * @return	ReceiveStatus with position of the last message added into the list or null if no message had been added
+	 * @throws  InterruptedException if the thread is interrupted
+	 * @throws  DataStreamInfrastructureException  when error happened
+	 */
+	protected ReceiveStatus fetch(List<? super M> list, String startPosition, String endPosition, String messageSelector, 
+			Predicate<Message> outOfRangeCheck, int maxItems, Duration timeoutDuration) throws DataStreamInfrastructureException, InterruptedException {
 		return fetch(list, timeoutDuration, fetched->{
 			long timeoutNano = System.nanoTime() + timeoutDuration.toNanos();
 			long timeoutLeftMillis = (timeoutNano - System.nanoTime())/1000000;
-			Session session = null;
-			MessageConsumer consumer = null;
-			boolean outOfRangeReached = false;
+			WarmConsumer consumer = acquireConsumer(startPosition, messageSelector);
 			try{
-				session = getConnection().createSession(false, Session.AUTO_ACKNOWLEDGE);
-				consumer = session.createConsumer(destination, messageSelector);
-				
 				int count = 0;
 				Message message = null;
+				Message lastMessage = null;
+				Message outOfRangeMessage = null;
 				while (++count <= maxItems && timeoutLeftMillis > 0){
-					message = consumer.receive(timeoutLeftMillis);
+					try{
+						message = consumer.receive(timeoutLeftMillis);
+					}catch(JMSException e){
+						if (consumer.reused && lastMessage == null){		// the warm consumer may have been broken, try a new one
+							consumer.close();
+							consumer = null;
+							consumer = newConsumer(startPosition, messageSelector);
+							count --;
+							continue;
+						}
+						throw e;
+					}
 					if (message != null){
+						received(message, false);
 						if (outOfRangeCheck.test(message)){
-							outOfRangeReached = true;
+							outOfRangeMessage = message;
 							break;
 						}
 						fetched.add(message);
+						lastMessage = message;
 					}
 					timeoutLeftMillis = (timeoutNano - System.nanoTime())/1000000;
 				}
+				if (lastMessage != null){
+					received(lastMessage, true);
+				}
+				consumer.advance(lastMessage, endPosition, outOfRangeMessage);
+				releaseConsumer(consumer);
+				consumer = null;
+				return outOfRangeMessage != null;
 			}finally{
-				JmsUtility.closeSilently(consumer, session);
+				if (consumer != null){
+					consumer.close();
+				}
 			}
-			return outOfRangeReached;
 		});
 	}
 
 	@Override
 	public ReceiveStatus fetch(List<? super M> list, String startPosition, String endPosition, int maxItems, Duration timeoutDuration) throws DataStreamInfrastructureException, InterruptedException {
-		return fetch(list, messageSelector(startPosition), 
-				message -> endPosition != null && !isInRange(position(message), endPosition),
+		return fetch(list, startPosition, endPosition, messageSelector(startPosition), 
+				message -> endPosition != null && !isInRange(message, endPosition),
 				maxItems, timeoutDuration);
 	}
 	
 	@Override
 	public ReceiveStatus fetch(List<? super M> list, Instant startEnqueuedTime, Instant endEnqueuedTime, int maxItems, Duration timeoutDuration) throws DataStreamInfrastructureException, InterruptedException {
 		return fetch(list, messageSelector(startEnqueuedTime), 
-				message -> endEnqueuedTime != null && !isInRange(enqueuedTime(message), endEnqueuedTime),
+				message -> endEnqueuedTime != null && !isInRange(message, endEnqueuedTime),
 				maxItems, timeoutDuration);
 	}
 	
 	@Override
 	public ReceiveStatus fetch(List<? super M> list, String startPosition, Instant endEnqueuedTime, int maxItems, Duration timeoutDuration) throws DataStreamInfrastructureException, InterruptedException {
-		return fetch(list, messageSelector(startPosition), 
-				message -> endEnqueuedTime != null && !isInRange(enqueuedTime(message), endEnqueuedTime),
+		return fetch(list, startPosition, null, messageSelector(startPosition), 
+				message -> endEnqueuedTime != null && !isInRange(message, endEnqueuedTime),
 				maxItems, timeoutDuration);
 	}
 	
@@ -154,7 +266,10 @@ abstract public class JmsConsumerStreamDataSupplier<M> implements StreamDataSupp
 			try{
 				Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
 				MessageConsumer consumer = session.createConsumer(destination, messageSelector);
-				consumer.setMessageListener(message -> objConsumer.accept(convert(message)));
+				consumer.setMessageListener(message -> {
+					received(message, false);
+					objConsumer.accept(convert(message));
+				});
 				receivingConsumers.put(receivingConsumerId, new DoubleValueBean<>(session, consumer));
 			}finally{
 				connection.start();
@@ -178,8 +293,77 @@ abstract public class JmsConsumerStreamDataSupplier<M> implements StreamDataSupp
 		return doStartAsyncReceiving(objConsumer, messageSelector(startEnqueuedTime));
 	}
 
+	protected String doStartAsyncReceiving(Consumer<M> objConsumer, String messageSelector, Executor executor, int bufferSize, int batchSize) 
+			throws DataStreamInfrastructureException {
+		Validate.notNull(objConsumer, "Consumer cannot be null");
+		Validate.notNull(executor, "Executor cannot be null");
+		Validate.isTrue(bufferSize > 0, "Buffer size must be positive");
+		Validate.isTrue(batchSize > 0, "Batch size must be positive");
+		String receivingConsumerId = UUID.randomUUID().toString();
+		
+		try{
+			Session session = getConnection().createSession(false, Session.AUTO_ACKNOWLEDGE);
+			MessageConsumer consumer;
+			try{
+				consumer = session.createConsumer(destination, messageSelector);
+			}catch(JMSException|RuntimeException e){
+				JmsUtility.closeSilently((MessageConsumer)null, session);
+				throw e;
+			}
+			FlowControlledReceiving receiving = new FlowControlledReceiving(session, consumer, objConsumer, executor, bufferSize, batchSize);
+			flowControlledReceivings.put(receivingConsumerId, receiving);
+			pullerThreadFactory.newThread(receiving::pull).start();
+			return receivingConsumerId;
+		}catch(JMSException e){
+			throw new DataStreamInfrastructureException(e);
+		}
+	}
+
+	/**
+	 * Start asynchronous receiving with flow control. 
+	 * Receiving pauses when there are <code>bufferSize</code> messages pulled but not yet delivered,
+	 * and resumes when the consumer catches up.
+	 * @param objConsumer	the consumer, which is called by threads of the executor, one batch at a time
+	 * @param startPosition	the start position
+	 * @param executor		the executor for delivering messages, which can be shared by multiple subscriptions
+	 * @param bufferSize	maximum number of messages pulled but not yet delivered
+	 * @param batchSize		maximum number of messages delivered by one task submitted to the executor
+	 * @return	id of the receiving, to be passed to {@link #stopAsyncReceiving(String)}
+	 * @throws DataStreamInfrastructureException	if the consumer cannot be created
+	 */
+	public String startAsyncReceiving(Consumer<M> objConsumer, String startPosition, Executor executor, int bufferSize, int batchSize) 
+			throws DataStreamInfrastructureException {
+		return doStartAsyncReceiving(objConsumer, messageSelector(startPosition), executor, bufferSize, batchSize);
+	}
+
+	/**
+	 * Start asynchronous receiving with flow control. 
+	 * Receiving pauses when there are <code>bufferSize</code> messages pulled but not yet delivered,
+	 * and resumes when the consumer catches up.
+	 * @param objConsumer			the consumer, which is called by threads of the executor, one batch at a time
+	 * @param startEnqueuedTime		the start enqueued time
+	 * @param executor				the executor for delivering messages, which can be shared by multiple subscriptions
+	 * @param bufferSize			maximum number of messages pulled but not yet delivered
+	 * @param batchSize				maximum number of messages delivered by one task submitted to the executor
+	 * @return	id of the receiving, to be passed to {@link #stopAsyncReceiving(String)}
+	 * @throws DataStreamInfrastructureException	if the consumer cannot be created
+	 */
+	public String startAsyncReceiving(Consumer<M> objConsumer, Instant startEnqueuedTime, Executor executor, int bufferSize, int batchSize) 
+			throws DataStreamInfrastructureException {
+		return doStartAsyncReceiving(objConsumer, messageSelector(startEnqueuedTime), executor, bufferSize, batchSize);
+	}
+
+	/**
+	 * Stop asynchronous receiving. For receiving with flow control, 
+	 * buffered messages not yet delivered are dropped and the consumer is closed by the pulling thread.
+	 */
 	@Override
 	public void stopAsyncReceiving(String id) {
+		FlowControlledReceiving receiving = flowControlledReceivings.remove(id);
+		if (receiving != null){
+			receiving.running = false;
+			return;
+		}
 		DoubleValueBean<Session, MessageConsumer> receivingConsumer = receivingConsumers.remove(id);
 		if (receivingConsumer != null){
 			JmsUtility.closeSilently(receivingConsumer.getValue2(), receivingConsumer.getValue1());
@@ -188,21 +372,45 @@ abstract public class JmsConsumerStreamDataSupplier<M> implements StreamDataSupp
 	
 	protected ReceiveStatus receive(Function<M, Long> receiver, String messageSelector, Predicate<Message> outOfRangeCheck) 
 			throws DataStreamInfrastructureException{
-		Session session = null;
-		MessageConsumer consumer = null;
-		boolean outOfRangeReached = false;
+		return receive(receiver, null, null, messageSelector, outOfRangeCheck);
+	}
+	
+	/**
+	 * Receive messages with a warm consumer if the start position continues from the previous fetch/receive, 
+	 * or with a new consumer created with the message selector.
+	 * @param receiver			the receiver
+	 * @param startPosition		the start position, or null if the request does not start from a position
+	 * @param endPosition		the end position, or null if the request does not end at a position
+	 * @param messageSelector	the message selector for creating a new consumer
+	 * @param outOfRangeCheck	predicate for checking if a message is out of range
+	 * @return	ReceiveStatus with position of the last message received or null if no message had been received
+	 * @throws DataStreamInfrastructureException	if any error happened
+	 */
+	protected ReceiveStatus receive(Function<M, Long> receiver, String startPosition, String endPosition, String messageSelector, 
+			Predicate<Message> outOfRangeCheck) throws DataStreamInfrastructureException{
+		WarmConsumer consumer = null;
 		try{
-			session = getConnection().createSession(false, Session.AUTO_ACKNOWLEDGE);
-			consumer = session.createConsumer(destination, messageSelector);
-			
+			consumer = acquireConsumer(startPosition, messageSelector);
 			long receiveTimeoutMillis = receiver.apply(null);
 			Message message = null;
 			Message lastMessage = null;
+			Message outOfRangeMessage = null;
 			while (receiveTimeoutMillis > 0){
-				message = consumer.receive(receiveTimeoutMillis);
+				try{
+					message = consumer.receive(receiveTimeoutMillis);
+				}catch(JMSException e){
+					if (consumer.reused && lastMessage == null){		// the warm consumer may have been broken, try a new one
+						consumer.close();
+						consumer = null;
+						consumer = newConsumer(startPosition, messageSelector);
+						continue;
+					}
+					throw e;
+				}
 				if (message != null){
+					received(message, false);
 					if (outOfRangeCheck.test(message)){
-						outOfRangeReached = true;
+						outOfRangeMessage = message;
 						break;
 					}
 					receiveTimeoutMillis = receiver.apply(convert(message));
@@ -212,36 +420,257 @@ abstract public class JmsConsumerStreamDataSupplier<M> implements StreamDataSupp
 				}
 			}
 			if (lastMessage != null){
-				return new SimpleReceiveStatus(position(lastMessage), enqueuedTime(lastMessage), outOfRangeReached);
+				received(lastMessage, true);
+			}
+			consumer.advance(lastMessage, endPosition, outOfRangeMessage);
+			releaseConsumer(consumer);
+			consumer = null;
+			if (lastMessage != null){
+				return new SimpleReceiveStatus(position(lastMessage), enqueuedTime(lastMessage), outOfRangeMessage != null);
 			}else{
-				return new SimpleReceiveStatus(null, null, outOfRangeReached);
+				return new SimpleReceiveStatus(null, null, outOfRangeMessage != null);
 			}
 		}catch(JMSException e){
 			throw new DataStreamInfrastructureException(e);
 		}finally{
-			JmsUtility.closeSilently(consumer, session);
+			if (consumer != null){
+				consumer.close();
+			}
 		}
 	}
 	
 	@Override
 	public ReceiveStatus receive(Function<M, Long> receiver, String startPosition, String endPosition) 
 			throws DataStreamInfrastructureException{
-		return receive(receiver, messageSelector(startPosition), 
-				message -> endPosition != null && !isInRange(position(message), endPosition));
+		return receive(receiver, startPosition, endPosition, messageSelector(startPosition), 
+				message -> endPosition != null && !isInRange(message, endPosition));
 	}
 
 	@Override
 	public ReceiveStatus receive(Function<M, Long> receiver, Instant startEnqueuedTime, Instant endEnqueuedTime) 
 			throws DataStreamInfrastructureException{
 		return receive(receiver, messageSelector(startEnqueuedTime), 
-				message -> endEnqueuedTime != null && !isInRange(enqueuedTime(message), endEnqueuedTime));
+				message -> endEnqueuedTime != null && !isInRange(message, endEnqueuedTime));
 	}
 
 	@Override
 	public ReceiveStatus receive(Function<M, Long> receiver, String startPosition, Instant endEnqueuedTime) 
 			throws DataStreamInfrastructureException{
-		return receive(receiver, messageSelector(startPosition), 
-				message -> endEnqueuedTime != null && !isInRange(enqueuedTime(message), endEnqueuedTime));
+		return receive(receiver, startPosition, null, messageSelector(startPosition), 
+				message -> endEnqueuedTime != null && !isInRange(message, endEnqueuedTime));
+	}
+
+	/**
+	 * Set how long a warm consumer can be idle before it is considered stale and will not be reused
+	 * @param maxIdle	the maximum idle duration, zero means warm consumers will never be reused
+	 */
+	public void setWarmConsumerMaxIdle(Duration maxIdle){
+		Validate.notNull(maxIdle, "Maximum idle duration cannot be null");
+		this.warmConsumerMaxIdleMillis = maxIdle.toMillis();
+	}
+	
+	/**
+	 * Get the warm consumer if it continues from the start position, or create a new one.
+	 * @param startPosition		the start position, or null if the request does not start from a position
+	 * @param messageSelector	the message selector for creating a new consumer
+	 * @return	the consumer which is exclusively owned by the caller until released or closed
+	 * @throws JMSException	if failed to create a new consumer
+	 */
+	protected WarmConsumer acquireConsumer(String startPosition, String messageSelector) throws JMSException{
+		WarmConsumer consumer = warmConsumer.getAndSet(null);
+		if (consumer != null){
+			if (startPosition != null && consumer.resumePositions.contains(startPosition)
+					&& System.currentTimeMillis() - consumer.lastUsedTime < warmConsumerMaxIdleMillis){
+				consumer.reused = true;
+				return consumer;
+			}
+			consumer.close();
+		}
+		return newConsumer(startPosition, messageSelector);
+	}
+	
+	protected WarmConsumer newConsumer(String startPosition, String messageSelector) throws JMSException{
+		Session session = getConnection().createSession(false, Session.AUTO_ACKNOWLEDGE);
+		try{
+			WarmConsumer consumer = new WarmConsumer(session, session.createConsumer(destination, messageSelector));
+			if (startPosition != null){
+				consumer.resumePositions.add(startPosition);
+			}
+			return consumer;
+		}catch(JMSException|RuntimeException e){
+			JmsUtility.closeSilently((MessageConsumer)null, session);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Keep the consumer warm for the next fetch/receive, or close it if there is already another warm one
+	 * @param consumer	the consumer
+	 */
+	protected void releaseConsumer(WarmConsumer consumer){
+		consumer.lastUsedTime = System.currentTimeMillis();
+		consumer.reused = false;
+		if (!warmConsumer.compareAndSet(null, consumer)){
+			consumer.close();
+		}
+	}
+	
+	/**
+	 * Close the warm consumer if there is one
+	 */
+	protected void closeWarmConsumer(){
+		WarmConsumer consumer = warmConsumer.getAndSet(null);
+		if (consumer != null){
+			consumer.close();
+		}
+	}
+	
+	/**
+	 * Asynchronous receiving with a bounded buffer and credit based flow control.
+	 * The <code>Session</code> and <code>MessageConsumer</code> are used and closed only by the pulling thread.
+	 */
+	protected class FlowControlledReceiving {
+		protected final Session session;
+		protected final MessageConsumer consumer;
+		protected final Consumer<M> objConsumer;
+		protected final Executor executor;
+		protected final int batchSize;
+		/**
+		 * One credit is needed for pulling a message, and it is returned after the message has been delivered
+		 */
+		protected final Semaphore credits;
+		protected final java.util.Queue<Message> buffer = new ConcurrentLinkedQueue<>();
+		protected final AtomicBoolean delivering = new AtomicBoolean(false);
+		protected volatile boolean running = true;
+		
+		FlowControlledReceiving(Session session, MessageConsumer consumer, Consumer<M> objConsumer, Executor executor, int bufferSize, int batchSize){
+			this.session = session;
+			this.consumer = consumer;
+			this.objConsumer = objConsumer;
+			this.executor = executor;
+			this.batchSize = batchSize;
+			this.credits = new Semaphore(bufferSize);
+		}
+		
+		void pull(){
+			try{
+				while (running){
+					if (!credits.tryAcquire(PULL_SLICE_MILLIS, TimeUnit.MILLISECONDS)){
+						scheduleDelivery();		// paused, make sure that the buffer is being drained
+						continue;
+					}
+					Message message = null;
+					try{
+						message = consumer.receive(PULL_SLICE_MILLIS);
+					}finally{
+						if (message == null){
+							credits.release();
+						}
+					}
+					if (message != null){
+						received(message, false);
+						buffer.add(message);
+						scheduleDelivery();
+					}
+				}
+			}catch(InterruptedException e){
+				// stop
+			}catch(Exception e){
+				if (running){
+					logger.warn("Asynchronous receiving stopped because of failure in receiving", e);
+				}
+			}finally{
+				running = false;
+				JmsUtility.closeSilently(consumer, session);
+			}
+		}
+		
+		void scheduleDelivery(){
+			if (running && !buffer.isEmpty() && delivering.compareAndSet(false, true)){
+				try{
+					executor.execute(this::deliver);
+				}catch(RejectedExecutionException e){
+					delivering.set(false);
+					logger.warn("Delivery of buffered messages rejected by the executor, will retry later", e);
+				}
+			}
+		}
+		
+		/**
+		 * Deliver one batch, then submit another task for the remaining messages, 
+		 * so that subscriptions sharing the executor take turns
+		 */
+		void deliver(){
+			int delivered = 0;
+			try{
+				Message message;
+				while (delivered < batchSize && running && (message = buffer.poll()) != null){
+					delivered ++;
+					try{
+						objConsumer.accept(convert(message));
+					}catch(Exception e){
+						logger.warn("Failed to deliver message: {}", message, e);
+					}
+				}
+			}finally{
+				credits.release(delivered);
+				delivering.set(false);
+			}
+			scheduleDelivery();
+		}
+	}
+	
+	/**
+	 * A <code>Session</code> and <code>MessageConsumer</code> pair 
+	 * together with the start positions that would continue from where it stopped.
+	 */
+	protected class WarmConsumer {
+		protected final Session session;
+		protected final MessageConsumer consumer;
+		/**
+		 * The message that had been received but found out of the range of the previous request
+		 */
+		protected Message pending;
+		protected Set<String> resumePositions = new HashSet<>();
+		protected long lastUsedTime;
+		protected boolean reused;
+		
+		WarmConsumer(Session session, MessageConsumer consumer){
+			this.session = session;
+			this.consumer = consumer;
+		}
+		
+		Message receive(long timeoutMillis) throws JMSException{
+			if (pending != null){
+				Message message = pending;
+				pending = null;
+				return message;
+			}
+			return consumer.receive(timeoutMillis);
+		}
+		
+		/**
+		 * Record where it stopped
+		 * @param lastMessage			the last message delivered, or null if none
+		 * @param endPosition			the end position of the request, or null if the request does not end at a position
+		 * @param outOfRangeMessage		the message found out of range, or null if none
+		 */
+		void advance(Message lastMessage, String endPosition, Message outOfRangeMessage){
+			if (lastMessage != null){
+				resumePositions.clear();
+				resumePositions.add(nextStartPosition(position(lastMessage)));
+			}
+			if (outOfRangeMessage != null){
+				pending = outOfRangeMessage;
+				if (endPosition != null){
+					resumePositions.add(nextStartPosition(endPosition));
+				}
+			}
+		}
+		
+		void close(){
+			JmsUtility.closeSilently(consumer, session);
+		}
 	}
 
 }
@@ -0,0 +1,153 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.function.Function;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Lightweight handle of a JMS message whose conversion is deferred until {@link #get()} is called.
+ * <p>
+ * Using it as the message type of a {@link JmsConsumerStreamDataSupplier}, for example
+ * through {@link net.sf.jabb.dstream.eventhub.EventHubQpidStreamDataSupplier#lazyConverter(Function)},
+ * allows processors that filter on position or enqueued time, or that forward raw payloads,
+ * to skip the conversion of the message body entirely.
+ * </p>
+ * <p>
+ * The converted object, the position and the enqueued time are memorized, so each function is applied at most once.
+ * This class is not thread safe.
+ * </p>
+ * @author James Hu
+ *
+ * @param <T> type of the converted object
+ */
+public class LazyJmsMessage<T> {
+	protected final Message message;
+	protected final Function<Message, T> converter;
+	protected final Function<Message, String> positionFunction;
+	protected final Function<Message, Instant> enqueuedTimeFunction;
+
+	protected boolean converted;
+	protected T object;
+	protected String position;
+	protected Instant enqueuedTime;
+
+	/**
+	 * Constructor
+	 * @param message				the JMS message
+	 * @param converter				converter for converting the JMS message
+	 * @param positionFunction		function for finding out the position of the JMS message
+	 * @param enqueuedTimeFunction	function for finding out the enqueued time of the JMS message
+	 */
+	public LazyJmsMessage(Message message, Function<Message, T> converter,
+			Function<Message, String> positionFunction, Function<Message, Instant> enqueuedTimeFunction){
+		Validate.notNull(message, "Message cannot be null");
+		Validate.notNull(converter, "Converter cannot be null");
+		Validate.notNull(positionFunction, "Position function cannot be null");
+		Validate.notNull(enqueuedTimeFunction, "Enqueued time function cannot be null");
+		this.message = message;
+		this.converter = converter;
+		this.positionFunction = positionFunction;
+		this.enqueuedTimeFunction = enqueuedTimeFunction;
+	}
+
+	/**
+	 * Create a function that wraps JMS messages into lazily converted handles
+	 * @param <T> type of the converted object
+	 * @param converter				converter for converting the JMS message
+	 * @param positionFunction		function for finding out the position of the JMS message
+	 * @param enqueuedTimeFunction	function for finding out the enqueued time of the JMS message
+	 * @return	the function that can be used as the message converter of a {@link JmsConsumerStreamDataSupplier}
+	 */
+	public static <T> Function<Message, LazyJmsMessage<T>> converter(Function<Message, T> converter,
+			Function<Message, String> positionFunction, Function<Message, Instant> enqueuedTimeFunction){
+		Validate.notNull(converter, "Converter cannot be null");
+		return message -> new LazyJmsMessage<>(message, converter, positionFunction, enqueuedTimeFunction);
+	}
+
+	/**
+	 * Get the converted object, the conversion happens only in the first call of this method
+	 * @return	the converted object
+	 */
+	public T get(){
+		if (!converted){
+			object = converter.apply(message);
+			converted = true;
+		}
+		return object;
+	}
+
+	/**
+	 * Check whether the message has already been converted
+	 * @return	true if {@link #get()} has been called, false otherwise
+	 */
+	public boolean isConverted(){
+		return converted;
+	}
+
+	/**
+	 * Get the underlying JMS message
+	 * @return	the JMS message
+	 */
+	public Message getMessage(){
+		return message;
+	}
+
+	/**
+	 * Get the position of the message
+	 * @return	the position
+	 */
+	public String getPosition(){
+		if (position == null){
+			position = positionFunction.apply(message);
+		}
+		return position;
+	}
+
+	/**
+	 * Get the enqueued time of the message
+	 * @return	the enqueued time
+	 */
+	public Instant getEnqueuedTime(){
+		if (enqueuedTime == null){
+			enqueuedTime = enqueuedTimeFunction.apply(message);
+		}
+		return enqueuedTime;
+	}
+
+	/**
+	 * Get the raw body of the message without converting it.
+	 * Body of a {@link BytesMessage} is returned as is, body of a {@link TextMessage} is encoded in UTF-8.
+	 * @return	the raw body, or null if the message is neither a BytesMessage nor a TextMessage or it has no body
+	 * @throws JMSException	if the body cannot be read
+	 */
+	public byte[] getBodyBytes() throws JMSException{
+		if (message instanceof BytesMessage){
+			BytesMessage bytesMessage = (BytesMessage) message;
+			bytesMessage.reset();
+			byte[] bytes = new byte[(int)bytesMessage.getBodyLength()];
+			bytesMessage.readBytes(bytes, bytes.length);
+			return bytes;
+		}else if (message instanceof TextMessage){
+			String text = ((TextMessage)message).getText();
+			return text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+		}else{
+			return null;
+		}
+	}
+
+	@Override
+	public String toString(){
+		return "LazyJmsMessage[" + getPosition() + (converted ? ", " + object : "") + "]";
+	}
+
+}
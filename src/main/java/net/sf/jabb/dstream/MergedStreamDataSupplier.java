@@ -0,0 +1,678 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.sf.jabb.dstream.ReceivingSupport.Receiving;
+import net.sf.jabb.dstream.ex.DataStreamInfrastructureException;
+
+/**
+ * StreamDataSupplier that receives from multiple underlying suppliers (typically one per partition) concurrently
+ * and delivers their messages merged in approximate enqueued time order.
+ * <p>
+ * Messages are buffered per underlying supplier. The one with the earliest enqueued time among the heads of the buffers
+ * is delivered as soon as every other underlying supplier has buffered at least one message or has finished,
+ * or when it has been waiting in the buffer longer than the reorder window, so that an idle underlying supplier
+ * does not hold back the others for longer than that.
+ * </p>
+ * <p>
+ * Positions of this supplier are composites of positions of the underlying suppliers in the format of
+ * <code>id1=position1,id2=position2,...</code>, where the IDs are those of the {@link StreamDataSupplierWithId}s.
+ * A composite position returned as the last position of a fetch/receive records the last delivered position of
+ * every underlying supplier that has delivered anything, and records the start position with <code>&gt;</code>
+ * instead of <code>=</code> for those that have not, so that {@link #nextStartPosition(String)} can continue
+ * every one of them correctly. Therefore composite positions can be checkpointed by transaction coordinators
+ * like any other position. Messages buffered but not delivered when a fetch/receive returns are discarded
+ * and will be received again by the next fetch/receive.
+ * An underlying supplier missing from a composite start position starts from the beginning (empty start position).
+ * </p>
+ * <p>
+ * Because the {@link StreamDataSupplier} interface does not expose the position and enqueued time of a message,
+ * functions for finding them out from a message must be provided.
+ * </p>
+ * @author James Hu
+ *
+ * @param <M> type of the message object
+ */
+public class MergedStreamDataSupplier<M> implements StreamDataSupplier<M> {
+	static private final Logger logger = LoggerFactory.getLogger(MergedStreamDataSupplier.class);
+
+	public static final Duration DEFAULT_REORDER_WINDOW = Duration.ofSeconds(1);
+	public static final int DEFAULT_MAX_BUFFERED_MESSAGES_PER_SUPPLIER = 1000;
+
+	protected static final long FEEDER_STOP_TIMEOUT_MILLIS = 10000;
+	protected static final long ASYNC_RETRY_INTERVAL_MILLIS = 1000;
+
+	protected final List<StreamDataSupplierWithId<M>> suppliers;
+	protected final Function<? super M, String> positionOf;
+	protected final Function<? super M, Instant> enqueuedTimeOf;
+	protected final long reorderWindowMillis;
+	protected final int maxBufferedMessagesPerSupplier;
+
+	protected final ExecutorService executor;
+	protected final ReceivingSupport receivingSupport;
+
+	/**
+	 * Constructor with the default reorder window and buffer size
+	 * @param suppliers			the underlying suppliers, they must have distinct IDs
+	 * @param positionOf		function for finding out the position of a message in its underlying supplier
+	 * @param enqueuedTimeOf	function for finding out the enqueued time of a message
+	 */
+	public MergedStreamDataSupplier(List<StreamDataSupplierWithId<M>> suppliers,
+			Function<? super M, String> positionOf, Function<? super M, Instant> enqueuedTimeOf){
+		this(suppliers, positionOf, enqueuedTimeOf, DEFAULT_REORDER_WINDOW, DEFAULT_MAX_BUFFERED_MESSAGES_PER_SUPPLIER);
+	}
+
+	/**
+	 * Constructor
+	 * @param suppliers			the underlying suppliers, they must have distinct IDs
+	 * @param positionOf		function for finding out the position of a message in its underlying supplier
+	 * @param enqueuedTimeOf	function for finding out the enqueued time of a message
+	 * @param reorderWindow		maximum time a message can be held back waiting for messages from idle underlying suppliers
+	 * @param maxBufferedMessagesPerSupplier	maximum number of messages buffered for each underlying supplier
+	 */
+	public MergedStreamDataSupplier(List<StreamDataSupplierWithId<M>> suppliers,
+			Function<? super M, String> positionOf, Function<? super M, Instant> enqueuedTimeOf,
+			Duration reorderWindow, int maxBufferedMessagesPerSupplier){
+		Validate.notEmpty(suppliers, "Suppliers cannot be empty");
+		Validate.notNull(positionOf, "Position function cannot be null");
+		Validate.notNull(enqueuedTimeOf, "Enqueued time function cannot be null");
+		Validate.notNull(reorderWindow, "Reorder window cannot be null");
+		Validate.isTrue(maxBufferedMessagesPerSupplier > 0, "Maximum number of buffered messages must be positive");
+		Map<String, Boolean> ids = new LinkedHashMap<>();
+		for (StreamDataSupplierWithId<M> supplier: suppliers){
+			Validate.notNull(supplier.getId(), "Supplier ID cannot be null");
+			Validate.isTrue(ids.put(supplier.getId(), Boolean.TRUE) == null, "Supplier IDs must be distinct: %s", supplier.getId());
+		}
+		this.suppliers = new ArrayList<>(suppliers);
+		this.positionOf = positionOf;
+		this.enqueuedTimeOf = enqueuedTimeOf;
+		this.reorderWindowMillis = reorderWindow.toMillis();
+		this.maxBufferedMessagesPerSupplier = maxBufferedMessagesPerSupplier;
+		this.executor = Executors.newCachedThreadPool(new BasicThreadFactory.Builder()
+				.namingPattern(MergedStreamDataSupplier.class.getSimpleName() + "-%d")
+				.daemon(true)
+				.build());
+		this.receivingSupport = new ReceivingSupport(executor);
+	}
+
+	/**
+	 * Get the underlying suppliers
+	 * @return	the underlying suppliers
+	 */
+	public List<StreamDataSupplierWithId<M>> getSuppliers(){
+		return suppliers;
+	}
+
+	@FunctionalInterface
+	protected interface SupplierReceiving<M>{
+		ReceiveStatus receive(int index, Function<M, Long> receiver) throws DataStreamInfrastructureException;
+	}
+
+	/**
+	 * Receive from all the underlying suppliers concurrently and deliver the merged messages to the receiver
+	 * @param receiver				the receiver
+	 * @param startPosition			the composite start position, or null if the request does not start from positions
+	 * @param supplierReceiving		how to receive from an underlying supplier
+	 * @return	the status with composite last position
+	 * @throws DataStreamInfrastructureException	if any underlying supplier failed
+	 */
+	protected ReceiveStatus receive(Function<M, Long> receiver, CompositePosition startPosition, SupplierReceiving<M> supplierReceiving) throws DataStreamInfrastructureException{
+		Merging merging = new Merging();
+		for (int i = 0; i < suppliers.size(); i ++){
+			int index = i;
+			merging.feeders.add(executor.submit(() -> {
+				try{
+					ReceiveStatus status = supplierReceiving.receive(index, m -> m == null ? (merging.active ? ReceivingSupport.RECEIVE_SLICE_MILLIS : 0) : merging.add(index, m));
+					merging.finish(index, status != null && status.isOutOfRangeReached(), null);
+				}catch(Exception e){
+					merging.finish(index, false, e);
+				}
+			}));
+		}
+
+		CompositePosition lastPosition = startPosition == null ? new CompositePosition() : startPosition.startedAt();
+		Entry<M> lastEntry = null;
+		boolean allFinished = false;
+		try{
+			long receiveTimeoutMillis = receiver.apply(null);
+			while (receiveTimeoutMillis > 0){
+				Entry<M> entry = merging.take(receiveTimeoutMillis);
+				if (merging.failure != null){
+					break;
+				}
+				if (entry != null){
+					lastEntry = entry;
+					lastPosition.advance(suppliers.get(entry.index).getId(), entry.position);
+					receiveTimeoutMillis = receiver.apply(entry.message);
+				}else if (merging.isAllFinished()){
+					allFinished = true;
+					break;
+				}else{
+					receiveTimeoutMillis = receiver.apply(null);
+				}
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}finally{
+			merging.stop();
+		}
+
+		if (merging.failure != null){
+			Exception e = merging.failure;
+			throw e instanceof DataStreamInfrastructureException ? (DataStreamInfrastructureException) e : new DataStreamInfrastructureException(e);
+		}
+		return new SimpleReceiveStatus(lastEntry == null ? null : lastPosition.toString(),
+				lastEntry == null ? null : lastEntry.enqueuedTime, allFinished && merging.isAllOutOfRange());
+	}
+
+	@Override
+	public ReceiveStatus receive(Function<M, Long> receiver, String startPosition, String endPosition) throws DataStreamInfrastructureException {
+		CompositePosition start = CompositePosition.parse(startPosition);
+		CompositePosition end = endPosition == null ? null : CompositePosition.parse(endPosition);
+		return receive(receiver, start, (i, r) -> {
+			StreamDataSupplierWithId<M> s = suppliers.get(i);
+			return s.getSupplier().receive(r, start.get(s.getId()), end == null ? null : end.find(s.getId()));
+		});
+	}
+
+	@Override
+	public ReceiveStatus receive(Function<M, Long> receiver, Instant startEnqueuedTime, Instant endEnqueuedTime) throws DataStreamInfrastructureException {
+		return receive(receiver, null, (i, r) -> suppliers.get(i).getSupplier().receive(r, startEnqueuedTime, endEnqueuedTime));
+	}
+
+	@Override
+	public ReceiveStatus receive(Function<M, Long> receiver, String startPosition, Instant endEnqueuedTime) throws DataStreamInfrastructureException {
+		CompositePosition start = CompositePosition.parse(startPosition);
+		return receive(receiver, start, (i, r) -> {
+			StreamDataSupplierWithId<M> s = suppliers.get(i);
+			return s.getSupplier().receive(r, start.get(s.getId()), endEnqueuedTime);
+		});
+	}
+
+	@Override
+	public ReceiveStatus fetch(List<? super M> list, String startPosition, String endPosition, int maxItems, Duration timeoutDuration)
+			throws InterruptedException, DataStreamInfrastructureException {
+		return ReceivingSupport.<M>fetch(list, maxItems, timeoutDuration, r -> receive(r, startPosition, endPosition));
+	}
+
+	@Override
+	public ReceiveStatus fetch(List<? super M> list, Instant startEnqueuedTime, Instant endEnqueuedTime, int maxItems, Duration timeoutDuration)
+			throws InterruptedException, DataStreamInfrastructureException {
+		return ReceivingSupport.<M>fetch(list, maxItems, timeoutDuration, r -> receive(r, startEnqueuedTime, endEnqueuedTime));
+	}
+
+	@Override
+	public ReceiveStatus fetch(List<? super M> list, String startPosition, Instant endEnqueuedTime, int maxItems, Duration timeoutDuration)
+			throws InterruptedException, DataStreamInfrastructureException {
+		return ReceivingSupport.<M>fetch(list, maxItems, timeoutDuration, r -> receive(r, startPosition, endEnqueuedTime));
+	}
+
+	@Override
+	public String firstPosition() {
+		CompositePosition position = new CompositePosition();
+		for (StreamDataSupplierWithId<M> s: suppliers){
+			position.advance(s.getId(), s.getSupplier().firstPosition());
+		}
+		return position.toString();
+	}
+
+	/**
+	 * Composite of the first positions of the underlying suppliers,
+	 * those having no message enqueued after the time are not included.
+	 */
+	@Override
+	public String firstPosition(Instant enqueuedAfter, Duration waitForArrival) throws InterruptedException, DataStreamInfrastructureException {
+		CompositePosition position = new CompositePosition();
+		for (StreamDataSupplierWithId<M> s: suppliers){
+			position.advance(s.getId(), s.getSupplier().firstPosition(enqueuedAfter, waitForArrival));
+		}
+		return position.isEmpty() ? null : position.toString();
+	}
+
+	@Override
+	public String lastPosition() throws DataStreamInfrastructureException {
+		CompositePosition position = new CompositePosition();
+		for (StreamDataSupplierWithId<M> s: suppliers){
+			position.advance(s.getId(), s.getSupplier().lastPosition());
+		}
+		return position.isEmpty() ? null : position.toString();
+	}
+
+	/**
+	 * The latest of enqueued times of the underlying positions that have been advanced
+	 */
+	@Override
+	public Instant enqueuedTime(String position) throws DataStreamInfrastructureException {
+		CompositePosition composite = CompositePosition.parse(position);
+		Instant result = null;
+		for (StreamDataSupplierWithId<M> s: suppliers){
+			String p = composite.find(s.getId());
+			if (p != null && composite.isAdvanced(s.getId())){
+				Instant t = s.getSupplier().enqueuedTime(p);
+				if (t != null && (result == null || t.isAfter(result))){
+					result = t;
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public String nextStartPosition(String previousEndPosition) {
+		CompositePosition previous = CompositePosition.parse(previousEndPosition);
+		CompositePosition next = new CompositePosition();
+		for (StreamDataSupplierWithId<M> s: suppliers){
+			String p = previous.find(s.getId());
+			if (p != null){
+				next.start(s.getId(), previous.isAdvanced(s.getId()) ? s.getSupplier().nextStartPosition(p) : p);
+			}
+		}
+		return next.toString();
+	}
+
+	/**
+	 * In range only if every advanced underlying position is in range of the corresponding underlying end position
+	 */
+	@Override
+	public boolean isInRange(String position, String endPosition) {
+		if (endPosition == null){
+			return true;
+		}
+		CompositePosition composite = CompositePosition.parse(position);
+		CompositePosition end = CompositePosition.parse(endPosition);
+		for (StreamDataSupplierWithId<M> s: suppliers){
+			String p = composite.find(s.getId());
+			String e = end.find(s.getId());
+			if (p != null && e != null && composite.isAdvanced(s.getId()) && !s.getSupplier().isInRange(p, e)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean isInRange(Instant enqueuedTime, Instant endEnqueuedTime) {
+		return suppliers.get(0).getSupplier().isInRange(enqueuedTime, endEnqueuedTime);
+	}
+
+	/**
+	 * Keep receiving in a background thread until stopped.
+	 * If an underlying supplier fails, receiving restarts from the last successfully returned position,
+	 * therefore some messages may be delivered again.
+	 */
+	protected String startAsyncReceiving(Consumer<M> receiver, Receiving<M> firstReceiving){
+		return receivingSupport.startAsyncReceiving((id, running) -> {
+			Function<M, Long> r = ReceivingSupport.asyncReceiver(receiver, running);
+			Receiving<M> receiving = firstReceiving;
+			while (running.get()){
+				try{
+					ReceiveStatus status = receiving.receive(r);
+					if (status.getLastPosition() != null){
+						String startPosition = nextStartPosition(status.getLastPosition());
+						receiving = x -> receive(x, startPosition, (String)null);
+					}
+				}catch(Exception e){
+					logger.warn("Asynchronous receiving {} failed, will retry in {} milliseconds", id, ASYNC_RETRY_INTERVAL_MILLIS, e);
+					try {
+						Thread.sleep(ASYNC_RETRY_INTERVAL_MILLIS);
+					} catch (InterruptedException e1) {
+						break;
+					}
+				}
+			}
+		});
+	}
+
+	@Override
+	public String startAsyncReceiving(Consumer<M> receiver, String startPosition) throws DataStreamInfrastructureException {
+		return startAsyncReceiving(receiver, r -> receive(r, startPosition, (String)null));
+	}
+
+	@Override
+	public String startAsyncReceiving(Consumer<M> receiver, Instant startEnqueuedTime) throws DataStreamInfrastructureException {
+		return startAsyncReceiving(receiver, r -> receive(r, startEnqueuedTime, (Instant)null));
+	}
+
+	@Override
+	public void stopAsyncReceiving(String id) {
+		receivingSupport.stopAsyncReceiving(id);
+	}
+
+	@Override
+	public void start() throws Exception {
+		for (StreamDataSupplierWithId<M> s: suppliers){
+			s.getSupplier().start();
+		}
+	}
+
+	@Override
+	public void stop() throws Exception {
+		receivingSupport.stopAllAsyncReceivings();
+		executor.shutdown();
+		Exception exception = null;
+		for (StreamDataSupplierWithId<M> s: suppliers){
+			try{
+				s.getSupplier().stop();
+			}catch(Exception e){
+				logger.warn("Failed to stop supplier {}", s.getId(), e);
+				exception = e;
+			}
+		}
+		if (exception != null){
+			throw exception;
+		}
+	}
+
+	/**
+	 * State of one fetch/receive
+	 */
+	protected class Merging {
+		final ReentrantLock lock = new ReentrantLock();
+		final Condition changed = lock.newCondition();
+		final List<ArrayDeque<Entry<M>>> buffers = new ArrayList<>(suppliers.size());
+		final boolean[] finished = new boolean[suppliers.size()];
+		final boolean[] outOfRange = new boolean[suppliers.size()];
+		final List<Future<?>> feeders = new ArrayList<>(suppliers.size());
+		volatile boolean active = true;
+		volatile Exception failure;
+		long sequence;
+
+		Merging(){
+			for (int i = 0; i < suppliers.size(); i ++){
+				buffers.add(new ArrayDeque<>());
+			}
+		}
+
+		/**
+		 * Called by the feeder threads
+		 */
+		long add(int index, M message){
+			Entry<M> entry = new Entry<>(index, message, positionOf.apply(message), enqueuedTimeOf.apply(message));
+			lock.lock();
+			try{
+				ArrayDeque<Entry<M>> buffer = buffers.get(index);
+				while (active && buffer.size() >= maxBufferedMessagesPerSupplier){
+					changed.await(ReceivingSupport.RECEIVE_SLICE_MILLIS, TimeUnit.MILLISECONDS);
+				}
+				if (!active){
+					return 0;
+				}
+				entry.sequence = sequence ++;
+				buffer.addLast(entry);
+				changed.signalAll();
+				return ReceivingSupport.RECEIVE_SLICE_MILLIS;
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				return 0;
+			}finally{
+				lock.unlock();
+			}
+		}
+
+		void finish(int index, boolean outOfRangeReached, Exception e){
+			lock.lock();
+			try{
+				finished[index] = true;
+				outOfRange[index] = outOfRangeReached;
+				if (e != null && active){
+					logger.warn("Failed to receive from supplier {}", suppliers.get(index).getId(), e);
+					if (failure == null){
+						failure = e;
+					}
+				}
+				changed.signalAll();
+			}finally{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Take the next message in merged order, waiting if it is not ready yet
+		 * @param timeoutMillis		maximum time to wait
+		 * @return	the next message, or null if there is none ready within the time
+		 * @throws InterruptedException		if interrupted
+		 */
+		Entry<M> take(long timeoutMillis) throws InterruptedException{
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			lock.lock();
+			try{
+				while (failure == null){
+					long now = System.currentTimeMillis();
+					Entry<M> earliest = null;
+					boolean allReady = true;
+					for (int i = 0; i < buffers.size(); i ++){
+						Entry<M> head = buffers.get(i).peekFirst();
+						if (head == null){
+							allReady &= finished[i];
+						}else if (earliest == null || head.compareTo(earliest) < 0){
+							earliest = head;
+						}
+					}
+					long waitMillis = deadline - now;
+					if (earliest != null){
+						long heldMillis = now - earliest.bufferedTime;
+						if (allReady || heldMillis >= reorderWindowMillis){
+							buffers.get(earliest.index).pollFirst();
+							changed.signalAll();
+							return earliest;
+						}
+						waitMillis = Math.min(waitMillis, reorderWindowMillis - heldMillis);
+					}else if (allReady){
+						return null;
+					}
+					if (deadline - now <= 0){
+						return null;
+					}
+					changed.await(waitMillis, TimeUnit.MILLISECONDS);
+				}
+				return null;
+			}finally{
+				lock.unlock();
+			}
+		}
+
+		boolean isAllFinished(){
+			lock.lock();
+			try{
+				for (int i = 0; i < finished.length; i ++){
+					if (!finished[i] || !buffers.get(i).isEmpty()){
+						return false;
+					}
+				}
+				return true;
+			}finally{
+				lock.unlock();
+			}
+		}
+
+		boolean isAllOutOfRange(){
+			lock.lock();
+			try{
+				for (boolean b: outOfRange){
+					if (!b){
+						return false;
+					}
+				}
+				return true;
+			}finally{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Stop all feeders and discard buffered messages
+		 */
+		void stop(){
+			lock.lock();
+			try{
+				active = false;
+				changed.signalAll();
+			}finally{
+				lock.unlock();
+			}
+			for (Future<?> feeder: feeders){
+				try {
+					feeder.get(FEEDER_STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					logger.warn("Receiving from an underlying supplier did not stop within {} milliseconds", FEEDER_STOP_TIMEOUT_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				} catch (Exception e) {
+					// reported by finish(...)
+				}
+			}
+		}
+	}
+
+	/**
+	 * A buffered message
+	 * @param <M> type of the message object
+	 */
+	protected static class Entry<M> implements Comparable<Entry<M>>{
+		final int index;
+		final M message;
+		final String position;
+		final Instant enqueuedTime;
+		final long bufferedTime = System.currentTimeMillis();
+		long sequence;
+
+		Entry(int index, M message, String position, Instant enqueuedTime){
+			this.index = index;
+			this.message = message;
+			this.position = position;
+			this.enqueuedTime = enqueuedTime;
+		}
+
+		@Override
+		public int compareTo(Entry<M> o) {
+			int result = enqueuedTime.compareTo(o.enqueuedTime);
+			return result != 0 ? result : Long.compare(sequence, o.sequence);
+		}
+	}
+
+	/**
+	 * Composite of positions of underlying suppliers.
+	 * Every underlying position is either advanced (the last delivered position, encoded as <code>id=position</code>),
+	 * or not advanced (the start position, encoded as <code>id&gt;position</code>).
+	 * IDs and positions are escaped so that they can contain any character.
+	 */
+	protected static class CompositePosition {
+		protected final Map<String, String> positions = new LinkedHashMap<>();
+		protected final Map<String, Boolean> advanced = new LinkedHashMap<>();
+
+		static CompositePosition parse(String s){
+			CompositePosition result = new CompositePosition();
+			if (s != null && s.length() > 0){
+				for (String part: s.split(",")){
+					int i = part.indexOf('=');
+					int j = part.indexOf('>');
+					boolean isAdvanced = i >= 0 && (j < 0 || i < j);
+					int k = isAdvanced ? i : j;
+					Validate.isTrue(k > 0, "Invalid composite position: %s", s);
+					String id = unescape(part.substring(0, k));
+					result.positions.put(id, unescape(part.substring(k + 1)));
+					result.advanced.put(id, isAdvanced);
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Get the underlying position, an empty start position if the underlying supplier is not included
+		 * @param id	ID of the underlying supplier
+		 * @return	the underlying position
+		 */
+		String get(String id){
+			String position = positions.get(id);
+			return position == null ? "" : position;
+		}
+
+		/**
+		 * Get the underlying position
+		 * @param id	ID of the underlying supplier
+		 * @return	the underlying position, or null if the underlying supplier is not included
+		 */
+		String find(String id){
+			return positions.get(id);
+		}
+
+		boolean isAdvanced(String id){
+			return Boolean.TRUE.equals(advanced.get(id));
+		}
+
+		boolean isEmpty(){
+			return positions.isEmpty();
+		}
+
+		void advance(String id, String position){
+			if (position != null){
+				positions.put(id, position);
+				advanced.put(id, true);
+			}
+		}
+
+		void start(String id, String position){
+			positions.put(id, position);
+			advanced.put(id, false);
+		}
+
+		/**
+		 * Used as the initial last position of a fetch/receive
+		 * @return	a copy with all the underlying positions not advanced
+		 */
+		CompositePosition startedAt(){
+			CompositePosition result = new CompositePosition();
+			for (Map.Entry<String, String> entry: positions.entrySet()){
+				result.start(entry.getKey(), entry.getValue());
+			}
+			return result;
+		}
+
+		static String escape(String s){
+			return s.replace("%", "%25").replace(",", "%2C").replace("=", "%3D").replace(">", "%3E");
+		}
+
+		static String unescape(String s){
+			return s.replace("%3E", ">").replace("%3D", "=").replace("%2C", ",").replace("%25", "%");
+		}
+
+		@Override
+		public String toString(){
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String, String> entry: positions.entrySet()){
+				if (sb.length() > 0){
+					sb.append(',');
+				}
+				sb.append(escape(entry.getKey()))
+					.append(isAdvanced(entry.getKey()) ? '=' : '>')
+					.append(escape(entry.getValue()));
+			}
+			return sb.toString();
+		}
+	}
+
+}
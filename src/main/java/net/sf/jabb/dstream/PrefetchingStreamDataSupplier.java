@@ -0,0 +1,496 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.sf.jabb.dstream.ex.DataStreamInfrastructureException;
+
+/**
+ * Decorator of StreamDataSupplier that reads ahead.
+ * <p>
+ * A background thread keeps receiving messages from the underlying supplier into a bounded buffer,
+ * starting from where the last fetch/receive stopped.
+ * Position based fetch/receive requests starting from where the previous one stopped are served from the buffer,
+ * so that they do not have to wait for the network round trip of the first message.
+ * A request starting from any other position discards the buffer and restarts reading ahead from that position.
+ * Requests based on enqueued time, asynchronous receiving, and all other methods are delegated directly.
+ * </p>
+ * <p>
+ * Positions of messages are found out by a function provided to the constructor,
+ * and the buffer can be limited by both the number of messages and the total size of messages.
+ * Fetch/receive requests are served one at a time.
+ * </p>
+ * @author James Hu
+ *
+ * @param <M> type of the message object
+ */
+public class PrefetchingStreamDataSupplier<M> implements StreamDataSupplier<M> {
+	static private final Logger logger = LoggerFactory.getLogger(PrefetchingStreamDataSupplier.class);
+
+	public static final int DEFAULT_MAX_BUFFERED_MESSAGES = 10000;
+
+	/**
+	 * How long the background receiving can go without checking whether it should stop or restart
+	 */
+	protected static final long RECEIVE_SLICE_MILLIS = 200;
+	protected static final long RETRY_INTERVAL_MILLIS = 1000;
+
+	protected static final ThreadFactory threadFactory = new BasicThreadFactory.Builder()
+			.namingPattern(PrefetchingStreamDataSupplier.class.getSimpleName() + "-%d")
+			.daemon(true)
+			.build();
+
+	protected final StreamDataSupplier<M> supplier;
+	protected final Function<? super M, String> positionOf;
+	protected final ToIntFunction<? super M> sizeOf;
+	protected final int maxBufferedMessages;
+	protected final long maxBufferedBytes;
+
+	protected final ReentrantLock lock = new ReentrantLock();
+	protected final Condition notEmpty = lock.newCondition();
+	protected final Condition notFull = lock.newCondition();
+
+	// all below are guarded by lock
+	protected final ArrayDeque<Entry<M>> buffer = new ArrayDeque<>();
+	protected long bufferedBytes;
+	/**
+	 * Start positions that continue from where the last request stopped
+	 */
+	protected Set<String> continuations = new HashSet<>();
+	/**
+	 * Start position from where the background receiving should continue, null if it has nothing to do
+	 */
+	protected String fillStartPosition;
+	/**
+	 * Changed whenever the buffer is discarded, so that the background receiving of an old position can be identified
+	 */
+	protected long generation;
+	protected Exception failure;
+	protected Thread filler;
+	protected boolean running = true;
+
+	protected final Object serving = new Object();
+
+	/**
+	 * Constructor with the default limit of the number of messages and no limit of the total size of messages
+	 * @param supplier		the underlying supplier
+	 * @param positionOf	function for finding out the position of a message
+	 */
+	public PrefetchingStreamDataSupplier(StreamDataSupplier<M> supplier, Function<? super M, String> positionOf){
+		this(supplier, positionOf, m -> 0, DEFAULT_MAX_BUFFERED_MESSAGES, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Constructor
+	 * @param supplier				the underlying supplier
+	 * @param positionOf			function for finding out the position of a message
+	 * @param sizeOf				function for estimating the size in bytes of a message
+	 * @param maxBufferedMessages	maximum number of messages in the buffer
+	 * @param maxBufferedBytes		maximum total size in bytes of messages in the buffer
+	 */
+	public PrefetchingStreamDataSupplier(StreamDataSupplier<M> supplier, Function<? super M, String> positionOf,
+			ToIntFunction<? super M> sizeOf, int maxBufferedMessages, long maxBufferedBytes){
+		Validate.notNull(supplier, "Supplier cannot be null");
+		Validate.notNull(positionOf, "Position function cannot be null");
+		Validate.notNull(sizeOf, "Size function cannot be null");
+		Validate.isTrue(maxBufferedMessages > 0, "Maximum number of buffered messages must be positive");
+		Validate.isTrue(maxBufferedBytes > 0, "Maximum size of buffered messages must be positive");
+		this.supplier = supplier;
+		this.positionOf = positionOf;
+		this.sizeOf = sizeOf;
+		this.maxBufferedMessages = maxBufferedMessages;
+		this.maxBufferedBytes = maxBufferedBytes;
+	}
+
+	/**
+	 * Get the number of messages currently in the buffer
+	 * @return	number of messages buffered
+	 */
+	public int getBufferedMessages(){
+		lock.lock();
+		try{
+			return buffer.size();
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the total size of messages currently in the buffer
+	 * @return	total size in bytes of messages buffered
+	 */
+	public long getBufferedBytes(){
+		lock.lock();
+		try{
+			return bufferedBytes;
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	protected boolean isFull(){
+		return buffer.size() >= maxBufferedMessages || bufferedBytes >= maxBufferedBytes;
+	}
+
+	/**
+	 * Make sure that the buffer continues from the start position, otherwise discard it and restart reading ahead from the start position.
+	 * @param startPosition		the start position of the request
+	 */
+	protected void continueFrom(String startPosition){
+		lock.lock();
+		try{
+			if (!continuations.contains(startPosition)){
+				generation ++;
+				buffer.clear();
+				bufferedBytes = 0;
+				failure = null;
+				continuations.clear();
+				continuations.add(startPosition);
+				fillStartPosition = startPosition;
+				notFull.signalAll();
+				logger.debug("Start reading ahead from {}", startPosition);
+			}
+			if (filler == null && running){
+				filler = threadFactory.newThread(this::fill);
+				filler.start();
+			}
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait for the first message in the buffer without removing it.
+	 * @param timeoutMillis		maximum time to wait
+	 * @return	the first entry in the buffer, or null if timed out
+	 * @throws InterruptedException	if interrupted
+	 * @throws DataStreamInfrastructureException	if background receiving failed
+	 */
+	protected Entry<M> peek(long timeoutMillis) throws InterruptedException, DataStreamInfrastructureException{
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		lock.lock();
+		try{
+			while (buffer.isEmpty()){
+				if (failure != null){
+					Exception e = failure;
+					failure = null;
+					throw new DataStreamInfrastructureException("Failed to read ahead from the underlying supplier", e);
+				}
+				if (nanos <= 0){
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return buffer.peekFirst();
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove the first message in the buffer after it has been delivered
+	 * @param entry		the first entry
+	 */
+	protected void remove(Entry<M> entry){
+		lock.lock();
+		try{
+			buffer.pollFirst();
+			bufferedBytes -= entry.size;
+			continuations.clear();
+			continuations.add(supplier.nextStartPosition(entry.position));
+			notFull.signalAll();
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Record that the first message in the buffer is beyond the end position,
+	 * so that a request starting right after the end position continues from it.
+	 * @param endPosition	the end position
+	 */
+	protected void outOfRange(String endPosition){
+		lock.lock();
+		try{
+			continuations.add(supplier.nextStartPosition(endPosition));
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Body of the background thread
+	 */
+	protected void fill(){
+		while (true){
+			String startPosition;
+			long fillGeneration;
+			lock.lock();
+			try{
+				while (running && (fillStartPosition == null || isFull())){
+					notFull.await();
+				}
+				if (!running){
+					break;
+				}
+				startPosition = fillStartPosition;
+				fillGeneration = generation;
+			}catch(InterruptedException e){
+				break;
+			}finally{
+				lock.unlock();
+			}
+
+			try{
+				supplier.receive(m -> m == null ? (isCurrent(fillGeneration) ? RECEIVE_SLICE_MILLIS : 0) : add(fillGeneration, m),
+						startPosition, (String)null);
+			}catch(Exception e){
+				logger.warn("Failed to read ahead from {}, will retry in {} milliseconds", startPosition, RETRY_INTERVAL_MILLIS, e);
+				lock.lock();
+				try{
+					if (fillGeneration == generation){
+						failure = e;
+						notEmpty.signalAll();
+					}
+				}finally{
+					lock.unlock();
+				}
+				try {
+					Thread.sleep(RETRY_INTERVAL_MILLIS);
+				} catch (InterruptedException e1) {
+					break;
+				}
+			}
+		}
+		logger.debug("Stopped reading ahead");
+	}
+
+	protected boolean isCurrent(long fillGeneration){
+		lock.lock();
+		try{
+			return running && fillGeneration == generation && !isFull();
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Add a message received in the background into the buffer
+	 * @param fillGeneration	generation at the time the background receiving started
+	 * @param message			the message
+	 * @return	number of milliseconds left for the background receiving
+	 */
+	protected long add(long fillGeneration, M message){
+		String position = positionOf.apply(message);
+		int size = sizeOf.applyAsInt(message);
+		lock.lock();
+		try{
+			if (!running || fillGeneration != generation){
+				return 0;
+			}
+			buffer.addLast(new Entry<>(message, position, size));
+			bufferedBytes += size;
+			fillStartPosition = supplier.nextStartPosition(position);
+			notEmpty.signalAll();
+			return isFull() ? 0 : RECEIVE_SLICE_MILLIS;
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public ReceiveStatus fetch(List<? super M> list, String startPosition, String endPosition, int maxItems, Duration timeoutDuration)
+			throws InterruptedException, DataStreamInfrastructureException {
+		synchronized(serving){
+			continueFrom(startPosition);
+			long deadline = System.currentTimeMillis() + timeoutDuration.toMillis();
+			String lastPosition = null;
+			boolean outOfRangeReached = false;
+			int count = 0;
+			while (count < maxItems){
+				Entry<M> entry = peek(deadline - System.currentTimeMillis());
+				if (entry == null){
+					break;
+				}
+				if (endPosition != null && !supplier.isInRange(entry.position, endPosition)){
+					outOfRange(endPosition);
+					outOfRangeReached = true;
+					break;
+				}
+				list.add(entry.message);
+				lastPosition = entry.position;
+				remove(entry);
+				count ++;
+			}
+			return new SimpleReceiveStatus(lastPosition, null, outOfRangeReached);
+		}
+	}
+
+	@Override
+	public ReceiveStatus receive(Function<M, Long> receiver, String startPosition, String endPosition) throws DataStreamInfrastructureException {
+		synchronized(serving){
+			continueFrom(startPosition);
+			String lastPosition = null;
+			boolean outOfRangeReached = false;
+			try{
+				long receiveTimeoutMillis = receiver.apply(null);
+				while (receiveTimeoutMillis > 0){
+					Entry<M> entry = peek(receiveTimeoutMillis);
+					if (entry == null){
+						receiveTimeoutMillis = receiver.apply(null);
+						continue;
+					}
+					if (endPosition != null && !supplier.isInRange(entry.position, endPosition)){
+						outOfRange(endPosition);
+						outOfRangeReached = true;
+						break;
+					}
+					remove(entry);
+					lastPosition = entry.position;
+					receiveTimeoutMillis = receiver.apply(entry.message);
+				}
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			return new SimpleReceiveStatus(lastPosition, null, outOfRangeReached);
+		}
+	}
+
+	@Override
+	public ReceiveStatus fetch(List<? super M> list, Instant startEnqueuedTime, Instant endEnqueuedTime, int maxItems, Duration timeoutDuration)
+			throws InterruptedException, DataStreamInfrastructureException {
+		return supplier.fetch(list, startEnqueuedTime, endEnqueuedTime, maxItems, timeoutDuration);
+	}
+
+	@Override
+	public ReceiveStatus fetch(List<? super M> list, String startPosition, Instant endEnqueuedTime, int maxItems, Duration timeoutDuration)
+			throws InterruptedException, DataStreamInfrastructureException {
+		return supplier.fetch(list, startPosition, endEnqueuedTime, maxItems, timeoutDuration);
+	}
+
+	@Override
+	public ReceiveStatus receive(Function<M, Long> receiver, Instant startEnqueuedTime, Instant endEnqueuedTime) throws DataStreamInfrastructureException {
+		return supplier.receive(receiver, startEnqueuedTime, endEnqueuedTime);
+	}
+
+	@Override
+	public ReceiveStatus receive(Function<M, Long> receiver, String startPosition, Instant endEnqueuedTime) throws DataStreamInfrastructureException {
+		return supplier.receive(receiver, startPosition, endEnqueuedTime);
+	}
+
+	@Override
+	public String firstPosition() {
+		return supplier.firstPosition();
+	}
+
+	@Override
+	public String firstPosition(Instant enqueuedAfter, Duration waitForArrival) throws InterruptedException, DataStreamInfrastructureException {
+		return supplier.firstPosition(enqueuedAfter, waitForArrival);
+	}
+
+	@Override
+	public String lastPosition() throws DataStreamInfrastructureException {
+		return supplier.lastPosition();
+	}
+
+	@Override
+	public Instant enqueuedTime(String position) throws DataStreamInfrastructureException {
+		return supplier.enqueuedTime(position);
+	}
+
+	@Override
+	public String nextStartPosition(String previousEndPosition) {
+		return supplier.nextStartPosition(previousEndPosition);
+	}
+
+	@Override
+	public boolean isInRange(String position, String endPosition) {
+		return supplier.isInRange(position, endPosition);
+	}
+
+	@Override
+	public boolean isInRange(Instant enqueuedTime, Instant endEnqueuedTime) {
+		return supplier.isInRange(enqueuedTime, endEnqueuedTime);
+	}
+
+	@Override
+	public String startAsyncReceiving(Consumer<M> receiver, String startPosition) throws DataStreamInfrastructureException {
+		return supplier.startAsyncReceiving(receiver, startPosition);
+	}
+
+	@Override
+	public String startAsyncReceiving(Consumer<M> receiver, Instant startEnqueuedTime) throws DataStreamInfrastructureException {
+		return supplier.startAsyncReceiving(receiver, startEnqueuedTime);
+	}
+
+	@Override
+	public void stopAsyncReceiving(String id) {
+		supplier.stopAsyncReceiving(id);
+	}
+
+	@Override
+	public void start() throws Exception {
+		supplier.start();
+	}
+
+	/**
+	 * Stop reading ahead, discard the buffer, and then stop the underlying supplier
+	 */
+	@Override
+	public void stop() throws Exception {
+		Thread thread;
+		lock.lock();
+		try{
+			running = false;
+			generation ++;
+			buffer.clear();
+			bufferedBytes = 0;
+			continuations.clear();
+			notFull.signalAll();
+			notEmpty.signalAll();
+			thread = filler;
+		}finally{
+			lock.unlock();
+		}
+		if (thread != null){
+			thread.join(RECEIVE_SLICE_MILLIS * 10);
+		}
+		supplier.stop();
+	}
+
+	/**
+	 * A buffered message and its position and size
+	 * @param <M> type of the message object
+	 */
+	protected static class Entry<M>{
+		final M message;
+		final String position;
+		final int size;
+
+		Entry(M message, String position, int size){
+			this.message = message;
+			this.position = position;
+			this.size = size;
+		}
+	}
+
+}
@@ -0,0 +1,149 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import net.sf.jabb.dstream.ex.DataStreamInfrastructureException;
+
+/**
+ * Support for implementing <code>fetch(...)</code> and asynchronous receiving of a {@link StreamDataSupplier}
+ * on top of its <code>receive(...)</code>.
+ * An instance keeps track of the asynchronous receivings started through it, so that they can be stopped individually or all together.
+ * @author James Hu
+ *
+ */
+public class ReceivingSupport {
+	/**
+	 * How long receiving can go without checking whether it should stop
+	 */
+	public static final long RECEIVE_SLICE_MILLIS = 200;
+
+	/**
+	 * One receiving from a supplier, typically a call to one of the <code>receive(...)</code> methods with the range bound
+	 *
+	 * @param <M> type of the message object
+	 */
+	@FunctionalInterface
+	public interface Receiving<M>{
+		ReceiveStatus receive(Function<M, Long> receiver) throws DataStreamInfrastructureException;
+	}
+
+	protected final Map<String, AtomicBoolean> asyncReceivings = new ConcurrentHashMap<>();
+	protected final Executor executor;
+
+	/**
+	 * Constructor with asynchronous receivings running in daemon threads named after the owner
+	 * @param owner		the class using this instance
+	 */
+	public ReceivingSupport(Class<?> owner){
+		ThreadFactory threadFactory = new BasicThreadFactory.Builder()
+				.namingPattern(owner.getSimpleName() + "-%d")
+				.daemon(true)
+				.build();
+		this.executor = runnable -> threadFactory.newThread(runnable).start();
+	}
+
+	/**
+	 * Constructor with asynchronous receivings running in the executor
+	 * @param executor	the executor
+	 */
+	public ReceivingSupport(Executor executor){
+		Validate.notNull(executor, "Executor cannot be null");
+		this.executor = executor;
+	}
+
+	/**
+	 * Fetch by receiving until maxItems or the timeout has been reached
+	 * @param list				list into which the messages will be added
+	 * @param maxItems			maximum number of messages
+	 * @param timeoutDuration	maximum total duration
+	 * @param receiving			how to receive
+	 * @return	the status returned by receiving
+	 * @throws InterruptedException	if interrupted
+	 * @throws DataStreamInfrastructureException	if receiving failed
+	 * @param <M> type of the message object
+	 */
+	static public <M> ReceiveStatus fetch(List<? super M> list, int maxItems, Duration timeoutDuration, Receiving<M> receiving)
+			throws InterruptedException, DataStreamInfrastructureException{
+		long deadline = System.currentTimeMillis() + timeoutDuration.toMillis();
+		int[] count = new int[]{0};
+		ReceiveStatus status = receiving.receive(m -> {
+			if (m != null){
+				list.add(m);
+				count[0] ++;
+			}
+			return count[0] >= maxItems ? 0 : deadline - System.currentTimeMillis();
+		});
+		if (Thread.interrupted()){
+			throw new InterruptedException();
+		}
+		return status;
+	}
+
+	/**
+	 * Build the receiver for asynchronous receiving, which passes messages to the consumer
+	 * and keeps receiving in slices of {@value #RECEIVE_SLICE_MILLIS} milliseconds until stopped
+	 * @param receiver	the consumer of the messages
+	 * @param running	the flag which is cleared when the receiving is stopped
+	 * @return	the receiver
+	 * @param <M> type of the message object
+	 */
+	static public <M> Function<M, Long> asyncReceiver(Consumer<M> receiver, AtomicBoolean running){
+		return m -> {
+			if (m != null){
+				receiver.accept(m);
+			}
+			return running.get() ? RECEIVE_SLICE_MILLIS : 0L;
+		};
+	}
+
+	/**
+	 * Start asynchronous receiving
+	 * @param receiving		the receiving, which is given the ID and the flag that will be cleared when it is stopped
+	 * @return	ID of the asynchronous receiving
+	 */
+	public String startAsyncReceiving(BiConsumer<String, AtomicBoolean> receiving){
+		String id = UUID.randomUUID().toString();
+		AtomicBoolean running = new AtomicBoolean(true);
+		asyncReceivings.put(id, running);
+		executor.execute(() -> receiving.accept(id, running));
+		return id;
+	}
+
+	/**
+	 * Stop an asynchronous receiving. The receiving stops within {@value #RECEIVE_SLICE_MILLIS} milliseconds or so.
+	 * @param id	ID of the asynchronous receiving
+	 */
+	public void stopAsyncReceiving(String id){
+		AtomicBoolean running = asyncReceivings.remove(id);
+		if (running != null){
+			running.set(false);
+		}
+	}
+
+	/**
+	 * Stop all the asynchronous receivings started through this instance
+	 */
+	public void stopAllAsyncReceivings(){
+		for (AtomicBoolean running: asyncReceivings.values()){
+			running.set(false);
+		}
+		asyncReceivings.clear();
+	}
+
+}
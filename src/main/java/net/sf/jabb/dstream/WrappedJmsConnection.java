@@ -3,6 +3,7 @@
  */
 package net.sf.jabb.dstream;
 
+import java.time.Duration;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -38,6 +39,7 @@ import org.slf4j.LoggerFactory;
  * <ul>
  * 	<li>It re-connects whenever got disconnected.</li>
  * 	<li>The stop() and start() methods are now thread-safe.</li>
+ * 	<li>Re-connecting can be delayed ({@link #setReconnectDelay(Duration)}) so that connections disconnected together do not re-connect all at once.</li>
  * </ul>
  * @author James Hu
  *
@@ -55,6 +57,7 @@ public class WrappedJmsConnection implements Connection {
 	protected AtomicInteger stopStartLatch = new AtomicInteger(0);
 	protected AtomicBoolean isConnecting = new AtomicBoolean(false);
 	protected volatile int connectAttempts = 0;
+	protected volatile long reconnectDelayMillis = 0;
 	protected BackoffStrategy connectBackoffStrategy;
 	protected WaitStrategy connectWaitStrategy;
 	
@@ -105,7 +108,17 @@ public class WrappedJmsConnection implements Connection {
 			@Override
 			public void onException(JMSException exception) {
 				if (isConnectionClosed(exception)){
-					threadPool.execute(()->establishConnection());
+					threadPool.execute(()->{
+						long delay = reconnectDelayMillis;
+						if (delay > 0){
+							try {
+								connectWaitStrategy.await(delay);
+							} catch (InterruptedException e) {
+								connectWaitStrategy.handleInterruptedException(e);
+							}
+						}
+						establishConnection();
+					});
 				}else{
 					logger.debug("[{}] Connection related {}", connectionFactory, JmsUtility.exceptionSummary(exception));
 				}
@@ -118,6 +131,23 @@ public class WrappedJmsConnection implements Connection {
 		}
 	}
 	
+	/**
+	 * Set how long to wait before re-connecting after the connection has been found closed
+	 * @param reconnectDelay	the delay, zero means re-connecting immediately
+	 */
+	public void setReconnectDelay(Duration reconnectDelay){
+		this.reconnectDelayMillis = reconnectDelay.toMillis();
+	}
+	
+	/**
+	 * Is the connection considered unhealthy because the latest attempt to establish it failed?
+	 * @return true if there have been failed attempts since the last successful one, false otherwise
+	 */
+	public boolean isFailing(){
+		int attempts = connectAttempts;
+		return attempts > 1 || (attempts == 1 && !isConnecting.get());
+	}
+	
 	/**
 	 * Check if the exception is caused by connection closed/shutdown
 	 * @param exception		the JMS exception
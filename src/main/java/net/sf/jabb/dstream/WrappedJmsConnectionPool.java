@@ -0,0 +1,172 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of {@link WrappedJmsConnection}s shared by stream data suppliers, for example, those of the partitions of an Event Hub.
+ * <p>
+ * Connections are grouped by a key which should identify the settings of the connection factory.
+ * There are at most <code>maxConnectionsPerKey</code> connections for a key, and suppliers acquiring connections
+ * are spread across them, to the one with the fewest users first. Connections found failing to re-connect are
+ * avoided as long as there is a healthy one. A connection is closed when its last user has released it.
+ * </p>
+ * <p>
+ * To avoid all the connections of a key re-connecting at the same time after an outage,
+ * re-connecting of the n-th connection (starting from 0) of a key is delayed by n times <code>reconnectStagger</code>.
+ * </p>
+ * @author James Hu
+ *
+ */
+public class WrappedJmsConnectionPool {
+	static private final Logger logger = LoggerFactory.getLogger(WrappedJmsConnectionPool.class);
+
+	public static final Duration DEFAULT_RECONNECT_STAGGER = Duration.ofSeconds(2);
+
+	protected final int maxConnectionsPerKey;
+	protected final Duration reconnectStagger;
+
+	// guarded by this
+	protected Map<String, List<PooledConnection>> pools = new HashMap<>();
+
+	/**
+	 * A connection in the pool together with the number of its users
+	 */
+	protected static class PooledConnection {
+		protected final WrappedJmsConnection connection;
+		protected int leases;
+
+		PooledConnection(WrappedJmsConnection connection){
+			this.connection = connection;
+		}
+	}
+
+	/**
+	 * Constructor with default reconnect stagger
+	 * @param maxConnectionsPerKey	maximum number of connections for each key
+	 */
+	public WrappedJmsConnectionPool(int maxConnectionsPerKey){
+		this(maxConnectionsPerKey, DEFAULT_RECONNECT_STAGGER);
+	}
+
+	/**
+	 * Constructor
+	 * @param maxConnectionsPerKey	maximum number of connections for each key
+	 * @param reconnectStagger		the difference between the delays of re-connecting of the connections of a key
+	 */
+	public WrappedJmsConnectionPool(int maxConnectionsPerKey, Duration reconnectStagger){
+		Validate.isTrue(maxConnectionsPerKey > 0, "Maximum number of connections per key must be positive");
+		Validate.notNull(reconnectStagger, "Reconnect stagger cannot be null");
+		this.maxConnectionsPerKey = maxConnectionsPerKey;
+		this.reconnectStagger = reconnectStagger;
+	}
+
+	/**
+	 * Acquire a connection. A new connection is created if the maximum number of connections for the key
+	 * has not been reached and all the existing ones are in use, otherwise an existing one is shared.
+	 * @param key					identifier of the settings of the connection factory
+	 * @param connectionCreator		creator of a new connection with those settings, which should not connect immediately
+	 * @return	the connection, which should be released by {@link #release(WrappedJmsConnection)} rather than being closed
+	 */
+	public synchronized WrappedJmsConnection acquire(String key, Supplier<WrappedJmsConnection> connectionCreator){
+		Validate.notNull(key, "Key cannot be null");
+		Validate.notNull(connectionCreator, "Connection creator cannot be null");
+		List<PooledConnection> connections = pools.computeIfAbsent(key, k -> new ArrayList<>());
+		PooledConnection best = null;
+		for (PooledConnection pooled: connections){
+			if (best == null || isPreferred(pooled, best)){
+				best = pooled;
+			}
+		}
+		if (best == null || connections.size() < maxConnectionsPerKey && (best.leases > 0 || best.connection.isFailing())){
+			WrappedJmsConnection connection = connectionCreator.get();
+			connection.setReconnectDelay(reconnectStagger.multipliedBy(connections.size()));
+			best = new PooledConnection(connection);
+			connections.add(best);
+			logger.debug("[{}] Created connection {} of {}", key, connections.size(), maxConnectionsPerKey);
+		}
+		best.leases ++;
+		return best.connection;
+	}
+
+	/**
+	 * Healthy connections first, and then the ones with fewer users
+	 */
+	protected boolean isPreferred(PooledConnection a, PooledConnection b){
+		boolean aFailing = a.connection.isFailing();
+		boolean bFailing = b.connection.isFailing();
+		if (aFailing != bFailing){
+			return bFailing;
+		}
+		return a.leases < b.leases;
+	}
+
+	/**
+	 * Release a connection acquired from this pool. The connection is closed if nobody else is using it.
+	 * @param connection	the connection
+	 */
+	public void release(WrappedJmsConnection connection){
+		PooledConnection released = null;
+		synchronized(this){
+			for (Iterator<List<PooledConnection>> it = pools.values().iterator(); released == null && it.hasNext();){
+				List<PooledConnection> connections = it.next();
+				for (PooledConnection pooled: connections){
+					if (pooled.connection == connection){
+						if (-- pooled.leases == 0){
+							connections.remove(pooled);
+							if (connections.isEmpty()){
+								it.remove();
+							}
+							released = pooled;
+						}else{
+							return;
+						}
+						break;
+					}
+				}
+			}
+		}
+		if (released != null){
+			WrappedJmsConnection.closeSilently(connection);
+		}
+	}
+
+	/**
+	 * Get the number of connections for a key
+	 * @param key	the key
+	 * @return	number of connections currently in the pool
+	 */
+	public synchronized int size(String key){
+		List<PooledConnection> connections = pools.get(key);
+		return connections == null ? 0 : connections.size();
+	}
+
+	/**
+	 * Close all the connections in the pool regardless of whether they are still in use
+	 */
+	public void close(){
+		List<PooledConnection> all = new ArrayList<>();
+		synchronized(this){
+			for (List<PooledConnection> connections: pools.values()){
+				all.addAll(connections);
+			}
+			pools.clear();
+		}
+		for (PooledConnection pooled: all){
+			WrappedJmsConnection.closeSilently(pooled.connection);
+		}
+	}
+
+}
@@ -0,0 +1,216 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream.eventhub;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+/**
+ * Bounded and sparse in-memory index of (offset, sequence number, enqueued time) samples of messages in an Event Hub partition.
+ * <p>
+ * It relies on the facts that within a partition offsets and sequence numbers increase together,
+ * and enqueued times never decrease. Therefore a lookup can be answered without probing Event Hub if
+ * <ul>
+ * 	<li>there is a sample exactly at the position, or</li>
+ * 	<li>the two samples bracketing the position or time have consecutive sequence numbers,
+ * 		so that there is no unknown message between them, or</li>
+ * 	<li>(for enqueued time of a position only) the two samples bracketing the position have the same enqueued time,
+ * 		so that all the messages between them must have that enqueued time too.</li>
+ * </ul>
+ * </p>
+ * <p>
+ * Samples offered passively are kept only if their enqueued time is at least the sampling interval away from the last one kept.
+ * When the capacity is exceeded, the samples with the smallest offsets are evicted.
+ * This class is thread safe.
+ * </p>
+ * @author James Hu
+ *
+ */
+public class EventHubPositionIndex {
+	public static final int DEFAULT_CAPACITY = 10000;
+	public static final Duration DEFAULT_SAMPLING_INTERVAL = Duration.ofSeconds(1);
+
+	protected final int capacity;
+	protected final long samplingIntervalMillis;
+
+	/**
+	 * Sorted by offset, guarded by this
+	 */
+	protected final List<Sample> samples = new ArrayList<>();
+	protected volatile long lastSampledTimeMillis = Long.MIN_VALUE / 2;
+
+	/**
+	 * Constructor with default capacity and sampling interval
+	 */
+	public EventHubPositionIndex(){
+		this(DEFAULT_CAPACITY, DEFAULT_SAMPLING_INTERVAL);
+	}
+
+	/**
+	 * Constructor
+	 * @param capacity			maximum number of samples kept
+	 * @param samplingInterval	minimum difference of enqueued time between samples offered passively
+	 */
+	public EventHubPositionIndex(int capacity, Duration samplingInterval){
+		Validate.isTrue(capacity > 1, "Capacity must be greater than 1");
+		Validate.notNull(samplingInterval, "Sampling interval cannot be null");
+		this.capacity = capacity;
+		this.samplingIntervalMillis = samplingInterval.toMillis();
+	}
+
+	/**
+	 * Offer a sample, it is kept only if it is not too close to the last one kept.
+	 * This method is cheap when the sample is not kept.
+	 * @param offset				offset of the message
+	 * @param sequenceNumber		sequence number of the message
+	 * @param enqueuedTimeMillis	enqueued time of the message
+	 */
+	public void offer(long offset, long sequenceNumber, long enqueuedTimeMillis){
+		if (Math.abs(enqueuedTimeMillis - lastSampledTimeMillis) >= samplingIntervalMillis){
+			add(offset, sequenceNumber, enqueuedTimeMillis);
+		}
+	}
+
+	/**
+	 * Add a sample regardless of the sampling interval
+	 * @param offset				offset of the message
+	 * @param sequenceNumber		sequence number of the message
+	 * @param enqueuedTimeMillis	enqueued time of the message
+	 */
+	public synchronized void add(long offset, long sequenceNumber, long enqueuedTimeMillis){
+		lastSampledTimeMillis = enqueuedTimeMillis;
+		int i = indexOfOffset(offset);
+		if (i >= 0){
+			return;
+		}
+		samples.add(-(i + 1), new Sample(offset, sequenceNumber, enqueuedTimeMillis));
+		if (samples.size() > capacity){
+			samples.subList(0, Math.max(1, capacity / 10)).clear();
+		}
+	}
+
+	/**
+	 * Find out the enqueued time of the first message at or after the position
+	 * @param offset	the position
+	 * @return	the enqueued time, or null if it cannot be determined from the samples
+	 */
+	public synchronized Long enqueuedTimeMillis(long offset){
+		int i = indexOfOffset(offset);
+		if (i >= 0){
+			return samples.get(i).enqueuedTimeMillis;
+		}
+		i = -(i + 1);
+		if (i > 0 && i < samples.size()){
+			Sample before = samples.get(i - 1);
+			Sample after = samples.get(i);
+			if (after.sequenceNumber == before.sequenceNumber + 1 || after.enqueuedTimeMillis == before.enqueuedTimeMillis){
+				return after.enqueuedTimeMillis;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Find out the offset of the first message enqueued after the specified time
+	 * @param enqueuedAfterMillis	the time
+	 * @return	the offset, or null if it cannot be determined from the samples
+	 */
+	public synchronized Long firstOffsetEnqueuedAfter(long enqueuedAfterMillis){
+		// the first sample enqueued after the time
+		int low = 0;
+		int high = samples.size();
+		while (low < high){
+			int mid = (low + high) >>> 1;
+			if (samples.get(mid).enqueuedTimeMillis > enqueuedAfterMillis){
+				high = mid;
+			}else{
+				low = mid + 1;
+			}
+		}
+		if (low > 0 && low < samples.size()){
+			Sample before = samples.get(low - 1);
+			Sample after = samples.get(low);
+			if (after.sequenceNumber == before.sequenceNumber + 1){
+				return after.offset;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the number of samples currently kept
+	 * @return	the number of samples
+	 */
+	public synchronized int size(){
+		return samples.size();
+	}
+
+	/**
+	 * Remove all the samples
+	 */
+	public synchronized void clear(){
+		samples.clear();
+		lastSampledTimeMillis = Long.MIN_VALUE / 2;
+	}
+
+	/**
+	 * Binary search by offset
+	 * @param offset	the offset
+	 * @return	index of the sample if found, otherwise (-(insertion point) - 1)
+	 */
+	protected int indexOfOffset(long offset){
+		int low = 0;
+		int high = samples.size() - 1;
+		while (low <= high){
+			int mid = (low + high) >>> 1;
+			long midOffset = samples.get(mid).offset;
+			if (midOffset < offset){
+				low = mid + 1;
+			}else if (midOffset > offset){
+				high = mid - 1;
+			}else{
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * A sample of a message
+	 */
+	public static class Sample {
+		protected final long offset;
+		protected final long sequenceNumber;
+		protected final long enqueuedTimeMillis;
+
+		public Sample(long offset, long sequenceNumber, long enqueuedTimeMillis){
+			this.offset = offset;
+			this.sequenceNumber = sequenceNumber;
+			this.enqueuedTimeMillis = enqueuedTimeMillis;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getSequenceNumber() {
+			return sequenceNumber;
+		}
+
+		public long getEnqueuedTimeMillis() {
+			return enqueuedTimeMillis;
+		}
+
+		@Override
+		public String toString(){
+			return ToStringBuilder.reflectionToString(this, ToStringStyle.SHORT_PREFIX_STYLE);
+		}
+	}
+
+}
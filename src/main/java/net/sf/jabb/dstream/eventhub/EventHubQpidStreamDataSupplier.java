@@ -5,6 +5,7 @@ package net.sf.jabb.dstream.eventhub;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Enumeration;
@@ -31,12 +32,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
 import com.google.common.util.concurrent.UncheckedTimeoutException;
 
 import net.sf.jabb.azure.AzureEventHubUtility;
 import net.sf.jabb.azure.EventHubAnnotations;
 import net.sf.jabb.dstream.JmsConsumerStreamDataSupplier;
+import net.sf.jabb.dstream.LazyJmsMessage;
 import net.sf.jabb.dstream.WrappedJmsConnection;
+import net.sf.jabb.dstream.WrappedJmsConnectionPool;
 import net.sf.jabb.dstream.ex.DataStreamInfrastructureException;
 import net.sf.jabb.util.jms.JmsUtility;
 import net.sf.jabb.util.parallel.BackoffStrategies;
@@ -50,6 +54,8 @@ import net.sf.jabb.util.text.DurationFormatter;
  * Stream data supplier for accessing messages in Azure Event Hub through Qpid JMS.
  * It defines position range as (startPosition, endPosition].
  * It is assumed that x-opt-offset is a Long number.
+ * Samples of offsets and enqueued times of messages passing through are kept in an {@link EventHubPositionIndex},
+ * so that {@link #enqueuedTime(String)} and {@link #firstPosition(Instant, Duration)} probe Event Hub only when the samples are not sufficient.
  * @author James Hu
  *
  */
@@ -60,12 +66,20 @@ public class EventHubQpidStreamDataSupplier<M> extends JmsConsumerStreamDataSupp
 	
 	protected WrappedJmsConnection wrappedConnection;
 	
+	/**
+	 * The pool from which the connection was acquired, or null if the connection is not shared
+	 */
+	protected WrappedJmsConnectionPool connectionPool;
+	protected boolean connectionReleased;
+	
 	protected static final Sequencer idSequencer = new Sequencer();
 	
 	protected String identifier;
 	
 	protected WaitStrategy waitStrategy;
 	
+	protected EventHubPositionIndex positionIndex = new EventHubPositionIndex();
+	
 	/**
 	 * Constructor
 	 * @param connectionFactory			JMS connection factory
@@ -188,6 +202,70 @@ public class EventHubQpidStreamDataSupplier<M> extends JmsConsumerStreamDataSupp
 				connectBackoffStrategy, connectWaitStrategy);
 	}
 	
+	/**
+	 * Constructor with the connection shared with other suppliers through a pool.
+	 * Connections are pooled by server, policy name and policy key, and validated by creating consumers for the partition 
+	 * of the supplier that caused them to be created.
+	 * @param connectionPool			the pool of connections
+	 * @param server					something like your_name_space.servicebus.windows.net
+	 * @param eventHubName				name of the Event Hub
+	 * @param policyName				something like ReceiveRule
+	 * @param policyKey					the key of the policy
+	 * @param consumerGroup				consumer gorup, or null for the default one '$Default'
+	 * @param partition					partition number
+	 * @param connectBackoffStrategy	backoff strategy for retrying connection establishment
+	 * @param connectWaitStrategy		wait strategy for retrying connection establishment
+	 * @param messageConverter			converter for converting JMS messages
+	 */
+	public EventHubQpidStreamDataSupplier(WrappedJmsConnectionPool connectionPool, String server, String eventHubName, String policyName, String policyKey, 
+			String consumerGroup, String partition,
+			BackoffStrategy connectBackoffStrategy, WaitStrategy connectWaitStrategy, Function<Message, M> messageConverter){
+		Validate.notNull(connectionPool, "connection pool cannot be null");
+		Validate.notBlank(server, "server cannot be blank");
+		Validate.notBlank(eventHubName, "Event Hub name cannot be blank");
+		Validate.notBlank(policyName, "access policy name cannot be blank");
+		Validate.notBlank(policyKey, "access policy key cannot be blank");
+		Validate.notNull(connectBackoffStrategy, "connect backoff strategy cannot be null");
+		Validate.notNull(connectWaitStrategy, "connect wait strategy cannot be null");
+		Validate.notNull(messageConverter, "message converter cannot be null");
+		
+		String clientId =  makeClientId();
+
+		this.waitStrategy = connectWaitStrategy;
+		this.messageConverter = messageConverter;
+		this.destination = createQueue(eventHubName, consumerGroup, partition);
+		this.identifier = clientId + "->" + policyName + ":" + server + "/" + eventHubName + "/" + consumerGroup + "/" + partition;
+		this.connectionPool = connectionPool;
+		Queue validationDestination = destination;
+		this.wrappedConnection = connectionPool.acquire(connectionPoolKey(server, policyName, policyKey), 
+				() -> createConnectionForReceiving(server, policyName, policyKey, validationDestination, connectBackoffStrategy, connectWaitStrategy));
+	}
+	
+	/**
+	 * Get the key identifying connections to the same server with the same access policy in a {@link WrappedJmsConnectionPool}
+	 * @param server		the server
+	 * @param policyName	policy name
+	 * @param policyKey		policy key, only its SHA-256 digest appears in the returned key
+	 * @return	the key
+	 */
+	static public String connectionPoolKey(String server, String policyName, String policyKey){
+		return policyName + "@" + server + "#" + Hashing.sha256().hashString(policyKey, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Create a message converter that wraps JMS messages into {@link LazyJmsMessage}s, so that
+	 * the message body is converted only when {@link LazyJmsMessage#get()} is called.
+	 * Position and enqueued time of the handles are read from Event Hub annotations without converting the body.
+	 * @param <T> type of the converted object
+	 * @param messageConverter	converter for converting JMS messages on demand
+	 * @return	the converter that can be used for creating an EventHubQpidStreamDataSupplier&lt;LazyJmsMessage&lt;T&gt;&gt;
+	 */
+	public static <T> Function<Message, LazyJmsMessage<T>> lazyConverter(Function<Message, T> messageConverter){
+		return LazyJmsMessage.converter(messageConverter, 
+				message -> String.valueOf(AzureEventHubUtility.getOffset(message)),
+				message -> Instant.ofEpochMilli(AzureEventHubUtility.getEnqueuedTimeMillis(message)));
+	}
+	
 	static protected String makeClientId(){
 		return EventHubQpidStreamDataSupplier.class.getSimpleName() + "-" + idSequencer.next() + "@" + getHostName();
 	}
@@ -293,6 +371,11 @@ public class EventHubQpidStreamDataSupplier<M> extends JmsConsumerStreamDataSupp
 
 	@Override
 	public Instant enqueuedTime(String position) throws DataStreamInfrastructureException{
+		Long indexed = positionIndex.enqueuedTimeMillis(Long.parseLong(position));
+		if (indexed != null){
+			return Instant.ofEpochMilli(indexed);
+		}
+		
 		String selector = "amqp.annotation.x-opt-offset >= '" + position + "'";
 		
 		Message msg = null;
@@ -303,6 +386,7 @@ public class EventHubQpidStreamDataSupplier<M> extends JmsConsumerStreamDataSupp
 				return null;
 			}
 			EventHubAnnotations annotations = AzureEventHubUtility.getEventHubAnnotations(msg);
+			index(annotations);
 			return annotations.getEnqueuedTime();
 		} catch (JMSException | InterruptedException e) {
 			throw new DataStreamInfrastructureException(e);
@@ -321,6 +405,10 @@ public class EventHubQpidStreamDataSupplier<M> extends JmsConsumerStreamDataSupp
 	public String firstPosition(Instant enqueuedAfter, Duration waitForArrival) throws DataStreamInfrastructureException, InterruptedException{
 		long opStartTime = System.currentTimeMillis();
 		long enqueuedAfterEpochMillis = enqueuedAfter.toEpochMilli();
+		Long indexed = positionIndex.firstOffsetEnqueuedAfter(enqueuedAfterEpochMillis);
+		if (indexed != null){
+			return String.valueOf(indexed - 1);
+		}
 		long waitForArrivalMillis = waitForArrival.toMillis();
 		String selector = "amqp.annotation.x-opt-enqueued-time > '" + enqueuedAfterEpochMillis + "'";
 		
@@ -337,6 +425,7 @@ public class EventHubQpidStreamDataSupplier<M> extends JmsConsumerStreamDataSupp
 		String firstPosition = null;
 		if (msg != null){
 			annotations = AzureEventHubUtility.getEventHubAnnotations(msg);
+			index(annotations);
 			firstPosition = String.valueOf(annotations.getOffset() - 1);
 		}
 		logger.debug("First position in {} after {} identified within {}: {}", identifier, enqueuedAfter, DurationFormatter.formatSince(opStartTime), annotations);
@@ -537,12 +626,53 @@ public class EventHubQpidStreamDataSupplier<M> extends JmsConsumerStreamDataSupp
 	 */
 	@Override
 	protected String position(Message message) {
-		return String.valueOf(AzureEventHubUtility.getEventHubAnnotations(message).getOffset());
+		return String.valueOf(AzureEventHubUtility.getOffset(message));
 	}
 	
 	@Override
 	protected Instant enqueuedTime(Message message) {
-		return AzureEventHubUtility.getEventHubAnnotations(message).getEnqueuedTime();
+		return Instant.ofEpochMilli(AzureEventHubUtility.getEnqueuedTimeMillis(message));
+	}
+	
+	@Override
+	protected void received(Message message, boolean last) {
+		EventHubAnnotations annotations = AzureEventHubUtility.getEventHubAnnotations(message);
+		if (last){
+			index(annotations);
+		}else{
+			positionIndex.offer(annotations.getOffset(), annotations.getSequenceNumber(), annotations.getEnqueuedTimeMillis());
+		}
+	}
+	
+	protected void index(EventHubAnnotations annotations){
+		positionIndex.add(annotations.getOffset(), annotations.getSequenceNumber(), annotations.getEnqueuedTimeMillis());
+	}
+	
+	/**
+	 * Get the index of positions and enqueued times learnt from messages passing through
+	 * @return	the index
+	 */
+	public EventHubPositionIndex getPositionIndex() {
+		return positionIndex;
+	}
+
+	/**
+	 * Replace the index of positions and enqueued times, for example, with one having different capacity or sampling interval
+	 * @param positionIndex	the new index
+	 */
+	public void setPositionIndex(EventHubPositionIndex positionIndex) {
+		Validate.notNull(positionIndex, "Position index cannot be null");
+		this.positionIndex = positionIndex;
+	}
+	
+	@Override
+	protected boolean isInRange(Message message, String endPosition) {
+		return endPosition == null || AzureEventHubUtility.getOffset(message) <= Long.parseLong(endPosition);
+	}
+	
+	@Override
+	protected boolean isInRange(Message message, Instant endEnqueuedTime) {
+		return endEnqueuedTime == null || AzureEventHubUtility.getEnqueuedTimeMillis(message) <= endEnqueuedTime.toEpochMilli();
 	}
 
 	@Override
@@ -568,7 +698,18 @@ public class EventHubQpidStreamDataSupplier<M> extends JmsConsumerStreamDataSupp
 	public void stop() throws Exception {
 		// TODO: more work needed to define the behaviour of start/stop/restart
 		// for now, there is no support for restart
-		wrappedConnection.close();
+		closeWarmConsumer();
+		if (connectionPool != null){
+			synchronized(this){
+				if (connectionReleased){		// a pooled connection can only be released once
+					return;
+				}
+				connectionReleased = true;
+			}
+			connectionPool.release(wrappedConnection);
+		}else{
+			wrappedConnection.close();
+		}
 	}
 
 }
@@ -1,54 +1,181 @@
+/**
+ *
+ */
 package net.sf.jabb.dstream.kafka;
 
 import java.time.Duration;
 import java.time.Instant;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.function.Supplier;
 
 import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import net.sf.jabb.dstream.ReceiveStatus;
 import net.sf.jabb.dstream.SimpleReceiveStatus;
 import net.sf.jabb.dstream.StreamDataSupplier;
 import net.sf.jabb.dstream.ex.DataStreamInfrastructureException;
 
+/**
+ * StreamDataSupplier of a single Kafka topic partition. Positions are offsets in the partition, and end positions are inclusive.
+ * <p>
+ * All access to the underlying consumer is guarded by a fair lock, and every fetch/receive seeks to its start position before polling,
+ * so that the same consumer can be shared by synchronous calls and asynchronous receiving,
+ * and synchronous calls get the consumer in turn with asynchronous receiving sessions polling continuously.
+ * If a consumer factory is available (for example, when created from properties),
+ * every asynchronous receiving session gets its own consumer and does not compete with synchronous calls.
+ * </p>
+ * <p>
+ * The beginning and end offsets are cached for a short period ({@link #setOffsetsCacheDuration(Duration)}),
+ * and the end offset is also advanced by records received.
+ * Kafka 0.9 records carry no timestamp, so methods based on enqueued time are not supported.
+ * </p>
+ * @author James Hu
+ *
+ * @param <M> type of the message object
+ */
 public class KafkaStreamDataSupplier<M> implements StreamDataSupplier<M> {
-	private static final Logger logger = Logger.getLogger("KafkaStreamDataSupplier");
-	private org.apache.kafka.clients.consumer.Consumer<Void, M> consumer;
-	private TopicPartition subscribedPartition;
+	static private final Logger logger = LoggerFactory.getLogger(KafkaStreamDataSupplier.class);
 
-	KafkaStreamDataSupplier(Properties properties, List<TopicPartition> partitions) {
-		Validate.isTrue(partitions.size() == 1);
-		subscribedPartition = partitions.get(0);
-		consumer = new KafkaConsumer<Void, M>(properties);
-		consumer.assign(partitions);
+	public static final Duration DEFAULT_OFFSETS_CACHE_DURATION = Duration.ofSeconds(5);
+	public static final Duration DEFAULT_ASYNC_POLL_TIMEOUT = Duration.ofMillis(100);
+
+	protected static final ThreadFactory threadFactory = new BasicThreadFactory.Builder()
+			.namingPattern(KafkaStreamDataSupplier.class.getSimpleName() + "-async-%d")
+			.daemon(true)
+			.build();
+
+	protected final org.apache.kafka.clients.consumer.Consumer<Void, M> consumer;
+	protected final TopicPartition partition;
+	protected final Supplier<org.apache.kafka.clients.consumer.Consumer<Void, M>> consumerFactory;
+	protected final ReentrantLock consumerLock = new ReentrantLock(true);	// guarding the shared consumer
+
+	protected long offsetsCacheMillis = DEFAULT_OFFSETS_CACHE_DURATION.toMillis();
+	protected long asyncPollTimeoutMillis = DEFAULT_ASYNC_POLL_TIMEOUT.toMillis();
+
+	/**
+	 * [beginning offset, end offset), the end offset is the offset of the next message to be appended
+	 */
+	protected volatile long[] cachedOffsets;
+	protected volatile long cachedOffsetsExpiration;
+
+	protected Map<String, AsyncReceiving> asyncReceivings = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructor. Consumers will be created from the properties, and will be closed by {@link #stop()}.
+	 * @param properties	properties for creating {@link KafkaConsumer}
+	 * @param partitions	list containing the only partition that this supplier reads from
+	 */
+	public KafkaStreamDataSupplier(Properties properties, List<TopicPartition> partitions) {
+		this(() -> new KafkaConsumer<Void, M>(properties), partitions);
+	}
+
+	/**
+	 * Constructor. The consumer will be shared by synchronous calls and asynchronous receiving sessions.
+	 * @param consumer		the consumer, it will not be closed by this supplier
+	 * @param partitions	list containing the only partition that this supplier reads from
+	 */
+	public KafkaStreamDataSupplier(org.apache.kafka.clients.consumer.Consumer<Void, M> consumer,
+			List<TopicPartition> partitions) {
+		this(consumer, null, partitions);
 	}
 
-	KafkaStreamDataSupplier(org.apache.kafka.clients.consumer.Consumer<Void, M> consumer,
+	/**
+	 * Constructor. Consumers will be created by the factory, and will be closed by {@link #stop()}.
+	 * @param consumerFactory	factory of consumers
+	 * @param partitions	list containing the only partition that this supplier reads from
+	 */
+	public KafkaStreamDataSupplier(Supplier<org.apache.kafka.clients.consumer.Consumer<Void, M>> consumerFactory,
 			List<TopicPartition> partitions) {
-		Validate.isTrue(partitions.size() == 1);
-		subscribedPartition = partitions.get(0);
+		this(consumerFactory.get(), consumerFactory, partitions);
+	}
+
+	protected KafkaStreamDataSupplier(org.apache.kafka.clients.consumer.Consumer<Void, M> consumer,
+			Supplier<org.apache.kafka.clients.consumer.Consumer<Void, M>> consumerFactory, List<TopicPartition> partitions) {
+		Validate.notNull(consumer, "Consumer cannot be null");
+		Validate.isTrue(partitions != null && partitions.size() == 1, "There must be one and only one partition");
+		this.partition = partitions.get(0);
 		this.consumer = consumer;
-		consumer.assign(partitions);
+		this.consumerFactory = consumerFactory;
+		consumer.assign(Collections.singletonList(partition));
+	}
+
+	/**
+	 * Set how long the beginning and end offsets can be cached
+	 * @param duration	the duration, zero means no cache
+	 */
+	public void setOffsetsCacheDuration(Duration duration){
+		Validate.notNull(duration, "Duration cannot be null");
+		this.offsetsCacheMillis = duration.toMillis();
+		this.cachedOffsetsExpiration = 0;
+	}
+
+	/**
+	 * Set the timeout of every poll in asynchronous receiving sessions.
+	 * It is also the longest time that a shared consumer can be held by an asynchronous receiving session at a time.
+	 * @param timeout	the timeout
+	 */
+	public void setAsyncPollTimeout(Duration timeout){
+		Validate.notNull(timeout, "Timeout cannot be null");
+		this.asyncPollTimeoutMillis = timeout.toMillis();
+	}
+
+	/**
+	 * Get the beginning and end offsets, either cached or retrieved.
+	 * @return	[beginning offset, end offset)
+	 */
+	protected long[] offsets(){
+		long[] offsets = cachedOffsets;
+		long now = System.currentTimeMillis();
+		if (offsets != null && now < cachedOffsetsExpiration){
+			return offsets;
+		}
+		consumerLock.lock();
+		try{
+			consumer.seekToBeginning(partition);
+			long beginning = consumer.position(partition);
+			consumer.seekToEnd(partition);
+			long end = consumer.position(partition);
+			offsets = new long[]{beginning, end};
+		}finally{
+			consumerLock.unlock();
+		}
+		cachedOffsets = offsets;
+		cachedOffsetsExpiration = now + offsetsCacheMillis;
+		return offsets;
+	}
+
+	/**
+	 * Advance the cached end offset if a record beyond it has been received
+	 * @param lastOffset	offset of the last record received
+	 */
+	protected void learnLastOffset(long lastOffset){
+		long[] offsets = cachedOffsets;
+		if (offsets != null && lastOffset >= offsets[1]){
+			cachedOffsets = new long[]{offsets[0], lastOffset + 1};
+		}
 	}
 
 	@Override
 	public String firstPosition() {
-		long curPos = consumer.position(subscribedPartition);
-		// move to beginning of the topic
-		consumer.seekToBeginning(subscribedPartition);
-		Long firstPos = consumer.position(subscribedPartition);
-		consumer.seek(subscribedPartition, curPos);
-		return firstPos.toString();
+		return String.valueOf(offsets()[0]);
 	}
 
 	@Override
@@ -59,12 +186,13 @@ public class KafkaStreamDataSupplier<M> implements StreamDataSupplier<M> {
 
 	@Override
 	public String lastPosition() throws DataStreamInfrastructureException {
-		long curPos = consumer.position(subscribedPartition);
-		// move to end of the topic
-		consumer.seekToEnd(subscribedPartition);
-		long lastPos = consumer.position(subscribedPartition) - 1;
-		consumer.seek(subscribedPartition, curPos);
-		return String.valueOf(lastPos);
+		long[] offsets;
+		try{
+			offsets = offsets();
+		}catch(KafkaException e){
+			throw new DataStreamInfrastructureException("Failed to find out the end offset of " + partition, e);
+		}
+		return offsets[1] > offsets[0] ? String.valueOf(offsets[1] - 1) : null;
 	}
 
 	@Override
@@ -74,8 +202,7 @@ public class KafkaStreamDataSupplier<M> implements StreamDataSupplier<M> {
 
 	@Override
 	public String nextStartPosition(String previousEndPosition) {
-		Long nextPos = Long.parseLong(previousEndPosition) + 1;
-		return nextPos.toString();
+		return String.valueOf(Long.parseLong(previousEndPosition) + 1);
 	}
 
 	@Override
@@ -94,45 +221,71 @@ public class KafkaStreamDataSupplier<M> implements StreamDataSupplier<M> {
 		return false;
 	}
 
+	/**
+	 * Poll records from the consumer after making sure that it is positioned at the specified offset.
+	 * The shared consumer is locked during the poll, while a dedicated consumer is only used by its own session.
+	 * @param consumer		the consumer
+	 * @param offset		offset of the next record expected
+	 * @param timeoutMillis	timeout of the poll
+	 * @return	the records polled
+	 */
+	protected ConsumerRecords<Void, M> poll(org.apache.kafka.clients.consumer.Consumer<Void, M> consumer, long offset, long timeoutMillis){
+		boolean shared = consumer == this.consumer;
+		if (shared){
+			consumerLock.lock();
+		}
+		try{
+			if (consumer.position(partition) != offset){
+				consumer.seek(partition, offset);
+			}
+			return consumer.poll(Math.max(0, timeoutMillis));
+		}finally{
+			if (shared){
+				consumerLock.unlock();
+			}
+		}
+	}
+
 	@Override
 	public ReceiveStatus fetch(List<? super M> list, String startPosition, String endPosition, int maxItems,
 			Duration timeoutDuration) throws InterruptedException, DataStreamInfrastructureException {
-		Long startPos = Long.parseLong(startPosition);
-		Long endPos = Long.parseLong(endPosition);
-		consumer.seek(subscribedPartition, startPos);
-		consumer.position(subscribedPartition);
-		long opMaxTime = System.currentTimeMillis() + timeoutDuration.toMillis();
-		logger.log(Level.INFO,
-				"maxTime=" + String.valueOf(opMaxTime) + ",now=" + String.valueOf(System.currentTimeMillis()));
-		// lastPos is the last message start offset.
-		long lastPos = 0;
+		long nextOffset = Long.parseLong(startPosition);
+		long endOffset = endPosition == null ? Long.MAX_VALUE : Long.parseLong(endPosition);
+		long deadline = System.currentTimeMillis() + timeoutDuration.toMillis();
+		long lastOffset = -1;
 		int count = 0;
-		boolean outOfRange = false;
-		while (true) {
-			// Since poll can't specify maxItems, we just wait for timeout. We
-			// can also do busy poll and check each return until maxItem reached
-			// or timeout.
-			long opNow = System.currentTimeMillis();
-			ConsumerRecords<Void, M> records = consumer.poll(opMaxTime - opNow);
-			logger.log(Level.INFO, "poll fetched " + records.count() + " messages");
-			Iterator<ConsumerRecord<Void, M>> it = records.iterator();
-			while (it.hasNext() && count < maxItems) {
-				ConsumerRecord<Void, M> record = it.next();
-				if (record.offset() > endPos) {
-					outOfRange = true;
-					return new SimpleReceiveStatus(String.valueOf(lastPos), null, outOfRange);
+		try{
+			while (count < maxItems){
+				if (Thread.interrupted()){
+					throw new InterruptedException();
+				}
+				for (ConsumerRecord<Void, M> record: poll(consumer, nextOffset, deadline - System.currentTimeMillis()).records(partition)){
+					long offset = record.offset();
+					if (offset < nextOffset){
+						continue;
+					}
+					if (offset > endOffset){
+						return new SimpleReceiveStatus(lastOffset < 0 ? null : String.valueOf(lastOffset), null, true);
+					}
+					list.add(record.value());
+					lastOffset = offset;
+					nextOffset = offset + 1;
+					learnLastOffset(lastOffset);
+					if (++count >= maxItems || offset == endOffset){
+						break;
+					}
+				}
+				if (lastOffset == endOffset){
+					return new SimpleReceiveStatus(String.valueOf(lastOffset), null, true);
+				}
+				if (System.currentTimeMillis() >= deadline){
+					break;
 				}
-				count++;
-				list.add(record.value());
-				lastPos = record.offset();
-				logger.log(Level.INFO, "lastPos=" + String.valueOf(lastPos));
-			}
-			opNow = System.currentTimeMillis();
-			if (opNow >= opMaxTime) {
-				logger.log(Level.INFO, "timeout, lastPos=" + String.valueOf(lastPos));
-				return new SimpleReceiveStatus(String.valueOf(lastPos), null, outOfRange);
 			}
+		}catch(KafkaException e){
+			throw new DataStreamInfrastructureException("Failed to fetch from " + partition, e);
 		}
+		return new SimpleReceiveStatus(lastOffset < 0 ? null : String.valueOf(lastOffset), null, false);
 	}
 
 	@Override
@@ -150,56 +303,79 @@ public class KafkaStreamDataSupplier<M> implements StreamDataSupplier<M> {
 	@Override
 	public String startAsyncReceiving(Consumer<M> receiver, String startPosition)
 			throws DataStreamInfrastructureException {
-		throw new DataStreamInfrastructureException("Kafka do not support startAsyncReceiving");
+		Validate.notNull(receiver, "Receiver cannot be null");
+		long startOffset = Long.parseLong(startPosition);
+		String id = UUID.randomUUID().toString();
+		org.apache.kafka.clients.consumer.Consumer<Void, M> sessionConsumer = consumer;
+		if (consumerFactory != null){
+			try{
+				sessionConsumer = consumerFactory.get();
+				sessionConsumer.assign(Collections.singletonList(partition));
+			}catch(KafkaException e){
+				throw new DataStreamInfrastructureException("Failed to create consumer for " + partition, e);
+			}
+		}
+		AsyncReceiving receiving = new AsyncReceiving(id, sessionConsumer, receiver, startOffset);
+		asyncReceivings.put(id, receiving);
+		receiving.thread.start();
+		return id;
 	}
 
 	@Override
 	public String startAsyncReceiving(Consumer<M> receiver, Instant startEnqueuedTime)
 			throws DataStreamInfrastructureException {
-		throw new DataStreamInfrastructureException("Kafka do not support startAsyncReceiving");
+		throw new DataStreamInfrastructureException("Kafka do not support enqueue timestamp");
 	}
 
 	@Override
 	public void stopAsyncReceiving(String id)  {
-		return;
+		AsyncReceiving receiving = id == null ? null : asyncReceivings.remove(id);
+		if (receiving != null){
+			receiving.stop();
+		}
 	}
 
 	@Override
 	public ReceiveStatus receive(Function<M, Long> receiver, String startPosition, String endPosition)
 			throws DataStreamInfrastructureException {
-		long startPos = Long.parseLong(startPosition);
-		long endPos = Long.parseLong(endPosition);
-		consumer.seek(subscribedPartition, startPos);
-		consumer.position(subscribedPartition);
-		boolean outOfRange = false;
-		long millisecondLeft = receiver.apply(null);
-		long deadline = System.currentTimeMillis() + millisecondLeft;
-		long lastPos = (long) -1;
-		logger.log(Level.INFO, "receive called with startPos " + String.valueOf(startPos) + " endPos "
-				+ String.valueOf(endPos) + " timeout:" + millisecondLeft);
-		while (true) {
-			// poll with max possible timeout specified by receiver.
-			ConsumerRecords<Void, M> records = consumer.poll(millisecondLeft);
-			Iterator<ConsumerRecord<Void, M>> it = records.iterator();
-			logger.log(Level.INFO, "poll got " + records.count() + " records");
-			while (it.hasNext()) {
-				ConsumerRecord<Void, M> record = it.next();
-				if (record.offset() <= endPos) {
-					millisecondLeft = receiver.apply(record.value());
-					lastPos = record.offset();
-					if (millisecondLeft < 0) {
-						return new SimpleReceiveStatus(String.valueOf(lastPos), null, outOfRange);
+		long nextOffset = Long.parseLong(startPosition);
+		long endOffset = endPosition == null ? Long.MAX_VALUE : Long.parseLong(endPosition);
+		long lastOffset = -1;
+		long receiveTimeoutMillis = receiver.apply(null);
+		try{
+			while (receiveTimeoutMillis > 0){
+				ConsumerRecords<Void, M> records = poll(consumer, nextOffset, receiveTimeoutMillis);
+				boolean received = false;
+				for (ConsumerRecord<Void, M> record: records.records(partition)){
+					long offset = record.offset();
+					if (offset < nextOffset){
+						continue;
+					}
+					if (offset > endOffset){
+						return new SimpleReceiveStatus(lastOffset < 0 ? null : String.valueOf(lastOffset), null, true);
+					}
+					receiveTimeoutMillis = receiver.apply(record.value());
+					received = true;
+					lastOffset = offset;
+					nextOffset = offset + 1;
+					if (offset == endOffset){
+						learnLastOffset(lastOffset);
+						return new SimpleReceiveStatus(String.valueOf(lastOffset), null, true);
+					}
+					if (receiveTimeoutMillis <= 0){
+						break;
 					}
-				} else {
-					outOfRange = true;
-					return new SimpleReceiveStatus(String.valueOf(lastPos), null, outOfRange);
+				}
+				if (received){
+					learnLastOffset(lastOffset);
+				}else{
+					receiveTimeoutMillis = receiver.apply(null);
 				}
 			}
-			if (System.currentTimeMillis() >= deadline) {
-				return new SimpleReceiveStatus(String.valueOf(lastPos), null, outOfRange);
-			}
-			millisecondLeft = deadline - System.currentTimeMillis();
+		}catch(KafkaException e){
+			throw new DataStreamInfrastructureException("Failed to receive from " + partition, e);
 		}
+		return new SimpleReceiveStatus(lastOffset < 0 ? null : String.valueOf(lastOffset), null, false);
 	}
 
 	@Override
@@ -219,9 +395,97 @@ public class KafkaStreamDataSupplier<M> implements StreamDataSupplier<M> {
 		return;
 	}
 
+	/**
+	 * Stop all asynchronous receiving sessions, and close the consumer if it was created by this supplier.
+	 */
 	@Override
 	public void stop() throws Exception {
-		return;
+		for (String id: asyncReceivings.keySet()){
+			stopAsyncReceiving(id);
+		}
+		if (consumerFactory != null){
+			consumerLock.lock();
+			try{
+				consumer.close();
+			}finally{
+				consumerLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * An asynchronous receiving session polling in a background thread
+	 */
+	protected class AsyncReceiving implements Runnable {
+		protected final String id;
+		protected final org.apache.kafka.clients.consumer.Consumer<Void, M> sessionConsumer;
+		protected final Consumer<M> receiver;
+		protected final Thread thread;
+		protected volatile boolean running = true;
+		protected long nextOffset;
+
+		AsyncReceiving(String id, org.apache.kafka.clients.consumer.Consumer<Void, M> sessionConsumer, Consumer<M> receiver, long startOffset){
+			this.id = id;
+			this.sessionConsumer = sessionConsumer;
+			this.receiver = receiver;
+			this.nextOffset = startOffset;
+			this.thread = threadFactory.newThread(this);
+		}
+
+		protected boolean isDedicated(){
+			return sessionConsumer != consumer;
+		}
+
+		void stop(){
+			running = false;
+			if (isDedicated()){
+				sessionConsumer.wakeup();
+			}
+		}
+
+		@Override
+		public void run(){
+			try{
+				while (running){
+					ConsumerRecords<Void, M> records;
+					try{
+						records = poll(sessionConsumer, nextOffset, asyncPollTimeoutMillis);
+					}catch(WakeupException e){
+						break;
+					}catch(KafkaException e){
+						logger.warn("Failed to poll from {} in asynchronous receiving session {}, will retry", partition, id, e);
+						Thread.sleep(Math.max(asyncPollTimeoutMillis, 1000));
+						continue;
+					}
+					for (ConsumerRecord<Void, M> record: records.records(partition)){
+						if (!running){
+							break;
+						}
+						if (record.offset() < nextOffset){
+							continue;
+						}
+						try{
+							receiver.accept(record.value());
+						}catch(Exception e){
+							logger.warn("Receiver failed to process message at offset {} of {} in asynchronous receiving session {}", record.offset(), partition, id, e);
+						}
+						nextOffset = record.offset() + 1;
+					}
+					learnLastOffset(nextOffset - 1);
+				}
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}finally{
+				if (isDedicated()){
+					try{
+						sessionConsumer.close();
+					}catch(Exception e){
+						logger.warn("Failed to close consumer of asynchronous receiving session {}", id, e);
+					}
+				}
+				logger.debug("Asynchronous receiving session {} stopped at offset {} of {}", id, nextOffset, partition);
+			}
+		}
 	}
 
 }
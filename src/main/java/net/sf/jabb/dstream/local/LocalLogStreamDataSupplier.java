@@ -0,0 +1,523 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.sf.jabb.dstream.ReceiveStatus;
+import net.sf.jabb.dstream.ReceivingSupport;
+import net.sf.jabb.dstream.SimpleReceiveStatus;
+import net.sf.jabb.dstream.StreamDataSupplier;
+import net.sf.jabb.dstream.ex.DataStreamInfrastructureException;
+
+/**
+ * Stream data supplier backed by a local append-only log, which is stored in segment files that are memory-mapped.
+ * <p>
+ * Positions are offsets of records which start from 0 and increase by 1.
+ * Like {@link net.sf.jabb.dstream.eventhub.EventHubQpidStreamDataSupplier}, it defines position range as (startPosition, endPosition]
+ * and enqueued time range as (startEnqueuedTime, endEnqueuedTime].
+ * Enqueued times of records never decrease, a record appended with an earlier time gets the time of the previous record.
+ * </p>
+ * <p>
+ * Payloads are passed to the converter as read only buffers sharing the content of the mapped files, without copying.
+ * Sparse indexes of offsets and enqueued times are kept in memory for each segment,
+ * and old segments can be deleted according to the retention settings.
+ * </p>
+ * <p>
+ * {@link #start()} must be called before appending or reading. Any number of threads can append and read concurrently.
+ * </p>
+ * @author James Hu
+ *
+ * @param <M> type of the message object
+ */
+public class LocalLogStreamDataSupplier<M> implements StreamDataSupplier<M> {
+	static private final Logger logger = LoggerFactory.getLogger(LocalLogStreamDataSupplier.class);
+
+	public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+	public static final int DEFAULT_INDEX_INTERVAL_BYTES = 4096;
+
+	protected final File directory;
+	protected final Function<ByteBuffer, M> converter;
+	protected final int segmentBytes;
+	protected final int indexIntervalBytes;
+
+	protected Duration retentionAge;
+	protected long retentionBytes = Long.MAX_VALUE;
+
+	protected final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+	protected volatile LogSegment activeSegment;
+
+	protected final ReentrantLock appendLock = new ReentrantLock();
+	protected final Condition appended = appendLock.newCondition();
+
+	protected final ReceivingSupport receivingSupport = new ReceivingSupport(LocalLogStreamDataSupplier.class);
+
+	/**
+	 * Constructor with default segment size and index interval
+	 * @param directory		directory of the segment files, it will be created if it does not exist
+	 * @param converter		converter for converting payloads
+	 */
+	public LocalLogStreamDataSupplier(File directory, Function<ByteBuffer, M> converter){
+		this(directory, converter, DEFAULT_SEGMENT_BYTES, DEFAULT_INDEX_INTERVAL_BYTES);
+	}
+
+	/**
+	 * Constructor
+	 * @param directory				directory of the segment files, it will be created if it does not exist
+	 * @param converter				converter for converting payloads
+	 * @param segmentBytes			size of each segment file
+	 * @param indexIntervalBytes	approximate number of bytes of records between entries of the sparse indexes
+	 */
+	public LocalLogStreamDataSupplier(File directory, Function<ByteBuffer, M> converter, int segmentBytes, int indexIntervalBytes){
+		Validate.notNull(directory, "Directory cannot be null");
+		Validate.notNull(converter, "Converter cannot be null");
+		Validate.isTrue(segmentBytes > LogSegment.HEADER_BYTES, "Segment size must be greater than %d", LogSegment.HEADER_BYTES);
+		Validate.isTrue(indexIntervalBytes > 0, "Index interval must be positive");
+		this.directory = directory;
+		this.converter = converter;
+		this.segmentBytes = segmentBytes;
+		this.indexIntervalBytes = indexIntervalBytes;
+	}
+
+	/**
+	 * Set the retention, which is applied whenever a new segment is started.
+	 * The segment being appended to is never deleted.
+	 * @param maxAge		segments with all records enqueued before this long ago will be deleted, null means no limit
+	 * @param maxBytes		oldest segments will be deleted until the total size of segment files is within this limit
+	 */
+	public void setRetention(Duration maxAge, long maxBytes){
+		Validate.isTrue(maxBytes > 0, "Maximum size must be positive");
+		this.retentionAge = maxAge;
+		this.retentionBytes = maxBytes;
+	}
+
+	/**
+	 * Open existing segments in the directory, or create the first segment if there is none
+	 */
+	@Override
+	public void start() throws Exception {
+		appendLock.lock();
+		try{
+			if (activeSegment != null){
+				return;
+			}
+			if (!directory.isDirectory() && !directory.mkdirs()){
+				throw new IOException("Unable to create directory: " + directory);
+			}
+			File[] files = directory.listFiles();
+			if (files != null){
+				for (File file: files){
+					Long baseOffset = LogSegment.baseOffset(file.getName());
+					if (baseOffset != null){
+						segments.put(baseOffset, new LogSegment(directory, baseOffset, segmentBytes, indexIntervalBytes));
+					}
+				}
+			}
+			if (segments.isEmpty()){
+				segments.put(0L, new LogSegment(directory, 0, segmentBytes, indexIntervalBytes));
+			}
+			activeSegment = segments.lastEntry().getValue();
+			logger.debug("Opened log in {} with segments {}", directory, segments.values());
+		}finally{
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Stop all asynchronous receiving and flush the segment being appended to
+	 */
+	@Override
+	public void stop() throws Exception {
+		receivingSupport.stopAllAsyncReceivings();
+		appendLock.lock();
+		try{
+			if (activeSegment != null){
+				activeSegment.flush();
+			}
+		}finally{
+			appendLock.unlock();
+		}
+	}
+
+	protected LogSegment activeSegment(){
+		LogSegment segment = activeSegment;
+		Validate.validState(segment != null, "The log has not been started");
+		return segment;
+	}
+
+	/**
+	 * Append a record enqueued now
+	 * @param payload	the payload
+	 * @return	offset of the record
+	 * @throws IOException	if a new segment cannot be created
+	 */
+	public long append(byte[] payload) throws IOException{
+		return append(ByteBuffer.wrap(payload), Instant.now());
+	}
+
+	/**
+	 * Append a record
+	 * @param payload		the payload, from its position to its limit, the position is not changed
+	 * @param enqueuedTime	the enqueued time, if it is earlier than that of the previous record then that of the previous one is used
+	 * @return	offset of the record
+	 * @throws IOException	if a new segment cannot be created
+	 */
+	public long append(ByteBuffer payload, Instant enqueuedTime) throws IOException{
+		Validate.isTrue(payload.remaining() <= segmentBytes - LogSegment.HEADER_BYTES,
+				"Payload of %d bytes cannot fit into a segment", payload.remaining());
+		appendLock.lock();
+		try{
+			LogSegment segment = activeSegment();
+			long timeMillis = Math.max(enqueuedTime.toEpochMilli(), segment.lastTimeMillis);
+			long offset = segment.append(timeMillis, payload);
+			if (offset < 0){
+				segment.flush();
+				segment = new LogSegment(directory, segment.nextOffset, segmentBytes, indexIntervalBytes);
+				segments.put(segment.baseOffset, segment);
+				activeSegment = segment;
+				applyRetention();
+				offset = segment.append(timeMillis, payload);
+			}
+			appended.signalAll();
+			return offset;
+		}finally{
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Delete oldest segments according to the retention settings
+	 */
+	public void applyRetention(){
+		appendLock.lock();
+		try{
+			long totalBytes = 0;
+			for (LogSegment segment: segments.values()){
+				totalBytes += segment.capacity;
+			}
+			long expiredBefore = retentionAge == null ? Long.MIN_VALUE : System.currentTimeMillis() - retentionAge.toMillis();
+			for (LogSegment segment: segments.values()){
+				if (segment == activeSegment || (totalBytes <= retentionBytes && segment.lastTimeMillis >= expiredBefore)){
+					break;
+				}
+				segments.remove(segment.baseOffset);
+				totalBytes -= segment.capacity;
+				if (!segment.delete()){
+					logger.warn("Failed to delete segment file: {}", segment.file);
+				}
+				logger.debug("Deleted segment {}", segment);
+			}
+		}finally{
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Get the offset of the first record still retained
+	 * @return	the first offset
+	 */
+	protected long firstOffset(){
+		activeSegment();
+		return segments.firstKey();
+	}
+
+	/**
+	 * Get the offset that the next record appended will have
+	 * @return	the next offset
+	 */
+	protected long nextOffset(){
+		return activeSegment().nextOffset;
+	}
+
+	/**
+	 * Get the payload of a record without copying
+	 * @param offset	offset of the record
+	 * @return	the payload, or null if the record has not been appended or is no longer retained
+	 */
+	protected ByteBuffer payload(long offset){
+		Cursor cursor = new Cursor(offset);
+		return cursor.hasRecord() && cursor.offset() == offset ? cursor.payload() : null;
+	}
+
+	/**
+	 * Find out the offset of the first record enqueued after the time
+	 * @param timeMillis	the time
+	 * @return	the offset, or the next offset if there is no such record yet
+	 */
+	protected long firstOffsetAfter(long timeMillis){
+		for (LogSegment segment: segments.values()){
+			if (segment.lastTimeMillis > timeMillis){
+				int position = segment.positionAfter(timeMillis);
+				if (position < segment.size){
+					return segment.offset(position);
+				}
+			}
+		}
+		return nextOffset();
+	}
+
+	/**
+	 * Wait until a record with the offset has been appended
+	 * @param offset			the offset
+	 * @param timeoutMillis		maximum time to wait
+	 * @throws InterruptedException	if interrupted
+	 */
+	protected void awaitAppended(long offset, long timeoutMillis) throws InterruptedException{
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		appendLock.lock();
+		try{
+			while (nanos > 0 && activeSegment().nextOffset <= offset){
+				nanos = appended.awaitNanos(nanos);
+			}
+		}finally{
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Position of a reader in the log
+	 */
+	protected class Cursor {
+		LogSegment segment;
+		int position;
+
+		/**
+		 * Constructor
+		 * @param offset	offset of the first record to read, the first record retained will be read if it has been deleted
+		 */
+		Cursor(long offset){
+			Map.Entry<Long, LogSegment> entry = segments.floorEntry(offset);
+			if (entry == null){
+				entry = segments.firstEntry();
+			}
+			segment = entry.getValue();
+			position = segment.positionOf(offset);
+		}
+
+		/**
+		 * Check whether a record is available, move to the next segment if necessary
+		 * @return	true if a record is available at the current position
+		 */
+		boolean hasRecord(){
+			while (position >= segment.size){
+				if (segment == activeSegment){
+					return false;
+				}
+				Map.Entry<Long, LogSegment> next = segments.higherEntry(segment.baseOffset);
+				if (next == null){
+					return false;
+				}
+				segment = next.getValue();
+				position = 0;
+			}
+			return true;
+		}
+
+		long offset(){
+			return segment.offset(position);
+		}
+
+		long timeMillis(){
+			return segment.timeMillis(position);
+		}
+
+		ByteBuffer payload(){
+			return segment.payload(position);
+		}
+
+		void next(){
+			position += segment.length(position);
+		}
+	}
+
+	/**
+	 * Receive records
+	 * @param receiver			the receiver
+	 * @param startOffset		offset of the first record to be received
+	 * @param afterMillis		records enqueued at or before this time will be skipped
+	 * @param endOffset			records after this offset are out of range
+	 * @param endTimeMillis		records enqueued after this time are out of range
+	 * @return	the status
+	 */
+	protected ReceiveStatus receive(Function<M, Long> receiver, long startOffset, long afterMillis, long endOffset, long endTimeMillis){
+		Cursor cursor = new Cursor(startOffset);
+		long lastOffset = -1;
+		long lastTimeMillis = 0;
+		boolean outOfRangeReached = false;
+		try{
+			long receiveTimeoutMillis = receiver.apply(null);
+			while (receiveTimeoutMillis > 0){
+				if (lastOffset >= endOffset){
+					outOfRangeReached = true;
+					break;
+				}
+				if (!cursor.hasRecord()){
+					awaitAppended(cursor.segment.nextOffset, receiveTimeoutMillis);
+					receiveTimeoutMillis = receiver.apply(null);
+					continue;
+				}
+				long offset = cursor.offset();
+				long timeMillis = cursor.timeMillis();
+				if (offset > endOffset || timeMillis > endTimeMillis){
+					outOfRangeReached = true;
+					break;
+				}
+				if (offset >= startOffset && timeMillis > afterMillis){
+					M message = converter.apply(cursor.payload());
+					lastOffset = offset;
+					lastTimeMillis = timeMillis;
+					cursor.next();
+					receiveTimeoutMillis = receiver.apply(message);
+				}else{
+					cursor.next();
+				}
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		return lastOffset < 0 ? new SimpleReceiveStatus(null, null, outOfRangeReached)
+				: new SimpleReceiveStatus(String.valueOf(lastOffset), Instant.ofEpochMilli(lastTimeMillis), outOfRangeReached);
+	}
+
+	protected long startOffset(String startPosition){
+		return startPosition == null || startPosition.length() == 0 ? 0 : Long.parseLong(startPosition) + 1;
+	}
+
+	protected long endOffset(String endPosition){
+		return endPosition == null ? Long.MAX_VALUE : Long.parseLong(endPosition);
+	}
+
+	protected long endTimeMillis(Instant endEnqueuedTime){
+		return endEnqueuedTime == null ? Long.MAX_VALUE : endEnqueuedTime.toEpochMilli();
+	}
+
+	@Override
+	public ReceiveStatus receive(Function<M, Long> receiver, String startPosition, String endPosition) throws DataStreamInfrastructureException {
+		return receive(receiver, startOffset(startPosition), Long.MIN_VALUE, endOffset(endPosition), Long.MAX_VALUE);
+	}
+
+	@Override
+	public ReceiveStatus receive(Function<M, Long> receiver, Instant startEnqueuedTime, Instant endEnqueuedTime) throws DataStreamInfrastructureException {
+		long afterMillis = startEnqueuedTime.toEpochMilli();
+		return receive(receiver, firstOffsetAfter(afterMillis), afterMillis, Long.MAX_VALUE, endTimeMillis(endEnqueuedTime));
+	}
+
+	@Override
+	public ReceiveStatus receive(Function<M, Long> receiver, String startPosition, Instant endEnqueuedTime) throws DataStreamInfrastructureException {
+		return receive(receiver, startOffset(startPosition), Long.MIN_VALUE, Long.MAX_VALUE, endTimeMillis(endEnqueuedTime));
+	}
+
+	@Override
+	public ReceiveStatus fetch(List<? super M> list, String startPosition, String endPosition, int maxItems, Duration timeoutDuration)
+			throws InterruptedException, DataStreamInfrastructureException {
+		return ReceivingSupport.<M>fetch(list, maxItems, timeoutDuration,
+				r -> receive(r, startOffset(startPosition), Long.MIN_VALUE, endOffset(endPosition), Long.MAX_VALUE));
+	}
+
+	@Override
+	public ReceiveStatus fetch(List<? super M> list, Instant startEnqueuedTime, Instant endEnqueuedTime, int maxItems, Duration timeoutDuration)
+			throws InterruptedException, DataStreamInfrastructureException {
+		long afterMillis = startEnqueuedTime.toEpochMilli();
+		return ReceivingSupport.<M>fetch(list, maxItems, timeoutDuration,
+				r -> receive(r, firstOffsetAfter(afterMillis), afterMillis, Long.MAX_VALUE, endTimeMillis(endEnqueuedTime)));
+	}
+
+	@Override
+	public ReceiveStatus fetch(List<? super M> list, String startPosition, Instant endEnqueuedTime, int maxItems, Duration timeoutDuration)
+			throws InterruptedException, DataStreamInfrastructureException {
+		return ReceivingSupport.<M>fetch(list, maxItems, timeoutDuration,
+				r -> receive(r, startOffset(startPosition), Long.MIN_VALUE, Long.MAX_VALUE, endTimeMillis(endEnqueuedTime)));
+	}
+
+	@Override
+	public String firstPosition() {
+		return String.valueOf(firstOffset() - 1);
+	}
+
+	@Override
+	public String firstPosition(Instant enqueuedAfter, Duration waitForArrival) throws InterruptedException, DataStreamInfrastructureException {
+		long afterMillis = enqueuedAfter.toEpochMilli();
+		long offset = firstOffsetAfter(afterMillis);
+		long deadline = System.currentTimeMillis() + waitForArrival.toMillis();
+		while (offset >= nextOffset()){
+			long waitMillis = deadline - System.currentTimeMillis();
+			if (waitMillis <= 0){
+				return null;
+			}
+			awaitAppended(offset, waitMillis);
+			offset = firstOffsetAfter(afterMillis);
+		}
+		return String.valueOf(offset - 1);
+	}
+
+	@Override
+	public String lastPosition() throws DataStreamInfrastructureException {
+		long nextOffset = nextOffset();
+		return nextOffset > firstOffset() ? String.valueOf(nextOffset - 1) : null;
+	}
+
+	/**
+	 * Get the enqueued time of the first record at or after the position
+	 */
+	@Override
+	public Instant enqueuedTime(String position) throws DataStreamInfrastructureException {
+		Cursor cursor = new Cursor(Long.parseLong(position));
+		return cursor.hasRecord() ? Instant.ofEpochMilli(cursor.timeMillis()) : null;
+	}
+
+	@Override
+	public String nextStartPosition(String previousEndPosition) {
+		return previousEndPosition;
+	}
+
+	@Override
+	public boolean isInRange(String position, String endPosition) {
+		Validate.isTrue(position != null, "position cannot be null");
+		return endPosition == null || Long.parseLong(position) <= Long.parseLong(endPosition);
+	}
+
+	@Override
+	public boolean isInRange(Instant enqueuedTime, Instant endEnqueuedTime) {
+		Validate.isTrue(enqueuedTime != null, "enqueuedTime cannot be null");
+		return endEnqueuedTime == null || !enqueuedTime.isAfter(endEnqueuedTime);
+	}
+
+	protected String startAsyncReceiving(Consumer<M> receiver, long startOffset, long afterMillis){
+		return receivingSupport.startAsyncReceiving((id, running) -> 
+			receive(ReceivingSupport.asyncReceiver(receiver, running), startOffset, afterMillis, Long.MAX_VALUE, Long.MAX_VALUE));
+	}
+
+	@Override
+	public String startAsyncReceiving(Consumer<M> receiver, String startPosition) throws DataStreamInfrastructureException {
+		return startAsyncReceiving(receiver, startOffset(startPosition), Long.MIN_VALUE);
+	}
+
+	@Override
+	public String startAsyncReceiving(Consumer<M> receiver, Instant startEnqueuedTime) throws DataStreamInfrastructureException {
+		long afterMillis = startEnqueuedTime.toEpochMilli();
+		return startAsyncReceiving(receiver, firstOffsetAfter(afterMillis), afterMillis);
+	}
+
+	@Override
+	public void stopAsyncReceiving(String id) {
+		receivingSupport.stopAsyncReceiving(id);
+	}
+
+}
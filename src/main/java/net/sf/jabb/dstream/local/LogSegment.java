@@ -0,0 +1,246 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A segment of the local log, stored in a pre-allocated and memory-mapped file.
+ * <p>
+ * Each record is stored as a header of 4 bytes total length (header included), 8 bytes offset, 8 bytes enqueued time in milliseconds,
+ * followed by the payload. The unused space of the file is all zeros, which is recognized as the end of records.
+ * A sparse index of (offset, file position, enqueued time) is kept in memory and rebuilt when the segment is opened.
+ * </p>
+ * <p>
+ * Appending must be done by one thread at a time. Reading can be done by any number of threads concurrently with appending.
+ * </p>
+ * @author James Hu
+ *
+ */
+class LogSegment {
+	static final int HEADER_BYTES = 4 + 8 + 8;
+	static final String FILE_NAME_SUFFIX = ".log";
+
+	final File file;
+	final long baseOffset;
+	final int capacity;
+	final int indexIntervalBytes;
+	final MappedByteBuffer buffer;
+
+	/**
+	 * Number of bytes of records, written after the records so that readers never see partial records
+	 */
+	volatile int size;
+	volatile long nextOffset;
+	volatile long lastTimeMillis = Long.MIN_VALUE;
+
+	// sparse index, guarded by this
+	long[] indexOffsets = new long[16];
+	int[] indexPositions = new int[16];
+	long[] indexTimes = new long[16];
+	int indexSize;
+	int bytesSinceLastIndexed;
+
+	/**
+	 * Open or create a segment
+	 * @param directory				the directory of the log
+	 * @param baseOffset			offset of the first record in the segment
+	 * @param capacity				size of the file if it is created
+	 * @param indexIntervalBytes	approximate number of bytes of records between index entries
+	 * @throws IOException	if the file cannot be created or mapped
+	 */
+	LogSegment(File directory, long baseOffset, int capacity, int indexIntervalBytes) throws IOException{
+		this.file = new File(directory, fileName(baseOffset));
+		this.baseOffset = baseOffset;
+		this.indexIntervalBytes = indexIntervalBytes;
+		try(RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+			if (raf.length() < capacity){
+				raf.setLength(capacity);
+			}
+			this.capacity = (int) raf.length();
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+		}
+		recover();
+	}
+
+	static String fileName(long baseOffset){
+		return String.format("%020d", baseOffset) + FILE_NAME_SUFFIX;
+	}
+
+	static Long baseOffset(String fileName){
+		if (fileName.length() == 20 + FILE_NAME_SUFFIX.length() && fileName.endsWith(FILE_NAME_SUFFIX)){
+			try{
+				return Long.valueOf(fileName.substring(0, 20));
+			}catch(NumberFormatException e){
+				// not a segment file
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Scan existing records to find out where to append and to rebuild the index
+	 */
+	protected void recover(){
+		int position = 0;
+		long offset = baseOffset;
+		while (position + HEADER_BYTES <= capacity){
+			int length = buffer.getInt(position);
+			if (length < HEADER_BYTES || position + length > capacity || buffer.getLong(position + 4) != offset){
+				break;
+			}
+			long time = buffer.getLong(position + 12);
+			indexed(offset, position, time, length);
+			position += length;
+			offset ++;
+		}
+		size = position;
+		nextOffset = offset;
+	}
+
+	protected synchronized void indexed(long offset, int position, long timeMillis, int length){
+		lastTimeMillis = timeMillis;
+		if (indexSize == 0 || bytesSinceLastIndexed >= indexIntervalBytes){
+			if (indexSize == indexOffsets.length){
+				indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+				indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+				indexTimes = Arrays.copyOf(indexTimes, indexSize * 2);
+			}
+			indexOffsets[indexSize] = offset;
+			indexPositions[indexSize] = position;
+			indexTimes[indexSize] = timeMillis;
+			indexSize ++;
+			bytesSinceLastIndexed = 0;
+		}
+		bytesSinceLastIndexed += length;
+	}
+
+	/**
+	 * Append a record
+	 * @param timeMillis	enqueued time
+	 * @param payload		the payload, its position is not changed
+	 * @return	offset of the record, or -1 if there is not enough space in this segment
+	 */
+	long append(long timeMillis, ByteBuffer payload){
+		int length = HEADER_BYTES + payload.remaining();
+		int position = size;
+		if (position + length > capacity){
+			return -1;
+		}
+		long offset = nextOffset;
+		ByteBuffer b = buffer.duplicate();
+		b.position(position + 4);
+		b.putLong(offset);
+		b.putLong(timeMillis);
+		b.put(payload.duplicate());
+		b.putInt(position, length);		// length last, so that the record is complete once its length is seen
+		indexed(offset, position, timeMillis, length);
+		nextOffset = offset + 1;
+		size = position + length;
+		return offset;
+	}
+
+	/**
+	 * Find the file position of a record
+	 * @param offset	the offset of the record
+	 * @return	the file position, or the end of records if the offset is not in this segment yet
+	 */
+	int positionOf(long offset){
+		int position;
+		long current;
+		synchronized(this){
+			int i = floor(indexOffsets, offset);
+			if (i < 0){
+				return 0;
+			}
+			position = indexPositions[i];
+			current = indexOffsets[i];
+		}
+		int end = size;
+		while (current < offset && position < end){
+			position += buffer.getInt(position);
+			current ++;
+		}
+		return position;
+	}
+
+	/**
+	 * Find the file position of the first record enqueued after the time
+	 * @param timeMillis	the time
+	 * @return	the file position, or the end of records if there is no such record yet
+	 */
+	int positionAfter(long timeMillis){
+		int position;
+		synchronized(this){
+			int i = floor(indexTimes, timeMillis);
+			position = i < 0 ? 0 : indexPositions[i];
+		}
+		int end = size;
+		while (position < end && buffer.getLong(position + 12) <= timeMillis){
+			position += buffer.getInt(position);
+		}
+		return position;
+	}
+
+	/**
+	 * Binary search in the sparse index
+	 * @return	index of the last entry that is less than or equal to the value, or -1 if there is none
+	 */
+	protected int floor(long[] values, long value){
+		int low = 0;
+		int high = indexSize - 1;
+		while (low <= high){
+			int mid = (low + high) >>> 1;
+			if (values[mid] <= value){
+				low = mid + 1;
+			}else{
+				high = mid - 1;
+			}
+		}
+		return low - 1;
+	}
+
+	int length(int position){
+		return buffer.getInt(position);
+	}
+
+	long offset(int position){
+		return buffer.getLong(position + 4);
+	}
+
+	long timeMillis(int position){
+		return buffer.getLong(position + 12);
+	}
+
+	/**
+	 * Get the payload of a record without copying
+	 * @param position	file position of the record
+	 * @return	a read only buffer sharing the content of the mapped file
+	 */
+	ByteBuffer payload(int position){
+		ByteBuffer b = buffer.asReadOnlyBuffer();
+		b.limit(position + buffer.getInt(position));
+		b.position(position + HEADER_BYTES);
+		return b.slice();
+	}
+
+	void flush(){
+		buffer.force();
+	}
+
+	boolean delete(){
+		return file.delete();
+	}
+
+	@Override
+	public String toString(){
+		return file.getName() + "[" + baseOffset + ", " + nextOffset + ")";
+	}
+}
@@ -0,0 +1,290 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream.local;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.sf.jabb.dstream.ReceiveStatus;
+import net.sf.jabb.dstream.StreamDataSupplier;
+import net.sf.jabb.dstream.ex.DataStreamInfrastructureException;
+
+/**
+ * Decorator of StreamDataSupplier that records every message passing through
+ * <code>fetch(...)</code>, <code>receive(...)</code> and <code>startAsyncReceiving(...)</code> into a {@link LocalLogStreamDataSupplier},
+ * so that they can be replayed later by {@link ReplayStreamDataSupplier}.
+ * <p>
+ * Each record keeps the original position, the original enqueued time, and the serialized message.
+ * Original positions must be numbers, like those of Event Hub and Kafka.
+ * The recording is append only and must stay in position order, therefore only strictly forward consumption can be fully captured.
+ * A message received again is not recorded twice if its position had been recorded.
+ * A message with a position before the last recorded one but not recorded yet, for example one in a range that
+ * is retried after later ranges have been consumed, cannot be recorded; it is skipped with a warning
+ * and counted by {@link #getSkippedCount()}.
+ * Failure of recording is logged and does not affect the delivery of messages.
+ * </p>
+ * @author James Hu
+ *
+ * @param <M> type of the message object
+ */
+public class RecordingStreamDataSupplier<M> implements StreamDataSupplier<M> {
+	static private final Logger logger = LoggerFactory.getLogger(RecordingStreamDataSupplier.class);
+
+	/**
+	 * Original position and original enqueued time before the serialized message in every record
+	 */
+	static final int RECORD_HEADER_BYTES = 8 + 8;
+
+	protected final StreamDataSupplier<M> supplier;
+	protected final LocalLogStreamDataSupplier<ByteBuffer> log;
+	protected final Function<? super M, String> positionOf;
+	protected final Function<? super M, Instant> enqueuedTimeOf;
+	protected final Function<? super M, byte[]> serializer;
+
+	protected long lastRecordedPosition = Long.MIN_VALUE;
+	protected long skippedCount;
+	protected boolean skippingWarned;		// whether skipping has been warned since the last message recorded
+
+	/**
+	 * Constructor
+	 * @param supplier			the underlying supplier
+	 * @param directory			directory of the recording
+	 * @param positionOf		function for finding out the original position of a message
+	 * @param enqueuedTimeOf	function for finding out the original enqueued time of a message
+	 * @param serializer		function for serializing a message
+	 */
+	public RecordingStreamDataSupplier(StreamDataSupplier<M> supplier, File directory,
+			Function<? super M, String> positionOf, Function<? super M, Instant> enqueuedTimeOf, Function<? super M, byte[]> serializer){
+		this(supplier, new LocalLogStreamDataSupplier<>(directory, b -> b), positionOf, enqueuedTimeOf, serializer);
+	}
+
+	/**
+	 * Constructor
+	 * @param supplier			the underlying supplier
+	 * @param log				the log for recording, with payloads not converted
+	 * @param positionOf		function for finding out the original position of a message
+	 * @param enqueuedTimeOf	function for finding out the original enqueued time of a message
+	 * @param serializer		function for serializing a message
+	 */
+	public RecordingStreamDataSupplier(StreamDataSupplier<M> supplier, LocalLogStreamDataSupplier<ByteBuffer> log,
+			Function<? super M, String> positionOf, Function<? super M, Instant> enqueuedTimeOf, Function<? super M, byte[]> serializer){
+		Validate.notNull(supplier, "Supplier cannot be null");
+		Validate.notNull(log, "Log cannot be null");
+		Validate.notNull(positionOf, "Position function cannot be null");
+		Validate.notNull(enqueuedTimeOf, "Enqueued time function cannot be null");
+		Validate.notNull(serializer, "Serializer cannot be null");
+		this.supplier = supplier;
+		this.log = log;
+		this.positionOf = positionOf;
+		this.enqueuedTimeOf = enqueuedTimeOf;
+		this.serializer = serializer;
+	}
+
+	/**
+	 * Get the log of the recording, which can be used for creating a {@link ReplayStreamDataSupplier}
+	 * while the recording is still going on
+	 * @return	the log
+	 */
+	public LocalLogStreamDataSupplier<ByteBuffer> getLog(){
+		return log;
+	}
+
+	/**
+	 * Get the number of messages that could not be recorded because they came after others with later positions
+	 * @return	number of messages skipped
+	 */
+	public synchronized long getSkippedCount(){
+		return skippedCount;
+	}
+
+	/**
+	 * Record a message if it is after the last recorded one
+	 * @param message	the message
+	 */
+	protected synchronized void record(M message){
+		try{
+			long position = Long.parseLong(positionOf.apply(message));
+			if (position <= lastRecordedPosition){
+				if (!isRecorded(position)){
+					skippedCount ++;
+					if (!skippingWarned){
+						logger.warn("Message at position {} is skipped because the recording is already at position {}, "
+								+ "messages consumed out of order cannot be recorded", position, lastRecordedPosition);
+						skippingWarned = true;
+					}
+				}
+				return;
+			}
+			Instant enqueuedTime = enqueuedTimeOf.apply(message);
+			byte[] serialized = serializer.apply(message);
+			ByteBuffer payload = ByteBuffer.allocate(RECORD_HEADER_BYTES + serialized.length);
+			payload.putLong(position).putLong(enqueuedTime.toEpochMilli()).put(serialized).flip();
+			log.append(payload, enqueuedTime);
+			lastRecordedPosition = position;
+			skippingWarned = false;
+		}catch(Exception e){
+			logger.warn("Failed to record message: {}", message, e);
+		}
+	}
+
+	/**
+	 * Check whether a message at the position has been recorded
+	 * @param position	the original position
+	 * @return	true if there is a record with exactly the same position
+	 */
+	protected boolean isRecorded(long position){
+		long offset = ReplayStreamDataSupplier.offsetOf(log, position, true);
+		ByteBuffer payload = offset < log.nextOffset() ? log.payload(offset) : null;
+		return payload != null && ReplayStreamDataSupplier.originalPosition(payload) == position;
+	}
+
+	protected Function<M, Long> recording(Function<M, Long> receiver){
+		return m -> {
+			if (m != null){
+				record(m);
+			}
+			return receiver.apply(m);
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	protected ReceiveStatus recorded(List<? super M> list, int sizeBefore, ReceiveStatus status){
+		for (int i = sizeBefore; i < list.size(); i ++){
+			record((M) list.get(i));
+		}
+		return status;
+	}
+
+	@Override
+	public ReceiveStatus fetch(List<? super M> list, String startPosition, String endPosition, int maxItems, Duration timeoutDuration)
+			throws InterruptedException, DataStreamInfrastructureException {
+		int size = list.size();
+		return recorded(list, size, supplier.fetch(list, startPosition, endPosition, maxItems, timeoutDuration));
+	}
+
+	@Override
+	public ReceiveStatus fetch(List<? super M> list, Instant startEnqueuedTime, Instant endEnqueuedTime, int maxItems, Duration timeoutDuration)
+			throws InterruptedException, DataStreamInfrastructureException {
+		int size = list.size();
+		return recorded(list, size, supplier.fetch(list, startEnqueuedTime, endEnqueuedTime, maxItems, timeoutDuration));
+	}
+
+	@Override
+	public ReceiveStatus fetch(List<? super M> list, String startPosition, Instant endEnqueuedTime, int maxItems, Duration timeoutDuration)
+			throws InterruptedException, DataStreamInfrastructureException {
+		int size = list.size();
+		return recorded(list, size, supplier.fetch(list, startPosition, endEnqueuedTime, maxItems, timeoutDuration));
+	}
+
+	@Override
+	public ReceiveStatus receive(Function<M, Long> receiver, String startPosition, String endPosition) throws DataStreamInfrastructureException {
+		return supplier.receive(recording(receiver), startPosition, endPosition);
+	}
+
+	@Override
+	public ReceiveStatus receive(Function<M, Long> receiver, Instant startEnqueuedTime, Instant endEnqueuedTime) throws DataStreamInfrastructureException {
+		return supplier.receive(recording(receiver), startEnqueuedTime, endEnqueuedTime);
+	}
+
+	@Override
+	public ReceiveStatus receive(Function<M, Long> receiver, String startPosition, Instant endEnqueuedTime) throws DataStreamInfrastructureException {
+		return supplier.receive(recording(receiver), startPosition, endEnqueuedTime);
+	}
+
+	@Override
+	public String startAsyncReceiving(Consumer<M> receiver, String startPosition) throws DataStreamInfrastructureException {
+		return supplier.startAsyncReceiving(m -> {
+			record(m);
+			receiver.accept(m);
+		}, startPosition);
+	}
+
+	@Override
+	public String startAsyncReceiving(Consumer<M> receiver, Instant startEnqueuedTime) throws DataStreamInfrastructureException {
+		return supplier.startAsyncReceiving(m -> {
+			record(m);
+			receiver.accept(m);
+		}, startEnqueuedTime);
+	}
+
+	@Override
+	public void stopAsyncReceiving(String id) {
+		supplier.stopAsyncReceiving(id);
+	}
+
+	@Override
+	public String firstPosition() {
+		return supplier.firstPosition();
+	}
+
+	@Override
+	public String firstPosition(Instant enqueuedAfter, Duration waitForArrival) throws InterruptedException, DataStreamInfrastructureException {
+		return supplier.firstPosition(enqueuedAfter, waitForArrival);
+	}
+
+	@Override
+	public String lastPosition() throws DataStreamInfrastructureException {
+		return supplier.lastPosition();
+	}
+
+	@Override
+	public Instant enqueuedTime(String position) throws DataStreamInfrastructureException {
+		return supplier.enqueuedTime(position);
+	}
+
+	@Override
+	public String nextStartPosition(String previousEndPosition) {
+		return supplier.nextStartPosition(previousEndPosition);
+	}
+
+	@Override
+	public boolean isInRange(String position, String endPosition) {
+		return supplier.isInRange(position, endPosition);
+	}
+
+	@Override
+	public boolean isInRange(Instant enqueuedTime, Instant endEnqueuedTime) {
+		return supplier.isInRange(enqueuedTime, endEnqueuedTime);
+	}
+
+	/**
+	 * Open the recording and then start the underlying supplier
+	 */
+	@Override
+	public void start() throws Exception {
+		log.start();
+		synchronized(this){
+			long next = log.nextOffset();
+			if (next > log.firstOffset()){
+				ByteBuffer last = log.payload(next - 1);
+				if (last != null){
+					lastRecordedPosition = last.getLong(0);
+				}
+			}
+		}
+		supplier.start();
+	}
+
+	/**
+	 * Stop the underlying supplier and then flush the recording
+	 */
+	@Override
+	public void stop() throws Exception {
+		try{
+			supplier.stop();
+		}finally{
+			log.stop();
+		}
+	}
+
+}
@@ -0,0 +1,287 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream.local;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.Validate;
+
+import net.sf.jabb.dstream.ReceiveStatus;
+import net.sf.jabb.dstream.ReceivingSupport;
+import net.sf.jabb.dstream.SimpleReceiveStatus;
+import net.sf.jabb.dstream.StreamDataSupplier;
+import net.sf.jabb.dstream.ex.DataStreamInfrastructureException;
+
+/**
+ * Stream data supplier serving messages recorded by {@link RecordingStreamDataSupplier}.
+ * <p>
+ * Positions and enqueued times are the original ones, so that ranges of the original stream,
+ * for example those in transactions of {@link net.sf.jabb.txsdp.TransactionalStreamDataBatchProcessing},
+ * can be processed again locally. The position range is (startPosition, endPosition] like that of Event Hub,
+ * or [startPosition, endPosition] like that of Kafka if the start position is specified to be inclusive.
+ * The enqueued time range is (startEnqueuedTime, endEnqueuedTime].
+ * </p>
+ * <p>
+ * Serialized messages are passed to the deserializer as read only buffers sharing the content of the mapped files, without copying.
+ * </p>
+ * @author James Hu
+ *
+ * @param <M> type of the message object
+ */
+public class ReplayStreamDataSupplier<M> implements StreamDataSupplier<M> {
+	protected final LocalLogStreamDataSupplier<ByteBuffer> log;
+	protected final Function<ByteBuffer, M> deserializer;
+	protected final boolean startPositionInclusive;
+
+	/**
+	 * Constructor for replaying a recording that is not in use by a {@link RecordingStreamDataSupplier}
+	 * @param directory					directory of the recording
+	 * @param deserializer				function for deserializing a message
+	 * @param startPositionInclusive	true if start positions are inclusive like those of Kafka, false if they are exclusive like those of Event Hub
+	 */
+	public ReplayStreamDataSupplier(File directory, Function<ByteBuffer, M> deserializer, boolean startPositionInclusive){
+		this(new LocalLogStreamDataSupplier<>(directory, b -> b), deserializer, startPositionInclusive);
+	}
+
+	/**
+	 * Constructor
+	 * @param log						the log of the recording, which can be the one in use by a {@link RecordingStreamDataSupplier}
+	 * @param deserializer				function for deserializing a message
+	 * @param startPositionInclusive	true if start positions are inclusive like those of Kafka, false if they are exclusive like those of Event Hub
+	 */
+	public ReplayStreamDataSupplier(LocalLogStreamDataSupplier<ByteBuffer> log, Function<ByteBuffer, M> deserializer, boolean startPositionInclusive){
+		Validate.notNull(log, "Log cannot be null");
+		Validate.notNull(deserializer, "Deserializer cannot be null");
+		this.log = log;
+		this.deserializer = deserializer;
+		this.startPositionInclusive = startPositionInclusive;
+	}
+
+	static long originalPosition(ByteBuffer payload){
+		return payload.getLong(0);
+	}
+
+	static long originalEnqueuedTimeMillis(ByteBuffer payload){
+		return payload.getLong(8);
+	}
+
+	protected M deserialize(ByteBuffer payload){
+		ByteBuffer b = payload.duplicate();
+		b.position(RecordingStreamDataSupplier.RECORD_HEADER_BYTES);
+		return deserializer.apply(b.slice());
+	}
+
+	/**
+	 * Find the first record with original position after (or at, if inclusive is true) the specified one
+	 * @param position		the original position
+	 * @param inclusive		whether a record at the position is included
+	 * @return	offset of the record in the log, or the next offset of the log if there is none
+	 */
+	protected long offsetOf(long position, boolean inclusive){
+		return offsetOf(log, position, inclusive);
+	}
+
+	/**
+	 * Find the first record with original position after (or at, if inclusive is true) the specified one
+	 * @param log			the log of the recording
+	 * @param position		the original position
+	 * @param inclusive		whether a record at the position is included
+	 * @return	offset of the record in the log, or the next offset of the log if there is none
+	 */
+	static long offsetOf(LocalLogStreamDataSupplier<ByteBuffer> log, long position, boolean inclusive){
+		long low = log.firstOffset();
+		long high = log.nextOffset();
+		while (low < high){
+			long mid = (low + high) >>> 1;
+			ByteBuffer payload = log.payload(mid);
+			if (payload == null){		// deleted by retention
+				low = mid + 1;
+				continue;
+			}
+			long p = originalPosition(payload);
+			if (inclusive ? p >= position : p > position){
+				high = mid;
+			}else{
+				low = mid + 1;
+			}
+		}
+		return low;
+	}
+
+	protected long startOffset(String startPosition){
+		if (startPosition == null || startPosition.length() == 0){
+			return log.firstOffset();
+		}
+		return offsetOf(Long.parseLong(startPosition), startPositionInclusive);
+	}
+
+	/**
+	 * Find the last record in range of the end position
+	 * @param endPosition	the original end position
+	 * @return	offset of the record in the log, or Long.MAX_VALUE if records within the range can still be recorded
+	 */
+	protected long endOffset(String endPosition){
+		if (endPosition == null){
+			return Long.MAX_VALUE;
+		}
+		long end = Long.parseLong(endPosition);
+		long next = offsetOf(end, false);
+		return next >= log.nextOffset() ? Long.MAX_VALUE : next - 1;
+	}
+
+	/**
+	 * Receive from the log with original positions and enqueued times reported in the status
+	 */
+	protected ReceiveStatus receive(Function<M, Long> receiver, long startOffset, long afterMillis, long endOffset, long endTimeMillis){
+		long[] last = new long[]{0, 0};
+		boolean[] received = new boolean[]{false};
+		ReceiveStatus status = log.receive(payload -> {
+			if (payload == null){
+				return receiver.apply(null);
+			}
+			last[0] = originalPosition(payload);
+			last[1] = originalEnqueuedTimeMillis(payload);
+			received[0] = true;
+			return receiver.apply(deserialize(payload));
+		}, startOffset, afterMillis, endOffset, endTimeMillis);
+		return received[0] ? new SimpleReceiveStatus(String.valueOf(last[0]), Instant.ofEpochMilli(last[1]), status.isOutOfRangeReached())
+				: new SimpleReceiveStatus(null, null, status.isOutOfRangeReached());
+	}
+
+	@Override
+	public ReceiveStatus receive(Function<M, Long> receiver, String startPosition, String endPosition) throws DataStreamInfrastructureException {
+		return receive(receiver, startOffset(startPosition), Long.MIN_VALUE, endOffset(endPosition), Long.MAX_VALUE);
+	}
+
+	@Override
+	public ReceiveStatus receive(Function<M, Long> receiver, Instant startEnqueuedTime, Instant endEnqueuedTime) throws DataStreamInfrastructureException {
+		long afterMillis = startEnqueuedTime.toEpochMilli();
+		return receive(receiver, log.firstOffsetAfter(afterMillis), afterMillis, Long.MAX_VALUE, log.endTimeMillis(endEnqueuedTime));
+	}
+
+	@Override
+	public ReceiveStatus receive(Function<M, Long> receiver, String startPosition, Instant endEnqueuedTime) throws DataStreamInfrastructureException {
+		return receive(receiver, startOffset(startPosition), Long.MIN_VALUE, Long.MAX_VALUE, log.endTimeMillis(endEnqueuedTime));
+	}
+
+	@Override
+	public ReceiveStatus fetch(List<? super M> list, String startPosition, String endPosition, int maxItems, Duration timeoutDuration)
+			throws InterruptedException, DataStreamInfrastructureException {
+		long startOffset = startOffset(startPosition);
+		long endOffset = endOffset(endPosition);
+		return ReceivingSupport.<M>fetch(list, maxItems, timeoutDuration, r -> receive(r, startOffset, Long.MIN_VALUE, endOffset, Long.MAX_VALUE));
+	}
+
+	@Override
+	public ReceiveStatus fetch(List<? super M> list, Instant startEnqueuedTime, Instant endEnqueuedTime, int maxItems, Duration timeoutDuration)
+			throws InterruptedException, DataStreamInfrastructureException {
+		long afterMillis = startEnqueuedTime.toEpochMilli();
+		return ReceivingSupport.<M>fetch(list, maxItems, timeoutDuration,
+				r -> receive(r, log.firstOffsetAfter(afterMillis), afterMillis, Long.MAX_VALUE, log.endTimeMillis(endEnqueuedTime)));
+	}
+
+	@Override
+	public ReceiveStatus fetch(List<? super M> list, String startPosition, Instant endEnqueuedTime, int maxItems, Duration timeoutDuration)
+			throws InterruptedException, DataStreamInfrastructureException {
+		long startOffset = startOffset(startPosition);
+		return ReceivingSupport.<M>fetch(list, maxItems, timeoutDuration, r -> receive(r, startOffset, Long.MIN_VALUE, Long.MAX_VALUE, log.endTimeMillis(endEnqueuedTime)));
+	}
+
+	/**
+	 * Convert the original position of a record to a start position from which the record will be included
+	 */
+	protected String startPositionOf(long position){
+		return String.valueOf(startPositionInclusive ? position : position - 1);
+	}
+
+	@Override
+	public String firstPosition() {
+		ByteBuffer payload = log.payload(log.firstOffset());
+		return payload == null ? "" : startPositionOf(originalPosition(payload));
+	}
+
+	@Override
+	public String firstPosition(Instant enqueuedAfter, Duration waitForArrival) throws InterruptedException, DataStreamInfrastructureException {
+		String localPosition = log.firstPosition(enqueuedAfter, waitForArrival);
+		if (localPosition == null){
+			return null;
+		}
+		long offset = Long.parseLong(localPosition) + 1;
+		while (true){
+			ByteBuffer payload = log.payload(offset);
+			if (payload == null){
+				return null;
+			}
+			if (originalEnqueuedTimeMillis(payload) > enqueuedAfter.toEpochMilli()){
+				return startPositionOf(originalPosition(payload));
+			}
+			offset ++;
+		}
+	}
+
+	@Override
+	public String lastPosition() throws DataStreamInfrastructureException {
+		long next = log.nextOffset();
+		ByteBuffer payload = next > log.firstOffset() ? log.payload(next - 1) : null;
+		return payload == null ? null : String.valueOf(originalPosition(payload));
+	}
+
+	/**
+	 * Get the original enqueued time of the first record at or after the position
+	 */
+	@Override
+	public Instant enqueuedTime(String position) throws DataStreamInfrastructureException {
+		ByteBuffer payload = log.payload(offsetOf(Long.parseLong(position), true));
+		return payload == null ? null : Instant.ofEpochMilli(originalEnqueuedTimeMillis(payload));
+	}
+
+	@Override
+	public String nextStartPosition(String previousEndPosition) {
+		return startPositionInclusive ? String.valueOf(Long.parseLong(previousEndPosition) + 1) : previousEndPosition;
+	}
+
+	@Override
+	public boolean isInRange(String position, String endPosition) {
+		Validate.isTrue(position != null, "position cannot be null");
+		return endPosition == null || Long.parseLong(position) <= Long.parseLong(endPosition);
+	}
+
+	@Override
+	public boolean isInRange(Instant enqueuedTime, Instant endEnqueuedTime) {
+		Validate.isTrue(enqueuedTime != null, "enqueuedTime cannot be null");
+		return endEnqueuedTime == null || !enqueuedTime.isAfter(endEnqueuedTime);
+	}
+
+	@Override
+	public String startAsyncReceiving(Consumer<M> receiver, String startPosition) throws DataStreamInfrastructureException {
+		return log.startAsyncReceiving(payload -> receiver.accept(deserialize(payload)), String.valueOf(startOffset(startPosition) - 1));
+	}
+
+	@Override
+	public String startAsyncReceiving(Consumer<M> receiver, Instant startEnqueuedTime) throws DataStreamInfrastructureException {
+		return log.startAsyncReceiving(payload -> receiver.accept(deserialize(payload)), startEnqueuedTime);
+	}
+
+	@Override
+	public void stopAsyncReceiving(String id) {
+		log.stopAsyncReceiving(id);
+	}
+
+	@Override
+	public void start() throws Exception {
+		log.start();
+	}
+
+	@Override
+	public void stop() throws Exception {
+		log.stop();
+	}
+
+}
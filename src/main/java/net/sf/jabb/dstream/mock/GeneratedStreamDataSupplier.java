@@ -0,0 +1,441 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream.mock;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.sf.jabb.dstream.ReceiveStatus;
+import net.sf.jabb.dstream.ReceivingSupport;
+import net.sf.jabb.dstream.SimpleReceiveStatus;
+import net.sf.jabb.dstream.StreamDataSupplier;
+import net.sf.jabb.dstream.ex.DataStreamInfrastructureException;
+
+/**
+ * Mocked StreamDataSupplier for load testing, providing events built by a generator at a high rate.
+ * <p>
+ * Unlike {@link MockedStreamDataSupplier}, the rate can be up to 1,000,000,000 events per second with sub-millisecond spacing,
+ * and the position of an event is its sequence number in the partition starting from 0.
+ * The event with sequence number n is enqueued at <code>streamStartTime + phase + (n + 1) * 1 second / eventsPerSecond</code>
+ * in nanosecond precision. The position range is (startPosition, endPosition] like that of Event Hub.
+ * </p>
+ * <p>
+ * By default events become available according to the wall clock. With pacing turned off,
+ * all events up to <code>streamEndTime</code> are available immediately, so that the consumer can go as fast as it can.
+ * Generators returned by {@link #pooledBytes(int, int, int, long)} and {@link #pooledJson(int, int, int, long)}
+ * precompute a pool of payloads from a seed and hand them out without allocation,
+ * so that throughput measured is that of the pipeline rather than that of building events.
+ * Use {@link #partitions(int, long, Instant, Instant, EventGenerator, long)} to mock a stream with multiple partitions having independent clocks.
+ * </p>
+ * @author James Hu
+ *
+ * @param <M> type of the message object
+ */
+public class GeneratedStreamDataSupplier<M> implements StreamDataSupplier<M> {
+	static private final Logger logger = LoggerFactory.getLogger(GeneratedStreamDataSupplier.class);
+
+	static private final long NANOS_PER_SECOND = 1_000_000_000L;
+	static private final long NANOS_PER_MILLI = 1_000_000L;
+
+	/**
+	 * Generator of events
+	 *
+	 * @param <M> type of the message object
+	 */
+	@FunctionalInterface
+	public static interface EventGenerator<M> {
+		/**
+		 * Build the event. This is called in the receiving loop, so it should be cheap.
+		 * @param partition				the partition
+		 * @param sequence				sequence number of the event in the partition, which is also its position
+		 * @param enqueuedTimeNanos		enqueued time of the event, in nanoseconds since epoch
+		 * @return	the event
+		 */
+		M generate(int partition, long sequence, long enqueuedTimeNanos);
+	}
+
+	protected final int partition;
+	protected final long eventsPerSecond;
+	protected final long firstEventNanos;
+	protected final long lastSequence;
+	protected final EventGenerator<M> generator;
+	protected volatile boolean paced = true;
+
+	protected final ReceivingSupport receivingSupport = new ReceivingSupport(GeneratedStreamDataSupplier.class);
+
+	/**
+	 * Constructor
+	 * @param eventsPerSecond		number of events per second, between 1 and 1,000,000,000
+	 * @param streamStartTime		the time that the stream starts to have new events, exclusive
+	 * @param streamEndTime			the time that the stream stops to have new events, inclusive, can be null
+	 * @param generator				generator of the events
+	 */
+	public GeneratedStreamDataSupplier(long eventsPerSecond, Instant streamStartTime, Instant streamEndTime, EventGenerator<M> generator){
+		this(0, eventsPerSecond, streamStartTime, streamEndTime, 0, generator);
+	}
+
+	/**
+	 * Constructor
+	 * @param partition				the partition, which is passed to the generator
+	 * @param eventsPerSecond		number of events per second, between 1 and 1,000,000,000
+	 * @param streamStartTime		the time that the stream starts to have new events, exclusive
+	 * @param streamEndTime			the time that the stream stops to have new events, inclusive, can be null
+	 * @param phaseNanos			nanoseconds that all the events of this partition are shifted by, which must not be negative
+	 * @param generator				generator of the events
+	 */
+	public GeneratedStreamDataSupplier(int partition, long eventsPerSecond, Instant streamStartTime, Instant streamEndTime, long phaseNanos, EventGenerator<M> generator){
+		Validate.isTrue(eventsPerSecond >= 1 && eventsPerSecond <= NANOS_PER_SECOND, "number of events per second must be between 1 and 1000000000");
+		Validate.notNull(streamStartTime, "Stream start time cannot be null");
+		Validate.isTrue(phaseNanos >= 0, "phase cannot be negative");
+		Validate.notNull(generator, "Generator cannot be null");
+		this.partition = partition;
+		this.eventsPerSecond = eventsPerSecond;
+		this.generator = generator;
+		this.firstEventNanos = nanosOf(streamStartTime) + phaseNanos + nanosFor(1);
+		this.lastSequence = streamEndTime == null ? Long.MAX_VALUE - 1 : sequenceAfter(nanosOf(streamEndTime)) - 1;
+	}
+
+	/**
+	 * Create suppliers mocking partitions of a stream. Every partition has the same rate,
+	 * and its events are shifted by a random phase within the interval between events so that partitions are not in lock step.
+	 * @param partitions			number of partitions
+	 * @param eventsPerSecond		number of events per second in each partition
+	 * @param streamStartTime		the time that the stream starts to have new events, exclusive
+	 * @param streamEndTime			the time that the stream stops to have new events, inclusive, can be null
+	 * @param generator				generator of the events, shared by all the partitions
+	 * @param seed					seed for the random phases
+	 * @param <M>					type of the message object
+	 * @return	the suppliers, one for each partition
+	 */
+	public static <M> List<GeneratedStreamDataSupplier<M>> partitions(int partitions, long eventsPerSecond, Instant streamStartTime, Instant streamEndTime,
+			EventGenerator<M> generator, long seed){
+		Validate.isTrue(partitions >= 1, "number of partitions must be positive");
+		Validate.isTrue(eventsPerSecond >= 1, "number of events per second must be positive");
+		Random random = new Random(seed);
+		long intervalNanos = NANOS_PER_SECOND / eventsPerSecond;
+		List<GeneratedStreamDataSupplier<M>> suppliers = new ArrayList<>(partitions);
+		for (int i = 0; i < partitions; i ++){
+			long phase = intervalNanos > 1 ? (long)(random.nextDouble() * intervalNanos) : 0;
+			suppliers.add(new GeneratedStreamDataSupplier<>(i, eventsPerSecond, streamStartTime, streamEndTime, phase, generator));
+		}
+		return suppliers;
+	}
+
+	/**
+	 * Create a generator handing out byte arrays from a precomputed pool.
+	 * Arrays are shared, so they must not be modified by the consumer.
+	 * @param poolSize		number of different payloads
+	 * @param minBytes		minimum size of a payload
+	 * @param maxBytes		maximum size of a payload
+	 * @param seed			seed for the sizes and the content
+	 * @return	the generator
+	 */
+	public static EventGenerator<byte[]> pooledBytes(int poolSize, int minBytes, int maxBytes, long seed){
+		Validate.isTrue(poolSize >= 1, "pool size must be positive");
+		Validate.isTrue(minBytes >= 0 && minBytes <= maxBytes, "payload size range is invalid");
+		Random random = new Random(seed);
+		byte[][] pool = new byte[poolSize][];
+		for (int i = 0; i < poolSize; i ++){
+			pool[i] = new byte[minBytes + random.nextInt(maxBytes - minBytes + 1)];
+			random.nextBytes(pool[i]);
+		}
+		return (partition, sequence, enqueuedTimeNanos) -> pool[poolIndex(partition, sequence, poolSize)];
+	}
+
+	/**
+	 * Create a generator handing out JSON strings from a precomputed pool.
+	 * Every string is an object with fields <code>f0</code>, <code>f1</code>, ... ,
+	 * the even ones have random integers as values and the odd ones have random strings as values.
+	 * @param poolSize		number of different payloads
+	 * @param fields		number of fields in every JSON object
+	 * @param valueChars	length of the string values
+	 * @param seed			seed for the values
+	 * @return	the generator
+	 */
+	public static EventGenerator<String> pooledJson(int poolSize, int fields, int valueChars, long seed){
+		Validate.isTrue(poolSize >= 1, "pool size must be positive");
+		Validate.isTrue(fields >= 0 && valueChars >= 0, "number of fields and length of values cannot be negative");
+		Random random = new Random(seed);
+		String[] pool = new String[poolSize];
+		for (int i = 0; i < poolSize; i ++){
+			StringBuilder sb = new StringBuilder("{");
+			for (int f = 0; f < fields; f ++){
+				if (f > 0){
+					sb.append(", ");
+				}
+				sb.append("\"f").append(f).append("\": ");
+				if (f % 2 == 0){
+					sb.append(random.nextInt());
+				}else{
+					sb.append('"');
+					for (int c = 0; c < valueChars; c ++){
+						sb.append((char)('a' + random.nextInt(26)));
+					}
+					sb.append('"');
+				}
+			}
+			pool[i] = sb.append('}').toString();
+		}
+		return (partition, sequence, enqueuedTimeNanos) -> pool[poolIndex(partition, sequence, poolSize)];
+	}
+
+	/**
+	 * Pick a pool entry deterministically but not in a cycle that the consumer could benefit from
+	 */
+	static int poolIndex(int partition, long sequence, int poolSize){
+		long x = (sequence + partition * 0x632BE59BD9B4E019L) * 0x9E3779B97F4A7C15L;
+		x ^= x >>> 31;
+		return (int) Long.remainderUnsigned(x, poolSize);
+	}
+
+	/**
+	 * Convert the payloads of a byte array generator to strings
+	 * @param generator		the generator of byte arrays
+	 * @return	generator of UTF-8 strings, which allocates a new string for every event
+	 */
+	public static EventGenerator<String> utf8(EventGenerator<byte[]> generator){
+		return (partition, sequence, enqueuedTimeNanos) -> new String(generator.generate(partition, sequence, enqueuedTimeNanos), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Set whether events become available according to the wall clock
+	 * @param paced	true (the default) if events are available only after they have been enqueued, false if all of them are available immediately
+	 */
+	public void setPaced(boolean paced){
+		this.paced = paced;
+	}
+
+	public int getPartition(){
+		return partition;
+	}
+
+	static long nanosOf(Instant instant){
+		return instant.getEpochSecond() * NANOS_PER_SECOND + instant.getNano();
+	}
+
+	static Instant instantOf(long nanos){
+		return Instant.ofEpochSecond(Math.floorDiv(nanos, NANOS_PER_SECOND), Math.floorMod(nanos, NANOS_PER_SECOND));
+	}
+
+	/**
+	 * Nanoseconds taken by the number of events, without overflow for any practical number
+	 */
+	protected long nanosFor(long events){
+		return events / eventsPerSecond * NANOS_PER_SECOND + events % eventsPerSecond * NANOS_PER_SECOND / eventsPerSecond;
+	}
+
+	/**
+	 * Get the enqueued time of an event
+	 * @param sequence	sequence number of the event
+	 * @return	the enqueued time in nanoseconds since epoch
+	 */
+	protected long timeOf(long sequence){
+		return firstEventNanos + nanosFor(sequence);
+	}
+
+	/**
+	 * Find the first event enqueued after the time
+	 * @param nanos	the time in nanoseconds since epoch
+	 * @return	sequence number of the event
+	 */
+	protected long sequenceAfter(long nanos){
+		if (nanos < firstEventNanos){
+			return 0;
+		}
+		long d = nanos - firstEventNanos;
+		long n = d / NANOS_PER_SECOND * eventsPerSecond + d % NANOS_PER_SECOND * eventsPerSecond / NANOS_PER_SECOND;
+		while (timeOf(n) <= nanos){
+			n ++;
+		}
+		while (n > 0 && timeOf(n - 1) > nanos){
+			n --;
+		}
+		return n;
+	}
+
+	/**
+	 * Get the last event available for receiving
+	 * @return	sequence number of the event, or -1 if there is none
+	 */
+	protected long lastAvailable(){
+		return paced ? Math.min(lastSequence, sequenceAfter(nanosOf(Instant.now())) - 1) : lastSequence;
+	}
+
+	protected long startSequence(String startPosition){
+		return startPosition == null || startPosition.length() == 0 ? 0 : Long.parseLong(startPosition) + 1;
+	}
+
+	protected long endSequence(String endPosition){
+		return endPosition == null ? Long.MAX_VALUE : Long.parseLong(endPosition);
+	}
+
+	protected long endSequence(Instant endEnqueuedTime){
+		return endEnqueuedTime == null ? Long.MAX_VALUE : sequenceAfter(nanosOf(endEnqueuedTime)) - 1;
+	}
+
+	/**
+	 * Receive events in the range of sequence numbers
+	 * @param receiver	the receiver
+	 * @param from		sequence number of the first event, inclusive
+	 * @param to		sequence number of the last event, inclusive
+	 * @return	the status
+	 */
+	protected ReceiveStatus receive(Function<M, Long> receiver, long from, long to){
+		long next = from;
+		long last = -1;
+		long left = receiver.apply(null);
+		receiving:
+		while (left > 0 && next <= to){
+			long available = Math.min(to, lastAvailable());
+			if (next > available){
+				long waitNanos = next > lastSequence ? Long.MAX_VALUE : timeOf(next) - nanosOf(Instant.now());
+				try {
+					TimeUnit.NANOSECONDS.sleep(Math.max(1, Math.min(waitNanos, Math.min(left, Long.MAX_VALUE / NANOS_PER_MILLI) * NANOS_PER_MILLI)));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				left = receiver.apply(null);
+				continue;
+			}
+			while (next <= available){
+				M event = generator.generate(partition, next, timeOf(next));
+				last = next ++;
+				left = receiver.apply(event);
+				if (left <= 0){
+					break receiving;
+				}
+			}
+		}
+
+		if (logger.isDebugEnabled()){
+			logger.debug("Received from partition {} for [{}-{}]: ? - {}", partition, from, to, last);
+		}
+		if (last >= 0){
+			return new SimpleReceiveStatus(String.valueOf(last), instantOf(timeOf(last)), next > to);
+		}else{
+			return new SimpleReceiveStatus(null, null, next > to);
+		}
+	}
+
+	@Override
+	public ReceiveStatus receive(Function<M, Long> receiver, String startPosition, String endPosition) throws DataStreamInfrastructureException {
+		return receive(receiver, startSequence(startPosition), endSequence(endPosition));
+	}
+
+	@Override
+	public ReceiveStatus receive(Function<M, Long> receiver, Instant startEnqueuedTime, Instant endEnqueuedTime) throws DataStreamInfrastructureException {
+		return receive(receiver, sequenceAfter(nanosOf(startEnqueuedTime)), endSequence(endEnqueuedTime));
+	}
+
+	@Override
+	public ReceiveStatus receive(Function<M, Long> receiver, String startPosition, Instant endEnqueuedTime) throws DataStreamInfrastructureException {
+		return receive(receiver, startSequence(startPosition), endSequence(endEnqueuedTime));
+	}
+
+	@Override
+	public ReceiveStatus fetch(List<? super M> list, String startPosition, String endPosition, int maxItems, Duration timeoutDuration)
+			throws InterruptedException, DataStreamInfrastructureException {
+		return ReceivingSupport.<M>fetch(list, maxItems, timeoutDuration, r -> receive(r, startSequence(startPosition), endSequence(endPosition)));
+	}
+
+	@Override
+	public ReceiveStatus fetch(List<? super M> list, Instant startEnqueuedTime, Instant endEnqueuedTime, int maxItems, Duration timeoutDuration)
+			throws InterruptedException, DataStreamInfrastructureException {
+		return ReceivingSupport.<M>fetch(list, maxItems, timeoutDuration, r -> receive(r, sequenceAfter(nanosOf(startEnqueuedTime)), endSequence(endEnqueuedTime)));
+	}
+
+	@Override
+	public ReceiveStatus fetch(List<? super M> list, String startPosition, Instant endEnqueuedTime, int maxItems, Duration timeoutDuration)
+			throws InterruptedException, DataStreamInfrastructureException {
+		return ReceivingSupport.<M>fetch(list, maxItems, timeoutDuration, r -> receive(r, startSequence(startPosition), endSequence(endEnqueuedTime)));
+	}
+
+	@Override
+	public String firstPosition() {
+		return String.valueOf(-1);
+	}
+
+	/**
+	 * Get the start position from which the first event enqueued after the time will be received
+	 */
+	@Override
+	public String firstPosition(Instant enqueuedAfter, Duration waitForArrival) throws InterruptedException, DataStreamInfrastructureException {
+		long sequence = sequenceAfter(nanosOf(enqueuedAfter));
+		if (sequence > lastSequence){
+			Thread.sleep(waitForArrival.toMillis());
+			return null;
+		}
+		return String.valueOf(sequence - 1);
+	}
+
+	@Override
+	public String lastPosition() throws DataStreamInfrastructureException {
+		long last = lastAvailable();
+		return last < 0 ? null : String.valueOf(last);
+	}
+
+	@Override
+	public Instant enqueuedTime(String position) throws DataStreamInfrastructureException {
+		return instantOf(timeOf(Long.parseLong(position)));
+	}
+
+	@Override
+	public String nextStartPosition(String previousEndPosition) {
+		return previousEndPosition;
+	}
+
+	@Override
+	public boolean isInRange(String position, String endPosition) {
+		Validate.isTrue(position != null, "position cannot be null");
+		return endPosition == null || Long.parseLong(position) <= Long.parseLong(endPosition);
+	}
+
+	@Override
+	public boolean isInRange(Instant enqueuedTime, Instant endEnqueuedTime) {
+		Validate.isTrue(enqueuedTime != null, "enqueuedTime cannot be null");
+		return endEnqueuedTime == null || !enqueuedTime.isAfter(endEnqueuedTime);
+	}
+
+	protected String startAsyncReceiving(Consumer<M> receiver, long from){
+		return receivingSupport.startAsyncReceiving((id, running) -> 
+			receive(ReceivingSupport.asyncReceiver(receiver, running), from, Long.MAX_VALUE));
+	}
+
+	@Override
+	public String startAsyncReceiving(Consumer<M> receiver, String startPosition) throws DataStreamInfrastructureException {
+		return startAsyncReceiving(receiver, startSequence(startPosition));
+	}
+
+	@Override
+	public String startAsyncReceiving(Consumer<M> receiver, Instant startEnqueuedTime) throws DataStreamInfrastructureException {
+		return startAsyncReceiving(receiver, sequenceAfter(nanosOf(startEnqueuedTime)));
+	}
+
+	@Override
+	public void stopAsyncReceiving(String id) {
+		receivingSupport.stopAsyncReceiving(id);
+	}
+
+	@Override
+	public void start() throws Exception {
+	}
+
+	@Override
+	public void stop() throws Exception {
+		receivingSupport.stopAllAsyncReceivings();
+	}
+
+}
@@ -0,0 +1,222 @@
+/**
+ *
+ */
+package net.sf.jabb.seqtx;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import net.sf.jabb.seqtx.ex.DuplicatedTransactionIdException;
+import net.sf.jabb.seqtx.ex.IllegalEndPositionException;
+import net.sf.jabb.seqtx.ex.IllegalTransactionStateException;
+import net.sf.jabb.seqtx.ex.NoSuchTransactionException;
+import net.sf.jabb.seqtx.ex.NotOwningTransactionException;
+import net.sf.jabb.seqtx.ex.TransactionStorageInfrastructureException;
+
+import org.apache.commons.lang3.Validate;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * The implementation of SequentialTransactionsCoordinator that routes each series to one of multiple backing coordinators.
+ * The backing coordinators (shards) can be for example multiple {@link net.sf.jabb.seqtx.azure.AzureSequentialTransactionsCoordinator}s
+ * each having its own table or storage account, so that the throughput is no longer capped by a single storage.
+ * <p>
+ * Series IDs are mapped to shards by consistent hashing (murmur3 hash + jump consistent hash),
+ * the mapping is stable across processes and restarts as long as the list of shards is the same and in the same order.
+ * When new shards are appended to the end of the list, only about 1/N of the series are moved to the new shards.
+ * Existing shards should never be removed or reordered, otherwise series would be routed to stores that do not have their transactions.
+ * </p>
+ * <p>
+ * For operations with a null series ID, the transaction is looked up in all the shards one by one,
+ * therefore it is more efficient to always specify the series ID.
+ * {@link #clearAll()} is fanned out to all the shards in parallel.
+ * </p>
+ * @author James Hu
+ *
+ */
+public class ShardedSequentialTransactionsCoordinator implements SequentialTransactionsCoordinator {
+	static private final HashFunction hashFunction = Hashing.murmur3_128();
+
+	protected List<SequentialTransactionsCoordinator> shards;
+	protected ExecutorService executor;
+
+	/**
+	 * Constructor. The common ForkJoinPool will be used for fanning out aggregate operations to the shards.
+	 * @param shards	the backing coordinators, can't be null or empty. The order of them must be kept the same across processes and restarts.
+	 */
+	public ShardedSequentialTransactionsCoordinator(List<? extends SequentialTransactionsCoordinator> shards){
+		this(shards, null);
+	}
+
+	/**
+	 * Constructor
+	 * @param shards	the backing coordinators, can't be null or empty. The order of them must be kept the same across processes and restarts.
+	 * @param executor	the thread pool for fanning out aggregate operations to the shards, if it is null then the common ForkJoinPool will be used.
+	 */
+	public ShardedSequentialTransactionsCoordinator(List<? extends SequentialTransactionsCoordinator> shards, ExecutorService executor){
+		Validate.notEmpty(shards, "Shards cannot be null or empty");
+		Validate.noNullElements(shards, "Shard cannot be null");
+		this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+		this.executor = executor == null ? ForkJoinPool.commonPool() : executor;
+	}
+
+	/**
+	 * Get the index of the shard that a series is mapped to
+	 * @param seriesId	ID of the transaction series
+	 * @return	index of the shard in the list of shards
+	 */
+	public int shardIndex(String seriesId){
+		Validate.notNull(seriesId, "Series ID cannot be null");
+		return Hashing.consistentHash(hashFunction.hashString(seriesId, Charsets.UTF_8), shards.size());
+	}
+
+	/**
+	 * Get the shard that a series is mapped to
+	 * @param seriesId	ID of the transaction series
+	 * @return	the backing coordinator
+	 */
+	public SequentialTransactionsCoordinator shard(String seriesId){
+		return shards.get(shardIndex(seriesId));
+	}
+
+	/**
+	 * @return the unmodifiable list of backing coordinators
+	 */
+	public List<SequentialTransactionsCoordinator> getShards() {
+		return shards;
+	}
+
+	@Override
+	public SequentialTransaction startTransaction(String seriesId, String previousTransactionId, String previousTransactionEndPosition,
+			ReadOnlySequentialTransaction transaction, int maxInProgressTransacions, int maxRetryingTransactions)
+			throws TransactionStorageInfrastructureException, DuplicatedTransactionIdException {
+		return shard(seriesId).startTransaction(seriesId, previousTransactionId, previousTransactionEndPosition, transaction, maxInProgressTransacions, maxRetryingTransactions);
+	}
+
+	@Override
+	public void finishTransaction(String seriesId, String processorId, String transactionId, String endPosition)
+			throws NotOwningTransactionException, TransactionStorageInfrastructureException, IllegalTransactionStateException,
+			NoSuchTransactionException, IllegalEndPositionException {
+		if (seriesId != null || shards.size() == 1){
+			shards.get(seriesId == null ? 0 : shardIndex(seriesId)).finishTransaction(seriesId, processorId, transactionId, endPosition);
+			return;
+		}
+		NoSuchTransactionException lastException = null;
+		for (SequentialTransactionsCoordinator shard: shards){
+			try{
+				shard.finishTransaction(null, processorId, transactionId, endPosition);
+				return;
+			}catch(NoSuchTransactionException e){
+				lastException = e;
+			}
+		}
+		throw lastException;
+	}
+
+	@Override
+	public void abortTransaction(String seriesId, String processorId, String transactionId)
+			throws NotOwningTransactionException, TransactionStorageInfrastructureException, IllegalTransactionStateException,
+			NoSuchTransactionException {
+		if (seriesId != null || shards.size() == 1){
+			shards.get(seriesId == null ? 0 : shardIndex(seriesId)).abortTransaction(seriesId, processorId, transactionId);
+			return;
+		}
+		NoSuchTransactionException lastException = null;
+		for (SequentialTransactionsCoordinator shard: shards){
+			try{
+				shard.abortTransaction(null, processorId, transactionId);
+				return;
+			}catch(NoSuchTransactionException e){
+				lastException = e;
+			}
+		}
+		throw lastException;
+	}
+
+	@Override
+	public void updateTransaction(String seriesId, String processorId, String transactionId, String endPosition, Instant timeout, Serializable detail)
+			throws NotOwningTransactionException, TransactionStorageInfrastructureException, IllegalTransactionStateException,
+			NoSuchTransactionException, IllegalEndPositionException {
+		if (seriesId != null || shards.size() == 1){
+			shards.get(seriesId == null ? 0 : shardIndex(seriesId)).updateTransaction(seriesId, processorId, transactionId, endPosition, timeout, detail);
+			return;
+		}
+		NoSuchTransactionException lastException = null;
+		for (SequentialTransactionsCoordinator shard: shards){
+			try{
+				shard.updateTransaction(null, processorId, transactionId, endPosition, timeout, detail);
+				return;
+			}catch(NoSuchTransactionException e){
+				lastException = e;
+			}
+		}
+		throw lastException;
+	}
+
+	@Override
+	public boolean isTransactionSuccessful(String seriesId, String transactionId) throws TransactionStorageInfrastructureException {
+		if (seriesId != null || shards.size() == 1){
+			return shards.get(seriesId == null ? 0 : shardIndex(seriesId)).isTransactionSuccessful(seriesId, transactionId);
+		}
+		// a shard not having the transaction reports it as successful, so the one having it decides
+		for (SequentialTransactionsCoordinator shard: shards){
+			if (!shard.isTransactionSuccessful(null, transactionId)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public List<? extends ReadOnlySequentialTransaction> getRecentTransactions(String seriesId) throws TransactionStorageInfrastructureException {
+		return shard(seriesId).getRecentTransactions(seriesId);
+	}
+
+	@Override
+	public void clear(String seriesId) throws TransactionStorageInfrastructureException {
+		shard(seriesId).clear(seriesId);
+	}
+
+	@Override
+	public void clearAll() throws TransactionStorageInfrastructureException {
+		List<CompletableFuture<Void>> futures = new ArrayList<>(shards.size());
+		for (SequentialTransactionsCoordinator shard: shards){
+			futures.add(CompletableFuture.runAsync(()->{
+				try {
+					shard.clearAll();
+				} catch (TransactionStorageInfrastructureException e) {
+					throw new CompletionException(e);
+				}
+			}, executor));
+		}
+
+		TransactionStorageInfrastructureException exception = null;
+		for (CompletableFuture<Void> future: futures){
+			try{
+				future.join();
+			}catch(CompletionException e){
+				Throwable cause = e.getCause() == null ? e : e.getCause();
+				if (exception == null){
+					exception = cause instanceof TransactionStorageInfrastructureException ?
+							(TransactionStorageInfrastructureException) cause : new TransactionStorageInfrastructureException("Failed to clear all transactions in shard", cause);
+				}else{
+					exception.addSuppressed(cause);
+				}
+			}
+		}
+		if (exception != null){
+			throw exception;
+		}
+	}
+
+}
@@ -35,6 +35,9 @@ import net.sf.jabb.seqtx.ex.NoSuchTransactionException;
 import net.sf.jabb.seqtx.ex.NotOwningTransactionException;
 import net.sf.jabb.util.attempt.AttemptStrategy;
 import net.sf.jabb.util.attempt.StopStrategies;
+import net.sf.jabb.util.codec.CompactDetailCodec;
+import net.sf.jabb.util.codec.DetailCodec;
+import net.sf.jabb.util.codec.JavaSerializationDetailCodec;
 import net.sf.jabb.util.ex.ExceptionUncheckUtility;
 import net.sf.jabb.util.ex.ExceptionUncheckUtility.ConsumerThrowsExceptions;
 import net.sf.jabb.util.ex.ExceptionUncheckUtility.PredicateThrowsExceptions;
@@ -90,6 +93,8 @@ public class AzureSequentialTransactionsCoordinator implements SequentialTransac
 	
 	protected AttemptStrategy attemptStrategy = DEFAULT_ATTEMPT_STRATEGY;
 	
+	protected DetailCodec detailCodec = JavaSerializationDetailCodec.INSTANCE;
+	
 	protected static final Predicate<Exception> ENTITY_HAS_BEEN_MODIFIED_BY_OTHERS = AzureStorageUtility::isUpdateConditionNotSatisfied;
 	
 	protected static final Predicate<Exception> ENTITY_HAS_BEEN_DELETED_OR_MODIFIED_BY_OTHERS = AzureStorageUtility::isNotFoundOrUpdateConditionNotSatisfied;
@@ -160,6 +165,38 @@ public class AzureSequentialTransactionsCoordinator implements SequentialTransac
 		this.attemptStrategy = attemptStrategy;
 	}
 	
+	/**
+	 * Get the codec used for encoding and decoding transaction details
+	 * @return	the codec
+	 */
+	public DetailCodec getDetailCodec() {
+		return detailCodec;
+	}
+
+	/**
+	 * Set the codec used for encoding and decoding transaction details.
+	 * {@link JavaSerializationDetailCodec} is the default, which is compatible with all the existing readers.
+	 * {@link CompactDetailCodec} produces smaller data and can decode data encoded by Java serialization, 
+	 * but it should only be used when all the readers of the table have been upgraded to use it.
+	 * @param detailCodec	the codec, can't be null
+	 */
+	public void setDetailCodec(DetailCodec detailCodec) {
+		Validate.notNull(detailCodec, "Detail codec cannot be null");
+		this.detailCodec = detailCodec;
+	}
+	
+	/**
+	 * Make the entity use the detail codec of this coordinator
+	 * @param entity	the entity, can be null
+	 * @return	the same entity
+	 */
+	protected SequentialTransactionEntity withDetailCodec(SequentialTransactionEntity entity){
+		if (entity != null){
+			entity.setDetailCodec(detailCodec);
+		}
+		return entity;
+	}
+	
 	/**
 	 * Generate a 22-character presented random UUID
 	 * @return base64 URL safe encoded UUID
@@ -321,7 +358,7 @@ public class AzureSequentialTransactionsCoordinator implements SequentialTransac
 			last = fetchEntity(seriesId, DUMMY_FIRST_TRANSACTION_ID);
 			if (last == null){  // the actual first
 				// we must create a dummy last one for concurrency control
-				last = new SequentialTransactionEntity();
+				last = withDetailCodec(new SequentialTransactionEntity());
 				last.setSeriesId(seriesId);
 				last.setTransactionId(DUMMY_FIRST_TRANSACTION_ID);
 				last.setFirstTransaction();
@@ -353,7 +390,7 @@ public class AzureSequentialTransactionsCoordinator implements SequentialTransac
 						+  previousTransactionEndPosition + "' to '" + last.getEndPosition() + "': " + lastTransactionId);
 			}
 		}
-		SequentialTransactionEntity next = SequentialTransactionEntity.fromSequentialTransaction(seriesId, newTrans, last.getTransactionId(), null);
+		SequentialTransactionEntity next = withDetailCodec(SequentialTransactionEntity.fromSequentialTransaction(seriesId, newTrans, last.getTransactionId(), null));
 		last.setNextTransactionId(next.getTransactionId());
 		next.setPreviousTransactionId(last.getTransactionId());
 		next.setLastTransaction();
@@ -916,7 +953,7 @@ public class AzureSequentialTransactionsCoordinator implements SequentialTransac
 		CloudTable table = getTableReference();
 		SequentialTransactionEntity entity = null;
 		try{
-			entity = table.execute(TableOperation.retrieve(seriesId, transactionId, SequentialTransactionEntity.class)).getResultAsType();
+			entity = withDetailCodec(table.execute(TableOperation.retrieve(seriesId, transactionId, SequentialTransactionEntity.class)).getResultAsType());
 		}catch(StorageException e){
 			if (e.getHttpStatusCode() != 404){
 				throw e;
@@ -934,7 +971,7 @@ public class AzureSequentialTransactionsCoordinator implements SequentialTransac
 	protected SequentialTransactionEntity fetchEntity(String transactionId) throws TransactionStorageInfrastructureException{
 		CloudTable table = getTableReference();
 		SequentialTransactionEntity entity = null;
-		entity = AzureStorageUtility.retrieveByRowKey(table, transactionId, SequentialTransactionEntity.class);
+		entity = withDetailCodec(AzureStorageUtility.retrieveByRowKey(table, transactionId, SequentialTransactionEntity.class));
 		return entity;
 	}
 	
@@ -994,7 +1031,7 @@ public class AzureSequentialTransactionsCoordinator implements SequentialTransac
 			}
 			result = entity;
 		}
-		return result;
+		return withDetailCodec(result);
 	}
 	
 
@@ -1020,7 +1057,7 @@ public class AzureSequentialTransactionsCoordinator implements SequentialTransac
 							QueryComparisons.EQUAL,
 							seriesId));
 			for (DynamicTableEntity entity: table.execute(query)){
-				SequentialTransactionWrapper wrapper = new SequentialTransactionWrapper(entity);
+				SequentialTransactionWrapper wrapper = new SequentialTransactionWrapper(entity, detailCodec);
 				/*
 				if (wrapper.isFirstTransaction()){
 					wrapper.setFirstTransaction();
@@ -13,8 +13,9 @@ import net.sf.jabb.seqtx.SequentialTransaction;
 import net.sf.jabb.seqtx.SequentialTransactionState;
 import net.sf.jabb.seqtx.SequentialTransactionStateMachine;
 import net.sf.jabb.seqtx.SimpleSequentialTransaction;
+import net.sf.jabb.util.codec.DetailCodec;
+import net.sf.jabb.util.codec.JavaSerializationDetailCodec;
 
-import org.apache.commons.lang3.SerializationUtils;
 import org.apache.commons.lang3.Validate;
 
 import com.microsoft.azure.storage.table.Ignore;
@@ -39,6 +40,8 @@ public class SequentialTransactionEntity extends TableServiceEntity implements R
 	protected Instant finishTime;
 	protected SequentialTransactionState state;
 	protected Serializable detail;
+	protected byte[] serializedDetail;	// detail as read from the table, it is decoded lazily and not used once detail has been decoded or set
+	protected DetailCodec detailCodec = JavaSerializationDetailCodec.INSTANCE;
 	protected int attempts;
 	
 	protected String previousTransactionId;
@@ -185,21 +188,38 @@ public class SequentialTransactionEntity extends TableServiceEntity implements R
 	}
 	@Ignore
 	public void setDetail(Serializable detail){
-		if (detail == null){
-			this.detail = null;
-		}else{
-			Validate.isTrue(SerializationUtils.serialize(detail).length <= MAX_BINARY_LENGTH, 
-					"Serialized transaction detail must not exceed %d bytes, that's the limitation of Azure table storage."
-					, MAX_BINARY_LENGTH);
-			this.detail = detail;
-		}
+		this.detail = detail;
+		this.serializedDetail = null;
 	}
 	@Override
 	@Ignore
 	public Serializable getDetail(){
+		if (this.detail == null && this.serializedDetail != null){
+			this.detail = detailCodec.decode(serializedDetail);
+		}
 		return this.detail;
 	}
 	
+	/**
+	 * Get the codec used for encoding and decoding the detail
+	 * @return	the codec
+	 */
+	@Ignore
+	public DetailCodec getDetailCodec() {
+		return detailCodec;
+	}
+	/**
+	 * Set the codec used for encoding and decoding the detail. 
+	 * It is normally set by the coordinator that the entity is read or written by.
+	 * Detail is encoded only when the entity is being stored, so changes made to the detail object after it is set are also stored.
+	 * @param codec	the codec, can't be null
+	 */
+	@Ignore
+	public void setDetailCodec(DetailCodec codec) {
+		Validate.notNull(codec, "Detail codec cannot be null");
+		this.detailCodec = codec;
+	}
+	
 
 	@Ignore
 	public String getseriesId() {
@@ -292,11 +312,19 @@ public class SequentialTransactionEntity extends TableServiceEntity implements R
 	}
 	@StoreAs(name = "Detail")
 	public byte[] getSerializedDetail() {
-		return detail == null ? null : SerializationUtils.serialize(detail);
+		if (detail == null){
+			return serializedDetail;		// not decoded therefore unchanged, or null
+		}
+		byte[] encoded = detailCodec.encode(detail);
+		Validate.isTrue(encoded.length <= MAX_BINARY_LENGTH, 
+				"Serialized transaction detail must not exceed %d bytes, that's the limitation of Azure table storage."
+				, MAX_BINARY_LENGTH);
+		return encoded;
 	}
 	@StoreAs(name = "Detail")
 	public void setSerializedDetail(byte[] serializedDetail) {
-		this.detail = serializedDetail == null ? null : (Serializable) SerializationUtils.deserialize(serializedDetail);
+		this.serializedDetail = serializedDetail;
+		this.detail = null;
 	}
 	@Override
 	public int getAttempts() {
@@ -3,11 +3,9 @@
  */
 package net.sf.jabb.seqtx.azure;
 
-import java.io.Serializable;
 import java.time.Instant;
 import java.util.Date;
 
-import org.apache.commons.lang3.SerializationUtils;
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.commons.lang3.builder.ToStringStyle;
@@ -17,6 +15,8 @@ import com.microsoft.azure.storage.table.EntityProperty;
 
 import net.sf.jabb.seqtx.SequentialTransactionState;
 import net.sf.jabb.seqtx.SimpleSequentialTransaction;
+import net.sf.jabb.util.codec.DetailCodec;
+import net.sf.jabb.util.codec.JavaSerializationDetailCodec;
 
 /**
  * @author James Hu
@@ -34,6 +34,8 @@ public class SequentialTransactionWrapper {
 	protected String seriesId;
 	protected String previousTransactionId;
 	protected String nextTransactionId;
+	
+	protected DetailCodec detailCodec = JavaSerializationDetailCodec.INSTANCE;
 
 	
 	public SequentialTransactionWrapper(){
@@ -59,6 +61,16 @@ public class SequentialTransactionWrapper {
 		this.nextTransactionId = p == null ? null : p.getValueAsString();
 	}
 	
+	/**
+	 * Create a new instance with a DynamicTableEntity and the codec for the transaction detail.
+	 * @param entity		the entity from Azure table storage
+	 * @param detailCodec	the codec for encoding and decoding the transaction detail
+	 */
+	public SequentialTransactionWrapper(DynamicTableEntity entity, DetailCodec detailCodec){
+		this(entity);
+		setDetailCodec(detailCodec);
+	}
+	
 	/**
 	 * Create a new instance with a SimpleSequentialTransaction.
  	 * The entity field of the newly created instance will be null, so as other fields except the transaction field.
@@ -92,7 +104,7 @@ public class SequentialTransactionWrapper {
 		transaction.setAttempts(p == null ? 0 : p.getValueAsInteger());
 		
 		p = entity.getProperties().get("Detail");
-		transaction.setDetail(p == null ? null : (Serializable)SerializationUtils.deserialize(p.getValueAsByteArray()));
+		transaction.setDetail(p == null ? null : detailCodec.decode(p.getValueAsByteArray()));
 
 		p = entity.getProperties().get("EndPosition");
 		transaction.setEndPosition(p == null ? null : p.getValueAsString());
@@ -137,7 +149,7 @@ public class SequentialTransactionWrapper {
 		entity.getProperties().put("Attempts", new EntityProperty(transaction.getAttempts()));
 		
 		if (transaction.getDetail() != null){
-			byte[] serializedDetail = SerializationUtils.serialize(transaction.getDetail());
+			byte[] serializedDetail = detailCodec.encode(transaction.getDetail());
 			Validate.isTrue(serializedDetail.length <= MAX_BINARY_LENGTH, 
 					"Serialized transaction detail must not exceed %d bytes, that's the limitation of Azure table storage."
 					, MAX_BINARY_LENGTH);
@@ -213,6 +225,13 @@ public class SequentialTransactionWrapper {
 		return entity == null ? null : entity.getPartitionKey();
 	}
 
+	public DetailCodec getDetailCodec() {
+		return detailCodec;
+	}
+	public void setDetailCodec(DetailCodec detailCodec) {
+		Validate.notNull(detailCodec, "Detail codec cannot be null");
+		this.detailCodec = detailCodec;
+	}
 	public DynamicTableEntity getEntity() {
 		return entity;
 	}
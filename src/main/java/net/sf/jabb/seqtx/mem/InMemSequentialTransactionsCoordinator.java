@@ -4,8 +4,11 @@
 package net.sf.jabb.seqtx.mem;
 
 import java.io.Serializable;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -25,21 +28,128 @@ import net.sf.jabb.seqtx.ex.TransactionStorageInfrastructureException;
 import net.sf.jabb.seqtx.ex.NoSuchTransactionException;
 import net.sf.jabb.seqtx.ex.NotOwningTransactionException;
 import net.sf.jabb.util.col.PutIfAbsentMap;
+import net.sf.jabb.util.time.HierarchicalTimerWheel;
 
 import org.apache.commons.lang3.Validate;
 
 /**
  * The implementation of SequentialTransactionsCoordinator that keeps all data in memory.
  * This implementation is intended for testing, PoC, and demo usage.
+ * <p>
+ * By default, time outs of in-progress transactions are checked by scanning all transactions in each API call.
+ * Optionally, they can be tracked by a {@link HierarchicalTimerWheel}
+ * which transits transactions to TIMED_OUT state incrementally in background as well as before each API call,
+ * therefore API calls do not need to scan the whole list of transactions for time outs.
+ * The timer wheel can be shared by multiple instances, and the one created by the instance itself is stopped by {@link #close()}.
+ * </p>
  * @author James Hu
  *
  */
-public class InMemSequentialTransactionsCoordinator implements SequentialTransactionsCoordinator {
+public class InMemSequentialTransactionsCoordinator implements SequentialTransactionsCoordinator, AutoCloseable {
+	static public final Duration DEFAULT_TIMER_WHEEL_TICK = Duration.ofMillis(1);
+	static public final Duration DEFAULT_TIMER_WHEEL_ADVANCE_INTERVAL = Duration.ofMillis(10);
 	
 	protected Map<String, LinkedList<SimpleSequentialTransaction>> transactionsBySeriesId;
 	
+	protected HierarchicalTimerWheel timerWheel;
+	protected boolean ownsTimerWheel;
+	protected Map<SimpleSequentialTransaction, HierarchicalTimerWheel.Handle> timeoutTimers;
+	
+	/**
+	 * Constructor. Time outs will be checked by scanning all transactions in each API call.
+	 */
 	public InMemSequentialTransactionsCoordinator(){
+		this(false);
+	}
+	
+	/**
+	 * Constructor
+	 * @param useTimerWheel	true if time outs should be tracked by a timer wheel with a background thread owned by this instance
+	 * 						which should be stopped by {@link #close()}, 
+	 * 						false if time outs should be checked by scanning all transactions in each API call.
+	 */
+	public InMemSequentialTransactionsCoordinator(boolean useTimerWheel){
+		this(useTimerWheel ? createTimerWheel() : null);
+		this.ownsTimerWheel = useTimerWheel;
+	}
+	
+	/**
+	 * Constructor
+	 * @param timerWheel	the timer wheel for tracking time outs, it can be shared with others. 
+	 * 						If it is null, time outs will be checked by scanning all transactions in each API call.
+	 */
+	public InMemSequentialTransactionsCoordinator(HierarchicalTimerWheel timerWheel){
 		transactionsBySeriesId = new PutIfAbsentMap<String, LinkedList<SimpleSequentialTransaction>>(new HashMap<String, LinkedList<SimpleSequentialTransaction>>(), k->new LinkedList<>());
+		this.timerWheel = timerWheel;
+		if (timerWheel != null){
+			this.timeoutTimers = Collections.synchronizedMap(new IdentityHashMap<>());
+		}
+	}
+	
+	static protected HierarchicalTimerWheel createTimerWheel(){
+		HierarchicalTimerWheel wheel = new HierarchicalTimerWheel(DEFAULT_TIMER_WHEEL_TICK);
+		wheel.start(DEFAULT_TIMER_WHEEL_ADVANCE_INTERVAL);
+		return wheel;
+	}
+	
+	/**
+	 * Stop the background thread of the timer wheel if the timer wheel was created by this instance.
+	 * A timer wheel passed in through the constructor is not affected and should be closed by its owner.
+	 * After being closed, time outs are still tracked but only fired before API calls.
+	 */
+	@Override
+	public void close(){
+		if (ownsTimerWheel){
+			timerWheel.close();
+		}
+	}
+	
+	/**
+	 * Fire due timers, so that all transactions that should have timed out are in TIMED_OUT state.
+	 */
+	protected void advanceTimers(){
+		if (timerWheel != null){
+			timerWheel.advance();
+		}
+	}
+	
+	/**
+	 * Track the time out of an in-progress transaction. This method should be called within synchronized(transactions).
+	 * @param transactions	the list of transactions that the transaction belongs to
+	 * @param tx			the transaction
+	 */
+	protected void scheduleTimeout(LinkedList<SimpleSequentialTransaction> transactions, SimpleSequentialTransaction tx){
+		if (timerWheel == null){
+			return;
+		}
+		cancelTimeout(tx);
+		HierarchicalTimerWheel.Handle[] handle = new HierarchicalTimerWheel.Handle[1];
+		handle[0] = timerWheel.schedule(tx.getTimeout(), ()->{
+			synchronized(transactions){
+				if (timeoutTimers.remove(tx, handle[0]) && tx.isInProgress()){
+					if (tx.getTimeout().isAfter(Instant.now())){
+						scheduleTimeout(transactions, tx);
+					}else{
+						tx.timeout();
+					}
+				}
+			}
+		});
+		timeoutTimers.put(tx, handle[0]);
+	}
+	
+	/**
+	 * Stop tracking the time out of a transaction. This method should be called within synchronized(transactions).
+	 * @param tx	the transaction
+	 */
+	protected void cancelTimeout(SimpleSequentialTransaction tx){
+		if (timerWheel == null){
+			return;
+		}
+		HierarchicalTimerWheel.Handle handle = timeoutTimers.remove(tx);
+		if (handle != null){
+			handle.cancel();
+		}
 	}
 
 	/**
@@ -48,6 +158,16 @@ public class InMemSequentialTransactionsCoordinator implements SequentialTransac
 	 * @param transactions	 the list of transactions
 	 */
 	void compact(LinkedList<? extends SimpleSequentialTransaction> transactions){
+		compact(transactions, true);
+	}
+	
+	/**
+	 * Remove succeeded from the head and leave only one, optionally transit those timed out to TIMED_OUT state,
+	 * and remove the last transaction if it is a failed one with a null end position.
+	 * @param transactions	 the list of transactions
+	 * @param checkTimeout	true if time outs should be checked by scanning all transactions
+	 */
+	void compact(LinkedList<? extends SimpleSequentialTransaction> transactions, boolean checkTimeout){
 		// remove finished historical transactions and leave only one of them
 		int finished = 0;
 		Iterator<? extends SimpleSequentialTransaction> iterator = transactions.iterator();
@@ -68,11 +188,13 @@ public class InMemSequentialTransactionsCoordinator implements SequentialTransac
 		}
 		
 		// handle time out
-		Instant now = Instant.now();
-		for (SimpleSequentialTransaction tx: transactions){
-			if (tx.isInProgress() && tx.getTimeout().isBefore(now)){
-				if (!tx.timeout()){
-					throw new IllegalStateException("Transaction '" + tx.getTransactionId() + "' is currently in " + tx.getState() + " state and cannot be changed to TIMED_OUT state");
+		if (checkTimeout){
+			Instant now = Instant.now();
+			for (SimpleSequentialTransaction tx: transactions){
+				if (tx.isInProgress() && tx.getTimeout().isBefore(now)){
+					if (!tx.timeout()){
+						throw new IllegalStateException("Transaction '" + tx.getTransactionId() + "' is currently in " + tx.getState() + " state and cannot be changed to TIMED_OUT state");
+					}
 				}
 			}
 		}
@@ -87,7 +209,11 @@ public class InMemSequentialTransactionsCoordinator implements SequentialTransac
 	}
 	
 	TransactionCounts compactAndGetCounts(LinkedList<SimpleSequentialTransaction> transactions){
-		compact(transactions);
+		return compactAndGetCounts(transactions, true);
+	}
+	
+	TransactionCounts compactAndGetCounts(LinkedList<SimpleSequentialTransaction> transactions, boolean checkTimeout){
+		compact(transactions, checkTimeout);
 		return SequentialTransactionsCoordinator.getTransactionCounts(transactions);
 	}
 
@@ -112,12 +238,13 @@ public class InMemSequentialTransactionsCoordinator implements SequentialTransac
 		Validate.isTrue(maxRetryingTransactions > 0, "Maximum number of retrying transactions must be greater than zero: %d", maxRetryingTransactions);
 		Validate.isTrue(maxInProgressTransacions >= maxRetryingTransactions, "Maximum number of in-progress transactions must not be less than the maximum number of retrying transactions: %d, %d", maxInProgressTransacions, maxRetryingTransactions);
 
+		advanceTimers();
 		LinkedList<SimpleSequentialTransaction> transactions = transactionsBySeriesId.get(seriesId);
 		if (transactions.size() > 0 && previousTransactionEndPosition != null){
 			Validate.notNull(previousTransactionId, "previousTransactionId cannot be null when previousTransactionEndPosition is not null");
 		}
 		synchronized(transactions){
-			TransactionCounts counts = compactAndGetCounts(transactions);
+			TransactionCounts counts = compactAndGetCounts(transactions, timerWheel == null);
 			SimpleSequentialTransaction last = transactions.size() > 0 ? transactions.getLast() : null;
 			
 			if (counts.getInProgress() >= maxInProgressTransacions){  // no more transaction allowed
@@ -131,6 +258,7 @@ public class InMemSequentialTransactionsCoordinator implements SequentialTransac
 					if (!tx.retry(transaction.getProcessorId(), transaction.getTimeout())){
 						throw new IllegalStateException("Cann't retry transaction: " +  tx);
 					}
+					scheduleTimeout(transactions, tx);
 					return SimpleSequentialTransaction.copyOf(tx);
 				}
 			}
@@ -164,6 +292,7 @@ public class InMemSequentialTransactionsCoordinator implements SequentialTransac
 						}
 					}
 					transactions.addLast(newTrans);
+					scheduleTimeout(transactions, newTrans);
 					tx = SimpleSequentialTransaction.copyOf(newTrans);
 				}else{
 					// propose a new one
@@ -183,9 +312,10 @@ public class InMemSequentialTransactionsCoordinator implements SequentialTransac
 		Validate.notNull(processorId, "Processor ID cannot be null");
 		Validate.notNull(transactionId, "Transaction ID cannot be null");
 
+		advanceTimers();
 		LinkedList<SimpleSequentialTransaction> transactions = transactionsBySeriesId.get(seriesId);
 		synchronized(transactions){
-			compact(transactions);
+			compact(transactions, timerWheel == null);
 
 			Optional<SimpleSequentialTransaction> matched = transactions.stream().filter(tx->tx.getTransactionId().equals(transactionId)).findFirst();
 			if (matched.isPresent()){
@@ -207,8 +337,9 @@ public class InMemSequentialTransactionsCoordinator implements SequentialTransac
 						throw new IllegalEndPositionException("Cannot finish transaction '" + transactionId + "' with a null end position");
 					}
 					if (tx.finish()){
+						cancelTimeout(tx);
 						tx.setEndPosition(updatedEndPosition);
-						compact(transactions);
+						compact(transactions, timerWheel == null);
 					}else{
 						throw new IllegalTransactionStateException("Transaction '" + transactionId + "' is currently in " + tx.getState() + " state and cannot be changed to FINISHED state");
 					}
@@ -229,9 +360,10 @@ public class InMemSequentialTransactionsCoordinator implements SequentialTransac
 		Validate.notNull(processorId, "Processor ID cannot be null");
 		Validate.notNull(transactionId, "Transaction time out cannot be null");
 
+		advanceTimers();
 		LinkedList<SimpleSequentialTransaction> transactions = transactionsBySeriesId.get(seriesId);
 		synchronized(transactions){
-			compact(transactions);
+			compact(transactions, timerWheel == null);
 
 			Optional<SimpleSequentialTransaction> matched = transactions.stream().filter(tx->tx.getTransactionId().equals(transactionId)).findAny();
 			if (matched.isPresent()){
@@ -240,7 +372,8 @@ public class InMemSequentialTransactionsCoordinator implements SequentialTransac
 					if (!tx.abort()){
 						throw new IllegalTransactionStateException("Transaction '" + transactionId + "' is currently in " + tx.getState() + " state and cannot be changed to ABORTED state");
 					}
-					compact(transactions);
+					cancelTimeout(tx);
+					compact(transactions, timerWheel == null);
 				}else{
 					throw new NotOwningTransactionException("Transaction '" + transactionId + "' is currently owned by processor '" + tx.getProcessorId() + "', not '" + processorId + "'");
 				}
@@ -255,15 +388,16 @@ public class InMemSequentialTransactionsCoordinator implements SequentialTransac
 			throws TransactionStorageInfrastructureException {
 		Validate.notNull(seriesId, "Series ID cannot be null");
 
+		advanceTimers();
 		LinkedList<SimpleSequentialTransaction> transactions = transactionsBySeriesId.get(seriesId);
 		LinkedList<SimpleSequentialTransaction> copy = new LinkedList<>();
 		synchronized(transactions){
-			compact(transactions);
+			compact(transactions, timerWheel == null);
 			for (SimpleSequentialTransaction tx: transactions){
 				copy.add(SimpleSequentialTransaction.copyOf(tx));
 			}
 		}
-		compact(copy);
+		compact(copy, timerWheel == null);
 		return copy;
 	}
 	
@@ -272,9 +406,10 @@ public class InMemSequentialTransactionsCoordinator implements SequentialTransac
 		Validate.notNull(seriesId, "Series ID cannot be null");
 		Validate.notNull(transactionId, "Transaction time out cannot be null");
 
+		advanceTimers();
 		LinkedList<SimpleSequentialTransaction> transactions = transactionsBySeriesId.get(seriesId);
 		synchronized(transactions){
-			compact(transactions);
+			compact(transactions, timerWheel == null);
 			
 			Optional<SimpleSequentialTransaction> matched = transactions.stream().filter(tx->tx.getTransactionId().equals(transactionId)).findAny();
 			if (matched.isPresent()){
@@ -292,9 +427,10 @@ public class InMemSequentialTransactionsCoordinator implements SequentialTransac
 		Validate.notNull(processorId, "Processor ID cannot be null");
 		Validate.isTrue(endPosition != null || transactionTimeout != null || detail != null, "End position, time out, and detail cannot all be null");
 
+		advanceTimers();
 		LinkedList<SimpleSequentialTransaction> transactions = transactionsBySeriesId.get(seriesId);
 		synchronized(transactions){
-			compact(transactions);
+			compact(transactions, timerWheel == null);
 			
 			Optional<SimpleSequentialTransaction> matched = transactions.stream().filter(tx->tx.getTransactionId().equals(transactionId)).findAny();
 			if (matched.isPresent()){
@@ -303,6 +439,7 @@ public class InMemSequentialTransactionsCoordinator implements SequentialTransac
 					if (tx.isInProgress()){
 						if (transactionTimeout != null){
 							tx.setTimeout(transactionTimeout);
+							scheduleTimeout(transactions, tx);
 						}
 						if (detail != null){
 							tx.setDetail(detail);
@@ -333,12 +470,23 @@ public class InMemSequentialTransactionsCoordinator implements SequentialTransac
 	public void clear(String seriesId) throws TransactionStorageInfrastructureException {
 		Validate.notNull(seriesId, "Series ID cannot be null");
 
-		this.transactionsBySeriesId.remove(seriesId);
+		LinkedList<SimpleSequentialTransaction> transactions = this.transactionsBySeriesId.remove(seriesId);
+		if (transactions != null && timerWheel != null){
+			synchronized(transactions){
+				transactions.forEach(this::cancelTimeout);
+			}
+		}
 	}
 
 	@Override
 	public void clearAll() throws TransactionStorageInfrastructureException {
 		this.transactionsBySeriesId.clear();
+		if (timerWheel != null){
+			synchronized(timeoutTimers){
+				timeoutTimers.values().forEach(HierarchicalTimerWheel.Handle::cancel);
+				timeoutTimers.clear();
+			}
+		}
 	}
 
 
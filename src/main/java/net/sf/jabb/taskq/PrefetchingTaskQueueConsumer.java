@@ -0,0 +1,294 @@
+/**
+ *
+ */
+package net.sf.jabb.taskq;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.sf.jabb.taskq.ex.NoSuchTaskException;
+import net.sf.jabb.taskq.ex.NotOwningTaskException;
+import net.sf.jabb.taskq.ex.ScheduledTaskQueuesException;
+import net.sf.jabb.taskq.ex.TaskQueueStorageInfrastructureException;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Node local consumer of a task queue which claims tasks in batches and hands them out to local worker threads.
+ * <p>
+ * All tasks are claimed with the processor ID of this consumer, and a background thread
+ * keeps the buffer filled and renews the leases of all the tasks claimed but not yet finished or aborted in bulk.
+ * Worker threads get tasks through {@link #poll(long, TimeUnit)} and must finish or abort them through this consumer.
+ * Tasks still in the buffer are aborted when this consumer is closed, so that they can be picked up by other nodes immediately.
+ * </p>
+ * <p>
+ * Compared with every worker thread calling {@link ScheduledTaskQueues#get(String, int, String, Duration)},
+ * there are far fewer queries to the underlying storage and far fewer conflicts among workers racing for the same tasks.
+ * </p>
+ * @author James Hu
+ *
+ */
+public class PrefetchingTaskQueueConsumer implements AutoCloseable {
+	static private final Logger logger = LoggerFactory.getLogger(PrefetchingTaskQueueConsumer.class);
+
+	static public final int DEFAULT_BATCH_SIZE = 100;
+	static public final Duration DEFAULT_LEASE_DURATION = Duration.ofMinutes(1);
+	static public final Duration DEFAULT_FETCH_INTERVAL = Duration.ofMillis(200);
+
+	protected final ScheduledTaskQueues taskQueues;
+	protected final String queue;
+	protected final String processorId;
+	protected final int batchSize;
+	protected final int lowWaterMark;
+	protected final Duration leaseDuration;
+
+	protected final LinkedBlockingQueue<ReadOnlyScheduledTask> buffer = new LinkedBlockingQueue<>();
+	/**
+	 * IDs of tasks claimed by this consumer and not yet finished or aborted, including both buffered ones and those being processed
+	 */
+	protected final Set<String> leased = ConcurrentHashMap.newKeySet();
+	protected final AtomicBoolean fetching = new AtomicBoolean(false);
+	protected final ScheduledExecutorService scheduler;
+	protected volatile boolean closed;
+
+	/**
+	 * Constructor with default batch size, lease duration, and fetch interval
+	 * @param taskQueues	the task queues
+	 * @param queue			the queue to consume
+	 * @param processorId	ID of the processor, it must be unique among all processors consuming the queues
+	 */
+	public PrefetchingTaskQueueConsumer(ScheduledTaskQueues taskQueues, String queue, String processorId){
+		this(taskQueues, queue, processorId, DEFAULT_BATCH_SIZE, DEFAULT_LEASE_DURATION, DEFAULT_FETCH_INTERVAL);
+	}
+
+	/**
+	 * Constructor. A background daemon thread will be started for fetching tasks and renewing leases.
+	 * @param taskQueues	the task queues
+	 * @param queue			the queue to consume
+	 * @param processorId	ID of the processor, it must be unique among all processors consuming the queues
+	 * @param batchSize		maximum number of tasks to be buffered, fetching happens when the buffer is at or below half of this size
+	 * @param leaseDuration	the duration of leases of claimed tasks, leases are renewed when about 1/3 of it has passed
+	 * @param fetchInterval	the interval of checking whether more tasks need to be fetched
+	 */
+	public PrefetchingTaskQueueConsumer(ScheduledTaskQueues taskQueues, String queue, String processorId, int batchSize, Duration leaseDuration, Duration fetchInterval){
+		Validate.notNull(taskQueues, "Task queues cannot be null");
+		Validate.notNull(queue, "Queue name cannot be null");
+		Validate.notNull(processorId, "Processor ID cannot be null");
+		Validate.isTrue(batchSize > 0, "Batch size must be greater than zero: %d", batchSize);
+		Validate.notNull(leaseDuration, "Lease duration cannot be null");
+		Validate.notNull(fetchInterval, "Fetch interval cannot be null");
+
+		this.taskQueues = taskQueues;
+		this.queue = queue;
+		this.processorId = processorId;
+		this.batchSize = batchSize;
+		this.lowWaterMark = batchSize / 2;
+		this.leaseDuration = leaseDuration;
+
+		scheduler = Executors.newScheduledThreadPool(2, new BasicThreadFactory.Builder()
+				.namingPattern(PrefetchingTaskQueueConsumer.class.getSimpleName() + "-" + queue + "-%d")
+				.daemon(true)
+				.build());
+		long fetchMillis = Math.max(1, fetchInterval.toMillis());
+		scheduler.scheduleWithFixedDelay(this::fill, 0, fetchMillis, TimeUnit.MILLISECONDS);
+		long renewMillis = Math.max(1, leaseDuration.toMillis() / 3);
+		scheduler.scheduleWithFixedDelay(this::renewLeases, renewMillis, renewMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Get a task, waiting if necessary until one becomes available
+	 * @param timeout	how long to wait before giving up
+	 * @param unit		unit of the timeout
+	 * @return	the task, or null if the specified waiting time elapses before a task is available or this consumer had been closed
+	 * @throws InterruptedException	if interrupted while waiting
+	 */
+	public ReadOnlyScheduledTask poll(long timeout, TimeUnit unit) throws InterruptedException{
+		if (closed){
+			return null;
+		}
+		ReadOnlyScheduledTask task = buffer.poll();
+		if (buffer.size() <= lowWaterMark){
+			triggerFill();
+		}
+		return task != null ? task : buffer.poll(timeout, unit);
+	}
+
+	/**
+	 * Get a task if there is one available locally
+	 * @return	the task, or null if none is available
+	 */
+	public ReadOnlyScheduledTask poll(){
+		try {
+			return poll(0, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Finish a task got from this consumer
+	 * @param task	the task
+	 * @throws NotOwningTaskException	if the lease of the task had been lost
+	 * @throws NoSuchTaskException		if the task cannot be found
+	 * @throws TaskQueueStorageInfrastructureException if an exception in the underlying infrastructure happened
+	 */
+	public void finish(ReadOnlyScheduledTask task) throws NotOwningTaskException, NoSuchTaskException, TaskQueueStorageInfrastructureException{
+		try{
+			taskQueues.finish(task.getTaskId(), processorId);
+		}catch(NotOwningTaskException | NoSuchTaskException e){
+			leased.remove(task.getTaskId());
+			throw e;
+		}
+		leased.remove(task.getTaskId());
+	}
+
+	/**
+	 * Finish tasks got from this consumer in a batch
+	 * @param tasks	the tasks
+	 * @return	the exceptions by ID of the tasks that failed to be finished. It is empty if all the tasks had been finished successfully.
+	 */
+	public Map<String, ScheduledTaskQueuesException> finishAll(Collection<? extends ReadOnlyScheduledTask> tasks){
+		List<String> ids = new ArrayList<>(tasks.size());
+		for (ReadOnlyScheduledTask task: tasks){
+			ids.add(task.getTaskId());
+		}
+		Map<String, ScheduledTaskQueuesException> failures = taskQueues.finishAll(ids, processorId);
+		for (String id: ids){
+			if (!(failures.get(id) instanceof TaskQueueStorageInfrastructureException)){
+				leased.remove(id);
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * Abort a task got from this consumer, so that it will be visible in the queue again
+	 * @param task	the task
+	 * @throws NotOwningTaskException	if the lease of the task had been lost
+	 * @throws NoSuchTaskException		if the task cannot be found
+	 * @throws TaskQueueStorageInfrastructureException if an exception in the underlying infrastructure happened
+	 */
+	public void abort(ReadOnlyScheduledTask task) throws NotOwningTaskException, NoSuchTaskException, TaskQueueStorageInfrastructureException{
+		try{
+			taskQueues.abort(task.getTaskId(), processorId);
+		}catch(NotOwningTaskException | NoSuchTaskException e){
+			leased.remove(task.getTaskId());
+			throw e;
+		}
+		leased.remove(task.getTaskId());
+	}
+
+	/**
+	 * Stop fetching and renewing, and abort all the tasks still in the buffer.
+	 * Tasks being processed are not affected, but their leases will no longer be renewed.
+	 */
+	@Override
+	public void close(){
+		if (closed){
+			return;
+		}
+		closed = true;
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(leaseDuration.toMillis(), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		List<ReadOnlyScheduledTask> unconsumed = new ArrayList<>();
+		buffer.drainTo(unconsumed);
+		if (unconsumed.size() > 0){
+			List<String> ids = new ArrayList<>(unconsumed.size());
+			for (ReadOnlyScheduledTask task: unconsumed){
+				ids.add(task.getTaskId());
+			}
+			Map<String, ScheduledTaskQueuesException> failures = taskQueues.abortAll(ids, processorId);
+			leased.removeAll(ids);
+			if (failures.size() > 0){
+				logger.warn("Failed to release {} out of {} unconsumed tasks in queue '{}'", failures.size(), ids.size(), queue);
+			}
+		}
+	}
+
+	/**
+	 * Get the number of tasks in the local buffer
+	 * @return	number of tasks fetched but not yet handed out
+	 */
+	public int getBufferedCount(){
+		return buffer.size();
+	}
+
+	/**
+	 * Get the number of tasks whose leases are being kept by this consumer
+	 * @return	number of tasks buffered or being processed
+	 */
+	public int getLeasedCount(){
+		return leased.size();
+	}
+
+	protected void triggerFill(){
+		if (!closed && !fetching.get()){
+			try{
+				scheduler.execute(this::fill);
+			}catch(Exception e){
+				// the scheduler may have been shut down
+			}
+		}
+	}
+
+	/**
+	 * Fetch tasks if the buffer is at or below the low water mark
+	 */
+	protected void fill(){
+		if (closed || !fetching.compareAndSet(false, true)){
+			return;
+		}
+		try{
+			int available = buffer.size();
+			if (available <= lowWaterMark){
+				List<ReadOnlyScheduledTask> tasks = taskQueues.get(queue, batchSize - available, processorId, leaseDuration);
+				for (ReadOnlyScheduledTask task: tasks){
+					leased.add(task.getTaskId());
+				}
+				buffer.addAll(tasks);
+			}
+		}catch(Exception e){
+			logger.warn("Failed to fetch tasks from queue '{}'", queue, e);
+		}finally{
+			fetching.set(false);
+		}
+	}
+
+	/**
+	 * Renew leases of all the tasks buffered or being processed
+	 */
+	protected void renewLeases(){
+		if (closed || leased.isEmpty()){
+			return;
+		}
+		List<String> ids = new ArrayList<>(leased);
+		Map<String, ScheduledTaskQueuesException> failures = taskQueues.renewTimeoutAll(ids, processorId, leaseDuration);
+		for (Map.Entry<String, ScheduledTaskQueuesException> failure: failures.entrySet()){
+			if (failure.getValue() instanceof TaskQueueStorageInfrastructureException){
+				logger.warn("Failed to renew lease of task '{}'", failure.getKey(), failure.getValue());
+			}else{		// finished or lost
+				leased.remove(failure.getKey());
+				buffer.removeIf(t -> t.getTaskId().equals(failure.getKey()));
+			}
+		}
+	}
+
+}
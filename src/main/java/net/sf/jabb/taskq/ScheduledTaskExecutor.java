@@ -0,0 +1,418 @@
+/**
+ *
+ */
+package net.sf.jabb.taskq;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.jabb.taskq.ex.ScheduledTaskQueuesException;
+import net.sf.jabb.util.ex.ExceptionUncheckUtility.ConsumerThrowsExceptions;
+import net.sf.jabb.util.stat.ConcurrentLongStatistics;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executor of tasks in one or more queues of a {@link ScheduledTaskQueues}.
+ * <p>
+ * Each registered queue is polled in background. The polling interval is reset to the minimum whenever tasks are got,
+ * and doubles every time no task is got until it reaches the maximum.
+ * Tasks got are run by registered handlers in a bounded pool shared by all the queues.
+ * A task is finished if its handler returns normally, or aborted if its handler throws an exception.
+ * Leases of running tasks are renewed in bulk by a dedicated background thread before they time out,
+ * so that slow polls cannot delay the renewing.
+ * </p>
+ * <p>
+ * Metrics of queue wait time, execution time, attempts, and outcomes are kept per queue, see {@link QueueMetrics}.
+ * </p>
+ * @author James Hu
+ *
+ */
+public class ScheduledTaskExecutor implements AutoCloseable {
+	static private final Logger logger = LoggerFactory.getLogger(ScheduledTaskExecutor.class);
+
+	static public final Duration DEFAULT_LEASE_DURATION = Duration.ofMinutes(1);
+	static public final Duration DEFAULT_MIN_POLL_INTERVAL = Duration.ofMillis(50);
+	static public final Duration DEFAULT_MAX_POLL_INTERVAL = Duration.ofSeconds(10);
+
+	protected final ScheduledTaskQueues taskQueues;
+	protected final String processorId;
+	protected final int maxConcurrency;
+	protected final Duration leaseDuration;
+	protected final long minPollIntervalMillis;
+	protected final long maxPollIntervalMillis;
+
+	protected final Map<String, QueueState> queues = new ConcurrentHashMap<>();
+	/**
+	 * IDs of the tasks being run
+	 */
+	protected final Set<String> running = ConcurrentHashMap.newKeySet();
+	protected final Semaphore permits;
+	protected final ExecutorService workers;
+	protected final ScheduledExecutorService scheduler;
+	protected final ScheduledExecutorService leaseRenewer;
+	protected volatile boolean started;
+	protected volatile boolean closed;
+
+	/**
+	 * Metrics of a queue
+	 * @author James Hu
+	 *
+	 */
+	static public class QueueMetrics{
+		protected final ConcurrentLongStatistics queueWaitMillis = new ConcurrentLongStatistics();
+		protected final ConcurrentLongStatistics executionMillis = new ConcurrentLongStatistics();
+		protected final ConcurrentLongStatistics attempts = new ConcurrentLongStatistics();
+		protected final AtomicLong succeeded = new AtomicLong();
+		protected final AtomicLong failed = new AtomicLong();
+		protected final AtomicLong polls = new AtomicLong();
+		protected final AtomicLong emptyPolls = new AtomicLong();
+
+		/**
+		 * @return statistics of the time in milliseconds between the expected execution time and the actual start of the execution
+		 */
+		public ConcurrentLongStatistics getQueueWaitMillis() {
+			return queueWaitMillis;
+		}
+
+		/**
+		 * @return statistics of the time in milliseconds taken by task handlers
+		 */
+		public ConcurrentLongStatistics getExecutionMillis() {
+			return executionMillis;
+		}
+
+		/**
+		 * @return statistics of the attempt counts of the tasks executed
+		 */
+		public ConcurrentLongStatistics getAttempts() {
+			return attempts;
+		}
+
+		/**
+		 * @return number of tasks executed successfully and finished
+		 */
+		public long getSucceeded() {
+			return succeeded.get();
+		}
+
+		/**
+		 * @return number of tasks whose handlers threw exceptions or that could not be finished
+		 */
+		public long getFailed() {
+			return failed.get();
+		}
+
+		/**
+		 * @return number of times the queue had been polled
+		 */
+		public long getPolls() {
+			return polls.get();
+		}
+
+		/**
+		 * @return number of times the queue had been polled but no task was got
+		 */
+		public long getEmptyPolls() {
+			return emptyPolls.get();
+		}
+
+		@Override
+		public String toString(){
+			return "succeeded=" + succeeded + ", failed=" + failed + ", polls=" + polls + ", emptyPolls=" + emptyPolls
+					+ ", queueWaitMillis=(" + queueWaitMillis + "), executionMillis=(" + executionMillis + "), attempts=(" + attempts + ")";
+		}
+	}
+
+	static protected class QueueState{
+		final String queue;
+		final ConsumerThrowsExceptions<ReadOnlyScheduledTask> handler;
+		final QueueMetrics metrics = new QueueMetrics();
+		long pollIntervalMillis;
+
+		QueueState(String queue, ConsumerThrowsExceptions<ReadOnlyScheduledTask> handler){
+			this.queue = queue;
+			this.handler = handler;
+		}
+	}
+
+	/**
+	 * Constructor with default lease duration and polling intervals
+	 * @param taskQueues		the task queues
+	 * @param processorId		ID of the processor, it must be unique among all processors consuming the queues
+	 * @param maxConcurrency	maximum number of tasks that can be run concurrently
+	 */
+	public ScheduledTaskExecutor(ScheduledTaskQueues taskQueues, String processorId, int maxConcurrency){
+		this(taskQueues, processorId, maxConcurrency, DEFAULT_LEASE_DURATION, DEFAULT_MIN_POLL_INTERVAL, DEFAULT_MAX_POLL_INTERVAL);
+	}
+
+	/**
+	 * Constructor
+	 * @param taskQueues		the task queues
+	 * @param processorId		ID of the processor, it must be unique among all processors consuming the queues
+	 * @param maxConcurrency	maximum number of tasks that can be run concurrently
+	 * @param leaseDuration		the duration of leases of tasks got, leases of running tasks are renewed when about 1/3 of it has passed
+	 * @param minPollInterval	the minimum interval between polls of a queue
+	 * @param maxPollInterval	the maximum interval between polls of a queue
+	 */
+	public ScheduledTaskExecutor(ScheduledTaskQueues taskQueues, String processorId, int maxConcurrency,
+			Duration leaseDuration, Duration minPollInterval, Duration maxPollInterval){
+		Validate.notNull(taskQueues, "Task queues cannot be null");
+		Validate.notNull(processorId, "Processor ID cannot be null");
+		Validate.isTrue(maxConcurrency > 0, "Maximum concurrency must be greater than zero: %d", maxConcurrency);
+		Validate.notNull(leaseDuration, "Lease duration cannot be null");
+		Validate.notNull(minPollInterval, "Minimum poll interval cannot be null");
+		Validate.notNull(maxPollInterval, "Maximum poll interval cannot be null");
+		Validate.isTrue(minPollInterval.compareTo(maxPollInterval) <= 0, "Minimum poll interval must not be longer than maximum poll interval");
+
+		this.taskQueues = taskQueues;
+		this.processorId = processorId;
+		this.maxConcurrency = maxConcurrency;
+		this.leaseDuration = leaseDuration;
+		this.minPollIntervalMillis = Math.max(1, minPollInterval.toMillis());
+		this.maxPollIntervalMillis = Math.max(minPollIntervalMillis, maxPollInterval.toMillis());
+
+		this.permits = new Semaphore(maxConcurrency);
+		this.workers = Executors.newFixedThreadPool(maxConcurrency, new BasicThreadFactory.Builder()
+				.namingPattern(ScheduledTaskExecutor.class.getSimpleName() + "-worker-%d")
+				.daemon(true)
+				.build());
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+				.namingPattern(ScheduledTaskExecutor.class.getSimpleName() + "-scheduler-%d")
+				.daemon(true)
+				.build());
+		this.leaseRenewer = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+				.namingPattern(ScheduledTaskExecutor.class.getSimpleName() + "-renewer-%d")
+				.daemon(true)
+				.build());
+	}
+
+	/**
+	 * Register a handler for tasks in a queue. It can be called either before or after {@link #start()}.
+	 * @param queue		the queue
+	 * @param handler	the handler of tasks in the queue, if it throws any exception the task will be aborted, otherwise the task will be finished.
+	 */
+	public void register(String queue, ConsumerThrowsExceptions<ReadOnlyScheduledTask> handler){
+		Validate.notNull(queue, "Queue name cannot be null");
+		Validate.notNull(handler, "Handler cannot be null");
+		QueueState state = new QueueState(queue, handler);
+		state.pollIntervalMillis = minPollIntervalMillis;
+		Validate.isTrue(queues.putIfAbsent(queue, state) == null, "A handler had already been registered for queue: %s", queue);
+		if (started){
+			schedulePoll(state, 0);
+		}
+	}
+
+	/**
+	 * Start polling registered queues and renewing leases. Calling this method when it had already been started will have no effect.
+	 */
+	public synchronized void start(){
+		Validate.validState(!closed, "Already closed");
+		if (started){
+			return;
+		}
+		started = true;
+		for (QueueState state: queues.values()){
+			schedulePoll(state, 0);
+		}
+		long renewMillis = Math.max(1, leaseDuration.toMillis() / 3);
+		leaseRenewer.scheduleWithFixedDelay(this::renewLeases, renewMillis, renewMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop polling, and wait for running tasks to complete for at most the lease duration.
+	 */
+	@Override
+	public void close(){
+		synchronized(this){
+			if (closed){
+				return;
+			}
+			closed = true;
+		}
+		workers.shutdown();
+		try {
+			if (!workers.awaitTermination(leaseDuration.toMillis(), TimeUnit.MILLISECONDS)){
+				logger.warn("{} tasks are still running after waiting for {}", running.size(), leaseDuration);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		scheduler.shutdownNow();
+		leaseRenewer.shutdownNow();
+	}
+
+	/**
+	 * Get metrics of a queue
+	 * @param queue		the queue
+	 * @return	the metrics, or null if the queue has not been registered
+	 */
+	public QueueMetrics getMetrics(String queue){
+		QueueState state = queues.get(queue);
+		return state == null ? null : state.metrics;
+	}
+
+	/**
+	 * Get metrics of all the queues
+	 * @return	metrics by queue
+	 */
+	public Map<String, QueueMetrics> getMetrics(){
+		Map<String, QueueMetrics> result = new ConcurrentHashMap<>();
+		for (QueueState state: queues.values()){
+			result.put(state.queue, state.metrics);
+		}
+		return Collections.unmodifiableMap(result);
+	}
+
+	/**
+	 * Get the number of tasks being run
+	 * @return	number of running tasks
+	 */
+	public int getRunningCount(){
+		return running.size();
+	}
+
+	protected void schedulePoll(QueueState state, long delayMillis){
+		if (closed){
+			return;
+		}
+		try{
+			scheduler.schedule(()->poll(state), delayMillis, TimeUnit.MILLISECONDS);
+		}catch(Exception e){
+			// the scheduler may have been shut down
+		}
+	}
+
+	/**
+	 * Poll a queue and submit tasks got to the worker pool, then schedule the next poll
+	 * @param state	state of the queue
+	 */
+	protected void poll(QueueState state){
+		if (closed){
+			return;
+		}
+		int share = Math.max(1, (maxConcurrency + queues.size() - 1) / queues.size());
+		int acquired = 0;
+		while (acquired < share && permits.tryAcquire()){
+			acquired ++;
+		}
+		if (acquired == 0){		// all workers are busy
+			schedulePoll(state, minPollIntervalMillis);
+			return;
+		}
+
+		List<ReadOnlyScheduledTask> tasks = Collections.emptyList();
+		try{
+			tasks = taskQueues.get(state.queue, acquired, processorId, leaseDuration);
+		}catch(Exception e){
+			logger.warn("Failed to get tasks from queue '{}'", state.queue, e);
+		}
+		state.metrics.polls.incrementAndGet();
+		permits.release(acquired - tasks.size());
+
+		if (tasks.isEmpty()){
+			state.metrics.emptyPolls.incrementAndGet();
+			state.pollIntervalMillis = Math.min(maxPollIntervalMillis, state.pollIntervalMillis * 2);
+		}else{
+			state.pollIntervalMillis = minPollIntervalMillis;
+			for (ReadOnlyScheduledTask task: tasks){
+				running.add(task.getTaskId());
+				try{
+					workers.execute(()->execute(state, task));
+				}catch(Exception e){	// closed
+					running.remove(task.getTaskId());
+					permits.release();
+					abort(task);
+				}
+			}
+		}
+		schedulePoll(state, tasks.size() == acquired ? 0 : state.pollIntervalMillis);
+	}
+
+	/**
+	 * Run the handler, then finish or abort the task
+	 * @param state	state of the queue
+	 * @param task	the task
+	 */
+	protected void execute(QueueState state, ReadOnlyScheduledTask task){
+		QueueMetrics metrics = state.metrics;
+		long startMillis = System.currentTimeMillis();
+		Instant expectedExecutionTime = task.getExpectedExecutionTime();
+		if (expectedExecutionTime != null){
+			metrics.queueWaitMillis.evaluate(Math.max(0, startMillis - expectedExecutionTime.toEpochMilli()));
+		}
+		metrics.attempts.evaluate(task.getAttempts());
+		try{
+			boolean successful = false;
+			try{
+				state.handler.accept(task);
+				successful = true;
+			}catch(Exception e){
+				logger.debug("Handler of queue '{}' failed to execute task '{}'", state.queue, task.getTaskId(), e);
+			}finally{
+				metrics.executionMillis.evaluate(System.currentTimeMillis() - startMillis);
+			}
+			if (successful){
+				try{
+					taskQueues.finish(task.getTaskId(), processorId);
+					metrics.succeeded.incrementAndGet();
+				}catch(ScheduledTaskQueuesException e){
+					logger.warn("Failed to finish task '{}' in queue '{}'", task.getTaskId(), state.queue, e);
+					metrics.failed.incrementAndGet();
+				}
+			}else{
+				metrics.failed.incrementAndGet();
+				abort(task);
+			}
+		}finally{
+			running.remove(task.getTaskId());
+			permits.release();
+		}
+	}
+
+	protected void abort(ReadOnlyScheduledTask task){
+		try{
+			taskQueues.abort(task.getTaskId(), processorId);
+		}catch(ScheduledTaskQueuesException e){
+			logger.warn("Failed to abort task '{}'", task.getTaskId(), e);
+		}
+	}
+
+	/**
+	 * Renew leases of all the running tasks
+	 */
+	protected void renewLeases(){
+		if (running.isEmpty()){
+			return;
+		}
+		List<String> ids = new ArrayList<>(running);
+		Map<String, ScheduledTaskQueuesException> failures;
+		try{
+			failures = taskQueues.renewTimeoutAll(ids, processorId, leaseDuration);
+		}catch(Exception e){	// an exception would stop the periodical renewing
+			logger.warn("Failed to renew leases of {} tasks", ids.size(), e);
+			return;
+		}
+		for (Map.Entry<String, ScheduledTaskQueuesException> failure: failures.entrySet()){
+			if (running.contains(failure.getKey())){		// otherwise it just completed
+				logger.warn("Failed to renew lease of task '{}'", failure.getKey(), failure.getValue());
+			}
+		}
+	}
+
+}
@@ -6,10 +6,15 @@ package net.sf.jabb.taskq;
 import java.io.Serializable;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import net.sf.jabb.taskq.ex.NoSuchTaskException;
 import net.sf.jabb.taskq.ex.NotOwningTaskException;
+import net.sf.jabb.taskq.ex.ScheduledTaskQueuesException;
 import net.sf.jabb.taskq.ex.TaskQueueStorageInfrastructureException;
 
 /**
@@ -26,6 +31,15 @@ import net.sf.jabb.taskq.ex.TaskQueueStorageInfrastructureException;
  *
  */
 public interface ScheduledTaskQueues {
+	/**
+	 * The minimum polling interval of the default implementation of {@link #take(String, int, String, Duration, Duration)}
+	 */
+	static final long DEFAULT_MIN_TAKE_POLL_INTERVAL_MILLIS = 50;
+	/**
+	 * The maximum polling interval of the default implementation of {@link #take(String, int, String, Duration, Duration)}
+	 */
+	static final long DEFAULT_MAX_TAKE_POLL_INTERVAL_MILLIS = 2000;
+	
 	/**
 	 * Put a task into the queue.
 	 * @param queue		id/name of the queue
@@ -97,6 +111,35 @@ public interface ScheduledTaskQueues {
 		return put(queue, detail, Instant.now(), predecessorId);
 	}
 	
+	/**
+	 * Put multiple tasks into the queue.
+	 * Implementations may put them with fewer round trips to the underlying storage than calling {@link #put(String, Serializable, Instant, String)} for each of them.
+	 * Only detail, expected execution time, and predecessor ID of the tasks are used, 
+	 * tasks without expected execution time will be expected to be executed now.
+	 * @param queue		id/name of the queue
+	 * @param tasks		the tasks to be put into the queue
+	 * @return	IDs of the just enqueued tasks, in the same order as the tasks specified. 
+	 * 			If a task cannot be enqueued, its ID in the list will be null.
+	 * @throws TaskQueueStorageInfrastructureException if an exception in the underlying infrastructure happened and none of the tasks could be enqueued
+	 */
+	default List<String> putAll(String queue, List<? extends ReadOnlyScheduledTask> tasks) throws TaskQueueStorageInfrastructureException{
+		List<String> ids = new ArrayList<>(tasks.size());
+		TaskQueueStorageInfrastructureException lastException = null;
+		for (ReadOnlyScheduledTask task: tasks){
+			try{
+				Instant expectedExecutionTime = task.getExpectedExecutionTime();
+				ids.add(put(queue, task.getDetail(), expectedExecutionTime == null ? Instant.now() : expectedExecutionTime, task.getPredecessorId()));
+			}catch(TaskQueueStorageInfrastructureException e){
+				ids.add(null);
+				lastException = e;
+			}
+		}
+		if (lastException != null && ids.stream().allMatch(id -> id == null)){
+			throw lastException;
+		}
+		return ids;
+	}
+	
 	/**
 	 * Get tasks from the queue.
 	 * @param queue	The queue in which tasks will be retrieved
@@ -137,7 +180,35 @@ public interface ScheduledTaskQueues {
 	default List<ReadOnlyScheduledTask> get(String queue, int maxNumOfTasks, String processorId, Duration timeoutDuration) throws TaskQueueStorageInfrastructureException{
 		return get(queue, Instant.now(), maxNumOfTasks, processorId, timeoutDuration);
 	}
-	
+
+	/**
+	 * Get tasks from the queue, waiting if necessary until any task is available or the maximum waiting time has passed.
+	 * The default implementation polls with exponentially increasing intervals from
+	 * {@value #DEFAULT_MIN_TAKE_POLL_INTERVAL_MILLIS} to {@value #DEFAULT_MAX_TAKE_POLL_INTERVAL_MILLIS} milliseconds,
+	 * implementations are encouraged to do better.
+	 * @param queue	The queue in which tasks will be retrieved
+	 * @param maxNumOfTasks		the maximum number of tasks to be returned
+	 * @param processorId	The ID of the processor. This ID will be used to update the task meta data
+	 * @param timeoutDuration		The duration for this task to be kept invisible in the queue
+	 * @param maxWait		the maximum time to wait
+	 * @return	A list of tasks sorted by (nextVisibleTime, enqueuedTime), it is empty only if no task became available within the maximum waiting time
+	 * @throws TaskQueueStorageInfrastructureException if an exception in the underlying infrastructure happened
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	default List<ReadOnlyScheduledTask> take(String queue, int maxNumOfTasks, String processorId, Duration timeoutDuration, Duration maxWait) throws TaskQueueStorageInfrastructureException, InterruptedException{
+		long deadline = System.currentTimeMillis() + maxWait.toMillis();
+		long interval = DEFAULT_MIN_TAKE_POLL_INTERVAL_MILLIS;
+		while(true){
+			List<ReadOnlyScheduledTask> tasks = get(queue, maxNumOfTasks, processorId, timeoutDuration);
+			long remaining = deadline - System.currentTimeMillis();
+			if (tasks.size() > 0 || remaining <= 0){
+				return tasks;
+			}
+			Thread.sleep(Math.min(interval, remaining));
+			interval = Math.min(interval * 2, DEFAULT_MAX_TAKE_POLL_INTERVAL_MILLIS);
+		}
+	}
+
 	
 	/**
 	 * Finish the task, so that it will be removed from the queue. 
@@ -238,6 +309,83 @@ public interface ScheduledTaskQueues {
 		renewTimeout(task.getTaskId(), processorId, newTimeoutDuration);
 	}
 
+	/**
+	 * Finish multiple tasks, so that they will be removed from the queue.
+	 * Implementations may finish them with fewer round trips to the underlying storage than calling {@link #finish(String, String)} for each of them.
+	 * @param ids	IDs of the tasks
+	 * @param processorId 	ID of the processor
+	 * @return	the exceptions by ID of the tasks that failed to be finished, 
+	 * 			which can be {@link NotOwningTaskException}, {@link NoSuchTaskException}, or {@link TaskQueueStorageInfrastructureException}.
+	 * 			It is empty if all the tasks had been finished successfully.
+	 */
+	default Map<String, ScheduledTaskQueuesException> finishAll(Collection<String> ids, String processorId){
+		Map<String, ScheduledTaskQueuesException> failures = new HashMap<>();
+		for (String id: ids){
+			try{
+				finish(id, processorId);
+			}catch(ScheduledTaskQueuesException e){
+				failures.put(id, e);
+			}
+		}
+		return failures;
+	}
+	
+	/**
+	 * Abort multiple tasks, so that they will be visible in the queue again.
+	 * Implementations may abort them with fewer round trips to the underlying storage than calling {@link #abort(String, String)} for each of them.
+	 * @param ids	IDs of the tasks
+	 * @param processorId 	ID of the processor
+	 * @return	the exceptions by ID of the tasks that failed to be aborted, 
+	 * 			which can be {@link NotOwningTaskException}, {@link NoSuchTaskException}, or {@link TaskQueueStorageInfrastructureException}.
+	 * 			It is empty if all the tasks had been aborted successfully.
+	 */
+	default Map<String, ScheduledTaskQueuesException> abortAll(Collection<String> ids, String processorId){
+		Map<String, ScheduledTaskQueuesException> failures = new HashMap<>();
+		for (String id: ids){
+			try{
+				abort(id, processorId);
+			}catch(ScheduledTaskQueuesException e){
+				failures.put(id, e);
+			}
+		}
+		return failures;
+	}
+	
+	/**
+	 * Update the timeout of multiple tasks.
+	 * Implementations may update them with fewer round trips to the underlying storage than calling {@link #renewTimeout(String, String, Instant)} for each of them.
+	 * @param ids	IDs of the tasks
+	 * @param processorId 	ID of the processor
+	 * @param newTimeout	the new time out
+	 * @return	the exceptions by ID of the tasks whose timeout failed to be updated, 
+	 * 			which can be {@link NotOwningTaskException}, {@link NoSuchTaskException}, or {@link TaskQueueStorageInfrastructureException}.
+	 * 			It is empty if timeout of all the tasks had been updated successfully.
+	 */
+	default Map<String, ScheduledTaskQueuesException> renewTimeoutAll(Collection<String> ids, String processorId, Instant newTimeout){
+		Map<String, ScheduledTaskQueuesException> failures = new HashMap<>();
+		for (String id: ids){
+			try{
+				renewTimeout(id, processorId, newTimeout);
+			}catch(ScheduledTaskQueuesException e){
+				failures.put(id, e);
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * Update the timeout of multiple tasks.
+	 * @param ids	IDs of the tasks
+	 * @param processorId 	ID of the processor
+	 * @param newTimeoutDuration	the new duration after which the task execution will time out
+	 * @return	the exceptions by ID of the tasks whose timeout failed to be updated, 
+	 * 			which can be {@link NotOwningTaskException}, {@link NoSuchTaskException}, or {@link TaskQueueStorageInfrastructureException}.
+	 * 			It is empty if timeout of all the tasks had been updated successfully.
+	 */
+	default Map<String, ScheduledTaskQueuesException> renewTimeoutAll(Collection<String> ids, String processorId, Duration newTimeoutDuration){
+		return renewTimeoutAll(ids, processorId, Instant.now().plus(newTimeoutDuration));
+	}
+
 	/**
 	 * Clear all tasks in a specific queue
 	 * @param queue		the queue in which all tasks will be deleted
@@ -0,0 +1,112 @@
+/**
+ *
+ */
+package net.sf.jabb.taskq;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.time.Instant;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+/**
+ * A basic implementation of ReadOnlyScheduledTask.
+ * It is mainly used for specifying tasks to be put into queues in batches.
+ * @author James Hu
+ *
+ */
+public class SimpleScheduledTask implements ReadOnlyScheduledTask, Serializable {
+	private static final long serialVersionUID = -3538806433858405377L;
+
+	protected String taskId;
+	protected String predecessorId;
+	protected Instant expectedExecutionTime;
+	protected Serializable detail;
+	protected int attempts;
+
+	public SimpleScheduledTask(){
+
+	}
+
+	/**
+	 * Constructor to create a task to be put into a queue
+	 * @param detail					the detail
+	 * @param expectedExecutionTime		the time that the task needs to be executed
+	 * @param predecessorId				ID of the predecessor task, can be null
+	 */
+	public SimpleScheduledTask(Serializable detail, Instant expectedExecutionTime, String predecessorId){
+		this.detail = detail;
+		this.expectedExecutionTime = expectedExecutionTime;
+		this.predecessorId = predecessorId;
+	}
+
+	/**
+	 * Constructor to create a task to be put into a queue
+	 * @param detail					the detail
+	 * @param expectedExecutionDelay	the duration after which the task needs to be executed
+	 * @param predecessorId				ID of the predecessor task, can be null
+	 */
+	public SimpleScheduledTask(Serializable detail, Duration expectedExecutionDelay, String predecessorId){
+		this(detail, Instant.now().plus(expectedExecutionDelay), predecessorId);
+	}
+
+	/**
+	 * Constructor to create a task without predecessor that needs to be executed now
+	 * @param detail					the detail
+	 */
+	public SimpleScheduledTask(Serializable detail){
+		this(detail, Instant.now(), null);
+	}
+
+	@Override
+	public String toString(){
+		return ToStringBuilder.reflectionToString(this, ToStringStyle.SHORT_PREFIX_STYLE);
+	}
+
+	@Override
+	public Instant getExpectedExecutionTime() {
+		return expectedExecutionTime;
+	}
+
+	public void setExpectedExecutionTime(Instant expectedExecutionTime) {
+		this.expectedExecutionTime = expectedExecutionTime;
+	}
+
+	@Override
+	public String getPredecessorId() {
+		return predecessorId;
+	}
+
+	public void setPredecessorId(String predecessorId) {
+		this.predecessorId = predecessorId;
+	}
+
+	@Override
+	public Serializable getDetail() {
+		return detail;
+	}
+
+	public void setDetail(Serializable detail) {
+		this.detail = detail;
+	}
+
+	@Override
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
+	@Override
+	public String getTaskId() {
+		return taskId;
+	}
+
+	public void setTaskId(String taskId) {
+		this.taskId = taskId;
+	}
+
+}
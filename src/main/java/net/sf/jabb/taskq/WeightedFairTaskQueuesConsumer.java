@@ -0,0 +1,248 @@
+/**
+ *
+ */
+package net.sf.jabb.taskq;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.sf.jabb.taskq.ex.TaskQueueStorageInfrastructureException;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Consumer of multiple queues in a {@link ScheduledTaskQueues} with weighted fair scheduling among the queues.
+ * <p>
+ * Tasks are got from the queues in deficit round robin manner: when its turn comes in a round, a queue earns credits equal to its weight,
+ * and keeps the turn, across calls to {@link #get(int)} if necessary, until the credits have been used up or the queue has been drained.
+ * Credits left by a drained queue are dropped, and credits carried over are capped at the weight.
+ * So when all the queues are busy, the numbers of tasks got from them are proportional to their weights regardless of <code>maxTasks</code>,
+ * and a flood in one queue cannot starve the others.
+ * </p>
+ * <p>
+ * A queue that returned no task is skipped for a back-off period which starts from the minimum and doubles
+ * every time the queue is found empty again, up to the maximum. The back-off period is cleared once any task is got from the queue.
+ * </p>
+ * <p>
+ * Tasks got are owned by the processor ID of this consumer, they should be finished or aborted through the underlying {@link ScheduledTaskQueues}.
+ * This class is thread safe, but calls to {@link #get(int)} are serialized.
+ * </p>
+ * @author James Hu
+ *
+ */
+public class WeightedFairTaskQueuesConsumer {
+	static private final Logger logger = LoggerFactory.getLogger(WeightedFairTaskQueuesConsumer.class);
+
+	static public final Duration DEFAULT_LEASE_DURATION = Duration.ofMinutes(1);
+	static public final Duration DEFAULT_MIN_BACKOFF = Duration.ofMillis(100);
+	static public final Duration DEFAULT_MAX_BACKOFF = Duration.ofSeconds(10);
+
+	protected final ScheduledTaskQueues taskQueues;
+	protected final String processorId;
+	protected final Duration leaseDuration;
+	protected final long minBackoffMillis;
+	protected final long maxBackoffMillis;
+
+	protected final List<QueueState> queues = new ArrayList<>();
+	/**
+	 * Index of the queue having the current turn
+	 */
+	protected int cursor;
+
+	static protected class QueueState{
+		final String queue;
+		final int weight;
+		int deficit;
+		/**
+		 * Whether the queue has the turn and had earned credits for it
+		 */
+		boolean inTurn;
+		long backoffMillis;
+		long skipUntilMillis;
+
+		QueueState(String queue, int weight){
+			this.queue = queue;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * Constructor with default lease duration and back-off periods
+	 * @param taskQueues	the task queues
+	 * @param processorId	ID of the processor, it must be unique among all processors consuming the queues
+	 */
+	public WeightedFairTaskQueuesConsumer(ScheduledTaskQueues taskQueues, String processorId){
+		this(taskQueues, processorId, DEFAULT_LEASE_DURATION, DEFAULT_MIN_BACKOFF, DEFAULT_MAX_BACKOFF);
+	}
+
+	/**
+	 * Constructor
+	 * @param taskQueues	the task queues
+	 * @param processorId	ID of the processor, it must be unique among all processors consuming the queues
+	 * @param leaseDuration	the duration of leases of tasks got
+	 * @param minBackoff	the back-off period applied when a queue is found empty for the first time
+	 * @param maxBackoff	the maximum back-off period applied to a queue that keeps being empty
+	 */
+	public WeightedFairTaskQueuesConsumer(ScheduledTaskQueues taskQueues, String processorId, Duration leaseDuration, Duration minBackoff, Duration maxBackoff){
+		Validate.notNull(taskQueues, "Task queues cannot be null");
+		Validate.notNull(processorId, "Processor ID cannot be null");
+		Validate.notNull(leaseDuration, "Lease duration cannot be null");
+		Validate.notNull(minBackoff, "Minimum back-off cannot be null");
+		Validate.notNull(maxBackoff, "Maximum back-off cannot be null");
+		Validate.isTrue(minBackoff.compareTo(maxBackoff) <= 0, "Minimum back-off must not be longer than maximum back-off");
+
+		this.taskQueues = taskQueues;
+		this.processorId = processorId;
+		this.leaseDuration = leaseDuration;
+		this.minBackoffMillis = minBackoff.toMillis();
+		this.maxBackoffMillis = maxBackoff.toMillis();
+	}
+
+	/**
+	 * Add a queue to be consumed
+	 * @param queue		the queue
+	 * @param weight	weight of the queue, must be greater than zero
+	 * @return	this consumer itself
+	 */
+	public synchronized WeightedFairTaskQueuesConsumer addQueue(String queue, int weight){
+		Validate.notNull(queue, "Queue name cannot be null");
+		Validate.isTrue(weight > 0, "Weight must be greater than zero: %d", weight);
+		for (QueueState state: queues){
+			Validate.isTrue(!state.queue.equals(queue), "Queue had already been added: %s", queue);
+		}
+		queues.add(new QueueState(queue, weight));
+		return this;
+	}
+
+	/**
+	 * Remove a queue so that it will no longer be consumed
+	 * @param queue		the queue
+	 * @return	true if the queue had been added before, false otherwise
+	 */
+	public synchronized boolean removeQueue(String queue){
+		for (int i = 0; i < queues.size(); i ++){
+			if (queues.get(i).queue.equals(queue)){
+				queues.remove(i);
+				if (cursor > i){
+					cursor --;
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get tasks from the queues according to their weights. Queues in back-off period are skipped.
+	 * @param maxTasks	maximum number of tasks to get
+	 * @return	the tasks got, may be empty but never null
+	 * @throws TaskQueueStorageInfrastructureException	if no task could be got and querying at least one queue failed because of the underlying infrastructure
+	 */
+	public synchronized List<ReadOnlyScheduledTask> get(int maxTasks) throws TaskQueueStorageInfrastructureException{
+		Validate.isTrue(maxTasks > 0, "Maximum number of tasks must be greater than zero: %d", maxTasks);
+		int numQueues = queues.size();
+		if (numQueues == 0){
+			return Collections.emptyList();
+		}
+
+		List<ReadOnlyScheduledTask> result = new ArrayList<>(maxTasks);
+		TaskQueueStorageInfrastructureException lastException = null;
+		cursor %= numQueues;
+		int idleTurns = 0;		// consecutive turns without any task got
+		long now = System.currentTimeMillis();
+		while (result.size() < maxTasks && idleTurns < numQueues){
+			QueueState state = queues.get(cursor);
+			if (state.skipUntilMillis > now){
+				endTurn(state);
+				idleTurns ++;
+				continue;
+			}
+			if (!state.inTurn){
+				state.deficit = Math.min(state.deficit, state.weight) + state.weight;
+				state.inTurn = true;
+			}
+			int requested = Math.min(state.deficit, maxTasks - result.size());
+			List<ReadOnlyScheduledTask> tasks;
+			try{
+				tasks = taskQueues.get(state.queue, requested, processorId, leaseDuration);
+			}catch(TaskQueueStorageInfrastructureException e){
+				logger.warn("Failed to get tasks from queue '{}'", state.queue, e);
+				lastException = e;
+				tasks = Collections.emptyList();
+			}
+			result.addAll(tasks);
+			state.deficit -= tasks.size();
+			if (tasks.isEmpty()){
+				state.backoffMillis = state.backoffMillis == 0 ? minBackoffMillis : Math.min(maxBackoffMillis, state.backoffMillis * 2);
+				state.skipUntilMillis = now + state.backoffMillis;
+				idleTurns ++;
+			}else{
+				state.backoffMillis = 0;
+				state.skipUntilMillis = 0;
+				idleTurns = 0;
+			}
+			if (tasks.size() < requested){		// drained, credits are not kept
+				state.deficit = 0;
+				endTurn(state);
+			}else if (state.deficit <= 0){
+				endTurn(state);
+			}
+			// otherwise maxTasks has been reached and the queue keeps its turn for the next call
+		}
+
+		if (result.isEmpty() && lastException != null){
+			throw lastException;
+		}
+		return result;
+	}
+
+	/**
+	 * End the turn of the queue at the cursor and pass the turn to the next queue
+	 * @param state	state of the queue at the cursor
+	 */
+	protected void endTurn(QueueState state){
+		state.inTurn = false;
+		if (state.skipUntilMillis > 0){
+			state.deficit = 0;
+		}
+		cursor = (cursor + 1) % queues.size();
+	}
+
+	/**
+	 * Get the time until which a queue will be skipped because it had been found empty
+	 * @param queue	the queue
+	 * @return	the time, or null if the queue is not being skipped or has not been added
+	 */
+	public synchronized Instant getBackoffUntil(String queue){
+		for (QueueState state: queues){
+			if (state.queue.equals(queue)){
+				return state.skipUntilMillis > System.currentTimeMillis() ? Instant.ofEpochMilli(state.skipUntilMillis) : null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Clear back-off periods of all the queues, typically after new tasks have been known to be put
+	 */
+	public synchronized void resetBackoff(){
+		for (QueueState state: queues){
+			state.backoffMillis = 0;
+			state.skipUntilMillis = 0;
+		}
+	}
+
+	public String getProcessorId() {
+		return processorId;
+	}
+
+	public ScheduledTaskQueues getTaskQueues() {
+		return taskQueues;
+	}
+
+}
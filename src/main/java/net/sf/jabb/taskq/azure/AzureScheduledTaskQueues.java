@@ -7,26 +7,45 @@ import java.io.Serializable;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 import net.sf.jabb.azure.AzureStorageUtility;
 import net.sf.jabb.taskq.ReadOnlyScheduledTask;
 import net.sf.jabb.taskq.ScheduledTaskQueues;
 import net.sf.jabb.taskq.ex.NoSuchTaskException;
 import net.sf.jabb.taskq.ex.NotOwningTaskException;
+import net.sf.jabb.taskq.ex.ScheduledTaskQueuesException;
 import net.sf.jabb.taskq.ex.TaskQueueStorageInfrastructureException;
 import net.sf.jabb.util.attempt.AttemptStrategy;
 import net.sf.jabb.util.attempt.StopStrategies;
+import net.sf.jabb.util.codec.CompactDetailCodec;
+import net.sf.jabb.util.codec.DetailCodec;
+import net.sf.jabb.util.codec.JavaSerializationDetailCodec;
 import net.sf.jabb.util.ex.ExceptionUncheckUtility.BiConsumerThrowsExceptions;
 import net.sf.jabb.util.parallel.BackoffStrategies;
 import net.sf.jabb.util.parallel.WaitStrategies;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,8 +54,10 @@ import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.table.CloudTable;
 import com.microsoft.azure.storage.table.CloudTableClient;
 import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.TableBatchOperation;
 import com.microsoft.azure.storage.table.TableOperation;
 import com.microsoft.azure.storage.table.TableQuery;
+import com.microsoft.azure.storage.table.TableQuery.QueryComparisons;
 import com.microsoft.azure.storage.table.TableRequestOptions;
 
 /**
@@ -58,6 +79,36 @@ public class AzureScheduledTaskQueues implements ScheduledTaskQueues{
 	
 	public static final String DEFAULT_TABLE_NAME = "ScheduledTaskQueues";
 	
+	/**
+	 * The default number of partition ranges to be queried in parallel when getting tasks
+	 */
+	public static final int DEFAULT_CLAIM_PARALLELISM = 16;
+	
+	/**
+	 * The default executor for parallel queries and batch operations, threads in it are daemon threads and will be terminated when idle.
+	 */
+	static protected final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(new BasicThreadFactory.Builder()
+			.namingPattern(AzureScheduledTaskQueues.class.getSimpleName() + "-%d")
+			.daemon(true)
+			.build());
+	
+	/**
+	 * The default minimum interval of polling in {@link #take(String, int, String, Duration, Duration)}
+	 */
+	public static final Duration DEFAULT_MIN_TAKE_POLL_INTERVAL = Duration.ofMillis(100);
+	
+	/**
+	 * The default maximum interval of polling in {@link #take(String, int, String, Duration, Duration)}
+	 */
+	public static final Duration DEFAULT_MAX_TAKE_POLL_INTERVAL = Duration.ofSeconds(5);
+	
+	static protected final int MAX_OPERATIONS_IN_BATCH = 100;
+	static protected final int MAX_ROW_KEYS_IN_QUERY = 14;	// Azure allows at most 15 comparisons in a filter
+	
+	static protected final Comparator<TaskEntity> CANDIDATES_ORDER = Comparator
+			.comparing(TaskEntity::getVisibleTime)
+			.thenComparing(TaskEntity::getTimestamp, Comparator.nullsLast(Comparator.naturalOrder()));
+	
 	protected String tableName = DEFAULT_TABLE_NAME;
 	protected CloudTableClient tableClient;
 	
@@ -66,6 +117,22 @@ public class AzureScheduledTaskQueues implements ScheduledTaskQueues{
 	protected AttemptStrategy attemptStrategy = DEFAULT_ATTEMPT_STRATEGY;
 	
 	protected int taskIdLengthInPartitionKey = 2;
+	
+	protected int claimParallelism = DEFAULT_CLAIM_PARALLELISM;
+	
+	protected DetailCodec detailCodec = JavaSerializationDetailCodec.INSTANCE;
+	
+	protected ExecutorService executor;
+	
+	protected long minTakePollIntervalMillis = DEFAULT_MIN_TAKE_POLL_INTERVAL.toMillis();
+	protected long maxTakePollIntervalMillis = DEFAULT_MAX_TAKE_POLL_INTERVAL.toMillis();
+	
+	/**
+	 * The earliest visible times of tasks by queue, learnt from tasks put or aborted through this instance
+	 */
+	protected final Map<String, Instant> earliestKnownVisibleTimes = new ConcurrentHashMap<>();
+	protected final Object takeLock = new Object();
+	protected long takeSignals;		// guarded by takeLock
 
 
 	public AzureScheduledTaskQueues(){
@@ -151,6 +218,72 @@ public class AzureScheduledTaskQueues implements ScheduledTaskQueues{
 		this.taskIdLengthInPartitionKey = taskIdLengthInPartitionKey;
 	}
 
+	/**
+	 * Set the number of partition ranges to be queried in parallel when getting tasks
+	 * @param claimParallelism	the number of partition ranges, 1 means all partitions of a queue are queried at once
+	 */
+	public void setClaimParallelism(int claimParallelism) {
+		Validate.isTrue(claimParallelism > 0, "Claim parallelism must be greater than zero: %d", claimParallelism);
+		this.claimParallelism = claimParallelism;
+	}
+
+	/**
+	 * Get the codec used for encoding and decoding task details
+	 * @return	the codec
+	 */
+	public DetailCodec getDetailCodec() {
+		return detailCodec;
+	}
+
+	/**
+	 * Set the codec used for encoding and decoding task details.
+	 * {@link JavaSerializationDetailCodec} is the default, which is compatible with all the existing readers.
+	 * {@link CompactDetailCodec} produces smaller data and can decode data encoded by Java serialization, 
+	 * but it should only be used when all the readers of the table have been upgraded to use it.
+	 * @param detailCodec	the codec, can't be null
+	 */
+	public void setDetailCodec(DetailCodec detailCodec) {
+		Validate.notNull(detailCodec, "Detail codec cannot be null");
+		this.detailCodec = detailCodec;
+	}
+	
+	/**
+	 * Make the entity use the detail codec of this instance
+	 * @param entity	the entity, can be null
+	 * @return	the same entity
+	 */
+	protected TaskEntity withDetailCodec(TaskEntity entity){
+		if (entity != null){
+			entity.setDetailCodec(detailCodec);
+		}
+		return entity;
+	}
+
+	/**
+	 * Set the executor for parallel queries and batch operations
+	 * @param executor	the executor, if it is null then a default one shared by all instances will be used
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+	
+	/**
+	 * Set the range of polling intervals in {@link #take(String, int, String, Duration, Duration)}
+	 * @param minInterval	the interval after a change is known or tasks have been got
+	 * @param maxInterval	the interval that consecutive empty polls will back off to
+	 */
+	public void setTakePollIntervals(Duration minInterval, Duration maxInterval) {
+		Validate.notNull(minInterval, "Minimum interval cannot be null");
+		Validate.notNull(maxInterval, "Maximum interval cannot be null");
+		Validate.isTrue(minInterval.compareTo(maxInterval) <= 0, "Minimum interval must not be longer than maximum interval");
+		this.minTakePollIntervalMillis = Math.max(1, minInterval.toMillis());
+		this.maxTakePollIntervalMillis = Math.max(minTakePollIntervalMillis, maxInterval.toMillis());
+	}
+	
+	protected ExecutorService getExecutor(){
+		return executor == null ? DEFAULT_EXECUTOR : executor;
+	}
+
 	protected String newUniqueTaskId(){
 		return UUID.randomUUID().toString();
 	}
@@ -164,20 +297,124 @@ public class AzureScheduledTaskQueues implements ScheduledTaskQueues{
 		Validate.notNull(expectedExecutionTime, "expected execution time cannot be null");
 
 		String taskIdInQueue = newUniqueTaskId();
-		TaskEntity task = new TaskEntity(queue, taskIdInQueue, detail, expectedExecutionTime, predecessorId, taskIdLengthInPartitionKey);
+		TaskEntity task = withDetailCodec(new TaskEntity(queue, taskIdInQueue, detail, expectedExecutionTime, predecessorId, taskIdLengthInPartitionKey));
 		CloudTable table = null;
 		table = getTableReference();
 		try {
-			table.execute(TableOperation.insert(task));
+			execute(table, insertOperations(task));
 		} catch (StorageException e) {
 			if (!AzureStorageUtility.isEntityAlreadyExists(e)){		// if it is 409 then the insertion actually succeeded
 				throw new TaskQueueStorageInfrastructureException("Insersion of new entity was not successful", e);
 			}
 		}
 		
+		learnVisibleTime(queue, expectedExecutionTime);
 		return task.getTaskId();
 	}
 
+	@Override
+	public List<String> putAll(String queue, List<? extends ReadOnlyScheduledTask> tasks) throws TaskQueueStorageInfrastructureException {
+		Validate.notNull(queue, "Queue name cannot be null");
+		Validate.notNull(tasks, "Tasks cannot be null");
+		
+		Instant now = Instant.now();
+		List<TaskEntity> entities = new ArrayList<>(tasks.size());
+		Map<String, List<TaskEntity>> entitiesByPartition = new HashMap<>();
+		for (ReadOnlyScheduledTask t: tasks){
+			TaskEntity entity = withDetailCodec(new TaskEntity(queue, newUniqueTaskId(), t.getDetail(), 
+					t.getExpectedExecutionTime() == null ? now : t.getExpectedExecutionTime(), t.getPredecessorId(), taskIdLengthInPartitionKey));
+			entities.add(entity);
+			entitiesByPartition.computeIfAbsent(entity.getPartitionKey(), k->new ArrayList<>()).add(entity);
+		}
+		
+		CloudTable table = getTableReference();
+		Map<TaskEntity, Exception> failures = Collections.synchronizedMap(new IdentityHashMap<>());
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (List<TaskEntity> partition: entitiesByPartition.values()){
+			for (int i = 0; i < partition.size(); i += MAX_OPERATIONS_IN_BATCH){
+				List<TaskEntity> chunk = partition.subList(i, Math.min(partition.size(), i + MAX_OPERATIONS_IN_BATCH));
+				futures.add(CompletableFuture.runAsync(()->insert(table, chunk, failures), getExecutor()));
+			}
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+		
+		if (failures.size() == entities.size() && failures.size() > 0){
+			throw new TaskQueueStorageInfrastructureException("Insertion of new entities was not successful", failures.values().iterator().next());
+		}
+		List<String> ids = new ArrayList<>(entities.size());
+		Instant earliest = null;
+		for (TaskEntity entity: entities){
+			if (failures.containsKey(entity)){
+				ids.add(null);
+			}else{
+				ids.add(entity.getTaskId());
+				earliest = earliest == null || entity.getVisibleTime().isBefore(earliest) ? entity.getVisibleTime() : earliest;
+			}
+		}
+		if (earliest != null){
+			learnVisibleTime(queue, earliest);
+		}
+		return ids;
+	}
+	
+	/**
+	 * Insert entities in the same partition in batches. 
+	 * If a batch fails because some of them already exist (that can happen when the request had been retried), they will be inserted one by one.
+	 * @param table		the table
+	 * @param entities	the entities in the same partition
+	 * @param failures	the map that the entities failed to be inserted will be put into, together with the exceptions
+	 */
+	protected void insert(CloudTable table, List<TaskEntity> entities, Map<TaskEntity, Exception> failures){
+		List<TaskEntity> chunk = new ArrayList<>();
+		TableBatchOperation batch = new TableBatchOperation();
+		for (TaskEntity entity: entities){
+			List<TableOperation> operations = insertOperations(entity);
+			if (batch.size() > 0 && batch.size() + operations.size() > MAX_OPERATIONS_IN_BATCH){
+				insertInBatch(table, chunk, batch, failures);
+				chunk = new ArrayList<>();
+				batch = new TableBatchOperation();
+			}
+			chunk.add(entity);
+			batch.addAll(operations);
+		}
+		if (chunk.size() > 0){
+			insertInBatch(table, chunk, batch, failures);
+		}
+	}
+	
+	/**
+	 * Insert entities in a batch. If the batch fails because some of them already exist, they will be inserted one by one,
+	 * and only those that can't be inserted are regarded as failed.
+	 * @param table		the table
+	 * @param entities	the entities in the same partition
+	 * @param batch		the batch operation inserting the entities
+	 * @param failures	the map that the entities failed to be inserted will be put into, together with the exceptions
+	 */
+	protected void insertInBatch(CloudTable table, List<TaskEntity> entities, TableBatchOperation batch, Map<TaskEntity, Exception> failures){
+		try{
+			execute(table, batch);
+			return;
+		}catch(Exception e){
+			if (!AzureStorageUtility.isEntityAlreadyExists(e)){
+				logger.warn("Failed to insert {} tasks into partition '{}' of table: {}", entities.size(), entities.get(0).getPartitionKey(), tableName, e);
+				for (TaskEntity entity: entities){
+					failures.put(entity, e);
+				}
+				return;
+			}
+		}
+		for (TaskEntity entity: entities){
+			try{
+				execute(table, insertOperations(entity));
+			}catch(Exception e){
+				if (!AzureStorageUtility.isEntityAlreadyExists(e)){		// if it is 409 then the insertion actually succeeded
+					logger.warn("Failed to insert task '{}' into table: {}", entity.getTaskId(), tableName, e);
+					failures.put(entity, e);
+				}
+			}
+		}
+	}
+
 	@Override
 	public List<ReadOnlyScheduledTask> get(String queue, Instant expectedExecutionTime, int maxNumOfTasks, String processorId, Instant timeout)
 			throws TaskQueueStorageInfrastructureException {
@@ -187,61 +424,380 @@ public class AzureScheduledTaskQueues implements ScheduledTaskQueues{
 		Validate.notNull(processorId, "Processor ID cannot be null");
 		Validate.notNull(timeout, "Timeout time cannot be null");
 		
-		Map<String, Boolean> predecessorExistenceCache = new HashMap<>();
-		List<ReadOnlyScheduledTask> result = new ArrayList<>(maxNumOfTasks);
-		CloudTable table = null;
-		table = getTableReference();
+		CloudTable table = getTableReference();
+		Map<String, Boolean> predecessorExistenceCache = new ConcurrentHashMap<>();
 		try {
-			// 
-			TableQuery<TaskEntity> query = TableQuery.from(TaskEntity.class).
-					where(
-							AzureStorageUtility.combineTableQueryFilters(TableQuery.Operators.AND,
-									TaskEntity.filterByQueueName(queue),
-									TaskEntity.filterByVisibleTimeNoLaterThan(expectedExecutionTime)
-									)
-						);
-			for (TaskEntity task: table.execute(query)){
-				boolean predecessorExists = true;
-				String predecessorId = task.getPredecessorId();
-				if (predecessorId == null){
-					predecessorExists = false;
-				}else if (predecessorExistenceCache.containsKey(predecessorId)){
-					predecessorExists = predecessorExistenceCache.get(predecessorId);
-				}else{
-					String[] predecessorKeys = TaskEntity.partitionAndRowKeys(predecessorId, taskIdLengthInPartitionKey);
-					DynamicTableEntity predecessor = table.execute(
-							TableOperation.retrieve(predecessorKeys[0], predecessorKeys[1], DynamicTableEntity.class)
-							).getResultAsType();
-					predecessorExistenceCache.put(predecessorId, predecessor != null);
-					predecessorExists = predecessor != null;
-				}
-				
-				if (!predecessorExists){
-					task.setAttempts(task.getAttempts() + 1);
-					task.setProcessorId(processorId);
-					task.setVisibleTime(timeout);
+			// find candidates in all partition ranges in parallel
+			List<CompletableFuture<List<TaskEntity>>> findings = new ArrayList<>();
+			for (String[] range: partitionKeySuffixRanges()){
+				findings.add(CompletableFuture.supplyAsync(()->{
 					try{
-						table.execute(TableOperation.replace(task));
-					}catch(StorageException e){
-						if (AzureStorageUtility.isNotFoundOrUpdateConditionNotSatisfied(e)){
-							// just skip this one
-							continue;
-						}else{
-							throw e;
-						}
+						return findCandidates(table, queue, range[0], range[1], expectedExecutionTime, maxNumOfTasks, predecessorExistenceCache);
+					}catch(Exception e){
+						throw new CompletionException(e);
 					}
-					result.add(task);
-					if (result.size() >= maxNumOfTasks){
-						break;
+				}, getExecutor()));
+			}
+			List<TaskEntity> candidates = new ArrayList<>();
+			for (CompletableFuture<List<TaskEntity>> f: findings){
+				candidates.addAll(f.join());
+			}
+			candidates.sort(CANDIDATES_ORDER);
+			if (candidates.size() > maxNumOfTasks){
+				candidates = candidates.subList(0, maxNumOfTasks);
+			}
+			
+			// claim them with batch operations, partitions in parallel
+			Map<String, List<TaskEntity>> candidatesByPartition = new HashMap<>();
+			for (TaskEntity task: candidates){
+				candidatesByPartition.computeIfAbsent(task.getPartitionKey(), k->new ArrayList<>()).add(task);
+			}
+			List<CompletableFuture<List<TaskEntity>>> claims = new ArrayList<>();
+			for (List<TaskEntity> tasks: candidatesByPartition.values()){
+				claims.add(CompletableFuture.supplyAsync(()->{
+					try{
+						return claim(table, tasks, processorId, timeout);
+					}catch(Exception e){
+						throw new CompletionException(e);
 					}
+				}, getExecutor()));
+			}
+			Set<TaskEntity> claimed = Collections.newSetFromMap(new IdentityHashMap<>());
+			for (CompletableFuture<List<TaskEntity>> f: claims){
+				claimed.addAll(f.join());
+			}
+			
+			List<ReadOnlyScheduledTask> result = new ArrayList<>(claimed.size());
+			for (TaskEntity task: candidates){
+				if (claimed.contains(task)){
+					result.add(task);
 				}
 			}
+			return result;
 		} catch (Exception e) {
-			throw new TaskQueueStorageInfrastructureException("Query of task entities was not successful", e);
+			throw new TaskQueueStorageInfrastructureException("Query of task entities was not successful", e instanceof CompletionException ? e.getCause() : e);
+		}
+	}
+	
+	/**
+	 * Get tasks from the queue, waiting if necessary. 
+	 * The queue is polled with intervals that double after every empty poll, from the minimum to the maximum.
+	 * The interval is reset to the minimum when tasks are put or aborted through this instance,
+	 * and is shortened to the earliest visible time of tasks known to this instance.
+	 */
+	@Override
+	public List<ReadOnlyScheduledTask> take(String queue, int maxNumOfTasks, String processorId, Duration timeoutDuration, Duration maxWait)
+			throws TaskQueueStorageInfrastructureException, InterruptedException {
+		Validate.notNull(maxWait, "Maximum waiting time cannot be null");
+		long deadline = System.currentTimeMillis() + maxWait.toMillis();
+		long interval = minTakePollIntervalMillis;
+		while(true){
+			long signals;
+			synchronized(takeLock){
+				signals = takeSignals;
+			}
+			List<ReadOnlyScheduledTask> result = get(queue, maxNumOfTasks, processorId, timeoutDuration);
+			long now = System.currentTimeMillis();
+			long waitMillis = deadline - now;
+			if (result.size() > 0 || waitMillis <= 0){
+				return result;
+			}
+			Instant earliest = earliestKnownVisibleTimes.get(queue);
+			if (earliest != null){
+				long untilVisible = earliest.toEpochMilli() - now;
+				if (untilVisible < 0){		// taken by others or waiting for predecessors
+					earliestKnownVisibleTimes.remove(queue, earliest);
+				}else{
+					waitMillis = Math.min(waitMillis, untilVisible + 1);
+				}
+			}
+			waitMillis = Math.min(waitMillis, interval);
+			synchronized(takeLock){
+				if (takeSignals == signals){
+					takeLock.wait(waitMillis);
+				}
+				interval = takeSignals == signals ? Math.min(interval * 2, maxTakePollIntervalMillis) : minTakePollIntervalMillis;
+			}
+		}
+	}
+	
+	/**
+	 * Record the visible time of a task and wake up threads waiting in {@link #take(String, int, String, Duration, Duration)}
+	 * @param queue			the queue
+	 * @param visibleTime	the visible time of a task in the queue
+	 */
+	protected void learnVisibleTime(String queue, Instant visibleTime){
+		earliestKnownVisibleTimes.merge(queue, visibleTime, (t1, t2) -> t1.isBefore(t2) ? t1 : t2);
+		synchronized(takeLock){
+			takeSignals ++;
+			takeLock.notifyAll();
+		}
+	}
+	
+	/**
+	 * Split the partitions of a queue into ranges according to {@link #claimParallelism}.
+	 * Task IDs generated by {@link #newUniqueTaskId()} end with hexadecimal digits, so that the ranges are of similar sizes.
+	 * @return	list of 2-element arrays of inclusive lower bound and exclusive upper bound of the task ID part in partition keys, 
+	 * 			null means no bound
+	 */
+	protected List<String[]> partitionKeySuffixRanges(){
+		int digits = Math.min(taskIdLengthInPartitionKey, 4);
+		int space = 1 << (4 * digits);
+		int numRanges = Math.max(1, Math.min(claimParallelism, space));
+		List<String[]> ranges = new ArrayList<>(numRanges);
+		String format = "%0" + Math.max(1, digits) + "x";
+		for (int i = 0; i < numRanges; i ++){
+			ranges.add(new String[]{
+					i == 0 ? null : String.format(format, (long)space * i / numRanges),
+					i == numRanges - 1 ? null : String.format(format, (long)space * (i + 1) / numRanges)
+			});
+		}
+		return ranges;
+	}
+	
+	/**
+	 * Find the tasks that are visible and have no predecessor existing in a range of partitions
+	 * @param table					the table
+	 * @param queue					name of the queue
+	 * @param fromSuffix			inclusive lower bound of the task ID part in partition keys, null means no bound
+	 * @param toSuffix				exclusive upper bound of the task ID part in partition keys, null means no bound
+	 * @param expectedExecutionTime	visible time of the tasks must be no later than this
+	 * @param maxNumOfTasks			maximum number of tasks to be returned
+	 * @param predecessorExistenceCache		the cache of predecessor existence, it is shared across threads
+	 * @return	the tasks found
+	 * @throws StorageException	if any error happened with Azure storage
+	 */
+	protected List<TaskEntity> findCandidates(CloudTable table, String queue, String fromSuffix, String toSuffix, 
+			Instant expectedExecutionTime, int maxNumOfTasks, Map<String, Boolean> predecessorExistenceCache) throws StorageException{
+		TableQuery<TaskEntity> query = TableQuery.from(TaskEntity.class).
+				where(
+						AzureStorageUtility.combineTableQueryFilters(TableQuery.Operators.AND,
+								TaskEntity.filterByQueueNameAndPartitionRange(queue, fromSuffix, toSuffix),
+								TaskEntity.filterByVisibleTimeNoLaterThan(expectedExecutionTime)
+								)
+					);
+		return findCandidates(table, query, task->true, maxNumOfTasks, predecessorExistenceCache);
+	}
+	
+	/**
+	 * Find the tasks that are returned by a query, satisfy a condition, and have no predecessor existing.
+	 * The query results are paged through until enough tasks have been found or there is no more result.
+	 * @param table					the table
+	 * @param query					the query
+	 * @param condition				the condition that the tasks must satisfy
+	 * @param maxNumOfTasks			maximum number of tasks to be returned
+	 * @param predecessorExistenceCache		the cache of predecessor existence, it is shared across threads
+	 * @return	the tasks found
+	 * @throws StorageException	if any error happened with Azure storage
+	 */
+	protected List<TaskEntity> findCandidates(CloudTable table, TableQuery<TaskEntity> query, Predicate<TaskEntity> condition, 
+			int maxNumOfTasks, Map<String, Boolean> predecessorExistenceCache) throws StorageException{
+		List<TaskEntity> result = new ArrayList<>();
+		List<TaskEntity> pending = new ArrayList<>();
+		for (TaskEntity task: table.execute(query)){
+			if (!condition.test(task)){
+				continue;
+			}
+			pending.add(withDetailCodec(task));
+			if (pending.size() >= maxNumOfTasks){
+				result.addAll(excludeTasksWithExistingPredecessors(table, pending, predecessorExistenceCache));
+				pending.clear();
+				if (result.size() >= maxNumOfTasks){
+					break;
+				}
+			}
+		}
+		if (pending.size() > 0 && result.size() < maxNumOfTasks){
+			result.addAll(excludeTasksWithExistingPredecessors(table, pending, predecessorExistenceCache));
+		}
+		return result.size() > maxNumOfTasks ? result.subList(0, maxNumOfTasks) : result;
+	}
+	
+	/**
+	 * Check the existence of predecessors in bulk, and exclude the tasks whose predecessors exist.
+	 * Predecessors in the same partition are checked by a single query.
+	 * @param table					the table
+	 * @param tasks					the tasks
+	 * @param predecessorExistenceCache		the cache of predecessor existence
+	 * @return	the tasks that either have no predecessor or have predecessors not existing
+	 * @throws StorageException	if any error happened with Azure storage
+	 */
+	protected List<TaskEntity> excludeTasksWithExistingPredecessors(CloudTable table, List<TaskEntity> tasks, Map<String, Boolean> predecessorExistenceCache) throws StorageException{
+		Map<String, List<String[]>> uncheckedByPartition = new HashMap<>();
+		for (TaskEntity task: tasks){
+			String predecessorId = task.getPredecessorId();
+			if (predecessorId != null && !predecessorExistenceCache.containsKey(predecessorId)){
+				String[] keys = TaskEntity.partitionAndRowKeys(predecessorId, taskIdLengthInPartitionKey);
+				List<String[]> unchecked = uncheckedByPartition.computeIfAbsent(keys[0], k->new ArrayList<>());
+				if (!unchecked.stream().anyMatch(u->u[2].equals(predecessorId))){
+					unchecked.add(new String[]{keys[0], keys[1], predecessorId});
+				}
+			}
+		}
+		for (List<String[]> unchecked: uncheckedByPartition.values()){
+			for (int i = 0; i < unchecked.size(); i += MAX_ROW_KEYS_IN_QUERY){
+				List<String[]> chunk = unchecked.subList(i, Math.min(unchecked.size(), i + MAX_ROW_KEYS_IN_QUERY));
+				List<String> rowKeys = new ArrayList<>(chunk.size());
+				for (String[] keys: chunk){
+					rowKeys.add(keys[1]);
+				}
+				TableQuery<DynamicTableEntity> query = TableQuery.from(DynamicTableEntity.class)
+						.where(filterByPartitionAndRowKeys(chunk.get(0)[0], rowKeys))
+						.select(AzureStorageUtility.COLUMNS_WITH_ONLY_KEYS);
+				Set<String> existingRowKeys = new HashSet<>();
+				for (DynamicTableEntity entity: table.execute(query)){
+					existingRowKeys.add(entity.getRowKey());
+				}
+				for (String[] keys: chunk){
+					predecessorExistenceCache.put(keys[2], existingRowKeys.contains(keys[1]));
+				}
+			}
+		}
+		
+		List<TaskEntity> result = new ArrayList<>(tasks.size());
+		for (TaskEntity task: tasks){
+			String predecessorId = task.getPredecessorId();
+			if (predecessorId == null || !predecessorExistenceCache.get(predecessorId)){
+				result.add(task);
+			}
 		}
 		return result;
 	}
 	
+	/**
+	 * Claim tasks in the same partition by batch operations. 
+	 * If a batch fails because some of the tasks had been claimed by others, tasks in that batch will be claimed one by one.
+	 * @param table			the table
+	 * @param tasks			tasks in the same partition
+	 * @param processorId	ID of the processor
+	 * @param timeout		the timeout
+	 * @return	the tasks successfully claimed
+	 * @throws StorageException	if any error happened with Azure storage
+	 */
+	protected List<TaskEntity> claim(CloudTable table, List<TaskEntity> tasks, String processorId, Instant timeout) throws StorageException{
+		List<TaskEntity> claimed = new ArrayList<>(tasks.size());
+		Map<TaskEntity, List<TableOperation>> operationsByTask = new IdentityHashMap<>();
+		List<TaskEntity> chunk = new ArrayList<>();
+		TableBatchOperation batch = new TableBatchOperation();
+		for (TaskEntity task: tasks){
+			task.setAttempts(task.getAttempts() + 1);
+			task.setProcessorId(processorId);
+			task.setVisibleTime(timeout);
+			List<TableOperation> operations = replaceOperations(task);
+			operationsByTask.put(task, operations);
+			if (batch.size() > 0 && batch.size() + operations.size() > MAX_OPERATIONS_IN_BATCH){
+				executeInBatch(table, chunk, batch, operationsByTask, claimed);
+				chunk = new ArrayList<>();
+				batch = new TableBatchOperation();
+			}
+			chunk.add(task);
+			batch.addAll(operations);
+		}
+		if (chunk.size() > 0){
+			executeInBatch(table, chunk, batch, operationsByTask, claimed);
+		}
+		return claimed;
+	}
+	
+	/**
+	 * Execute the operations of multiple tasks in a batch. 
+	 * If the batch fails because some of the tasks had been changed by others, operations of the tasks will be executed task by task, 
+	 * and those tasks changed by others will be skipped.
+	 * @param table				the table
+	 * @param tasks				the tasks in the same partition
+	 * @param batch				the batch containing operations of all the tasks
+	 * @param operationsByTask	operations of the tasks
+	 * @param succeeded			tasks whose operations were executed successfully will be added to it
+	 * @throws StorageException	if any error happened with Azure storage
+	 */
+	protected void executeInBatch(CloudTable table, List<TaskEntity> tasks, TableBatchOperation batch, 
+			Map<TaskEntity, List<TableOperation>> operationsByTask, List<TaskEntity> succeeded) throws StorageException{
+		try{
+			table.execute(batch);
+			succeeded.addAll(tasks);
+		}catch(StorageException e){
+			if (!AzureStorageUtility.isNotFoundOrUpdateConditionNotSatisfied(e)){
+				throw e;
+			}
+			for (TaskEntity task: tasks){
+				try{
+					execute(table, operationsByTask.get(task));
+					succeeded.add(task);
+				}catch(StorageException e1){
+					if (!AzureStorageUtility.isNotFoundOrUpdateConditionNotSatisfied(e1)){
+						throw e1;
+					}
+					// just skip this one
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Generate the operations for inserting a new task
+	 * @param task	the task
+	 * @return	the operations, they must be in the same partition as the task
+	 */
+	protected List<TableOperation> insertOperations(TaskEntity task){
+		return Collections.singletonList(TableOperation.insert(task));
+	}
+	
+	/**
+	 * Generate the operations for replacing a task after its properties have been changed. 
+	 * The replacement of the task must be conditional on its etag.
+	 * @param task	the task
+	 * @return	the operations, they must be in the same partition as the task
+	 */
+	protected List<TableOperation> replaceOperations(TaskEntity task){
+		return Collections.singletonList(TableOperation.replace(task));
+	}
+	
+	/**
+	 * Generate the operations for deleting a task. 
+	 * The deletion of the task must be conditional on its etag.
+	 * @param task	the task
+	 * @return	the operations, they must be in the same partition as the task
+	 */
+	protected List<TableOperation> deleteOperations(TaskEntity task){
+		return Collections.singletonList(TableOperation.delete(task));
+	}
+	
+	/**
+	 * Execute operations in the same partition, in a batch if there are more than one of them
+	 * @param table			the table
+	 * @param operations	the operations
+	 * @throws StorageException	if any error happened with Azure storage
+	 */
+	protected void execute(CloudTable table, List<TableOperation> operations) throws StorageException{
+		if (operations.size() == 1){
+			table.execute(operations.get(0));
+		}else if (operations instanceof TableBatchOperation){
+			table.execute((TableBatchOperation) operations);
+		}else{
+			TableBatchOperation batch = new TableBatchOperation();
+			batch.addAll(operations);
+			table.execute(batch);
+		}
+	}
+	
+	/**
+	 * Generate the filter for entities with any of the row keys in a partition
+	 * @param partitionKey	the partition key
+	 * @param rowKeys		the row keys, there should be no more than {@value #MAX_ROW_KEYS_IN_QUERY} of them
+	 * @return	the filter string
+	 */
+	static protected String filterByPartitionAndRowKeys(String partitionKey, Collection<String> rowKeys){
+		String rowKeysFilter = null;
+		for (String rowKey: rowKeys){
+			String condition = TableQuery.generateFilterCondition(AzureStorageUtility.ROW_KEY, QueryComparisons.EQUAL, rowKey);
+			rowKeysFilter = rowKeysFilter == null ? condition : TableQuery.combineFilters(rowKeysFilter, TableQuery.Operators.OR, condition);
+		}
+		return TableQuery.combineFilters(
+				TableQuery.generateFilterCondition(AzureStorageUtility.PARTITION_KEY, QueryComparisons.EQUAL, partitionKey),
+				TableQuery.Operators.AND,
+				rowKeysFilter);
+	}
+	
 	protected void update(String id, String processorId, BiConsumerThrowsExceptions<CloudTable, TaskEntity> operation) throws NotOwningTaskException, NoSuchTaskException, TaskQueueStorageInfrastructureException{
 		Validate.notNull(id, "Task ID cannot be null");
 		Validate.notNull(processorId, "Processor ID cannot be null");
@@ -252,9 +808,9 @@ public class AzureScheduledTaskQueues implements ScheduledTaskQueues{
 			new AttemptStrategy(attemptStrategy)
 				.retryIfException(AzureStorageUtility::isNotFoundOrUpdateConditionNotSatisfied)
 				.run(()->{
-					TaskEntity task = table.execute(
+					TaskEntity task = withDetailCodec(table.execute(
 							TableOperation.retrieve(keys[0], keys[1], TaskEntity.class)
-							).getResultAsType();
+							).getResultAsType());
 					if (task == null){
 						throw new NoSuchTaskException("No task with ID '" + id + "' can be found");
 					}
@@ -274,7 +830,7 @@ public class AzureScheduledTaskQueues implements ScheduledTaskQueues{
 	@Override
 	public void finish(String id, String processorId) throws NotOwningTaskException, NoSuchTaskException, TaskQueueStorageInfrastructureException {
 		update(id, processorId, (table, task) -> {
-			table.execute(TableOperation.delete(task));
+			execute(table, deleteOperations(task));
 		});
 	}
 
@@ -283,7 +839,8 @@ public class AzureScheduledTaskQueues implements ScheduledTaskQueues{
 		update(id, processorId, (table, task) -> {
 			task.setVisibleTime(Instant.now());
 			task.setProcessorId(null);
-			table.execute(TableOperation.replace(task));
+			execute(table, replaceOperations(task));
+			learnVisibleTime(task.getQueueName(), task.getVisibleTime());
 		});
 	}
 
@@ -294,9 +851,148 @@ public class AzureScheduledTaskQueues implements ScheduledTaskQueues{
 
 		update(id, processorId, (table, task) -> {
 			task.setVisibleTime(newTimeout);
-			table.execute(TableOperation.replace(task));
+			execute(table, replaceOperations(task));
+		});
+	}
+
+	@Override
+	public Map<String, ScheduledTaskQueuesException> finishAll(Collection<String> ids, String processorId) {
+		return updateAll(ids, processorId, task -> deleteOperations(task));
+	}
+
+	@Override
+	public Map<String, ScheduledTaskQueuesException> abortAll(Collection<String> ids, String processorId) {
+		Map<String, ScheduledTaskQueuesException> failures = updateAll(ids, processorId, task -> {
+			task.setVisibleTime(Instant.now());
+			task.setProcessorId(null);
+			return replaceOperations(task);
+		});
+		Instant now = Instant.now();
+		Set<String> queues = new HashSet<>();
+		for (String id: ids){
+			if (!failures.containsKey(id)){
+				queues.add(TaskEntity.queueName(id));
+			}
+		}
+		for (String queue: queues){
+			learnVisibleTime(queue, now);
+		}
+		return failures;
+	}
+
+	@Override
+	public Map<String, ScheduledTaskQueuesException> renewTimeoutAll(Collection<String> ids, String processorId, Instant newTimeout) {
+		Validate.notNull(newTimeout, "New timeout time cannot be null");
+		return updateAll(ids, processorId, task -> {
+			task.setVisibleTime(newTimeout);
+			return replaceOperations(task);
 		});
 	}
+	
+	/**
+	 * Apply the same operation to multiple tasks. 
+	 * Tasks are grouped by partition, and partitions are processed in parallel. 
+	 * Within a partition, tasks are retrieved by queries with multiple row keys, and updated through batch operations.
+	 * If a batch fails, tasks in it will be updated one by one with retries.
+	 * @param ids			IDs of the tasks
+	 * @param processorId	ID of the processor
+	 * @param operation		the function generating the operations to be executed for a task, it may modify the task
+	 * @return	exceptions by ID of the tasks failed to be updated
+	 */
+	protected Map<String, ScheduledTaskQueuesException> updateAll(Collection<String> ids, String processorId, Function<TaskEntity, List<TableOperation>> operation){
+		Validate.notNull(ids, "Task IDs cannot be null");
+		Validate.notNull(processorId, "Processor ID cannot be null");
+		
+		Map<String, ScheduledTaskQueuesException> failures = new ConcurrentHashMap<>();
+		CloudTable table;
+		try{
+			table = getTableReference();
+		}catch(TaskQueueStorageInfrastructureException e){
+			for (String id: ids){
+				failures.put(id, e);
+			}
+			return failures;
+		}
+		
+		Map<String, List<String[]>> keysByPartition = new HashMap<>();
+		for (String id: new LinkedHashSet<>(ids)){
+			String[] keys = TaskEntity.partitionAndRowKeys(id, taskIdLengthInPartitionKey);
+			keysByPartition.computeIfAbsent(keys[0], k->new ArrayList<>()).add(new String[]{keys[0], keys[1], id});
+		}
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (List<String[]> partition: keysByPartition.values()){
+			for (int i = 0; i < partition.size(); i += MAX_ROW_KEYS_IN_QUERY){
+				List<String[]> chunk = partition.subList(i, Math.min(partition.size(), i + MAX_ROW_KEYS_IN_QUERY));
+				futures.add(CompletableFuture.runAsync(()->{
+					updateInPartition(table, chunk, processorId, operation, failures);
+				}, getExecutor()));
+			}
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+		return failures;
+	}
+	
+	/**
+	 * Apply the same operation to tasks in the same partition with one query and one batch operation.
+	 * @param table			the table
+	 * @param keys			partition key, row key, and ID of the tasks, there should be no more than {@value #MAX_ROW_KEYS_IN_QUERY} of them
+	 * @param processorId	ID of the processor
+	 * @param operation		the function generating the operations to be executed for a task, it may modify the task
+	 * @param failures		exceptions by task ID, it will be updated by this method
+	 */
+	protected void updateInPartition(CloudTable table, List<String[]> keys, String processorId, Function<TaskEntity, List<TableOperation>> operation, 
+			Map<String, ScheduledTaskQueuesException> failures){
+		List<TaskEntity> owned = new ArrayList<>(keys.size());
+		try{
+			List<String> rowKeys = new ArrayList<>(keys.size());
+			for (String[] k: keys){
+				rowKeys.add(k[1]);
+			}
+			TableQuery<TaskEntity> query = TableQuery.from(TaskEntity.class)
+					.where(filterByPartitionAndRowKeys(keys.get(0)[0], rowKeys));
+			Map<String, TaskEntity> found = new HashMap<>();
+			for (TaskEntity task: table.execute(query)){
+				found.put(task.getRowKey(), withDetailCodec(task));
+			}
+			Instant now = Instant.now();
+			for (String[] k: keys){
+				TaskEntity task = found.get(k[1]);
+				if (task == null){
+					failures.put(k[2], new NoSuchTaskException("No task with ID '" + k[2] + "' can be found"));
+				}else if (!StringUtils.equals(processorId, task.getProcessorId()) || task.getVisibleTime().isBefore(now)){
+					failures.put(k[2], new NotOwningTaskException("Task with ID '" + k[2] + "' is not currently owned by processor with ID '" + processorId + "'"));
+				}else{
+					owned.add(task);
+				}
+			}
+		}catch(Exception e){
+			TaskQueueStorageInfrastructureException ex = new TaskQueueStorageInfrastructureException("Query of task entities was not successful", e);
+			for (String[] k: keys){
+				failures.put(k[2], ex);
+			}
+			return;
+		}
+		if (owned.isEmpty()){
+			return;
+		}
+		
+		TableBatchOperation batch = new TableBatchOperation();
+		for (TaskEntity task: owned){
+			batch.addAll(operation.apply(task));
+		}
+		try{
+			table.execute(batch);
+		}catch(Exception e){
+			logger.debug("Batch operation on {} tasks in partition '{}' was not successful, will do them one by one", owned.size(), keys.get(0)[0], e);
+			for (TaskEntity task: owned){
+				try{
+					update(task.getTaskId(), processorId, (t, entity) -> execute(t, operation.apply(entity)));
+				}catch(ScheduledTaskQueuesException e1){
+					failures.put(task.getTaskId(), e1);
+				}
+			}
+		}
+	}
 
 	@Override
 	public void clear(String queue) throws TaskQueueStorageInfrastructureException {
@@ -0,0 +1,328 @@
+/**
+ *
+ */
+package net.sf.jabb.taskq.azure;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import net.sf.jabb.azure.AzureStorageUtility;
+import net.sf.jabb.taskq.ex.TaskQueueStorageInfrastructureException;
+import net.sf.jabb.util.attempt.AttemptStrategy;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.CloudTableClient;
+import com.microsoft.azure.storage.table.TableBatchOperation;
+import com.microsoft.azure.storage.table.TableOperation;
+import com.microsoft.azure.storage.table.TableQuery;
+import com.microsoft.azure.storage.table.TableRequestOptions;
+
+/**
+ * Implementation of <code>ScheduledTaskQueues</code> using Azure table storage, with a time bucketed visibility index.
+ * <p>
+ * Task entities are stored in the same way as {@link AzureScheduledTaskQueues} does,
+ * and every task has a {@link VisibilityMarkerEntity} in the same partition whose row key starts with the visibility time bucket.
+ * The task and its marker are always changed together in a batch operation, conditional on the etag of the task.
+ * When getting tasks, only row keys of the markers in due buckets are scanned,
+ * so that the cost is no longer proportional to the number of tasks scheduled in the future.
+ * </p>
+ * <p>
+ * Migration from the layout of {@link AzureScheduledTaskQueues}:
+ * replace all the instances with this class and enable legacy scan by {@link #setLegacyScanEnabled(boolean)},
+ * so that tasks without markers can still be found. Tasks get their markers when they are changed,
+ * and {@link #migrate(String)} can be called to add markers to all the remaining tasks in a queue.
+ * After all the queues have been migrated, legacy scan should be disabled.
+ * </p>
+ * @author James Hu
+ *
+ */
+public class BucketedAzureScheduledTaskQueues extends AzureScheduledTaskQueues {
+	static private final Logger logger = LoggerFactory.getLogger(BucketedAzureScheduledTaskQueues.class);
+
+	/**
+	 * The default size of visibility time buckets
+	 */
+	static public final Duration DEFAULT_BUCKET_SIZE = Duration.ofMinutes(1);
+
+	protected long bucketMillis = DEFAULT_BUCKET_SIZE.toMillis();
+
+	protected volatile boolean legacyScanEnabled = false;
+
+	public BucketedAzureScheduledTaskQueues(){
+		super();
+	}
+
+	public BucketedAzureScheduledTaskQueues(CloudStorageAccount storageAccount, String tableName, Integer taskIdLengthInPartitionKey, AttemptStrategy attemptStrategy,
+			Consumer<TableRequestOptions> defaultOptionsConfigurer, Duration bucketSize){
+		super(storageAccount, tableName, taskIdLengthInPartitionKey, attemptStrategy, defaultOptionsConfigurer);
+		if (bucketSize != null){
+			setBucketSize(bucketSize);
+		}
+	}
+
+	public BucketedAzureScheduledTaskQueues(CloudStorageAccount storageAccount, String tableName, Duration bucketSize){
+		this(storageAccount, tableName, null, null, null, bucketSize);
+	}
+
+	public BucketedAzureScheduledTaskQueues(CloudStorageAccount storageAccount, String tableName){
+		this(storageAccount, tableName, null, null, null, null);
+	}
+
+	public BucketedAzureScheduledTaskQueues(CloudStorageAccount storageAccount){
+		this(storageAccount, null, null, null, null, null);
+	}
+
+	public BucketedAzureScheduledTaskQueues(CloudTableClient tableClient, String tableName, Integer taskIdLengthInPartitionKey, AttemptStrategy attemptStrategy, Duration bucketSize){
+		super(tableClient, tableName, taskIdLengthInPartitionKey, attemptStrategy);
+		if (bucketSize != null){
+			setBucketSize(bucketSize);
+		}
+	}
+
+	public BucketedAzureScheduledTaskQueues(CloudTableClient tableClient){
+		this(tableClient, null, null, null, null);
+	}
+
+	/**
+	 * Set the size of visibility time buckets. It must not be changed after tasks have been put,
+	 * otherwise tasks with markers in future buckets of the old size may not be found in time.
+	 * @param bucketSize	the size of buckets, the default is {@link #DEFAULT_BUCKET_SIZE}
+	 */
+	public void setBucketSize(Duration bucketSize) {
+		Validate.notNull(bucketSize, "Bucket size cannot be null");
+		Validate.isTrue(bucketSize.toMillis() > 0, "Bucket size must be at least 1 millisecond: %s", bucketSize);
+		this.bucketMillis = bucketSize.toMillis();
+	}
+
+	/**
+	 * Enable or disable the scanning of tasks without visibility markers when getting tasks.
+	 * It should be enabled only when there could be tasks created by {@link AzureScheduledTaskQueues} that have not been migrated.
+	 * @param legacyScanEnabled	true to enable, false to disable
+	 */
+	public void setLegacyScanEnabled(boolean legacyScanEnabled) {
+		this.legacyScanEnabled = legacyScanEnabled;
+	}
+
+	@Override
+	protected List<TableOperation> insertOperations(TaskEntity task){
+		task.setVisibilityMarker(VisibilityMarkerEntity.rowKey(task.getVisibleTime(), bucketMillis, task.getTaskIdInQueue()));
+		List<TableOperation> operations = new ArrayList<>(2);
+		operations.add(TableOperation.insert(task));
+		operations.add(TableOperation.insert(new VisibilityMarkerEntity(task)));
+		return operations;
+	}
+
+	@Override
+	protected List<TableOperation> replaceOperations(TaskEntity task){
+		String oldMarker = task.getVisibilityMarker();
+		task.setVisibilityMarker(VisibilityMarkerEntity.rowKey(task.getVisibleTime(), bucketMillis, task.getTaskIdInQueue()));
+		List<TableOperation> operations = new ArrayList<>(3);
+		operations.add(TableOperation.replace(task));
+		if (oldMarker != null && !oldMarker.equals(task.getVisibilityMarker())){
+			operations.add(TableOperation.delete(new VisibilityMarkerEntity(task.getPartitionKey(), oldMarker)));
+		}
+		operations.add(TableOperation.insertOrReplace(new VisibilityMarkerEntity(task)));
+		return operations;
+	}
+
+	@Override
+	protected List<TableOperation> deleteOperations(TaskEntity task){
+		List<TableOperation> operations = new ArrayList<>(2);
+		operations.add(TableOperation.delete(task));
+		if (task.getVisibilityMarker() != null){
+			operations.add(TableOperation.delete(new VisibilityMarkerEntity(task.getPartitionKey(), task.getVisibilityMarker())));
+		}
+		return operations;
+	}
+
+	/**
+	 * Find the tasks that are visible and have no predecessor existing in a range of partitions, by scanning markers in due buckets.
+	 * Tasks without markers are also scanned if legacy scan is enabled.
+	 */
+	@Override
+	protected List<TaskEntity> findCandidates(CloudTable table, String queue, String fromSuffix, String toSuffix,
+			Instant expectedExecutionTime, int maxNumOfTasks, Map<String, Boolean> predecessorExistenceCache) throws StorageException{
+		TableQuery<VisibilityMarkerEntity> query = TableQuery.from(VisibilityMarkerEntity.class).
+				where(
+						AzureStorageUtility.combineTableQueryFilters(TableQuery.Operators.AND,
+								TaskEntity.filterByQueueNameAndPartitionRange(queue, fromSuffix, toSuffix),
+								VisibilityMarkerEntity.filterByVisibleTimeNoLaterThan(expectedExecutionTime, bucketMillis)
+								)
+					);
+		List<TaskEntity> result = new ArrayList<>();
+		List<VisibilityMarkerEntity> pending = new ArrayList<>();
+		for (VisibilityMarkerEntity marker: table.execute(query)){
+			pending.add(marker);
+			if (pending.size() >= maxNumOfTasks){
+				result.addAll(excludeTasksWithExistingPredecessors(table, retrieveTasks(table, pending, expectedExecutionTime), predecessorExistenceCache));
+				pending.clear();
+				if (result.size() >= maxNumOfTasks){
+					break;
+				}
+			}
+		}
+		if (pending.size() > 0 && result.size() < maxNumOfTasks){
+			result.addAll(excludeTasksWithExistingPredecessors(table, retrieveTasks(table, pending, expectedExecutionTime), predecessorExistenceCache));
+		}
+
+		if (legacyScanEnabled && result.size() < maxNumOfTasks){
+			// markers are excluded by the query, and tasks with markers have been found through their markers
+			TableQuery<TaskEntity> legacyQuery = TableQuery.from(TaskEntity.class).
+					where(
+							AzureStorageUtility.combineTableQueryFilters(TableQuery.Operators.AND,
+									TaskEntity.filterByQueueNameAndPartitionRange(queue, fromSuffix, toSuffix),
+									TaskEntity.filterByTaskEntitiesOnly(),
+									TaskEntity.filterByVisibleTimeNoLaterThan(expectedExecutionTime)
+									)
+						);
+			result.addAll(findCandidates(table, legacyQuery, task->task.getVisibilityMarker() == null, maxNumOfTasks - result.size(), predecessorExistenceCache));
+		}
+		return result.size() > maxNumOfTasks ? result.subList(0, maxNumOfTasks) : result;
+	}
+
+	/**
+	 * Retrieve the tasks pointed to by markers. Tasks in the same partition are retrieved by queries with multiple row keys.
+	 * Stale markers, whose tasks no longer exist or no longer point to them, are deleted.
+	 * @param table					the table
+	 * @param markers				the markers
+	 * @param expectedExecutionTime	visible time of the tasks must be no later than this
+	 * @return	the tasks that are still marked by the markers and are visible
+	 * @throws StorageException	if any error happened with Azure storage
+	 */
+	protected List<TaskEntity> retrieveTasks(CloudTable table, List<VisibilityMarkerEntity> markers, Instant expectedExecutionTime) throws StorageException{
+		Map<String, List<VisibilityMarkerEntity>> markersByPartition = new HashMap<>();
+		for (VisibilityMarkerEntity marker: markers){
+			markersByPartition.computeIfAbsent(marker.getPartitionKey(), k->new ArrayList<>()).add(marker);
+		}
+		List<TaskEntity> found = new ArrayList<>(markers.size());
+		for (List<VisibilityMarkerEntity> partition: markersByPartition.values()){
+			for (int i = 0; i < partition.size(); i += MAX_ROW_KEYS_IN_QUERY){
+				List<VisibilityMarkerEntity> chunk = partition.subList(i, Math.min(partition.size(), i + MAX_ROW_KEYS_IN_QUERY));
+				List<String> rowKeys = new ArrayList<>(chunk.size());
+				for (VisibilityMarkerEntity marker: chunk){
+					rowKeys.add(marker.getTaskIdInQueue());
+				}
+				TableQuery<TaskEntity> query = TableQuery.from(TaskEntity.class)
+						.where(filterByPartitionAndRowKeys(chunk.get(0).getPartitionKey(), rowKeys));
+				for (TaskEntity task: table.execute(query)){
+					found.add(withDetailCodec(task));
+				}
+			}
+		}
+
+		List<VisibilityMarkerEntity> staleMarkers = new ArrayList<>();
+		List<TaskEntity> result = matchMarkers(markers, found, expectedExecutionTime, staleMarkers);
+		if (staleMarkers.size() > 0){
+			logger.debug("{} out of {} visibility markers are stale", staleMarkers.size(), markers.size());
+			deleteStaleMarkers(table, staleMarkers);
+		}
+		return result;
+	}
+	
+	/**
+	 * Match markers with the tasks retrieved
+	 * @param markers				the markers
+	 * @param tasks					the tasks retrieved for the markers
+	 * @param expectedExecutionTime	visible time of the tasks must be no later than this
+	 * @param staleMarkers			the list that the markers whose tasks no longer exist or no longer point to them will be added to
+	 * @return	the tasks that are still marked by the markers and are visible
+	 */
+	protected List<TaskEntity> matchMarkers(List<VisibilityMarkerEntity> markers, List<TaskEntity> tasks, Instant expectedExecutionTime, List<VisibilityMarkerEntity> staleMarkers){
+		Map<String, TaskEntity> tasksByKeys = new HashMap<>();
+		for (TaskEntity task: tasks){
+			tasksByKeys.put(task.getPartitionKey() + task.getRowKey(), task);
+		}
+		List<TaskEntity> result = new ArrayList<>(markers.size());
+		for (VisibilityMarkerEntity marker: markers){
+			TaskEntity task = tasksByKeys.get(marker.getPartitionKey() + marker.getTaskIdInQueue());
+			if (task == null || !marker.getRowKey().equals(task.getVisibilityMarker())){
+				staleMarkers.add(marker);
+			}else if (!task.getVisibleTime().isAfter(expectedExecutionTime)){
+				result.add(task);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Delete stale markers. Each marker is deleted on condition of the etag it was read with, 
+	 * so that it would not be deleted if it has been reused by its task after being read.
+	 * Failures are logged and ignored, because the stale markers will be found and deleted again later.
+	 * @param table			the table
+	 * @param staleMarkers	the stale markers as read from the table
+	 */
+	protected void deleteStaleMarkers(CloudTable table, List<VisibilityMarkerEntity> staleMarkers){
+		for (VisibilityMarkerEntity marker: staleMarkers){
+			try{
+				table.execute(TableOperation.delete(marker));
+			}catch(StorageException e){
+				if (!AzureStorageUtility.isNotFoundOrUpdateConditionNotSatisfied(e)){
+					logger.warn("Failed to delete stale visibility marker '{}' in partition '{}' of table: {}", marker.getRowKey(), marker.getPartitionKey(), tableName, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add visibility markers to all the tasks in a queue that do not have them,
+	 * typically the tasks created by {@link AzureScheduledTaskQueues}.
+	 * Tasks changed concurrently by others are skipped, because they would have got their markers when being changed.
+	 * It is safe to call this method repeatedly.
+	 * @param queue		the queue
+	 * @return	number of tasks migrated
+	 * @throws TaskQueueStorageInfrastructureException	if any error happened with the underlying infrastructure
+	 */
+	public int migrate(String queue) throws TaskQueueStorageInfrastructureException{
+		Validate.notNull(queue, "Queue name cannot be null");
+		CloudTable table = getTableReference();
+		TableQuery<TaskEntity> query = TableQuery.from(TaskEntity.class).
+				where(
+						AzureStorageUtility.combineTableQueryFilters(TableQuery.Operators.AND,
+								TaskEntity.filterByQueueName(queue),
+								TaskEntity.filterByTaskEntitiesOnly()
+								)
+					);
+		List<TaskEntity> migrated = new ArrayList<>();
+		try{
+			Map<TaskEntity, List<TableOperation>> operationsByTask = new IdentityHashMap<>();
+			List<TaskEntity> chunk = new ArrayList<>();
+			TableBatchOperation batch = new TableBatchOperation();
+			for (TaskEntity task: table.execute(query)){
+				if (task.getVisibilityMarker() != null){
+					continue;
+				}
+				withDetailCodec(task);
+				if (chunk.size() > 0 && (!chunk.get(0).getPartitionKey().equals(task.getPartitionKey()) || batch.size() + 2 > MAX_OPERATIONS_IN_BATCH)){
+					executeInBatch(table, chunk, batch, operationsByTask, migrated);
+					operationsByTask.clear();
+					chunk = new ArrayList<>();
+					batch = new TableBatchOperation();
+				}
+				List<TableOperation> operations = replaceOperations(task);
+				operationsByTask.put(task, operations);
+				chunk.add(task);
+				batch.addAll(operations);
+			}
+			if (chunk.size() > 0){
+				executeInBatch(table, chunk, batch, operationsByTask, migrated);
+			}
+		}catch(Exception e){
+			throw new TaskQueueStorageInfrastructureException("Failed to migrate tasks in queue '" + queue + "' in table '" + tableName + "', " + migrated.size() + " had been migrated", e);
+		}
+		logger.debug("Migrated {} tasks in queue '{}' in table: {}", migrated.size(), queue, tableName);
+		return migrated.size();
+	}
+
+}
@@ -9,8 +9,9 @@ import java.util.Date;
 
 import net.sf.jabb.azure.AzureStorageUtility;
 import net.sf.jabb.taskq.ReadOnlyScheduledTask;
+import net.sf.jabb.util.codec.DetailCodec;
+import net.sf.jabb.util.codec.JavaSerializationDetailCodec;
 
-import org.apache.commons.lang3.SerializationUtils;
 import org.apache.commons.lang3.Validate;
 
 import com.microsoft.azure.storage.table.Ignore;
@@ -30,21 +31,50 @@ public class TaskEntity extends TableServiceEntity implements ReadOnlyScheduledT
 	static public final int MAX_BINARY_LENGTH = 64*1024;
 	static private final String DELIMITER_IN_FULL_TASK_ID = "/";
 	static private final String DELIMITER_IN_PARTITION_KEY = "^";
-
+	
 	protected String predecessorId;
 	protected String processorId;
 	protected Instant expectedExecutionTime;
 	protected Instant visibleTime;
 	protected Serializable detail;
+	protected byte[] serializedDetail;	// detail as read from the table, it is decoded lazily and not used once detail has been decoded or set
+	protected DetailCodec detailCodec = JavaSerializationDetailCodec.INSTANCE;
 	protected int attempts;
+	protected String visibilityMarker;	// row key of the visibility marker, only used by the time bucketed layout
 	
 	static public String filterByVisibleTimeNoLaterThan(Instant time){
 		return TableQuery.generateFilterCondition("V", QueryComparisons.LESS_THAN_OR_EQUAL, Date.from(time));
 	}
 	
+	/**
+	 * Generate the filter that excludes entities other than tasks, such as visibility markers
+	 * @return	the filter string
+	 */
+	static public String filterByTaskEntitiesOnly(){
+		return TableQuery.generateFilterCondition(AzureStorageUtility.ROW_KEY, QueryComparisons.LESS_THAN, VisibilityMarkerEntity.ROW_KEY_PREFIX);
+	}
+	
 	static public String filterByQueueName(String queueName){
 		return AzureStorageUtility.generateStartWithFilterCondition(AzureStorageUtility.PARTITION_KEY, queueName + DELIMITER_IN_PARTITION_KEY);
 	}
+	
+	/**
+	 * Generate the filter for a range of partitions of a queue
+	 * @param queueName		name of the queue
+	 * @param fromSuffix	the inclusive lower bound of the taskId part in partition key, null or empty means no lower bound
+	 * @param toSuffix		the exclusive upper bound of the taskId part in partition key, null means no upper bound
+	 * @return	the filter string
+	 */
+	static public String filterByQueueNameAndPartitionRange(String queueName, String fromSuffix, String toSuffix){
+		String prefix = queueName + DELIMITER_IN_PARTITION_KEY;
+		return TableQuery.combineFilters(
+				TableQuery.generateFilterCondition(AzureStorageUtility.PARTITION_KEY, QueryComparisons.GREATER_THAN_OR_EQUAL, prefix + (fromSuffix == null ? "" : fromSuffix)),
+				TableQuery.Operators.AND,
+				toSuffix == null ?
+						TableQuery.generateFilterCondition(AzureStorageUtility.PARTITION_KEY, QueryComparisons.LESS_THAN_OR_EQUAL, prefix + "\u10FFFD")
+						: TableQuery.generateFilterCondition(AzureStorageUtility.PARTITION_KEY, QueryComparisons.LESS_THAN, prefix + toSuffix)
+				);
+	}
 
 	public TaskEntity(){
 		
@@ -61,7 +91,7 @@ public class TaskEntity extends TableServiceEntity implements ReadOnlyScheduledT
 	
 	public TaskEntity(String queueName, String taskId, Serializable detail, Instant expectedExecutionTime, int taskIdLengthInPartitionKey){
 		this(queueName, taskId, taskIdLengthInPartitionKey);
-		this.detail = detail;
+		setDetail(detail);
 		this.expectedExecutionTime = expectedExecutionTime;
 		this.visibleTime = expectedExecutionTime;
 	}
@@ -84,7 +114,10 @@ public class TaskEntity extends TableServiceEntity implements ReadOnlyScheduledT
 		that.expectedExecutionTime = this.expectedExecutionTime;
 		that.visibleTime = this.visibleTime;
 		that.detail = this.detail;
+		that.serializedDetail = this.serializedDetail;
+		that.detailCodec = this.detailCodec;
 		that.attempts = this.attempts;
+		that.visibilityMarker = this.visibilityMarker;
 		return that;
 	}
 	
@@ -124,6 +157,18 @@ public class TaskEntity extends TableServiceEntity implements ReadOnlyScheduledT
 		return new String[]{partitionKey(queueName, taskId, taskIdLengthInPartitionKey), rowKey(queueName, taskId)};
 	}
 	
+	/**
+	 * Determine the queue name from full task id
+	 * @param fullTaskId	the full task id
+	 * @return	the name of the queue that the task belongs to
+	 */
+	static public String queueName(String fullTaskId){
+		Validate.notNull(fullTaskId);
+		int i = fullTaskId.indexOf(DELIMITER_IN_FULL_TASK_ID);
+		Validate.isTrue(i >= 0, "Delimiter '{}' must exist in the full task ID: {}", DELIMITER_IN_FULL_TASK_ID, fullTaskId);
+		return fullTaskId.substring(0, i);
+	}
+	
 	/**
 	 * Get the full task ID which contains both the queue name and the task ID
 	 * @return	the full task ID
@@ -157,14 +202,13 @@ public class TaskEntity extends TableServiceEntity implements ReadOnlyScheduledT
 	@StoreAs(name = "D")
 	public byte[] getSerializedDetail() {
 		if (detail == null){
-			return null;
-		}else{
-			byte[] serializedDetail = SerializationUtils.serialize(detail);
-			Validate.isTrue(serializedDetail.length <= MAX_BINARY_LENGTH, 
-					"Serialized task detail must not exceed %d bytes, that's the limitation of Azure table storage."
-					, MAX_BINARY_LENGTH);
-			return serializedDetail;
+			return serializedDetail;		// not decoded therefore unchanged, or null
 		}
+		byte[] encoded = detailCodec.encode(detail);
+		Validate.isTrue(encoded.length <= MAX_BINARY_LENGTH, 
+				"Serialized task detail must not exceed %d bytes, that's the limitation of Azure table storage."
+				, MAX_BINARY_LENGTH);
+		return encoded;
 	}
 
 	/**
@@ -172,7 +216,8 @@ public class TaskEntity extends TableServiceEntity implements ReadOnlyScheduledT
 	 */
 	@StoreAs(name = "D")
 	public void setSerializedDetail(byte[] serializedDetail) {
-		this.detail = (Serializable)SerializationUtils.deserialize(serializedDetail);
+		this.serializedDetail = serializedDetail;
+		this.detail = null;
 	}
 
 	/**
@@ -227,14 +272,39 @@ public class TaskEntity extends TableServiceEntity implements ReadOnlyScheduledT
 	@Ignore
 	public void setDetail(Serializable detail){
 		this.detail = detail;
+		this.serializedDetail = null;
 	}
 	
 	@Override
 	@Ignore
 	public Serializable getDetail(){
+		if (this.detail == null && this.serializedDetail != null){
+			this.detail = detailCodec.decode(serializedDetail);
+		}
 		return this.detail;
 	}
 	
+	/**
+	 * Get the codec used for encoding and decoding the detail
+	 * @return	the codec
+	 */
+	@Ignore
+	public DetailCodec getDetailCodec() {
+		return detailCodec;
+	}
+
+	/**
+	 * Set the codec used for encoding and decoding the detail. 
+	 * It is normally set by the task queues that the entity is read or written by.
+	 * Detail is encoded only when the entity is being stored, so changes made to the detail object after it is set are also stored.
+	 * @param codec	the codec, can't be null
+	 */
+	@Ignore
+	public void setDetailCodec(DetailCodec codec) {
+		Validate.notNull(codec, "Detail codec cannot be null");
+		this.detailCodec = codec;
+	}
+	
 	@Ignore
 	public String getTaskIdInQueue() {
 		return this.rowKey;
@@ -271,4 +341,20 @@ public class TaskEntity extends TableServiceEntity implements ReadOnlyScheduledT
 		this.visibleTime = visibleTime;
 	}
 
+	/**
+	 * @return row key of the visibility marker entity of this task, or null if this task does not have one
+	 */
+	@StoreAs(name="B")
+	public String getVisibilityMarker() {
+		return visibilityMarker;
+	}
+
+	/**
+	 * @param visibilityMarker row key of the visibility marker entity of this task
+	 */
+	@StoreAs(name="B")
+	public void setVisibilityMarker(String visibilityMarker) {
+		this.visibilityMarker = visibilityMarker;
+	}
+
 }
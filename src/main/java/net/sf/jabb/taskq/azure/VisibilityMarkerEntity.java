@@ -0,0 +1,134 @@
+/**
+ *
+ */
+package net.sf.jabb.taskq.azure;
+
+import java.time.Instant;
+import java.util.Date;
+
+import net.sf.jabb.azure.AzureStorageUtility;
+
+import org.apache.commons.lang3.Validate;
+
+import com.microsoft.azure.storage.table.Ignore;
+import com.microsoft.azure.storage.table.StoreAs;
+import com.microsoft.azure.storage.table.TableQuery;
+import com.microsoft.azure.storage.table.TableQuery.QueryComparisons;
+import com.microsoft.azure.storage.table.TableServiceEntity;
+
+/**
+ * The entity marking the visibility time bucket of a task, it lives in the same partition as the task.
+ * <br>PartitionKey: the same as that of the task
+ * <br>RowKey: ~ + bucket + ~ + taskId
+ * <br>Bucket is the visible time in epoch milliseconds divided by the bucket size, zero padded to 19 digits,
+ * so that markers of due buckets can be found by a range scan of row keys.
+ * @author James Hu
+ *
+ */
+public class VisibilityMarkerEntity extends TableServiceEntity {
+	static public final String ROW_KEY_PREFIX = "~";
+	static private final String BUCKET_FORMAT = "%019d";
+
+	protected Instant visibleTime;
+
+	/**
+	 * Determine the row key of the marker
+	 * @param visibleTime		visible time of the task
+	 * @param bucketMillis		size of the time bucket in milliseconds
+	 * @param taskIdInQueue		id of the task in queue
+	 * @return	the row key
+	 */
+	static public String rowKey(Instant visibleTime, long bucketMillis, String taskIdInQueue){
+		return bucketPrefix(bucket(visibleTime, bucketMillis)) + ROW_KEY_PREFIX + taskIdInQueue;
+	}
+
+	/**
+	 * Get the id of the task in queue from the row key of the marker
+	 * @param rowKey	row key of the marker
+	 * @return	the id of the task in queue
+	 */
+	static public String taskIdInQueue(String rowKey){
+		Validate.isTrue(rowKey.startsWith(ROW_KEY_PREFIX), "Not a row key of visibility marker: %s", rowKey);
+		return rowKey.substring(rowKey.indexOf(ROW_KEY_PREFIX, ROW_KEY_PREFIX.length()) + ROW_KEY_PREFIX.length());
+	}
+
+	static protected long bucket(Instant time, long bucketMillis){
+		return Math.max(0, time.toEpochMilli()) / bucketMillis;
+	}
+
+	static protected String bucketPrefix(long bucket){
+		return ROW_KEY_PREFIX + String.format(BUCKET_FORMAT, bucket);
+	}
+
+	/**
+	 * Generate the filter for markers in buckets no later than the one containing the specified time,
+	 * and with visible time no later than the specified time.
+	 * Only row keys of the due buckets are scanned.
+	 * @param time			the time
+	 * @param bucketMillis	size of the time bucket in milliseconds
+	 * @return	the filter string
+	 */
+	static public String filterByVisibleTimeNoLaterThan(Instant time, long bucketMillis){
+		return AzureStorageUtility.combineTableQueryFilters(TableQuery.Operators.AND,
+				TableQuery.generateFilterCondition(AzureStorageUtility.ROW_KEY, QueryComparisons.GREATER_THAN_OR_EQUAL, ROW_KEY_PREFIX),
+				TableQuery.generateFilterCondition(AzureStorageUtility.ROW_KEY, QueryComparisons.LESS_THAN, bucketPrefix(bucket(time, bucketMillis) + 1)),
+				TableQuery.generateFilterCondition("W", QueryComparisons.LESS_THAN_OR_EQUAL, Date.from(time))
+				);
+	}
+
+	public VisibilityMarkerEntity(){
+
+	}
+
+	/**
+	 * Create the marker of a task according to its current visible time and visibility marker
+	 * @param task	the task, its visibility marker must have been set
+	 */
+	public VisibilityMarkerEntity(TaskEntity task){
+		this(task.getPartitionKey(), task.getVisibilityMarker());
+		this.visibleTime = task.getVisibleTime();
+	}
+
+	/**
+	 * Create a reference to a marker, typically for deleting it unconditionally
+	 * @param partitionKey	partition key
+	 * @param rowKey		row key
+	 */
+	public VisibilityMarkerEntity(String partitionKey, String rowKey){
+		this.partitionKey = partitionKey;
+		this.rowKey = rowKey;
+		this.etag = "*";
+	}
+
+	@Ignore
+	public String getTaskIdInQueue(){
+		return taskIdInQueue(rowKey);
+	}
+
+	/**
+	 * @return the time that the task will be visible for execution
+	 */
+	@StoreAs(name="W")
+	public Date getVisibleTimeAsDate() {
+		return this.visibleTime == null ? null : Date.from(this.visibleTime);
+	}
+
+	/**
+	 * @param visibleTimeAsDate the time that the task will be visible for execution
+	 */
+	@StoreAs(name="W")
+	public void setVisibleTimeAsDate(Date visibleTimeAsDate) {
+		this.visibleTime = visibleTimeAsDate == null ? null : visibleTimeAsDate.toInstant();
+	}
+
+	@Ignore
+	public Instant getVisibleTime() {
+		return visibleTime;
+	}
+
+	@Ignore
+	public void setVisibleTime(Instant visibleTime) {
+		this.visibleTime = visibleTime;
+	}
+
+}
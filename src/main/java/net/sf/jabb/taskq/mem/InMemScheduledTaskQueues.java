@@ -0,0 +1,478 @@
+/**
+ *
+ */
+package net.sf.jabb.taskq.mem;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import net.sf.jabb.taskq.ReadOnlyScheduledTask;
+import net.sf.jabb.taskq.ScheduledTaskQueues;
+import net.sf.jabb.taskq.ex.NoSuchTaskException;
+import net.sf.jabb.taskq.ex.NotOwningTaskException;
+import net.sf.jabb.taskq.ex.ScheduledTaskQueuesException;
+import net.sf.jabb.taskq.ex.TaskQueueStorageInfrastructureException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * The implementation of ScheduledTaskQueues that keeps all data in memory.
+ * This implementation is intended for testing, PoC, demo, and single node usage.
+ * <p>
+ * Each queue has a delay index which is ordered by (visibleTime, enqueuedTime).
+ * Dequeuing a task just moves it within the index with its visible time set to the timeout,
+ * so that the task becomes visible again automatically when the lease expires.
+ * Tasks whose predecessors still exist are not in the delay index, instead they are kept in a dependency index keyed by predecessor ID,
+ * and are moved into the delay index when their predecessors are deleted.
+ * Therefore getting k tasks costs O(k log n) and does not need to check the existence of predecessors.
+ * </p>
+ * <p>
+ * {@link #take(String, int, String, Duration, Duration)} waits on the lock of all tasks without polling.
+ * </p>
+ * @author James Hu
+ *
+ */
+public class InMemScheduledTaskQueues implements ScheduledTaskQueues {
+	static private final String DELIMITER_IN_FULL_TASK_ID = "/";
+
+	static protected final Comparator<InMemTask> DELAY_INDEX_ORDER = Comparator
+			.comparing((InMemTask t) -> t.visibleTime)
+			.thenComparingLong(t -> t.sequence);
+
+	/**
+	 * All tasks by their full IDs
+	 */
+	protected Map<String, InMemTask> tasks = new HashMap<>();
+	/**
+	 * Delay index of visible or to be visible tasks by queue name
+	 */
+	protected Map<String, TreeSet<InMemTask>> delayIndexes = new HashMap<>();
+	/**
+	 * Tasks waiting for their predecessors to be deleted, by predecessor ID
+	 */
+	protected Map<String, List<InMemTask>> dependencyIndex = new HashMap<>();
+
+	protected long nextSequence;
+
+	/**
+	 * The task kept in memory
+	 * @author James Hu
+	 *
+	 */
+	static protected class InMemTask implements ReadOnlyScheduledTask{
+		protected String queue;
+		protected String taskId;
+		protected long sequence;
+		protected String predecessorId;
+		protected String processorId;
+		protected Instant expectedExecutionTime;
+		protected Instant visibleTime;
+		protected Serializable detail;
+		protected int attempts;
+		protected boolean waitingForPredecessor;
+
+		/**
+		 * Create and return a copy of this object
+		 * @return	the copy of this object
+		 */
+		public InMemTask copy(){
+			InMemTask that = new InMemTask();
+			that.queue = this.queue;
+			that.taskId = this.taskId;
+			that.sequence = this.sequence;
+			that.predecessorId = this.predecessorId;
+			that.processorId = this.processorId;
+			that.expectedExecutionTime = this.expectedExecutionTime;
+			that.visibleTime = this.visibleTime;
+			that.detail = this.detail;
+			that.attempts = this.attempts;
+			that.waitingForPredecessor = this.waitingForPredecessor;
+			return that;
+		}
+
+		@Override
+		public Instant getExpectedExecutionTime() {
+			return expectedExecutionTime;
+		}
+
+		@Override
+		public String getPredecessorId() {
+			return predecessorId;
+		}
+
+		@Override
+		public Serializable getDetail() {
+			return detail;
+		}
+
+		@Override
+		public int getAttempts() {
+			return attempts;
+		}
+
+		@Override
+		public String getTaskId() {
+			return taskId;
+		}
+
+		public String getQueue(){
+			return queue;
+		}
+
+		public String getProcessorId(){
+			return processorId;
+		}
+
+		public Instant getVisibleTime(){
+			return visibleTime;
+		}
+
+		@Override
+		public String toString() {
+			return "InMemTask [taskId=" + taskId + ", predecessorId=" + predecessorId + ", processorId=" + processorId
+					+ ", expectedExecutionTime=" + expectedExecutionTime + ", visibleTime=" + visibleTime + ", attempts=" + attempts + "]";
+		}
+	}
+
+	public InMemScheduledTaskQueues(){
+
+	}
+
+	protected String newUniqueTaskId(String queue){
+		return queue + DELIMITER_IN_FULL_TASK_ID + UUID.randomUUID().toString();
+	}
+
+	@Override
+	public String put(String queue, Serializable detail, Instant expectedExecutionTime, String predecessorId)
+			throws TaskQueueStorageInfrastructureException {
+		Validate.notNull(queue, "Queue name cannot be null");
+		Validate.notNull(expectedExecutionTime, "expected execution time cannot be null");
+
+		InMemTask task = newTask(queue, detail, expectedExecutionTime, predecessorId);
+		synchronized(tasks){
+			enqueue(task);
+		}
+		return task.taskId;
+	}
+
+	@Override
+	public List<String> putAll(String queue, List<? extends ReadOnlyScheduledTask> tasksToPut) throws TaskQueueStorageInfrastructureException {
+		Validate.notNull(queue, "Queue name cannot be null");
+		Validate.notNull(tasksToPut, "Tasks cannot be null");
+
+		Instant now = Instant.now();
+		List<InMemTask> newTasks = new ArrayList<>(tasksToPut.size());
+		List<String> ids = new ArrayList<>(tasksToPut.size());
+		for (ReadOnlyScheduledTask t: tasksToPut){
+			InMemTask task = newTask(queue, t.getDetail(), t.getExpectedExecutionTime() == null ? now : t.getExpectedExecutionTime(), t.getPredecessorId());
+			newTasks.add(task);
+			ids.add(task.taskId);
+		}
+		synchronized(tasks){
+			for (InMemTask task: newTasks){
+				enqueue(task);
+			}
+		}
+		return ids;
+	}
+
+	protected InMemTask newTask(String queue, Serializable detail, Instant expectedExecutionTime, String predecessorId){
+		InMemTask task = new InMemTask();
+		task.queue = queue;
+		task.taskId = newUniqueTaskId(queue);
+		task.detail = detail;
+		task.expectedExecutionTime = expectedExecutionTime;
+		task.visibleTime = expectedExecutionTime;
+		task.predecessorId = predecessorId;
+		return task;
+	}
+
+	/**
+	 * Put the task into either the delay index or the dependency index. This method must be called within synchronized(tasks).
+	 * @param task	the new task
+	 */
+	protected void enqueue(InMemTask task){
+		task.sequence = nextSequence++;
+		tasks.put(task.taskId, task);
+		if (task.predecessorId != null && tasks.containsKey(task.predecessorId)){
+			task.waitingForPredecessor = true;
+			dependencyIndex.computeIfAbsent(task.predecessorId, k->new LinkedList<>()).add(task);
+		}else{
+			delayIndex(task.queue).add(task);
+			tasks.notifyAll();
+		}
+	}
+
+	@Override
+	public List<ReadOnlyScheduledTask> get(String queue, Instant expectedExecutionTime, int maxNumOfTasks, String processorId, Instant timeout)
+			throws TaskQueueStorageInfrastructureException {
+		Validate.notNull(queue, "Queue name cannot be null");
+		Validate.notNull(expectedExecutionTime, "expected execution time cannot be null");
+		Validate.isTrue(maxNumOfTasks > 0, "Maximum number of tasks must be greater than zero");
+		Validate.notNull(processorId, "Processor ID cannot be null");
+		Validate.notNull(timeout, "Timeout time cannot be null");
+
+		List<ReadOnlyScheduledTask> result = new ArrayList<>(maxNumOfTasks);
+		synchronized(tasks){
+			TreeSet<InMemTask> index = delayIndexes.get(queue);
+			if (index == null){
+				return result;
+			}
+			List<InMemTask> dequeued = new ArrayList<>(maxNumOfTasks);
+			Iterator<InMemTask> it = index.iterator();
+			while (dequeued.size() < maxNumOfTasks && it.hasNext()){
+				InMemTask task = it.next();
+				if (task.visibleTime.isAfter(expectedExecutionTime)){
+					break;
+				}
+				it.remove();
+				dequeued.add(task);
+			}
+			for (InMemTask task: dequeued){		// they are in the order of (visibleTime, enqueuedTime) before being updated
+				doClaim(task, processorId, timeout);
+				index.add(task);
+				result.add(task.copy());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Get tasks from the queue, waiting if necessary.
+	 * Waiting threads are woken up when tasks are put, aborted, or released from waiting for their predecessors,
+	 * and when the earliest visible time of tasks in the queue arrives.
+	 */
+	@Override
+	public List<ReadOnlyScheduledTask> take(String queue, int maxNumOfTasks, String processorId, Duration timeoutDuration, Duration maxWait)
+			throws TaskQueueStorageInfrastructureException, InterruptedException {
+		Validate.notNull(maxWait, "Maximum waiting time cannot be null");
+		long deadline = System.currentTimeMillis() + maxWait.toMillis();
+		while(true){
+			List<ReadOnlyScheduledTask> result = get(queue, maxNumOfTasks, processorId, timeoutDuration);
+			if (result.size() > 0){
+				return result;
+			}
+			synchronized(tasks){
+				long now = System.currentTimeMillis();
+				long waitMillis = deadline - now;
+				if (waitMillis <= 0){
+					return result;
+				}
+				TreeSet<InMemTask> index = delayIndexes.get(queue);
+				if (index != null && index.size() > 0){
+					long untilVisible = index.first().visibleTime.toEpochMilli() - now + 1;
+					if (untilVisible <= 0){		// changed after get(...)
+						continue;
+					}
+					waitMillis = Math.min(waitMillis, untilVisible);
+				}
+				tasks.wait(waitMillis);
+			}
+		}
+	}
+
+	/**
+	 * Update the task as being owned by the processor. This method must be called within synchronized(tasks),
+	 * and the task must have been removed from the delay index.
+	 * @param task			the task
+	 * @param processorId	ID of the processor
+	 * @param timeout		the timeout
+	 */
+	protected void doClaim(InMemTask task, String processorId, Instant timeout){
+		task.attempts ++;
+		task.processorId = processorId;
+		task.visibleTime = timeout;
+	}
+
+	/**
+	 * Find the task and make sure that it is currently owned by the processor. This method must be called within synchronized(tasks).
+	 * @param id			ID of the task
+	 * @param processorId	ID of the processor
+	 * @return	the task
+	 * @throws NotOwningTaskException	if the task is not currently owned by the processor
+	 * @throws NoSuchTaskException		if the task cannot be found
+	 */
+	protected InMemTask getOwnedTask(String id, String processorId) throws NotOwningTaskException, NoSuchTaskException{
+		Validate.notNull(id, "Task ID cannot be null");
+		Validate.notNull(processorId, "Processor ID cannot be null");
+		InMemTask task = tasks.get(id);
+		if (task == null){
+			throw new NoSuchTaskException("No task with ID '" + id + "' can be found");
+		}
+		if (!StringUtils.equals(processorId, task.processorId) || task.waitingForPredecessor
+				|| task.visibleTime.isBefore(Instant.now())){
+			throw new NotOwningTaskException("Task with ID '" + id + "' is not currently owned by processor with ID '" + processorId + "'");
+		}
+		return task;
+	}
+
+	@Override
+	public void finish(String id, String processorId) throws NotOwningTaskException, NoSuchTaskException, TaskQueueStorageInfrastructureException {
+		synchronized(tasks){
+			doFinish(getOwnedTask(id, processorId));
+		}
+	}
+
+	@Override
+	public void abort(String id, String processorId) throws NotOwningTaskException, NoSuchTaskException, TaskQueueStorageInfrastructureException {
+		synchronized(tasks){
+			doAbort(getOwnedTask(id, processorId));
+		}
+	}
+
+	@Override
+	public void renewTimeout(String id, String processorId, Instant newTimeout) throws NotOwningTaskException, NoSuchTaskException,
+			TaskQueueStorageInfrastructureException {
+		Validate.notNull(newTimeout, "New timeout time cannot be null");
+		synchronized(tasks){
+			doRenewTimeout(getOwnedTask(id, processorId), newTimeout);
+		}
+	}
+
+	@Override
+	public Map<String, ScheduledTaskQueuesException> finishAll(Collection<String> ids, String processorId) {
+		return updateAll(ids, processorId, this::doFinish);
+	}
+
+	@Override
+	public Map<String, ScheduledTaskQueuesException> abortAll(Collection<String> ids, String processorId) {
+		return updateAll(ids, processorId, this::doAbort);
+	}
+
+	@Override
+	public Map<String, ScheduledTaskQueuesException> renewTimeoutAll(Collection<String> ids, String processorId, Instant newTimeout) {
+		Validate.notNull(newTimeout, "New timeout time cannot be null");
+		return updateAll(ids, processorId, task -> doRenewTimeout(task, newTimeout));
+	}
+
+	/**
+	 * Apply the same operation to multiple tasks within one synchronized(tasks) block
+	 * @param ids			IDs of the tasks
+	 * @param processorId	ID of the processor
+	 * @param operation		the operation to be applied to tasks owned by the processor
+	 * @return	exceptions by ID of the tasks that can't be found or are not owned by the processor
+	 */
+	protected Map<String, ScheduledTaskQueuesException> updateAll(Collection<String> ids, String processorId, Consumer<InMemTask> operation){
+		Validate.notNull(ids, "Task IDs cannot be null");
+		Map<String, ScheduledTaskQueuesException> failures = new HashMap<>();
+		synchronized(tasks){
+			for (String id: ids){
+				try{
+					operation.accept(getOwnedTask(id, processorId));
+				}catch(NotOwningTaskException | NoSuchTaskException e){
+					failures.put(id, e);
+				}
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * Delete the task. This method must be called within synchronized(tasks).
+	 * @param task	the task
+	 */
+	protected void doFinish(InMemTask task){
+		delayIndexes.get(task.queue).remove(task);
+		tasks.remove(task.taskId);
+		releaseSuccessors(task.taskId);
+	}
+
+	/**
+	 * Make the task visible again. This method must be called within synchronized(tasks).
+	 * @param task	the task
+	 */
+	protected void doAbort(InMemTask task){
+		TreeSet<InMemTask> index = delayIndexes.get(task.queue);
+		index.remove(task);
+		task.visibleTime = Instant.now();
+		task.processorId = null;
+		index.add(task);
+		tasks.notifyAll();
+	}
+
+	/**
+	 * Update the timeout of the task. This method must be called within synchronized(tasks).
+	 * @param task			the task
+	 * @param newTimeout	the new timeout
+	 */
+	protected void doRenewTimeout(InMemTask task, Instant newTimeout){
+		TreeSet<InMemTask> index = delayIndexes.get(task.queue);
+		index.remove(task);
+		task.visibleTime = newTimeout;
+		index.add(task);
+		tasks.notifyAll();
+	}
+
+	@Override
+	public void clear(String queue) throws TaskQueueStorageInfrastructureException {
+		Validate.notNull(queue, "Queue name cannot be null");
+		synchronized(tasks){
+			List<String> deletedIds = new ArrayList<>();
+			for (Iterator<InMemTask> it = tasks.values().iterator(); it.hasNext();){
+				InMemTask task = it.next();
+				if (task.queue.equals(queue)){
+					it.remove();
+					deletedIds.add(task.taskId);
+					if (task.waitingForPredecessor){
+						List<InMemTask> waiting = dependencyIndex.get(task.predecessorId);
+						waiting.remove(task);
+						if (waiting.isEmpty()){
+							dependencyIndex.remove(task.predecessorId);
+						}
+					}
+				}
+			}
+			delayIndexes.remove(queue);
+			for (String id: deletedIds){
+				releaseSuccessors(id);
+			}
+		}
+	}
+
+	@Override
+	public void clearAll() throws TaskQueueStorageInfrastructureException {
+		synchronized(tasks){
+			tasks.clear();
+			delayIndexes.clear();
+			dependencyIndex.clear();
+		}
+	}
+
+	/**
+	 * Get the delay index of a queue, create it if it does not exist. This method must be called within synchronized(tasks).
+	 * @param queue	name of the queue
+	 * @return	the delay index
+	 */
+	protected TreeSet<InMemTask> delayIndex(String queue){
+		return delayIndexes.computeIfAbsent(queue, k->new TreeSet<>(DELAY_INDEX_ORDER));
+	}
+
+	/**
+	 * Move the tasks waiting for a deleted task into delay indexes. This method must be called within synchronized(tasks).
+	 * @param deletedTaskId	ID of the task that had been deleted
+	 */
+	protected void releaseSuccessors(String deletedTaskId){
+		List<InMemTask> successors = dependencyIndex.remove(deletedTaskId);
+		if (successors != null){
+			for (InMemTask task: successors){
+				task.waitingForPredecessor = false;
+				delayIndex(task.queue).add(task);
+			}
+			tasks.notifyAll();
+		}
+	}
+
+}
@@ -0,0 +1,695 @@
+/**
+ *
+ */
+package net.sf.jabb.taskq.mem;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import net.sf.jabb.taskq.ReadOnlyScheduledTask;
+import net.sf.jabb.taskq.ex.NoSuchTaskException;
+import net.sf.jabb.taskq.ex.NotOwningTaskException;
+import net.sf.jabb.taskq.ex.ScheduledTaskQueuesException;
+import net.sf.jabb.taskq.ex.TaskQueueStorageInfrastructureException;
+import net.sf.jabb.util.codec.CompactDetailCodec;
+import net.sf.jabb.util.codec.DetailCodec;
+import net.sf.jabb.util.ex.ExceptionUncheckUtility.ConsumerThrowsExceptions;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The durable implementation of ScheduledTaskQueues for single node usage.
+ * All data are kept in memory in the same way as {@link InMemScheduledTaskQueues} does,
+ * and every change is recorded in an append-only journal file from which the state is rebuilt on startup.
+ * <p>
+ * Journal records are appended to an in-memory buffer while the state is being changed,
+ * and the thread returning from a changing method makes sure that its records have been written and forced to the file.
+ * Records from concurrent callers are written and forced together (group commit), so that one fsync serves many changes.
+ * A record torn by a crash is detected by its checksum and the journal is truncated there on startup.
+ * </p>
+ * <p>
+ * The journal is compacted periodically when the number of records in it is much larger than the number of tasks,
+ * by writing a snapshot of all the tasks into a new file and then renaming it over the journal.
+ * </p>
+ * <p>
+ * Only one instance can use a journal file at any time. {@link #close()} should be called when it is no longer used.
+ * </p>
+ * @author James Hu
+ *
+ */
+public class JournaledScheduledTaskQueues extends InMemScheduledTaskQueues implements AutoCloseable {
+	static private final Logger logger = LoggerFactory.getLogger(JournaledScheduledTaskQueues.class);
+
+	static public final String DEFAULT_JOURNAL_FILE_NAME = "taskq.journal";
+	static public final Duration DEFAULT_COMPACTION_INTERVAL = Duration.ofMinutes(1);
+	/**
+	 * Journals with fewer records than this are never compacted automatically
+	 */
+	static public final long DEFAULT_MIN_RECORDS_TO_COMPACT = 100000;
+
+	static protected final byte RECORD_PUT = 1;
+	static protected final byte RECORD_CLAIM = 2;
+	static protected final byte RECORD_FINISH = 3;
+	static protected final byte RECORD_ABORT = 4;
+	static protected final byte RECORD_RENEW = 5;
+	static protected final byte RECORD_CLEAR = 6;
+	static protected final byte RECORD_CLEAR_ALL = 7;
+
+	static protected final int RECORD_HEADER_LENGTH = 8;	// length and checksum
+	static protected final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+	protected final Path journalPath;
+	protected final DetailCodec detailCodec;
+	protected final long minRecordsToCompact;
+
+	protected FileChannel channel;
+	protected boolean replaying;
+
+	// buffer for encoding a record, guarded by tasks
+	protected final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+	protected final DataOutputStream recordOut = new DataOutputStream(recordBuffer);
+	protected final CRC32 crc = new CRC32();
+
+	// group commit state, guarded by journalLock
+	protected final Object journalLock = new Object();
+	protected ByteArrayOutputStream pendingWrites = new ByteArrayOutputStream();
+	protected long appendedPosition;
+	protected long durablePosition;
+	protected boolean syncing;
+	protected IOException failure;
+	protected long numRecords;
+
+	protected final ScheduledExecutorService compactionScheduler;
+	protected volatile boolean closed;
+
+	/**
+	 * Constructor with default journal file name, detail codec, and compaction settings
+	 * @param directory		the directory containing the journal file, it will be created if it does not exist
+	 * @throws TaskQueueStorageInfrastructureException	if the journal cannot be opened or read
+	 */
+	public JournaledScheduledTaskQueues(Path directory) throws TaskQueueStorageInfrastructureException{
+		this(directory.resolve(DEFAULT_JOURNAL_FILE_NAME), CompactDetailCodec.INSTANCE, DEFAULT_COMPACTION_INTERVAL, DEFAULT_MIN_RECORDS_TO_COMPACT);
+	}
+
+	/**
+	 * Constructor. The state will be rebuilt from the journal file if it exists.
+	 * @param journalPath			path of the journal file
+	 * @param detailCodec			the codec for task details
+	 * @param compactionInterval	interval of checking whether the journal needs to be compacted, null means never compact automatically
+	 * @param minRecordsToCompact	journals with fewer records than this are not compacted automatically
+	 * @throws TaskQueueStorageInfrastructureException	if the journal cannot be opened or read
+	 */
+	public JournaledScheduledTaskQueues(Path journalPath, DetailCodec detailCodec, Duration compactionInterval, long minRecordsToCompact) throws TaskQueueStorageInfrastructureException{
+		Validate.notNull(journalPath, "Journal path cannot be null");
+		Validate.notNull(detailCodec, "Detail codec cannot be null");
+		this.journalPath = journalPath.toAbsolutePath();
+		this.detailCodec = detailCodec;
+		this.minRecordsToCompact = minRecordsToCompact;
+
+		try{
+			Files.createDirectories(this.journalPath.getParent());
+			synchronized(tasks){
+				long validLength = replay();
+				channel = FileChannel.open(this.journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				if (channel.size() > validLength){
+					logger.warn("Truncating journal '{}' from {} to {} bytes because the tail is incomplete or corrupted", this.journalPath, channel.size(), validLength);
+					channel.truncate(validLength);
+					channel.force(true);
+				}
+				channel.position(validLength);
+			}
+		}catch(IOException e){
+			throw new TaskQueueStorageInfrastructureException("Failed to open journal: " + this.journalPath, e);
+		}
+		logger.debug("Opened journal '{}' with {} records and {} tasks", this.journalPath, numRecords, tasks.size());
+
+		if (compactionInterval == null){
+			compactionScheduler = null;
+		}else{
+			compactionScheduler = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+					.namingPattern(JournaledScheduledTaskQueues.class.getSimpleName() + "-compaction-%d")
+					.daemon(true)
+					.build());
+			long intervalMillis = Math.max(1, compactionInterval.toMillis());
+			compactionScheduler.scheduleWithFixedDelay(this::compactIfNeeded, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Override
+	public String put(String queue, Serializable detail, Instant expectedExecutionTime, String predecessorId)
+			throws TaskQueueStorageInfrastructureException {
+		String id = super.put(queue, detail, expectedExecutionTime, predecessorId);
+		sync();
+		return id;
+	}
+
+	@Override
+	public List<String> putAll(String queue, List<? extends ReadOnlyScheduledTask> tasksToPut) throws TaskQueueStorageInfrastructureException {
+		List<String> ids = super.putAll(queue, tasksToPut);
+		sync();
+		return ids;
+	}
+
+	@Override
+	public List<ReadOnlyScheduledTask> get(String queue, Instant expectedExecutionTime, int maxNumOfTasks, String processorId, Instant timeout)
+			throws TaskQueueStorageInfrastructureException {
+		List<ReadOnlyScheduledTask> result = super.get(queue, expectedExecutionTime, maxNumOfTasks, processorId, timeout);
+		if (result.size() > 0){
+			sync();
+		}
+		return result;
+	}
+
+	@Override
+	public void finish(String id, String processorId) throws NotOwningTaskException, NoSuchTaskException, TaskQueueStorageInfrastructureException {
+		super.finish(id, processorId);
+		sync();
+	}
+
+	@Override
+	public void abort(String id, String processorId) throws NotOwningTaskException, NoSuchTaskException, TaskQueueStorageInfrastructureException {
+		super.abort(id, processorId);
+		sync();
+	}
+
+	@Override
+	public void renewTimeout(String id, String processorId, Instant newTimeout) throws NotOwningTaskException, NoSuchTaskException,
+			TaskQueueStorageInfrastructureException {
+		super.renewTimeout(id, processorId, newTimeout);
+		sync();
+	}
+
+	@Override
+	protected Map<String, ScheduledTaskQueuesException> updateAll(Collection<String> ids, String processorId, Consumer<InMemTask> operation){
+		Map<String, ScheduledTaskQueuesException> failures = super.updateAll(ids, processorId, operation);
+		if (failures.size() < ids.size()){
+			try{
+				sync();
+			}catch(TaskQueueStorageInfrastructureException e){
+				for (String id: ids){
+					failures.putIfAbsent(id, e);
+				}
+			}
+		}
+		return failures;
+	}
+
+	@Override
+	public void clear(String queue) throws TaskQueueStorageInfrastructureException {
+		synchronized(tasks){
+			super.clear(queue);
+			append(out -> {
+				out.writeByte(RECORD_CLEAR);
+				out.writeUTF(queue);
+			});
+		}
+		sync();
+	}
+
+	@Override
+	public void clearAll() throws TaskQueueStorageInfrastructureException {
+		synchronized(tasks){
+			super.clearAll();
+			append(out -> out.writeByte(RECORD_CLEAR_ALL));
+		}
+		sync();
+	}
+
+	@Override
+	protected void enqueue(InMemTask task){
+		super.enqueue(task);
+		append(out -> writeTask(out, task));
+	}
+
+	@Override
+	protected void doClaim(InMemTask task, String processorId, Instant timeout){
+		super.doClaim(task, processorId, timeout);
+		append(out -> {
+			out.writeByte(RECORD_CLAIM);
+			out.writeUTF(task.taskId);
+			out.writeUTF(processorId);
+			writeInstant(out, timeout);
+		});
+	}
+
+	@Override
+	protected void doFinish(InMemTask task){
+		super.doFinish(task);
+		append(out -> {
+			out.writeByte(RECORD_FINISH);
+			out.writeUTF(task.taskId);
+		});
+	}
+
+	@Override
+	protected void doAbort(InMemTask task){
+		super.doAbort(task);
+		append(out -> {
+			out.writeByte(RECORD_ABORT);
+			out.writeUTF(task.taskId);
+			writeInstant(out, task.visibleTime);
+		});
+	}
+
+	@Override
+	protected void doRenewTimeout(InMemTask task, Instant newTimeout){
+		super.doRenewTimeout(task, newTimeout);
+		append(out -> {
+			out.writeByte(RECORD_RENEW);
+			out.writeUTF(task.taskId);
+			writeInstant(out, newTimeout);
+		});
+	}
+
+	/**
+	 * Encode a record and append it to the buffer of pending writes. This method must be called within synchronized(tasks).
+	 * Nothing is appended while replaying.
+	 * @param writer	the writer of the record content
+	 */
+	protected void append(ConsumerThrowsExceptions<DataOutputStream> writer){
+		if (replaying){
+			return;
+		}
+		recordBuffer.reset();
+		try{
+			writer.accept(recordOut);
+			recordOut.flush();
+		}catch(Exception e){	// it should never happen with in-memory output
+			throw new IllegalStateException("Failed to encode journal record", e);
+		}
+		int length = recordBuffer.size();
+		Validate.validState(length <= MAX_RECORD_LENGTH, "Journal record must not exceed %d bytes: %d", MAX_RECORD_LENGTH, length);
+		byte[] content = recordBuffer.toByteArray();
+		crc.reset();
+		crc.update(content, 0, length);
+		int checksum = (int) crc.getValue();
+		synchronized(journalLock){
+			pendingWrites.write(length >>> 24);
+			pendingWrites.write(length >>> 16);
+			pendingWrites.write(length >>> 8);
+			pendingWrites.write(length);
+			pendingWrites.write(checksum >>> 24);
+			pendingWrites.write(checksum >>> 16);
+			pendingWrites.write(checksum >>> 8);
+			pendingWrites.write(checksum);
+			pendingWrites.write(content, 0, length);
+			appendedPosition += RECORD_HEADER_LENGTH + length;
+			numRecords ++;
+		}
+	}
+
+	/**
+	 * Make sure that all the records appended so far have been written and forced to the file.
+	 * Concurrent callers share the same write and force.
+	 * @throws TaskQueueStorageInfrastructureException	if the journal cannot be written
+	 */
+	protected void sync() throws TaskQueueStorageInfrastructureException{
+		long position;
+		synchronized(journalLock){
+			position = appendedPosition;
+		}
+		try{
+			sync(position);
+		}catch(IOException e){
+			throw new TaskQueueStorageInfrastructureException("Failed to write journal: " + journalPath, e);
+		}
+	}
+
+	protected void sync(long position) throws IOException{
+		while(true){
+			byte[] data;
+			long target;
+			synchronized(journalLock){
+				while (syncing && durablePosition < position){
+					try {
+						journalLock.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while waiting for the journal to be written");
+					}
+				}
+				if (failure != null){
+					throw new IOException("Journal had failed", failure);
+				}
+				if (durablePosition >= position){
+					return;
+				}
+				syncing = true;		// this thread will write for all the others
+				data = pendingWrites.toByteArray();
+				pendingWrites.reset();
+				target = appendedPosition;
+			}
+
+			IOException ex = null;
+			try{
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				while (buffer.hasRemaining()){
+					channel.write(buffer);
+				}
+				channel.force(false);
+			}catch(IOException e){
+				ex = e;
+			}
+			synchronized(journalLock){
+				if (ex == null){
+					durablePosition = target;
+				}else{
+					failure = ex;	// the state in memory is no longer the same as that in the file
+				}
+				syncing = false;
+				journalLock.notifyAll();
+			}
+			if (ex != null){
+				throw ex;
+			}
+		}
+	}
+
+	/**
+	 * Compact the journal if the number of records in it is more than twice the number of tasks and more than the minimum
+	 */
+	protected void compactIfNeeded(){
+		long records;
+		int numTasks;
+		synchronized(tasks){
+			numTasks = tasks.size();
+			synchronized(journalLock){
+				records = numRecords;
+			}
+		}
+		if (records >= minRecordsToCompact && records > 2L * numTasks){
+			try{
+				compact();
+			}catch(Exception e){
+				logger.warn("Failed to compact journal: {}", journalPath, e);
+			}
+		}
+	}
+
+	/**
+	 * Replace the journal with a snapshot of all the tasks. Changes are blocked while compacting.
+	 * The journal lock is held for the whole compaction, so that threads returning from changing methods
+	 * can neither take the snapshot records from the buffer of pending writes nor write to the journal being replaced.
+	 * @throws TaskQueueStorageInfrastructureException	if the journal cannot be written
+	 */
+	public void compact() throws TaskQueueStorageInfrastructureException{
+		synchronized(tasks){
+			Validate.validState(!closed, "Already closed");
+			sync();
+			List<InMemTask> all = new ArrayList<>(tasks.values());
+			all.sort(Comparator.comparingLong(t -> t.sequence));
+			Path compactingPath = journalPath.resolveSibling(journalPath.getFileName() + ".compacting");
+			long oldRecords;
+			synchronized(journalLock){
+				oldRecords = numRecords;
+				numRecords = 0;
+				try{
+					try(FileChannel out = FileChannel.open(compactingPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+						for (InMemTask task: all){
+							append(o -> writeTask(o, task));
+							if (pendingWrites.size() >= 1024 * 1024){
+								writeFully(out, drainPendingWrites());
+							}
+						}
+						writeFully(out, drainPendingWrites());
+						out.force(true);
+					}
+					channel.close();
+					Files.move(compactingPath, journalPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+					forceDirectory(journalPath.getParent());
+					channel = FileChannel.open(journalPath, StandardOpenOption.WRITE);
+					channel.position(channel.size());
+					durablePosition = appendedPosition;
+				}catch(IOException e){
+					failure = e;
+					throw new TaskQueueStorageInfrastructureException("Failed to compact journal: " + journalPath, e);
+				}
+			}
+			logger.debug("Compacted journal '{}' from {} records to {} records", journalPath, oldRecords, all.size());
+		}
+	}
+
+	protected byte[] drainPendingWrites(){
+		synchronized(journalLock){
+			byte[] data = pendingWrites.toByteArray();
+			pendingWrites.reset();
+			return data;
+		}
+	}
+
+	static protected void writeFully(FileChannel out, byte[] data) throws IOException{
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()){
+			out.write(buffer);
+		}
+	}
+
+	/**
+	 * Force the directory entry changes to disk, it is not supported on some platforms and failures are ignored.
+	 * @param directory	the directory
+	 */
+	static protected void forceDirectory(Path directory){
+		try(FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)){
+			dir.force(true);
+		}catch(Exception e){
+			// not supported
+		}
+	}
+
+	/**
+	 * Stop compaction, make sure all changes are in the file, and close the file.
+	 * No method other than this one should be called after closing.
+	 */
+	@Override
+	public void close() throws TaskQueueStorageInfrastructureException {
+		if (closed){
+			return;
+		}
+		if (compactionScheduler != null){
+			compactionScheduler.shutdown();		// a compaction in progress must not be interrupted
+			try {
+				if (!compactionScheduler.awaitTermination(1, TimeUnit.MINUTES)){
+					logger.warn("Compaction of journal '{}' is still in progress when closing", journalPath);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized(tasks){
+			closed = true;
+			try{
+				sync();
+			}finally{
+				try {
+					channel.close();
+				} catch (IOException e) {
+					throw new TaskQueueStorageInfrastructureException("Failed to close journal: " + journalPath, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the number of records in the journal
+	 * @return	number of records
+	 */
+	public long getNumberOfRecords(){
+		synchronized(journalLock){
+			return numRecords;
+		}
+	}
+
+	public Path getJournalPath() {
+		return journalPath;
+	}
+
+	/**
+	 * Rebuild the state from the journal file. This method must be called within synchronized(tasks).
+	 * @return	length of the valid part of the file
+	 * @throws IOException	if the file cannot be read
+	 */
+	protected long replay() throws IOException{
+		if (!Files.exists(journalPath)){
+			return 0;
+		}
+		long validLength = 0;
+		replaying = true;
+		try(InputStream is = Files.newInputStream(journalPath); DataInputStream in = new DataInputStream(new BufferedInputStream(is, 64 * 1024))){
+			CRC32 checksum = new CRC32();
+			while(true){
+				byte[] content;
+				try{
+					int length = in.readInt();
+					int expectedChecksum = in.readInt();
+					if (length < 0 || length > MAX_RECORD_LENGTH){
+						break;
+					}
+					content = new byte[length];
+					in.readFully(content);
+					checksum.reset();
+					checksum.update(content, 0, length);
+					if ((int)checksum.getValue() != expectedChecksum){
+						break;
+					}
+				}catch(EOFException e){
+					break;
+				}
+				apply(new DataInputStream(new ByteArrayInputStream(content)));
+				validLength += RECORD_HEADER_LENGTH + content.length;
+				numRecords ++;
+			}
+		}finally{
+			replaying = false;
+		}
+		return validLength;
+	}
+
+	/**
+	 * Apply a journal record to the state. This method must be called within synchronized(tasks).
+	 * @param in	the content of the record
+	 * @throws IOException	if the record cannot be decoded
+	 */
+	protected void apply(DataInputStream in) throws IOException{
+		byte type = in.readByte();
+		switch(type){
+		case RECORD_PUT:
+			enqueue(readTask(in));
+			break;
+		case RECORD_CLEAR:
+			clearInMemory(in.readUTF());
+			break;
+		case RECORD_CLEAR_ALL:
+			tasks.clear();
+			delayIndexes.clear();
+			dependencyIndex.clear();
+			break;
+		default:
+			InMemTask task = tasks.get(in.readUTF());
+			if (task == null){
+				break;	// it had been cleared
+			}
+			TreeSet<InMemTask> index = delayIndexes.get(task.queue);
+			switch(type){
+			case RECORD_CLAIM:
+				String processorId = in.readUTF();
+				Instant timeout = readInstant(in);
+				index.remove(task);
+				super.doClaim(task, processorId, timeout);
+				index.add(task);
+				break;
+			case RECORD_FINISH:
+				super.doFinish(task);
+				break;
+			case RECORD_ABORT:
+				Instant visibleTime = readInstant(in);
+				index.remove(task);
+				task.visibleTime = visibleTime;
+				task.processorId = null;
+				index.add(task);
+				break;
+			case RECORD_RENEW:
+				super.doRenewTimeout(task, readInstant(in));
+				break;
+			default:
+				throw new IOException("Unknown journal record type: " + type);
+			}
+		}
+	}
+
+	protected void clearInMemory(String queue){
+		try{
+			super.clear(queue);
+		}catch(TaskQueueStorageInfrastructureException e){	// it never happens in memory
+			throw new IllegalStateException(e);
+		}
+	}
+
+	protected void writeTask(DataOutputStream out, InMemTask task) throws IOException{
+		out.writeByte(RECORD_PUT);
+		out.writeUTF(task.queue);
+		out.writeUTF(task.taskId);
+		writeNullableString(out, task.predecessorId);
+		writeNullableString(out, task.processorId);
+		writeInstant(out, task.expectedExecutionTime);
+		writeInstant(out, task.visibleTime);
+		out.writeInt(task.attempts);
+		if (task.detail == null){
+			out.writeInt(-1);
+		}else{
+			byte[] encoded = detailCodec.encode(task.detail);
+			out.writeInt(encoded.length);
+			out.write(encoded);
+		}
+	}
+
+	protected InMemTask readTask(DataInputStream in) throws IOException{
+		InMemTask task = new InMemTask();
+		task.queue = in.readUTF();
+		task.taskId = in.readUTF();
+		task.predecessorId = readNullableString(in);
+		task.processorId = readNullableString(in);
+		task.expectedExecutionTime = readInstant(in);
+		task.visibleTime = readInstant(in);
+		task.attempts = in.readInt();
+		int length = in.readInt();
+		if (length >= 0){
+			byte[] encoded = new byte[length];
+			in.readFully(encoded);
+			task.detail = detailCodec.decode(encoded);
+		}
+		return task;
+	}
+
+	static protected void writeInstant(DataOutputStream out, Instant instant) throws IOException{
+		out.writeLong(instant.getEpochSecond());
+		out.writeInt(instant.getNano());
+	}
+
+	static protected Instant readInstant(DataInputStream in) throws IOException{
+		long seconds = in.readLong();
+		int nanos = in.readInt();
+		return Instant.ofEpochSecond(seconds, nanos);
+	}
+
+	static protected void writeNullableString(DataOutputStream out, String s) throws IOException{
+		out.writeBoolean(s != null);
+		if (s != null){
+			out.writeUTF(s);
+		}
+	}
+
+	static protected String readNullableString(DataInputStream in) throws IOException{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+}
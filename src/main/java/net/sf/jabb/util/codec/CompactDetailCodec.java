@@ -0,0 +1,313 @@
+/**
+ *
+ */
+package net.sf.jabb.util.codec;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * DetailCodec having a compact binary format for the most commonly used types of detail:
+ * <ul>
+ * 	<li>String</li>
+ * 	<li>byte[]</li>
+ * 	<li>Integer, Long, Double, Float, Short, Byte, Boolean, Character</li>
+ * 	<li>HashMap and LinkedHashMap with keys and values of above types (except byte[] keys) or null</li>
+ * </ul>
+ * Other types are encoded with Java serialization.
+ * When decoding, both the compact format and Java serialization are supported,
+ * so that data encoded before this codec was introduced can still be read.
+ * <p>
+ * The first byte of the compact format is the type tag, it never conflicts with the magic number of Java serialization stream.
+ * Integral numbers are encoded as zigzag variable-length integers, strings are encoded as UTF-8.
+ * </p>
+ * @author James Hu
+ *
+ */
+public class CompactDetailCodec implements DetailCodec {
+	static public final CompactDetailCodec INSTANCE = new CompactDetailCodec();
+
+	static final byte TAG_NULL = 0;
+	static final byte TAG_STRING = 1;
+	static final byte TAG_BYTES = 2;
+	static final byte TAG_INTEGER = 3;
+	static final byte TAG_LONG = 4;
+	static final byte TAG_DOUBLE = 5;
+	static final byte TAG_FLOAT = 6;
+	static final byte TAG_TRUE = 7;
+	static final byte TAG_FALSE = 8;
+	static final byte TAG_SHORT = 9;
+	static final byte TAG_BYTE = 10;
+	static final byte TAG_CHARACTER = 11;
+	static final byte TAG_HASH_MAP = 12;
+	static final byte TAG_LINKED_HASH_MAP = 13;
+
+	protected DetailCodec fallback;
+
+	/**
+	 * Constructor with Java serialization as the fallback
+	 */
+	public CompactDetailCodec(){
+		this(JavaSerializationDetailCodec.INSTANCE);
+	}
+
+	/**
+	 * Constructor
+	 * @param fallback	the codec for types not supported by the compact format.
+	 * 					It must not produce output starting with bytes that could be mistaken as compact format (0x00-0x0D)
+	 */
+	public CompactDetailCodec(DetailCodec fallback){
+		Validate.notNull(fallback, "Fallback codec cannot be null");
+		this.fallback = fallback;
+	}
+
+	@Override
+	public byte[] encode(Serializable detail) {
+		Validate.notNull(detail, "Detail cannot be null");
+		Output out = new Output();
+		if (detail instanceof Map){
+			Class<?> c = detail.getClass();
+			if ((c == HashMap.class || c == LinkedHashMap.class) && isSupportedMap((Map<?, ?>)detail)){
+				Map<?, ?> map = (Map<?, ?>) detail;
+				out.writeByte(c == HashMap.class ? TAG_HASH_MAP : TAG_LINKED_HASH_MAP);
+				out.writeVarLong(map.size());
+				for (Map.Entry<?, ?> entry: map.entrySet()){
+					writeScalar(out, entry.getKey());
+					writeScalar(out, entry.getValue());
+				}
+				return out.toByteArray();
+			}
+		}else if (isSupportedScalar(detail)){
+			writeScalar(out, detail);
+			return out.toByteArray();
+		}
+		return fallback.encode(detail);
+	}
+
+	@Override
+	public Serializable decode(byte[] bytes) {
+		Validate.notNull(bytes, "Bytes cannot be null");
+		if (bytes.length == 0 || bytes[0] < 0 || bytes[0] > TAG_LINKED_HASH_MAP || bytes[0] == TAG_NULL){
+			return fallback.decode(bytes);
+		}
+		Input in = new Input(bytes);
+		byte tag = bytes[0];
+		if (tag == TAG_HASH_MAP || tag == TAG_LINKED_HASH_MAP){
+			in.position ++;
+			int size = (int) in.readVarLong();
+			Map<Object, Object> map = tag == TAG_HASH_MAP ? new HashMap<>(Math.max(16, size * 4 / 3 + 1)) : new LinkedHashMap<>(Math.max(16, size * 4 / 3 + 1));
+			for (int i = 0; i < size; i ++){
+				Object key = readScalar(in);
+				map.put(key, readScalar(in));
+			}
+			return (Serializable) map;
+		}else{
+			return (Serializable) readScalar(in);
+		}
+	}
+
+	static protected boolean isSupportedScalar(Object obj){
+		if (obj == null){
+			return true;
+		}
+		Class<?> c = obj.getClass();
+		return c == String.class || c == byte[].class || c == Integer.class || c == Long.class
+				|| c == Double.class || c == Float.class || c == Boolean.class
+				|| c == Short.class || c == Byte.class || c == Character.class;
+	}
+
+	static protected boolean isSupportedMap(Map<?, ?> map){
+		for (Map.Entry<?, ?> entry: map.entrySet()){
+			Object key = entry.getKey();
+			if (key instanceof byte[] || !isSupportedScalar(key) || !isSupportedScalar(entry.getValue())){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static protected void writeScalar(Output out, Object obj){
+		if (obj == null){
+			out.writeByte(TAG_NULL);
+		}else if (obj instanceof String){
+			out.writeByte(TAG_STRING);
+			out.writeBytes(((String)obj).getBytes(StandardCharsets.UTF_8));
+		}else if (obj instanceof byte[]){
+			out.writeByte(TAG_BYTES);
+			out.writeBytes((byte[])obj);
+		}else if (obj instanceof Integer){
+			out.writeByte(TAG_INTEGER);
+			out.writeVarLong(zigzag((Integer)obj));
+		}else if (obj instanceof Long){
+			out.writeByte(TAG_LONG);
+			out.writeVarLong(zigzag((Long)obj));
+		}else if (obj instanceof Double){
+			out.writeByte(TAG_DOUBLE);
+			out.writeFixedLong(Double.doubleToRawLongBits((Double)obj), 8);
+		}else if (obj instanceof Float){
+			out.writeByte(TAG_FLOAT);
+			out.writeFixedLong(Float.floatToRawIntBits((Float)obj), 4);
+		}else if (obj instanceof Boolean){
+			out.writeByte((Boolean)obj ? TAG_TRUE : TAG_FALSE);
+		}else if (obj instanceof Short){
+			out.writeByte(TAG_SHORT);
+			out.writeVarLong(zigzag((Short)obj));
+		}else if (obj instanceof Byte){
+			out.writeByte(TAG_BYTE);
+			out.writeByte((Byte)obj);
+		}else if (obj instanceof Character){
+			out.writeByte(TAG_CHARACTER);
+			out.writeVarLong((Character)obj);
+		}else{
+			throw new IllegalArgumentException("Unsupported type: " + obj.getClass());
+		}
+	}
+
+	static protected Object readScalar(Input in){
+		byte tag = in.readByte();
+		switch(tag){
+			case TAG_NULL:
+				return null;
+			case TAG_STRING:
+				return new String(in.bytes, in.skipLengthPrefixed(), in.lastLength, StandardCharsets.UTF_8);
+			case TAG_BYTES:
+				int offset = in.skipLengthPrefixed();
+				return Arrays.copyOfRange(in.bytes, offset, offset + in.lastLength);
+			case TAG_INTEGER:
+				return (int) unzigzag(in.readVarLong());
+			case TAG_LONG:
+				return unzigzag(in.readVarLong());
+			case TAG_DOUBLE:
+				return Double.longBitsToDouble(in.readFixedLong(8));
+			case TAG_FLOAT:
+				return Float.intBitsToFloat((int)in.readFixedLong(4));
+			case TAG_TRUE:
+				return Boolean.TRUE;
+			case TAG_FALSE:
+				return Boolean.FALSE;
+			case TAG_SHORT:
+				return (short) unzigzag(in.readVarLong());
+			case TAG_BYTE:
+				return in.readByte();
+			case TAG_CHARACTER:
+				return (char) in.readVarLong();
+			default:
+				throw new IllegalArgumentException("Unknown type tag " + tag + " at position " + (in.position - 1));
+		}
+	}
+
+	static protected long zigzag(long v){
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static protected long unzigzag(long v){
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * Minimal growable byte buffer
+	 */
+	static protected class Output{
+		byte[] buffer = new byte[64];
+		int size;
+
+		void ensureCapacity(int more){
+			if (size + more > buffer.length){
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + more));
+			}
+		}
+
+		void writeByte(int b){
+			ensureCapacity(1);
+			buffer[size ++] = (byte) b;
+		}
+
+		void writeVarLong(long v){
+			ensureCapacity(10);
+			while ((v & ~0x7FL) != 0){
+				buffer[size ++] = (byte)((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buffer[size ++] = (byte) v;
+		}
+
+		void writeFixedLong(long v, int numBytes){
+			ensureCapacity(numBytes);
+			for (int i = numBytes - 1; i >= 0; i --){
+				buffer[size ++] = (byte)(v >>> (i * 8));
+			}
+		}
+
+		void writeBytes(byte[] bytes){
+			writeVarLong(bytes.length);
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buffer, size, bytes.length);
+			size += bytes.length;
+		}
+
+		byte[] toByteArray(){
+			return Arrays.copyOf(buffer, size);
+		}
+	}
+
+	/**
+	 * Cursor over encoded bytes
+	 */
+	static protected class Input{
+		final byte[] bytes;
+		int position;
+		int lastLength;
+
+		Input(byte[] bytes){
+			this.bytes = bytes;
+		}
+
+		byte readByte(){
+			if (position >= bytes.length){
+				throw new IllegalArgumentException("Unexpected end of data");
+			}
+			return bytes[position ++];
+		}
+
+		long readVarLong(){
+			long result = 0;
+			for (int shift = 0; shift < 64; shift += 7){
+				byte b = readByte();
+				result |= (long)(b & 0x7F) << shift;
+				if ((b & 0x80) == 0){
+					return result;
+				}
+			}
+			throw new IllegalArgumentException("Malformed variable-length integer");
+		}
+
+		long readFixedLong(int numBytes){
+			long result = 0;
+			for (int i = 0; i < numBytes; i ++){
+				result = (result << 8) | (readByte() & 0xFF);
+			}
+			return result;
+		}
+
+		/**
+		 * Read the length prefix and skip the content
+		 * @return	the offset of the content, length of the content is in lastLength
+		 */
+		int skipLengthPrefixed(){
+			long length = readVarLong();
+			if (length < 0 || length > bytes.length - position){
+				throw new IllegalArgumentException("Invalid length " + length + " at position " + position);
+			}
+			int offset = position;
+			lastLength = (int) length;
+			position += lastLength;
+			return offset;
+		}
+	}
+}
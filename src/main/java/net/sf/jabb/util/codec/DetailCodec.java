@@ -0,0 +1,31 @@
+/**
+ *
+ */
+package net.sf.jabb.util.codec;
+
+import java.io.Serializable;
+
+/**
+ * Encoder/decoder of the detail payloads attached to transactions and tasks when they are persisted.
+ * Implementations must be thread safe.
+ * Data encoded by {@link JavaSerializationDetailCodec} (the format used before codecs were introduced)
+ * should always be accepted by {@link #decode(byte[])} so that existing data can still be read.
+ * @author James Hu
+ *
+ */
+public interface DetailCodec {
+	/**
+	 * Encode the detail into bytes
+	 * @param detail	the detail object, can't be null
+	 * @return	the encoded bytes
+	 */
+	byte[] encode(Serializable detail);
+
+	/**
+	 * Decode the detail from bytes
+	 * @param bytes		the encoded bytes, can't be null
+	 * @return	the detail object
+	 */
+	Serializable decode(byte[] bytes);
+
+}
@@ -0,0 +1,37 @@
+/**
+ *
+ */
+package net.sf.jabb.util.codec;
+
+import java.io.Serializable;
+
+import org.apache.commons.lang3.SerializationUtils;
+
+/**
+ * DetailCodec using standard Java serialization.
+ * @author James Hu
+ *
+ */
+public class JavaSerializationDetailCodec implements DetailCodec {
+	static public final JavaSerializationDetailCodec INSTANCE = new JavaSerializationDetailCodec();
+
+	/**
+	 * Check if the bytes look like a Java serialization stream
+	 * @param bytes		the bytes
+	 * @return	true if the bytes start with the Java serialization stream magic number
+	 */
+	static public boolean isJavaSerialized(byte[] bytes){
+		return bytes.length >= 2 && bytes[0] == (byte)0xAC && bytes[1] == (byte)0xED;
+	}
+
+	@Override
+	public byte[] encode(Serializable detail) {
+		return SerializationUtils.serialize(detail);
+	}
+
+	@Override
+	public Serializable decode(byte[] bytes) {
+		return (Serializable) SerializationUtils.deserialize(bytes);
+	}
+
+}
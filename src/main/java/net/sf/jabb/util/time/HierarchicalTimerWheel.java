@@ -0,0 +1,377 @@
+/**
+ *
+ */
+package net.sf.jabb.util.time;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hierarchical timer wheel.
+ * Scheduling and cancellation of timers are O(1), expiry of timers is processed tick by tick,
+ * and the cost of processing a tick does not depend on the number of timers pending.
+ * <p>
+ * Time is divided into ticks. The wheel has multiple levels, each level has 64 slots,
+ * a slot in level 0 covers 1 tick, a slot in level 1 covers 64 ticks, a slot in level 2 covers 64*64 ticks, and so on.
+ * Timers far in the future are kept in higher levels and cascaded down to lower levels as time goes,
+ * timers beyond the range of the highest level are kept in an overflow list.
+ * </p>
+ * <p>
+ * Timers are fired when {@link #advance()} is called after their deadlines, never before the deadline, and at most about 1 tick late.
+ * {@link #advance()} can be called by whoever is interested, and/or periodically by a background daemon thread started through {@link #start(Duration)}.
+ * Timer tasks are run in the thread calling {@link #advance()}, they should be short and must not block.
+ * This class is thread safe.
+ * </p>
+ * @author James Hu
+ *
+ */
+public class HierarchicalTimerWheel implements AutoCloseable {
+	static private final Logger logger = LoggerFactory.getLogger(HierarchicalTimerWheel.class);
+
+	static public final int DEFAULT_NUM_LEVELS = 6;
+
+	static protected final int WHEEL_BITS = 6;
+	static protected final int WHEEL_SIZE = 1 << WHEEL_BITS;
+	static protected final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+	static protected final int BUCKET_NONE = -1;
+
+	protected final long tickMillis;
+	protected final long startMillis;
+	protected final int numLevels;
+	protected final int overflowBucket;
+
+	/**
+	 * Heads of the doubly linked lists, the last one is for overflow
+	 */
+	protected final Handle[] buckets;
+	/**
+	 * The next tick to be processed
+	 */
+	protected long currentTick;
+	protected int size;
+
+	protected volatile ScheduledExecutorService driver;
+
+	/**
+	 * Handle of a scheduled timer, which can be used to cancel it.
+	 * @author James Hu
+	 *
+	 */
+	public class Handle{
+		protected final long deadlineTick;
+		protected final Instant deadline;
+		protected final Runnable task;
+		protected Handle previous;
+		protected Handle next;
+		protected int bucket = BUCKET_NONE;
+		protected volatile boolean cancelled;
+		protected volatile boolean expired;
+
+		Handle(long deadlineTick, Instant deadline, Runnable task){
+			this.deadlineTick = deadlineTick;
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		/**
+		 * Cancel the timer
+		 * @return true if it was pending and has been cancelled, false if it had already been cancelled or expired
+		 */
+		public boolean cancel(){
+			return HierarchicalTimerWheel.this.cancel(this);
+		}
+
+		/**
+		 * @return	the deadline of the timer
+		 */
+		public Instant getDeadline() {
+			return deadline;
+		}
+
+		/**
+		 * @return true if the timer had been cancelled
+		 */
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		/**
+		 * @return true if the timer had expired and its task had been or is being run
+		 */
+		public boolean isExpired() {
+			return expired;
+		}
+	}
+
+	/**
+	 * Constructor with 1 millisecond as tick duration and {@value #DEFAULT_NUM_LEVELS} levels
+	 */
+	public HierarchicalTimerWheel(){
+		this(Duration.ofMillis(1));
+	}
+
+	/**
+	 * Constructor with {@value #DEFAULT_NUM_LEVELS} levels
+	 * @param tickDuration	duration of a tick, it must be at least 1 millisecond
+	 */
+	public HierarchicalTimerWheel(Duration tickDuration){
+		this(tickDuration, DEFAULT_NUM_LEVELS);
+	}
+
+	/**
+	 * Constructor
+	 * @param tickDuration	duration of a tick, it must be at least 1 millisecond
+	 * @param numLevels		number of levels, it must be between 1 and 10.
+	 * 						Timers beyond 64^numLevels ticks are kept in an overflow list which will be revisited every 64^numLevels ticks.
+	 */
+	public HierarchicalTimerWheel(Duration tickDuration, int numLevels){
+		Validate.notNull(tickDuration, "Tick duration cannot be null");
+		Validate.isTrue(tickDuration.toMillis() >= 1, "Tick duration must be at least 1 millisecond: %s", tickDuration);
+		Validate.isTrue(numLevels >= 1 && numLevels <= 10, "Number of levels must be between 1 and 10: %d", numLevels);
+		this.tickMillis = tickDuration.toMillis();
+		this.numLevels = numLevels;
+		this.overflowBucket = numLevels * WHEEL_SIZE;
+		this.buckets = new Handle[overflowBucket + 1];
+		this.startMillis = currentTimeMillis();
+	}
+
+	/**
+	 * Get current time in milliseconds. Subclass may override it for testing purpose.
+	 * @return	current time in epoch milliseconds
+	 */
+	protected long currentTimeMillis(){
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Schedule a timer
+	 * @param deadline	when the timer should be fired
+	 * @param task		the task to be run when the timer expires
+	 * @return	handle of the timer
+	 */
+	public Handle schedule(Instant deadline, Runnable task){
+		Validate.notNull(deadline, "Deadline cannot be null");
+		Validate.notNull(task, "Task cannot be null");
+		long deadlineMillis = deadline.toEpochMilli();
+		if (deadline.getNano() % 1000000 != 0){	// never fire before the deadline
+			deadlineMillis ++;
+		}
+		long delta = deadlineMillis - startMillis;
+		long deadlineTick = delta <= 0 ? 0 : (delta + tickMillis - 1) / tickMillis;
+		Handle handle = new Handle(deadlineTick, deadline, task);
+		synchronized(buckets){
+			insert(handle);
+			size ++;
+		}
+		return handle;
+	}
+
+	/**
+	 * Schedule a timer
+	 * @param delay		after how long the timer should be fired
+	 * @param task		the task to be run when the timer expires
+	 * @return	handle of the timer
+	 */
+	public Handle schedule(Duration delay, Runnable task){
+		return schedule(Instant.ofEpochMilli(currentTimeMillis()).plus(delay), task);
+	}
+
+	/**
+	 * Cancel a timer
+	 * @param handle	handle of the timer
+	 * @return true if it was pending and has been cancelled, false if it had already been cancelled or expired
+	 */
+	public boolean cancel(Handle handle){
+		synchronized(buckets){
+			if (handle.bucket == BUCKET_NONE){
+				return false;
+			}
+			unlink(handle);
+			handle.cancelled = true;
+			size --;
+			return true;
+		}
+	}
+
+	/**
+	 * Get the number of pending timers
+	 * @return	number of timers scheduled but not yet expired or cancelled
+	 */
+	public int size(){
+		synchronized(buckets){
+			return size;
+		}
+	}
+
+	/**
+	 * Process all the ticks up to now and fire expired timers in current thread
+	 * @return	number of timers fired
+	 */
+	public int advance(){
+		List<Handle> expired = null;
+		synchronized(buckets){
+			long targetTick = (currentTimeMillis() - startMillis) / tickMillis;
+			if (size == 0){
+				if (currentTick <= targetTick){
+					currentTick = targetTick + 1;
+				}
+				return 0;
+			}
+			while(currentTick <= targetTick){
+				long tick = currentTick;
+				cascade(tick);
+				Handle h = buckets[(int)(tick & WHEEL_MASK)];
+				while (h != null){
+					Handle next = h.next;
+					unlink(h);
+					h.expired = true;
+					size --;
+					if (expired == null){
+						expired = new ArrayList<>();
+					}
+					expired.add(h);
+					h = next;
+				}
+				currentTick ++;
+			}
+		}
+
+		if (expired == null){
+			return 0;
+		}
+		for (Handle h: expired){
+			try{
+				h.task.run();
+			}catch(Exception e){
+				logger.warn("Exception happened when running the task of timer expired at {}", h.deadline, e);
+			}
+		}
+		return expired.size();
+	}
+
+	/**
+	 * Start a background daemon thread to call {@link #advance()} periodically.
+	 * Calling this method when the background thread had already been started will have no effect.
+	 * @param interval	interval between the calls
+	 */
+	public void start(Duration interval){
+		Validate.notNull(interval, "Interval cannot be null");
+		synchronized(this){
+			if (driver == null){
+				driver = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+						.namingPattern(HierarchicalTimerWheel.class.getSimpleName() + "-%d")
+						.daemon(true)
+						.build());
+				long millis = Math.max(1, interval.toMillis());
+				driver.scheduleWithFixedDelay(()->{
+					try{
+						advance();
+					}catch(Exception e){
+						logger.error("Failed to advance timer wheel", e);
+					}
+				}, millis, millis, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Stop the background thread if it had been started. Pending timers are kept and can still be fired by calling {@link #advance()}.
+	 */
+	@Override
+	public void close(){
+		synchronized(this){
+			if (driver != null){
+				driver.shutdownNow();
+				driver = null;
+			}
+		}
+	}
+
+	/**
+	 * Put the handle into the right bucket according to its deadline and current tick
+	 * @param handle	the handle to be inserted
+	 */
+	protected void insert(Handle handle){
+		long d = handle.deadlineTick;
+		if (d < currentTick){		// already due, fire in the next tick
+			link(handle, (int)(currentTick & WHEEL_MASK));
+			return;
+		}
+		// find the lowest level within the current rotation of which the deadline falls
+		for (int level = 0; level < numLevels; level ++){
+			int shift = WHEEL_BITS * (level + 1);
+			if ((d >>> shift) == (currentTick >>> shift)){
+				int slot = (int)((d >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+				link(handle, level * WHEEL_SIZE + slot);
+				return;
+			}
+		}
+		link(handle, overflowBucket);
+	}
+
+	/**
+	 * Move timers down from higher levels when a tick reaches boundaries of slots in higher levels
+	 * @param tick	the tick being processed
+	 */
+	protected void cascade(long tick){
+		if ((tick & ((1L << (WHEEL_BITS * numLevels)) - 1)) == 0){
+			relink(overflowBucket);
+		}
+		for (int level = numLevels - 1; level >= 1; level --){
+			int shift = WHEEL_BITS * level;
+			if ((tick & ((1L << shift) - 1)) == 0){
+				relink(level * WHEEL_SIZE + (int)((tick >>> shift) & WHEEL_MASK));
+			}
+		}
+	}
+
+	protected void relink(int bucket){
+		Handle h = buckets[bucket];
+		buckets[bucket] = null;
+		while (h != null){
+			Handle next = h.next;
+			h.previous = null;
+			h.next = null;
+			h.bucket = BUCKET_NONE;
+			insert(h);
+			h = next;
+		}
+	}
+
+	protected void link(Handle handle, int bucket){
+		Handle head = buckets[bucket];
+		handle.previous = null;
+		handle.next = head;
+		if (head != null){
+			head.previous = handle;
+		}
+		buckets[bucket] = handle;
+		handle.bucket = bucket;
+	}
+
+	protected void unlink(Handle handle){
+		if (handle.previous == null){
+			buckets[handle.bucket] = handle.next;
+		}else{
+			handle.previous.next = handle.next;
+		}
+		if (handle.next != null){
+			handle.next.previous = handle.previous;
+		}
+		handle.previous = null;
+		handle.next = null;
+		handle.bucket = BUCKET_NONE;
+	}
+
+}
@@ -0,0 +1,349 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Queue;
+import javax.jms.Session;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.sf.jabb.dstream.ex.DataStreamInfrastructureException;
+
+/**
+ * @author James Hu
+ *
+ */
+public class JmsConsumerStreamDataSupplierTest {
+	static private final String POSITION = "pos";
+	static private final int LOG_SIZE = 20;
+
+	protected List<Message> log = new ArrayList<>();
+	protected List<MessageConsumer> consumers = new ArrayList<>();
+	protected AtomicInteger closedConsumers = new AtomicInteger();
+	protected AtomicInteger failuresToInject = new AtomicInteger();
+	protected AtomicInteger receivedMessages = new AtomicInteger();
+	protected AtomicInteger receivedLast = new AtomicInteger();
+	protected TestSupplier supplier;
+
+	/**
+	 * Positions are exclusive start positions, like those of Event Hub
+	 */
+	class TestSupplier extends JmsConsumerStreamDataSupplier<Long> {
+		Connection connection;
+
+		TestSupplier(Connection connection){
+			this.connection = connection;
+			this.destination = proxy(Queue.class, (p, method, args) -> null);
+		}
+
+		@Override
+		protected Connection getConnection() {
+			return connection;
+		}
+
+		@Override
+		protected String messageSelector(String startPosition) {
+			return POSITION + " > " + startPosition;
+		}
+
+		@Override
+		protected String messageSelector(Instant startEnqueuedTime) {
+			return POSITION + " > " + (startEnqueuedTime.toEpochMilli() - 1);
+		}
+
+		@Override
+		protected Long convert(Message message) {
+			try {
+				return message.getLongProperty(POSITION);
+			} catch (JMSException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		protected String position(Message message) {
+			return String.valueOf(convert(message));
+		}
+
+		@Override
+		protected Instant enqueuedTime(Message message) {
+			return Instant.ofEpochMilli(convert(message));
+		}
+
+		@Override
+		public String firstPosition() {
+			return "-1";
+		}
+
+		@Override
+		public String firstPosition(Instant enqueuedAfter, Duration waitForArrival) {
+			return null;
+		}
+
+		@Override
+		public String lastPosition() {
+			return String.valueOf(LOG_SIZE - 1);
+		}
+
+		@Override
+		public Instant enqueuedTime(String position) {
+			return Instant.ofEpochMilli(Long.parseLong(position));
+		}
+
+		@Override
+		public String nextStartPosition(String previousEndPosition) {
+			return previousEndPosition;
+		}
+
+		@Override
+		public boolean isInRange(String position, String endPosition) {
+			return endPosition == null || Long.parseLong(position) <= Long.parseLong(endPosition);
+		}
+
+		@Override
+		public boolean isInRange(Instant enqueuedTime, Instant endEnqueuedTime) {
+			return endEnqueuedTime == null || !enqueuedTime.isAfter(endEnqueuedTime);
+		}
+
+		@Override
+		protected void received(Message message, boolean last) {
+			(last ? receivedLast : receivedMessages).incrementAndGet();
+		}
+
+		@Override
+		public void start() throws Exception {
+		}
+
+		@Override
+		public void stop() throws Exception {
+			closeWarmConsumer();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T proxy(Class<T> type, InvocationHandler handler){
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+	}
+
+	@Before
+	public void setUp() throws JMSException{
+		for (long i = 0; i < LOG_SIZE; i ++){
+			long position = i;
+			log.add(proxy(Message.class, (p, method, args) -> method.getName().equals("getLongProperty") ? position : null));
+		}
+
+		Session session = proxy(Session.class, (p, method, args) -> {
+			if (!method.getName().equals("createConsumer")){
+				return null;
+			}
+			String selector = (String) args[1];
+			int[] next = new int[]{Integer.parseInt(selector.substring(selector.indexOf('>') + 1).trim()) + 1};
+			MessageConsumer consumer = proxy(MessageConsumer.class, (c, consumerMethod, consumerArgs) -> {
+				switch(consumerMethod.getName()){
+				case "close":
+					closedConsumers.incrementAndGet();
+					return null;
+				case "receive":
+					if (failuresToInject.getAndUpdate(x -> x > 0 ? x - 1 : 0) > 0){
+						throw new JMSException("link detached");
+					}
+					if (next[0] < log.size()){
+						return log.get(next[0]++);
+					}
+					Thread.sleep(Math.min((Long)consumerArgs[0], 10));
+					return null;
+				default:
+					return null;
+				}
+			});
+			consumers.add(consumer);
+			return consumer;
+		});
+		Connection connection = proxy(Connection.class, (p, method, args) -> method.getName().equals("createSession") ? session : null);
+		supplier = new TestSupplier(connection);
+	}
+
+	@Test
+	public void testConsecutiveFetchesReuseConsumer() throws Exception{
+		List<Long> list = new ArrayList<>();
+		ReceiveStatus status = supplier.fetch(list, "-1", "4", Duration.ofSeconds(1));
+		assertEquals(5, list.size());
+		assertEquals("4", status.getLastPosition());
+		assertTrue(status.isOutOfRangeReached());
+
+		// continues from the end position, the message found out of range is not lost
+		list.clear();
+		status = supplier.fetch(list, supplier.nextStartPosition("4"), "9", Duration.ofSeconds(1));
+		assertEquals(5, list.size());
+		assertEquals(Long.valueOf(5), list.get(0));
+		assertEquals("9", status.getLastPosition());
+
+		// continues from the last position, limited by maxItems
+		list.clear();
+		status = supplier.fetch(list, "9", 3, Duration.ofSeconds(1));
+		assertEquals(3, list.size());
+		assertEquals(Long.valueOf(10), list.get(0));
+		assertEquals("12", status.getLastPosition());
+		assertFalse(status.isOutOfRangeReached());
+
+		// receive continues as well
+		List<Long> received = new ArrayList<>();
+		status = supplier.receive(m -> {
+			if (m != null){
+				received.add(m);
+			}
+			return received.size() < 2 ? 1000L : 0L;
+		}, "12", (String)null);
+		assertEquals(2, received.size());
+		assertEquals(Long.valueOf(13), received.get(0));
+		assertEquals("14", status.getLastPosition());
+
+		assertEquals(1, consumers.size());
+		assertEquals(0, closedConsumers.get());
+		assertEquals(17, receivedMessages.get());		// 15 delivered, plus messages 5 and 10 found out of range before being delivered
+		assertEquals(4, receivedLast.get());
+
+		supplier.stop();
+		assertEquals(1, closedConsumers.get());
+	}
+
+	@Test
+	public void testDiscontinuity() throws Exception{
+		List<Long> list = new ArrayList<>();
+		supplier.fetch(list, "-1", 3, Duration.ofSeconds(1));
+		assertEquals(1, consumers.size());
+
+		list.clear();
+		supplier.fetch(list, "10", 3, Duration.ofSeconds(1));
+		assertEquals(Long.valueOf(11), list.get(0));
+		assertEquals(2, consumers.size());
+		assertEquals(1, closedConsumers.get());
+
+		// starting from enqueued time always uses a new consumer
+		list.clear();
+		supplier.fetch(list, Instant.ofEpochMilli(14), null, 3, Duration.ofSeconds(1));
+		assertEquals(Long.valueOf(14), list.get(0));
+		assertEquals(3, consumers.size());
+		assertEquals(2, closedConsumers.get());
+
+		// but it can be continued from a position
+		list.clear();
+		supplier.fetch(list, "16", 3, Duration.ofSeconds(1));
+		assertEquals(Long.valueOf(17), list.get(0));
+		assertEquals(3, consumers.size());
+	}
+
+	@Test
+	public void testIdleWarmConsumerNotReused() throws Exception{
+		supplier.setWarmConsumerMaxIdle(Duration.ZERO);
+		List<Long> list = new ArrayList<>();
+		supplier.fetch(list, "-1", 3, Duration.ofSeconds(1));
+		supplier.fetch(list, "2", 3, Duration.ofSeconds(1));
+		assertEquals(6, list.size());
+		assertEquals(2, consumers.size());
+		assertEquals(1, closedConsumers.get());
+	}
+
+	@Test
+	public void testBrokenWarmConsumerReplaced() throws Exception{
+		List<Long> list = new ArrayList<>();
+		supplier.fetch(list, "-1", 3, Duration.ofSeconds(1));
+
+		failuresToInject.set(1);
+		list.clear();
+		ReceiveStatus status = supplier.fetch(list, "2", 3, Duration.ofSeconds(1));
+		assertEquals(3, list.size());
+		assertEquals(Long.valueOf(3), list.get(0));
+		assertEquals("5", status.getLastPosition());
+		assertEquals(2, consumers.size());
+		assertEquals(1, closedConsumers.get());
+
+		// failure in a new consumer is reported
+		supplier.closeWarmConsumer();
+		failuresToInject.set(1);
+		try{
+			supplier.fetch(list, "5", 3, Duration.ofSeconds(1));
+			fail("exception should be thrown");
+		}catch(DataStreamInfrastructureException e){
+			// expected
+		}
+		assertEquals(3, closedConsumers.get());
+	}
+
+	@Test
+	public void testFlowControlledAsyncReceiving() throws Exception{
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		AtomicInteger tasks = new AtomicInteger();
+		CountDownLatch blocked = new CountDownLatch(1);
+		List<Long> slow = new CopyOnWriteArrayList<>();
+		List<Long> fast = new CopyOnWriteArrayList<>();
+		String slowId = supplier.startAsyncReceiving(m -> {
+			try {
+				blocked.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			slow.add(m);
+		}, "-1", executor, 5, 2);
+		String fastId = supplier.startAsyncReceiving(fast::add, "9", r -> {
+			tasks.incrementAndGet();
+			executor.execute(r);
+		}, 3, 2);
+
+		// the stalled subscription does not stall the other one
+		long deadline = System.currentTimeMillis() + 10000;
+		while (fast.size() < 10 && System.currentTimeMillis() < deadline){
+			Thread.sleep(10);
+		}
+		assertEquals(10, fast.size());
+		assertEquals(Long.valueOf(10), fast.get(0));
+		assertTrue(tasks.get() >= 5);		// delivered in batches of no more than 2
+
+		// pulling of the stalled subscription paused when its buffer became full
+		Thread.sleep(500);
+		assertEquals(15, receivedMessages.get());
+		assertEquals(0, slow.size());
+
+		blocked.countDown();
+		deadline = System.currentTimeMillis() + 10000;
+		while (slow.size() < LOG_SIZE && System.currentTimeMillis() < deadline){
+			Thread.sleep(10);
+		}
+		assertEquals(LOG_SIZE, slow.size());
+		for (int i = 0; i < LOG_SIZE; i ++){
+			assertEquals(Long.valueOf(i), slow.get(i));
+		}
+
+		supplier.stopAsyncReceiving(slowId);
+		supplier.stopAsyncReceiving(fastId);
+		deadline = System.currentTimeMillis() + 10000;
+		while (closedConsumers.get() < 2 && System.currentTimeMillis() < deadline){
+			Thread.sleep(10);
+		}
+		assertEquals(2, closedConsumers.get());
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+	}
+
+}
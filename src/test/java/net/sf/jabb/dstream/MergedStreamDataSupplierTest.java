@@ -0,0 +1,171 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class MergedStreamDataSupplierTest {
+
+	static class Event {
+		final String partition;
+		final int index;
+		final long time;
+
+		Event(String partition, int index, long time){
+			this.partition = partition;
+			this.index = index;
+			this.time = time;
+		}
+
+		@Override
+		public String toString(){
+			return partition + ":" + index + "@" + time;
+		}
+	}
+
+	/**
+	 * Create a supplier with inclusive start positions, like those of Kafka
+	 */
+	@SuppressWarnings("unchecked")
+	static StreamDataSupplierWithId<Event> supplier(String id, long... times){
+		List<Event> log = new CopyOnWriteArrayList<>();
+		for (int i = 0; i < times.length; i ++){
+			log.add(new Event(id, i, times[i]));
+		}
+		StreamDataSupplier<Event> supplier = (StreamDataSupplier<Event>) Proxy.newProxyInstance(StreamDataSupplier.class.getClassLoader(), new Class<?>[]{StreamDataSupplier.class}, (p, method, args) -> {
+			switch(method.getName()){
+			case "nextStartPosition":
+				return String.valueOf(Integer.parseInt((String)args[0]) + 1);
+			case "isInRange":
+				return args[1] == null || Integer.parseInt((String)args[0]) <= Integer.parseInt((String)args[1]);
+			case "receive":
+				Function<Event, Long> receiver = (Function<Event, Long>) args[0];
+				String start = (String)args[1];
+				String end = (String)args[2];
+				int next = start == null || start.isEmpty() ? 0 : Integer.parseInt(start);
+				String last = null;
+				long left = receiver.apply(null);
+				while (left > 0){
+					if (end != null && next > Integer.parseInt(end)){		// the end position is inclusive
+						return new SimpleReceiveStatus(last, null, true);
+					}
+					if (next < log.size()){
+						last = String.valueOf(next);
+						left = receiver.apply(log.get(next++));
+					}else{
+						Thread.sleep(Math.min(left, 10));
+						left = receiver.apply(null);
+					}
+				}
+				return new SimpleReceiveStatus(last, null, false);
+			default:
+				return null;
+			}
+		});
+		return new StreamDataSupplierWithId<>(id, supplier);
+	}
+
+	static MergedStreamDataSupplier<Event> merged(Duration reorderWindow, List<StreamDataSupplierWithId<Event>> suppliers){
+		return new MergedStreamDataSupplier<>(suppliers, e -> String.valueOf(e.index), e -> Instant.ofEpochMilli(e.time), reorderWindow, 3);
+	}
+
+	@Test
+	public void testMergedInTimeOrder() throws Exception{
+		MergedStreamDataSupplier<Event> supplier = merged(Duration.ofSeconds(10), Arrays.asList(
+				supplier("0", 1, 4, 7, 10, 13),
+				supplier("1", 2, 5, 8, 11, 14),
+				supplier("2", 3, 6, 9, 12, 15)));
+		List<Event> list = new ArrayList<>();
+		ReceiveStatus status = supplier.fetch(list, "", "0=4,1=4,2=4", Duration.ofSeconds(5));
+		assertEquals(15, list.size());
+		for (int i = 0; i < list.size(); i ++){
+			assertEquals(i + 1, list.get(i).time);
+		}
+		assertTrue(status.isOutOfRangeReached());
+		assertEquals("0=4,1=4,2=4", status.getLastPosition());
+		assertEquals(Instant.ofEpochMilli(15), status.getLastEnqueuedTime());
+		supplier.stop();
+	}
+
+	@Test
+	public void testContinuingFromLastPosition() throws Exception{
+		MergedStreamDataSupplier<Event> supplier = merged(Duration.ofMillis(100), Arrays.asList(
+				supplier("0", 1, 2, 3, 10, 11),
+				supplier("1", 4, 5, 12),
+				supplier("2", 20, 21)));
+		List<Event> list = new ArrayList<>();
+		ReceiveStatus status = supplier.fetch(list, "0>0,1>0,2>0", (String)null, 4, Duration.ofSeconds(5));
+		assertEquals(Arrays.asList(1L, 2L, 3L, 4L), times(list));
+		String lastPosition = status.getLastPosition();
+		assertTrue(lastPosition.contains("0=2"));
+		assertTrue(lastPosition.contains("1=0"));
+		assertTrue(lastPosition.contains("2>0"));		// not advanced
+		assertTrue(supplier.isInRange(lastPosition, "0=2,1=0,2=0"));
+		assertFalse(supplier.isInRange(lastPosition, "0=1,1=0,2=0"));
+
+		String startPosition = supplier.nextStartPosition(lastPosition);
+		assertTrue(startPosition.contains("0>3"));
+		assertTrue(startPosition.contains("1>1"));
+		assertTrue(startPosition.contains("2>0"));
+
+		list.clear();
+		supplier.fetch(list, startPosition, (String)null, 6, Duration.ofSeconds(5));
+		assertEquals(Arrays.asList(5L, 10L, 11L, 12L, 20L, 21L), times(list));
+		supplier.stop();
+	}
+
+	@Test
+	public void testIdleSupplierHoldsBackOnlyWithinReorderWindow() throws Exception{
+		MergedStreamDataSupplier<Event> supplier = merged(Duration.ofMillis(200), Arrays.asList(
+				supplier("0", 1, 2, 3, 4, 5, 6, 7, 8),
+				supplier("1")));
+		List<Event> list = new ArrayList<>();
+		long start = System.currentTimeMillis();
+		supplier.fetch(list, "", (String)null, 8, Duration.ofSeconds(10));
+		long elapsed = System.currentTimeMillis() - start;
+		assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L), times(list));
+		assertTrue(elapsed >= 200);
+		assertTrue(elapsed < 5000);
+		supplier.stop();
+	}
+
+	@Test
+	public void testCompositePositionEscaping(){
+		MergedStreamDataSupplier.CompositePosition position = new MergedStreamDataSupplier.CompositePosition();
+		position.advance("a,b", "x=1>2%3D");
+		position.start("c", "");
+		MergedStreamDataSupplier.CompositePosition parsed = MergedStreamDataSupplier.CompositePosition.parse(position.toString());
+		assertEquals("x=1>2%3D", parsed.find("a,b"));
+		assertTrue(parsed.isAdvanced("a,b"));
+		assertEquals("", parsed.find("c"));
+		assertFalse(parsed.isAdvanced("c"));
+		assertNull(parsed.find("d"));
+		assertEquals("", parsed.get("d"));
+		assertEquals(position.toString(), parsed.toString());
+	}
+
+	protected List<Long> times(List<Event> events){
+		List<Long> times = new ArrayList<>();
+		for (Event e: events){
+			times.add(e.time);
+		}
+		return times;
+	}
+
+}
@@ -0,0 +1,169 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class PrefetchingStreamDataSupplierTest {
+	protected List<Long> log = new CopyOnWriteArrayList<>();
+	protected List<Long> receiveStarts = new CopyOnWriteArrayList<>();
+	protected AtomicInteger delivered = new AtomicInteger();
+	protected StreamDataSupplier<Long> delegate;
+
+	/**
+	 * Positions are exclusive start positions, like those of Event Hub
+	 */
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setUp(){
+		for (long i = 0; i < 100; i ++){
+			log.add(i);
+		}
+		delegate = (StreamDataSupplier<Long>) Proxy.newProxyInstance(StreamDataSupplier.class.getClassLoader(), new Class<?>[]{StreamDataSupplier.class}, (p, method, args) -> {
+			switch(method.getName()){
+			case "nextStartPosition":
+				return args[0];
+			case "isInRange":
+				return args[1] == null || Long.parseLong((String)args[0]) <= Long.parseLong((String)args[1]);
+			case "receive":
+				receiveStarts.add(Long.valueOf((String)args[1]));
+				Function<Long, Long> receiver = (Function<Long, Long>) args[0];
+				int next = Integer.parseInt((String)args[1]) + 1;
+				long left = receiver.apply(null);
+				while (left > 0){
+					if (next < log.size()){
+						delivered.incrementAndGet();
+						left = receiver.apply(log.get(next++));
+					}else{
+						Thread.sleep(Math.min(left, 10));
+						left = receiver.apply(null);
+					}
+				}
+				return new SimpleReceiveStatus(null, null, false);
+			default:
+				return null;
+			}
+		});
+	}
+
+	@Test
+	public void testServedFromBuffer() throws Exception{
+		PrefetchingStreamDataSupplier<Long> supplier = new PrefetchingStreamDataSupplier<>(delegate, String::valueOf, m -> 10, 20, Long.MAX_VALUE);
+		List<Long> list = new ArrayList<>();
+		ReceiveStatus status = supplier.fetch(list, "-1", "4", Duration.ofSeconds(5));
+		assertEquals(5, list.size());
+		assertEquals(Long.valueOf(0), list.get(0));
+		assertEquals("4", status.getLastPosition());
+		assertTrue(status.isOutOfRangeReached());
+
+		// reading ahead is limited by the number of messages
+		waitFor(() -> supplier.getBufferedMessages() == 20);
+		Thread.sleep(100);
+		assertEquals(20, supplier.getBufferedMessages());
+		assertEquals(200, supplier.getBufferedBytes());
+
+		// continues from the end position
+		list.clear();
+		status = supplier.fetch(list, supplier.nextStartPosition("4"), 3, Duration.ofSeconds(5));
+		assertEquals(3, list.size());
+		assertEquals(Long.valueOf(5), list.get(0));
+		assertEquals("7", status.getLastPosition());
+		assertFalse(status.isOutOfRangeReached());
+
+		// receive continues from the last position
+		List<Long> received = new ArrayList<>();
+		status = supplier.receive(m -> {
+			if (m != null){
+				received.add(m);
+			}
+			return received.size() < 10 ? 1000L : 0L;
+		}, "7", (String)null);
+		assertEquals(10, received.size());
+		assertEquals(Long.valueOf(8), received.get(0));
+		assertEquals("17", status.getLastPosition());
+
+		// new messages arrive after the existing ones are consumed
+		list.clear();
+		supplier.fetch(list, "17", (String)null, 200, Duration.ofSeconds(1));
+		assertEquals(82, list.size());
+		log.add(100L);
+		list.clear();
+		status = supplier.fetch(list, "99", (String)null, 1, Duration.ofSeconds(5));
+		assertEquals(1, list.size());
+		assertEquals("100", status.getLastPosition());
+
+		supplier.stop();
+		assertEquals(0, supplier.getBufferedMessages());
+		assertNoRestart();
+	}
+
+	@Test
+	public void testDiscontinuity() throws Exception{
+		PrefetchingStreamDataSupplier<Long> supplier = new PrefetchingStreamDataSupplier<>(delegate, String::valueOf);
+		List<Long> list = new ArrayList<>();
+		supplier.fetch(list, "-1", 3, Duration.ofSeconds(5));
+		assertEquals(Long.valueOf(0), list.get(0));
+
+		list.clear();
+		supplier.fetch(list, "49", 3, Duration.ofSeconds(5));
+		assertEquals(3, list.size());
+		assertEquals(Long.valueOf(50), list.get(0));
+		waitFor(() -> supplier.getBufferedMessages() == 47);
+		assertTrue(receiveStarts.contains(49L));
+		supplier.stop();
+	}
+
+	@Test
+	public void testLimitedByBytes() throws Exception{
+		PrefetchingStreamDataSupplier<Long> supplier = new PrefetchingStreamDataSupplier<>(delegate, String::valueOf, m -> 100, 1000, 1000);
+		List<Long> list = new ArrayList<>();
+		supplier.fetch(list, "-1", 1, Duration.ofSeconds(5));
+		waitFor(() -> supplier.getBufferedMessages() == 10);
+		Thread.sleep(100);
+		assertEquals(10, supplier.getBufferedMessages());
+		assertEquals(11, delivered.get());
+
+		list.clear();
+		supplier.fetch(list, "0", (String)null, 30, Duration.ofSeconds(5));
+		assertEquals(30, list.size());
+		assertEquals(Long.valueOf(1), list.get(0));
+		assertEquals(Long.valueOf(30), list.get(29));
+		supplier.stop();
+		assertNoRestart();
+	}
+
+	/**
+	 * Reading ahead should only move forward when requests continue from where the previous ones stopped
+	 */
+	protected void assertNoRestart(){
+		for (int i = 1; i < receiveStarts.size(); i ++){
+			assertTrue(receiveStarts.get(i) > receiveStarts.get(i - 1));
+		}
+	}
+
+	protected void waitFor(BooleanSupplier condition) throws InterruptedException{
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline){
+			Thread.sleep(10);
+		}
+		assertTrue(condition.getAsBoolean());
+	}
+
+}
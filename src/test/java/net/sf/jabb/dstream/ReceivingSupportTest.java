@@ -0,0 +1,77 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class ReceivingSupportTest {
+
+	/**
+	 * Receive integers from 0 until the receiver asks to stop or the end has been reached
+	 */
+	protected ReceiveStatus receive(Function<Integer, Long> receiver, int end){
+		int last = -1;
+		long left = receiver.apply(null);
+		while (left > 0 && last < end){
+			left = receiver.apply(++ last);
+		}
+		return new SimpleReceiveStatus(last < 0 ? null : String.valueOf(last), null, last >= end);
+	}
+
+	@Test
+	public void testFetch() throws Exception{
+		List<Integer> list = new ArrayList<>();
+		ReceiveStatus status = ReceivingSupport.fetch(list, 5, Duration.ofSeconds(10), r -> receive(r, 100));
+		assertEquals(5, list.size());
+		assertEquals("4", status.getLastPosition());
+		assertFalse(status.isOutOfRangeReached());
+
+		list.clear();
+		status = ReceivingSupport.fetch(list, 50, Duration.ofSeconds(10), r -> receive(r, 9));
+		assertEquals(10, list.size());
+		assertTrue(status.isOutOfRangeReached());
+	}
+
+	@Test
+	public void testAsyncReceiving() throws Exception{
+		ReceivingSupport support = new ReceivingSupport(ReceivingSupportTest.class);
+		AtomicInteger received = new AtomicInteger();
+		CountDownLatch stopped = new CountDownLatch(2);
+		String id1 = support.startAsyncReceiving((id, running) -> {
+			Function<Integer, Long> r = ReceivingSupport.asyncReceiver(m -> received.incrementAndGet(), running);
+			while (r.apply(null) > 0){		// never receives anything
+				Thread.yield();
+			}
+			stopped.countDown();
+		});
+		support.startAsyncReceiving((id, running) -> {
+			Function<Integer, Long> r = ReceivingSupport.asyncReceiver(m -> received.incrementAndGet(), running);
+			while (r.apply(1) > 0){
+				Thread.yield();
+			}
+			stopped.countDown();
+		});
+
+		support.stopAsyncReceiving(id1);
+		assertFalse(stopped.await(100, TimeUnit.MILLISECONDS));
+		support.stopAllAsyncReceivings();
+		assertTrue(stopped.await(10, TimeUnit.SECONDS));
+		assertTrue(received.get() > 0);		// only the second one received
+	}
+
+}
@@ -0,0 +1,101 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class WrappedJmsConnectionPoolTest {
+	protected AtomicInteger created = new AtomicInteger();
+	protected AtomicInteger closed = new AtomicInteger();
+
+	protected WrappedJmsConnection newConnection(){
+		created.incrementAndGet();
+		Connection connection = JmsConsumerStreamDataSupplierTest.proxy(Connection.class, (p, method, args) -> {
+			if (method.getName().equals("close")){
+				closed.incrementAndGet();
+			}
+			return null;
+		});
+		ConnectionFactory factory = JmsConsumerStreamDataSupplierTest.proxy(ConnectionFactory.class,
+				(p, method, args) -> method.getName().equals("createConnection") ? connection : null);
+		return new WrappedJmsConnection(factory, c -> true, null, null, false);
+	}
+
+	@Test
+	public void testSpreadAndRelease() throws Exception{
+		WrappedJmsConnectionPool pool = new WrappedJmsConnectionPool(4, Duration.ofSeconds(1));
+		List<WrappedJmsConnection> acquired = new ArrayList<>();
+		for (int i = 0; i < 32; i ++){
+			acquired.add(pool.acquire("a", this::newConnection));
+		}
+		assertEquals(4, created.get());
+		assertEquals(4, pool.size("a"));
+		Set<WrappedJmsConnection> distinct = new HashSet<>(acquired);
+		assertEquals(4, distinct.size());
+		for (WrappedJmsConnection connection: distinct){
+			assertEquals(8, acquired.stream().filter(c -> c == connection).count());
+		}
+
+		// connections re-connect one after another
+		Set<Long> delays = new HashSet<>();
+		for (WrappedJmsConnection connection: distinct){
+			delays.add(connection.reconnectDelayMillis);
+		}
+		assertEquals(new HashSet<>(Arrays.asList(0L, 1000L, 2000L, 3000L)), delays);
+
+		// another key has its own connections
+		pool.acquire("b", this::newConnection);
+		assertEquals(5, created.get());
+
+		WrappedJmsConnection first = acquired.get(0);
+		first.establishConnection(false);
+		for (int i = 0; i < 7; i ++){
+			pool.release(first);
+		}
+		assertEquals(0, closed.get());
+		pool.release(first);
+		assertEquals(1, closed.get());
+		assertEquals(3, pool.size("a"));
+
+		// a new connection is created to fill the gap
+		pool.acquire("a", this::newConnection);
+		assertEquals(6, created.get());
+		assertEquals(4, pool.size("a"));
+	}
+
+	@Test
+	public void testFailingConnectionAvoided() throws Exception{
+		WrappedJmsConnectionPool pool = new WrappedJmsConnectionPool(2);
+		WrappedJmsConnection c1 = pool.acquire("a", this::newConnection);
+		WrappedJmsConnection c2 = pool.acquire("a", this::newConnection);
+		assertNotSame(c1, c2);
+
+		c1.connectAttempts = 3;
+		assertTrue(c1.isFailing());
+		assertSame(c2, pool.acquire("a", this::newConnection));
+		assertSame(c2, pool.acquire("a", this::newConnection));
+
+		c1.connectAttempts = 0;
+		assertSame(c1, pool.acquire("a", this::newConnection));
+		assertEquals(2, created.get());
+	}
+
+}
@@ -0,0 +1,81 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream.eventhub;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class EventHubPositionIndexTest {
+
+	@Test
+	public void testLookupByOffset() {
+		EventHubPositionIndex index = new EventHubPositionIndex(100, Duration.ofSeconds(1));
+		index.add(1000, 10, 50000);
+		index.add(1100, 11, 50100);		// consecutive
+		index.add(2000, 20, 51000);
+		index.add(3000, 30, 51000);		// same enqueued time
+		index.add(4000, 40, 52000);
+
+		assertEquals(Long.valueOf(50000), index.enqueuedTimeMillis(1000));		// exact
+		assertEquals(Long.valueOf(50100), index.enqueuedTimeMillis(1050));		// bracketed by consecutive sequence numbers
+		assertNull(index.enqueuedTimeMillis(1500));								// unknown messages in between
+		assertEquals(Long.valueOf(51000), index.enqueuedTimeMillis(2500));		// bracketed by the same enqueued time
+		assertNull(index.enqueuedTimeMillis(500));								// outside
+		assertNull(index.enqueuedTimeMillis(5000));
+		assertEquals(5, index.size());
+
+		index.add(2000, 20, 51000);		// duplicated
+		assertEquals(5, index.size());
+	}
+
+	@Test
+	public void testLookupByTime() {
+		EventHubPositionIndex index = new EventHubPositionIndex();
+		index.add(1000, 10, 50000);
+		index.add(1100, 11, 50100);
+		index.add(2000, 20, 51000);
+		index.add(2100, 21, 51000);
+		index.add(2200, 22, 51001);
+
+		assertEquals(Long.valueOf(1100), index.firstOffsetEnqueuedAfter(50000));
+		assertEquals(Long.valueOf(1100), index.firstOffsetEnqueuedAfter(50099));
+		assertNull(index.firstOffsetEnqueuedAfter(50100));		// between 11 and 20
+		assertEquals(Long.valueOf(2200), index.firstOffsetEnqueuedAfter(51000));
+		assertNull(index.firstOffsetEnqueuedAfter(40000));
+		assertNull(index.firstOffsetEnqueuedAfter(60000));
+	}
+
+	@Test
+	public void testSamplingAndEviction() {
+		EventHubPositionIndex index = new EventHubPositionIndex(10, Duration.ofSeconds(1));
+		for (int i = 0; i < 100; i ++){
+			index.offer(i * 100, i, 10000 + i * 250);		// 4 messages per second
+		}
+		assertEquals(10, index.size());
+		assertNull(index.enqueuedTimeMillis(0));		// evicted
+		assertEquals(Long.valueOf(10000 + 96 * 250), index.enqueuedTimeMillis(9600));
+
+		// offers of an older range are also sampled, and kept in order
+		index = new EventHubPositionIndex(10, Duration.ofSeconds(1));
+		index.offer(9600, 96, 34000);
+		index.offer(9700, 97, 34250);
+		index.offer(50, 0, 10000);
+		index.offer(150, 1, 10250);
+		assertEquals(2, index.size());
+		assertEquals(Long.valueOf(10000), index.enqueuedTimeMillis(50));
+		assertNull(index.enqueuedTimeMillis(150));
+		assertEquals(Long.valueOf(34000), index.enqueuedTimeMillis(9600));
+
+		index.clear();
+		assertEquals(0, index.size());
+	}
+
+}
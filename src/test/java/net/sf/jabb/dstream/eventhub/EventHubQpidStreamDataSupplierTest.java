@@ -4,7 +4,22 @@
 package net.sf.jabb.dstream.eventhub;
 
 import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+import net.sf.jabb.azure.AzureEventHubUtility;
 import net.sf.jabb.azure.EventHubAnnotations;
+import net.sf.jabb.dstream.LazyJmsMessage;
+import net.sf.jabb.dstream.WrappedJmsConnectionPool;
+import net.sf.jabb.util.parallel.BackoffStrategies;
+import net.sf.jabb.util.parallel.WaitStrategies;
 
 import org.junit.Test;
 
@@ -26,4 +41,109 @@ public class EventHubQpidStreamDataSupplierTest {
 		assertEquals(1438740137186L, a.getEnqueuedTime().toEpochMilli());
 	}
 
+	@Test
+	public void testParsingAnnotationStringVariations() {
+		EventHubAnnotations a = new EventHubAnnotations("{\"x-opt-enqueued-time\":{\"timestamp\":1438740137186},\"x-opt-partition-key\":\"key-1\",\"x-opt-offset\":\"-1\",\"x-opt-sequence-number\":{\"long\":0}}");
+		assertEquals(-1L, a.getOffset());
+		assertEquals(0L, a.getSequenceNumber());
+		assertEquals(1438740137186L, a.getEnqueuedTimeMillis());
+		assertEquals(1438740137186L, a.getEnqueuedTime().toEpochMilli());
+		
+		for (String invalid: new String[]{
+				"", "  ", "{}",
+				"{ \"x-opt-sequence-number\" : { \"long\" : 19650 }, \"x-opt-offset\" : \"4302249320\" }",
+				"{ \"x-opt-sequence-number\" : { \"long\" : 19650 }, \"x-opt-offset\" : \"abc\", \"x-opt-enqueued-time\" : { \"timestamp\" : 1438740137186 } }"}){
+			try{
+				new EventHubAnnotations(invalid);
+				fail("should fail: " + invalid);
+			}catch(IllegalArgumentException e){
+				// expected
+			}
+		}
+	}
+	
+	@Test
+	public void testDecodingOncePerMessage() {
+		AtomicInteger decoded = new AtomicInteger();
+		Message m1 = message(ANNOTATION_STRING, decoded);
+		Message m2 = message(ANNOTATION_STRING.replace("4302249320", "4302249400"), decoded);
+		
+		assertEquals(4302249320L, AzureEventHubUtility.getOffset(m1));
+		assertEquals(1438740137186L, AzureEventHubUtility.getEnqueuedTimeMillis(m1));
+		assertSame(AzureEventHubUtility.getEventHubAnnotations(m1), AzureEventHubUtility.getEventHubAnnotations(m1));
+		assertEquals(1, decoded.get());
+		
+		assertEquals(4302249400L, AzureEventHubUtility.getOffset(m2));
+		assertEquals(2, decoded.get());
+		assertEquals(4302249320L, AzureEventHubUtility.getOffset(m1));
+		assertEquals(3, decoded.get());
+		assertNull(AzureEventHubUtility.getEventHubAnnotations(null));
+	}
+	
+	@Test
+	public void testLazyConverter() throws Exception {
+		AtomicInteger converted = new AtomicInteger();
+		Function<Message, LazyJmsMessage<String>> converter = EventHubQpidStreamDataSupplier.lazyConverter(m -> {
+			converted.incrementAndGet();
+			return "converted";
+		});
+		AtomicInteger annotationReads = new AtomicInteger();
+		LazyJmsMessage<String> lazy = converter.apply(message(ANNOTATION_STRING, annotationReads));
+		assertEquals("4302249320", lazy.getPosition());
+		assertEquals(1438740137186L, lazy.getEnqueuedTime().toEpochMilli());
+		int reads = annotationReads.get();
+		assertEquals("4302249320", lazy.getPosition());
+		assertEquals(1438740137186L, lazy.getEnqueuedTime().toEpochMilli());
+		assertEquals(reads, annotationReads.get());		// memorized
+		assertNull(lazy.getBodyBytes());
+		assertFalse(lazy.isConverted());
+		assertEquals(0, converted.get());
+		
+		assertEquals("converted", lazy.get());
+		assertEquals("converted", lazy.get());
+		assertTrue(lazy.isConverted());
+		assertEquals(1, converted.get());
+		
+		TextMessage text = (TextMessage) Proxy.newProxyInstance(TextMessage.class.getClassLoader(), new Class<?>[]{TextMessage.class}, 
+				(p, method, args) -> method.getName().equals("getText") ? "h\u00e9llo" : null);
+		assertArrayEquals("h\u00e9llo".getBytes(StandardCharsets.UTF_8), converter.apply(text).getBodyBytes());
+		assertEquals(1, converted.get());
+	}
+	
+	@Test
+	public void testPooledConnectionReleasedOnce() throws Exception {
+		WrappedJmsConnectionPool pool = new WrappedJmsConnectionPool(1);
+		String key = EventHubQpidStreamDataSupplier.connectionPoolKey("server", "policy", "key");
+		EventHubQpidStreamDataSupplier<Message> s1 = new EventHubQpidStreamDataSupplier<>(pool, "server", "hub", "policy", "key", null, "0", 
+				BackoffStrategies.fixedBackoff(1, TimeUnit.SECONDS), WaitStrategies.threadSleepStrategy(), m -> m);
+		EventHubQpidStreamDataSupplier<Message> s2 = new EventHubQpidStreamDataSupplier<>(pool, "server", "hub", "policy", "key", null, "1", 
+				BackoffStrategies.fixedBackoff(1, TimeUnit.SECONDS), WaitStrategies.threadSleepStrategy(), m -> m);
+		assertSame(s1.wrappedConnection, s2.wrappedConnection);
+		s1.stop();
+		s1.stop();
+		assertEquals(1, pool.size(key));		// still in use by s2
+		s2.stop();
+		assertEquals(0, pool.size(key));
+	}
+	
+	@Test
+	public void testConnectionPoolKey(){
+		assertEquals("Aa".hashCode(), "BB".hashCode());
+		String key = EventHubQpidStreamDataSupplier.connectionPoolKey("server", "policy", "Aa");
+		assertNotEquals(key, EventHubQpidStreamDataSupplier.connectionPoolKey("server", "policy", "BB"));
+		assertEquals(key, EventHubQpidStreamDataSupplier.connectionPoolKey("server", "policy", "Aa"));
+		assertTrue(key.startsWith("policy@server#"));
+		assertFalse(key.contains("Aa"));
+	}
+	
+	protected Message message(String annotations, AtomicInteger counter){
+		return (Message) Proxy.newProxyInstance(Message.class.getClassLoader(), new Class<?>[]{Message.class}, (p, method, args) -> {
+			if (method.getName().equals("getStringProperty")){
+				counter.incrementAndGet();
+				return annotations;
+			}
+			return null;
+		});
+	}
+
 }
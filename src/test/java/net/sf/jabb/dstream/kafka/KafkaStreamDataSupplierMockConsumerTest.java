@@ -0,0 +1,277 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream.kafka;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+import net.sf.jabb.dstream.ReceiveStatus;
+import net.sf.jabb.dstream.ex.DataStreamInfrastructureException;
+
+/**
+ * Tests of {@link KafkaStreamDataSupplier} against {@link MockConsumer}
+ * @author James Hu
+ *
+ */
+public class KafkaStreamDataSupplierMockConsumerTest {
+	static private final TopicPartition PARTITION = new TopicPartition("testTopic", 0);
+	static private final int MAX_POLL_RECORDS = 4;
+
+	/**
+	 * A MockConsumer that serves records from a log according to its position, like a real broker does
+	 */
+	static class LogBackedMockConsumer extends MockConsumer<Void, String> {
+		final List<String> log;
+		final AtomicInteger polls = new AtomicInteger();
+
+		LogBackedMockConsumer(List<String> log){
+			super(OffsetResetStrategy.EARLIEST);
+			this.log = log;
+			assign(Collections.singletonList(PARTITION));
+			updateBeginningOffsets(Collections.singletonMap(PARTITION, 0L));
+			updateEndOffsets(Collections.singletonMap(PARTITION, (long)log.size()));
+		}
+
+		@Override
+		public synchronized ConsumerRecords<Void, String> poll(long timeout) {
+			polls.incrementAndGet();
+			long position = position(PARTITION);
+			for (long i = position; i < Math.min(log.size(), position + MAX_POLL_RECORDS); i ++){
+				addRecord(new ConsumerRecord<Void, String>(PARTITION.topic(), PARTITION.partition(), i, null, log.get((int)i)));
+			}
+			ConsumerRecords<Void, String> records = super.poll(timeout);
+			if (records.isEmpty() && timeout > 0){
+				try {
+					Thread.sleep(Math.min(timeout, 10));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return records;
+		}
+	}
+
+	protected List<String> log(int size){
+		List<String> log = new CopyOnWriteArrayList<>();
+		for (int i = 0; i < size; i ++){
+			log.add("message" + i);
+		}
+		return log;
+	}
+
+	@Test
+	public void testOffsetsCached() throws Exception{
+		LogBackedMockConsumer consumer = new LogBackedMockConsumer(log(10));
+		KafkaStreamDataSupplier<String> supplier = new KafkaStreamDataSupplier<>(consumer, Collections.singletonList(PARTITION));
+		assertEquals("0", supplier.firstPosition());
+		assertEquals("9", supplier.lastPosition());
+
+		consumer.updateEndOffsets(Collections.singletonMap(PARTITION, 20L));
+		assertEquals("9", supplier.lastPosition());		// cached
+		supplier.setOffsetsCacheDuration(Duration.ZERO);
+		assertEquals("19", supplier.lastPosition());
+
+		// advanced by received records
+		supplier.setOffsetsCacheDuration(Duration.ofMinutes(1));
+		assertEquals("19", supplier.lastPosition());
+		consumer.log.addAll(log(25).subList(10, 25));
+		supplier.fetch(new ArrayList<>(), "20", "24", Duration.ofSeconds(1));
+		assertEquals("24", supplier.lastPosition());
+
+		LogBackedMockConsumer emptyConsumer = new LogBackedMockConsumer(log(0));
+		KafkaStreamDataSupplier<String> emptySupplier = new KafkaStreamDataSupplier<>(emptyConsumer, Collections.singletonList(PARTITION));
+		assertNull(emptySupplier.lastPosition());
+	}
+
+	@Test
+	public void testFetch() throws Exception{
+		LogBackedMockConsumer consumer = new LogBackedMockConsumer(log(10));
+		KafkaStreamDataSupplier<String> supplier = new KafkaStreamDataSupplier<>(consumer, Collections.singletonList(PARTITION));
+
+		// returns as soon as maxItems reached
+		List<String> list = new ArrayList<>();
+		long start = System.currentTimeMillis();
+		ReceiveStatus status = supplier.fetch(list, "0", "9", 3, Duration.ofSeconds(10));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(3, list.size());
+		assertEquals("message0", list.get(0));
+		assertEquals("2", status.getLastPosition());
+		assertFalse(status.isOutOfRangeReached());
+
+		// across multiple polls, end position is inclusive
+		list.clear();
+		int polls = consumer.polls.get();
+		status = supplier.fetch(list, supplier.nextStartPosition(status.getLastPosition()), "8", Duration.ofSeconds(10));
+		assertEquals(6, list.size());
+		assertEquals("message3", list.get(0));
+		assertEquals("message8", list.get(5));
+		assertEquals("8", status.getLastPosition());
+		assertTrue(status.isOutOfRangeReached());
+		assertEquals(2, consumer.polls.get() - polls);
+
+		// nothing available
+		list.clear();
+		start = System.currentTimeMillis();
+		status = supplier.fetch(list, "10", 100, Duration.ofMillis(200));
+		assertTrue(System.currentTimeMillis() - start >= 200);
+		assertEquals(0, list.size());
+		assertNull(status.getLastPosition());
+		assertFalse(status.isOutOfRangeReached());
+	}
+
+	@Test
+	public void testReceive() throws Exception{
+		LogBackedMockConsumer consumer = new LogBackedMockConsumer(log(10));
+		KafkaStreamDataSupplier<String> supplier = new KafkaStreamDataSupplier<>(consumer, Collections.singletonList(PARTITION));
+
+		List<String> received = new ArrayList<>();
+		ReceiveStatus status = supplier.receive(m -> {
+			if (m != null){
+				received.add(m);
+			}
+			return 1000L;
+		}, "0", "9");
+		assertEquals(10, received.size());
+		assertEquals("9", status.getLastPosition());
+		assertTrue(status.isOutOfRangeReached());
+
+		// stopped by the receiver
+		received.clear();
+		status = supplier.receive(m -> {
+			if (m != null){
+				received.add(m);
+			}
+			return received.size() < 5 ? 1000L : 0L;
+		}, "2", (String)null);
+		assertEquals(5, received.size());
+		assertEquals("message2", received.get(0));
+		assertEquals("6", status.getLastPosition());
+		assertFalse(status.isOutOfRangeReached());
+
+		// nothing available
+		long deadline = System.currentTimeMillis() + 200;
+		status = supplier.receive(m -> deadline - System.currentTimeMillis(), "10", (String)null);
+		assertNull(status.getLastPosition());
+		assertTrue(System.currentTimeMillis() >= deadline);
+	}
+
+	@Test
+	public void testAsyncReceivingWithSharedConsumer() throws Exception{
+		LogBackedMockConsumer consumer = new LogBackedMockConsumer(log(10));
+		KafkaStreamDataSupplier<String> supplier = new KafkaStreamDataSupplier<>(consumer, Collections.singletonList(PARTITION));
+		supplier.setAsyncPollTimeout(Duration.ofMillis(20));
+
+		List<String> received = new CopyOnWriteArrayList<>();
+		String id = supplier.startAsyncReceiving(received::add, "5");
+		waitFor(received, 5);
+
+		// synchronous calls are still served
+		List<String> list = new ArrayList<>();
+		supplier.fetch(list, "0", "1", Duration.ofSeconds(5));
+		assertEquals(2, list.size());
+
+		consumer.log.addAll(log(15).subList(10, 15));
+		waitFor(received, 10);
+		supplier.stopAsyncReceiving(id);
+		assertEquals(log(15).subList(5, 15), received);
+		Thread.sleep(100);
+		assertFalse(consumer.closed());
+	}
+
+	@Test
+	public void testSynchronousCallsNotStarvedByAsyncReceiving() throws Exception{
+		LogBackedMockConsumer consumer = new LogBackedMockConsumer(log(10));
+		KafkaStreamDataSupplier<String> supplier = new KafkaStreamDataSupplier<>(consumer, Collections.singletonList(PARTITION));
+		supplier.setAsyncPollTimeout(Duration.ofMillis(20));
+		assertTrue(supplier.consumerLock.isFair());
+
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < 3; i ++){
+			ids.add(supplier.startAsyncReceiving(m -> {}, "9"));		// keep polling an empty range
+		}
+		Thread.sleep(100);
+		for (int i = 0; i < 20; i ++){
+			List<String> list = new ArrayList<>();
+			long start = System.currentTimeMillis();
+			supplier.fetch(list, String.valueOf(i % 10), 1, Duration.ofSeconds(5));
+			assertEquals(1, list.size());
+			assertTrue(System.currentTimeMillis() - start < 1000);
+		}
+		for (String id: ids){
+			supplier.stopAsyncReceiving(id);
+		}
+	}
+
+	@Test
+	public void testAsyncReceivingWithDedicatedConsumers() throws Exception{
+		List<String> log = log(10);
+		List<LogBackedMockConsumer> consumers = new CopyOnWriteArrayList<>();
+		KafkaStreamDataSupplier<String> supplier = new KafkaStreamDataSupplier<>(() -> {
+			LogBackedMockConsumer consumer = new LogBackedMockConsumer(log);
+			consumers.add(consumer);
+			return consumer;
+		}, Collections.singletonList(PARTITION));
+		supplier.setAsyncPollTimeout(Duration.ofMillis(20));
+
+		List<String> received1 = new CopyOnWriteArrayList<>();
+		List<String> received2 = new CopyOnWriteArrayList<>();
+		String id1 = supplier.startAsyncReceiving(received1::add, "0");
+		supplier.startAsyncReceiving(received2::add, "8");
+		assertEquals(3, consumers.size());
+		waitFor(received1, 10);
+		waitFor(received2, 2);
+		assertEquals(log, received1);
+		assertEquals(log.subList(8, 10), received2);
+
+		supplier.stopAsyncReceiving(id1);
+		Thread.sleep(200);
+		assertTrue(consumers.get(1).closed());
+		assertFalse(consumers.get(2).closed());
+
+		supplier.stop();
+		Thread.sleep(200);
+		assertTrue(consumers.get(0).closed());
+		assertTrue(consumers.get(2).closed());
+	}
+
+	@Test
+	public void testEnqueuedTimeNotSupported() throws Exception{
+		KafkaStreamDataSupplier<String> supplier = new KafkaStreamDataSupplier<>(new LogBackedMockConsumer(log(1)), Collections.singletonList(PARTITION));
+		try{
+			supplier.startAsyncReceiving(m -> {}, Instant.now());
+			fail("should not be supported");
+		}catch(DataStreamInfrastructureException e){
+			// expected
+		}
+		try{
+			supplier.fetch(new ArrayList<>(), Instant.now(), Instant.now(), Duration.ofSeconds(1));
+			fail("should not be supported");
+		}catch(DataStreamInfrastructureException e){
+			// expected
+		}
+	}
+
+	protected void waitFor(List<String> received, int size) throws InterruptedException{
+		long deadline = System.currentTimeMillis() + 10000;
+		while (received.size() < size && System.currentTimeMillis() < deadline){
+			Thread.sleep(10);
+		}
+		assertEquals(size, received.size());
+	}
+
+}
@@ -252,9 +252,18 @@ public class KafkaStreamDataSupplierTest {
 		kafkaStream.fetch(null, Instant.MIN, 1, null);
 	}
 
-	@Test(expected = DataStreamInfrastructureException.class)
-	public void testStartAsyncReceivingConsumerOfMString() throws DataStreamInfrastructureException {
-		kafkaStream.startAsyncReceiving(null, "not implemented");
+	@Test
+	public void testStartAsyncReceivingConsumerOfMString() throws DataStreamInfrastructureException, InterruptedException {
+		List<String> received = new java.util.concurrent.CopyOnWriteArrayList<String>();
+		String id = kafkaStream.startAsyncReceiving(received::add, firstOffsetStr);
+		long deadline = System.currentTimeMillis() + 10000;
+		while (received.size() < messageCount && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+		}
+		kafkaStream.stopAsyncReceiving(id);
+		if (received.size() != messageCount) {
+			fail("async received " + received.size() + ", expect " + messageCount);
+		}
 	}
 
 	@Test(expected = DataStreamInfrastructureException.class)
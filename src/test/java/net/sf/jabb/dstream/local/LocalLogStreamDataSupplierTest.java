@@ -0,0 +1,160 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream.local;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.sf.jabb.dstream.ReceiveStatus;
+
+/**
+ * @author James Hu
+ *
+ */
+public class LocalLogStreamDataSupplierTest {
+	static private final int SEGMENT_BYTES = 256;
+	static private final int INDEX_INTERVAL_BYTES = 64;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	protected LocalLogStreamDataSupplier<String> supplier(File directory) throws Exception{
+		LocalLogStreamDataSupplier<String> supplier = new LocalLogStreamDataSupplier<>(directory,
+				b -> StandardCharsets.UTF_8.decode(b).toString(), SEGMENT_BYTES, INDEX_INTERVAL_BYTES);
+		supplier.start();
+		return supplier;
+	}
+
+	protected void append(LocalLogStreamDataSupplier<String> supplier, int from, int to) throws Exception{
+		for (int i = from; i < to; i ++){
+			assertEquals(i, supplier.append(ByteBuffer.wrap(("message" + i).getBytes(StandardCharsets.UTF_8)), Instant.ofEpochMilli(1000 + i * 10)));
+		}
+	}
+
+	@Test
+	public void testFetchByPosition() throws Exception{
+		LocalLogStreamDataSupplier<String> supplier = supplier(folder.newFolder());
+		assertNull(supplier.lastPosition());
+		append(supplier, 0, 100);		// about 30 bytes per record, so there are multiple segments
+		assertTrue(supplier.segments.size() > 5);
+		assertEquals("-1", supplier.firstPosition());
+		assertEquals("99", supplier.lastPosition());
+
+		List<String> list = new ArrayList<>();
+		ReceiveStatus status = supplier.fetch(list, supplier.firstPosition(), "49", Duration.ofSeconds(1));
+		assertEquals(50, list.size());
+		assertEquals("message0", list.get(0));
+		assertEquals("message49", list.get(49));
+		assertEquals("49", status.getLastPosition());
+		assertEquals(Instant.ofEpochMilli(1490), status.getLastEnqueuedTime());
+		assertTrue(status.isOutOfRangeReached());
+
+		list.clear();
+		status = supplier.fetch(list, supplier.nextStartPosition("49"), 10, Duration.ofSeconds(1));
+		assertEquals(10, list.size());
+		assertEquals("message50", list.get(0));
+		assertEquals("59", status.getLastPosition());
+		assertFalse(status.isOutOfRangeReached());
+
+		// nothing available
+		list.clear();
+		long start = System.currentTimeMillis();
+		status = supplier.fetch(list, "99", 10, Duration.ofMillis(200));
+		assertTrue(System.currentTimeMillis() - start >= 200);
+		assertEquals(0, list.size());
+		assertNull(status.getLastPosition());
+		supplier.stop();
+	}
+
+	@Test
+	public void testFetchByTime() throws Exception{
+		LocalLogStreamDataSupplier<String> supplier = supplier(folder.newFolder());
+		append(supplier, 0, 100);
+		assertEquals(Instant.ofEpochMilli(1500), supplier.enqueuedTime("50"));
+		assertEquals("49", supplier.firstPosition(Instant.ofEpochMilli(1495), Duration.ZERO));
+		assertEquals("50", supplier.firstPosition(Instant.ofEpochMilli(1500), Duration.ZERO));
+		assertNull(supplier.firstPosition(Instant.ofEpochMilli(5000), Duration.ofMillis(10)));
+
+		List<String> list = new ArrayList<>();
+		ReceiveStatus status = supplier.fetch(list, Instant.ofEpochMilli(1500), Instant.ofEpochMilli(1600), Duration.ofSeconds(1));
+		assertEquals(10, list.size());
+		assertEquals("message51", list.get(0));
+		assertEquals("message60", list.get(9));
+		assertTrue(status.isOutOfRangeReached());
+
+		// records appended with earlier time get the time of the previous record
+		supplier.append(ByteBuffer.wrap(new byte[0]), Instant.ofEpochMilli(0));
+		assertEquals(Instant.ofEpochMilli(1990), supplier.enqueuedTime("100"));
+		supplier.stop();
+	}
+
+	@Test
+	public void testReopen() throws Exception{
+		File directory = folder.newFolder();
+		LocalLogStreamDataSupplier<String> supplier = supplier(directory);
+		append(supplier, 0, 30);
+		supplier.stop();
+
+		supplier = supplier(directory);
+		assertEquals("29", supplier.lastPosition());
+		append(supplier, 30, 40);
+		List<String> list = new ArrayList<>();
+		supplier.fetch(list, "25", 100, Duration.ofMillis(100));
+		assertEquals(14, list.size());
+		assertEquals("message26", list.get(0));
+		assertEquals("message39", list.get(13));
+		supplier.stop();
+	}
+
+	@Test
+	public void testRetention() throws Exception{
+		LocalLogStreamDataSupplier<String> supplier = supplier(folder.newFolder());
+		supplier.setRetention(null, SEGMENT_BYTES * 3);
+		append(supplier, 0, 100);
+		assertTrue(supplier.segments.size() <= 3);
+		long firstOffset = Long.parseLong(supplier.firstPosition()) + 1;
+		assertTrue(firstOffset > 0);
+
+		// reading from a deleted position starts from the first retained one
+		List<String> list = new ArrayList<>();
+		supplier.fetch(list, "-1", 1, Duration.ofSeconds(1));
+		assertEquals("message" + firstOffset, list.get(0));
+
+		supplier.setRetention(Duration.ZERO, Long.MAX_VALUE);
+		supplier.applyRetention();
+		assertEquals(1, supplier.segments.size());
+		supplier.stop();
+	}
+
+	@Test
+	public void testAsyncReceiving() throws Exception{
+		LocalLogStreamDataSupplier<String> supplier = supplier(folder.newFolder());
+		append(supplier, 0, 5);
+		List<String> received = new CopyOnWriteArrayList<>();
+		String id = supplier.startAsyncReceiving(received::add, "2");
+		append(supplier, 5, 50);
+		long deadline = System.currentTimeMillis() + 10000;
+		while (received.size() < 47 && System.currentTimeMillis() < deadline){
+			Thread.sleep(10);
+		}
+		supplier.stopAsyncReceiving(id);
+		assertEquals(47, received.size());
+		assertEquals("message3", received.get(0));
+		assertEquals("message49", received.get(46));
+		supplier.stop();
+	}
+
+}
@@ -0,0 +1,141 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream.local;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.sf.jabb.dstream.ReceiveStatus;
+import net.sf.jabb.dstream.SimpleReceiveStatus;
+import net.sf.jabb.dstream.StreamDataSupplier;
+
+/**
+ * @author James Hu
+ *
+ */
+public class RecordingStreamDataSupplierTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Messages are their own positions which are exclusive start positions, like those of Event Hub
+	 */
+	@SuppressWarnings("unchecked")
+	protected StreamDataSupplier<Long> live(){
+		return (StreamDataSupplier<Long>) Proxy.newProxyInstance(StreamDataSupplier.class.getClassLoader(), new Class<?>[]{StreamDataSupplier.class}, (p, method, args) -> {
+			switch(method.getName()){
+			case "receive":
+				Function<Long, Long> receiver = (Function<Long, Long>) args[0];
+				long next = Long.parseLong((String)args[1]) + 1;
+				long end = Long.parseLong((String)args[2]);
+				Long last = null;
+				long left = receiver.apply(null);
+				while (left > 0 && next <= end){
+					last = next;
+					left = receiver.apply(next++);
+				}
+				return new SimpleReceiveStatus(last == null ? null : String.valueOf(last), null, next > end);
+			case "fetch":
+				List<Long> list = (List<Long>) args[0];
+				for (long i = Long.parseLong((String)args[1]) + 1; i <= Long.parseLong((String)args[2]); i ++){
+					list.add(i);
+				}
+				return new SimpleReceiveStatus(String.valueOf(args[2]), null, true);
+			default:
+				return null;
+			}
+		});
+	}
+
+	protected RecordingStreamDataSupplier<Long> recording(File directory){
+		return new RecordingStreamDataSupplier<>(live(), directory, String::valueOf, m -> Instant.ofEpochMilli(1000 + m * 10),
+				m -> ByteBuffer.allocate(8).putLong(m).array());
+	}
+
+	@Test
+	public void testRecordAndReplay() throws Exception{
+		File directory = folder.newFolder();
+		RecordingStreamDataSupplier<Long> recording = recording(directory);
+		recording.start();
+
+		List<Long> list = new ArrayList<>();
+		recording.fetch(list, "-1", "9", 100, Duration.ofSeconds(1));
+		assertEquals(10, list.size());
+		List<Long> received = new ArrayList<>();
+		recording.receive(m -> {
+			if (m != null){
+				received.add(m);
+			}
+			return 1000L;
+		}, "9", "14");
+		assertEquals(Arrays.asList(10L, 11L, 12L, 13L, 14L), received);
+		recording.fetch(new ArrayList<>(), "4", "9", 100, Duration.ofSeconds(1));		// received again but not recorded again
+		assertEquals(15, recording.getLog().nextOffset());
+
+		ReplayStreamDataSupplier<Long> replay = new ReplayStreamDataSupplier<>(recording.getLog(), b -> b.getLong(0), false);
+		assertEquals("-1", replay.firstPosition());
+		assertEquals("14", replay.lastPosition());
+		assertEquals(Instant.ofEpochMilli(1070), replay.enqueuedTime("7"));
+		assertEquals("5", replay.firstPosition(Instant.ofEpochMilli(1055), Duration.ZERO));
+
+		list.clear();
+		ReceiveStatus status = replay.fetch(list, "4", "12", 100, Duration.ofSeconds(1));
+		assertEquals(Arrays.asList(5L, 6L, 7L, 8L, 9L, 10L, 11L, 12L), list);
+		assertEquals("12", status.getLastPosition());
+		assertEquals(Instant.ofEpochMilli(1120), status.getLastEnqueuedTime());
+		assertTrue(status.isOutOfRangeReached());
+
+		list.clear();
+		replay.fetch(list, Instant.ofEpochMilli(1050), Instant.ofEpochMilli(1080), 100, Duration.ofSeconds(1));
+		assertEquals(Arrays.asList(6L, 7L, 8L), list);
+		recording.stop();
+
+		// replay after the recording has been closed, with inclusive start positions
+		replay = new ReplayStreamDataSupplier<>(directory, b -> b.getLong(0), true);
+		replay.start();
+		assertEquals("0", replay.firstPosition());
+		list.clear();
+		status = replay.fetch(list, "12", (String)null, 100, Duration.ofMillis(100));
+		assertEquals(Arrays.asList(12L, 13L, 14L), list);
+		assertEquals("15", replay.nextStartPosition(status.getLastPosition()));
+		assertFalse(status.isOutOfRangeReached());
+		replay.stop();
+	}
+
+	@Test
+	public void testOutOfOrderConsumption() throws Exception{
+		RecordingStreamDataSupplier<Long> recording = recording(folder.newFolder());
+		recording.start();
+
+		recording.fetch(new ArrayList<>(), "9", "19", 100, Duration.ofSeconds(1));
+		recording.fetch(new ArrayList<>(), "14", "19", 100, Duration.ofSeconds(1));		// retried, already recorded
+		assertEquals(0, recording.getSkippedCount());
+		recording.fetch(new ArrayList<>(), "-1", "9", 100, Duration.ofSeconds(1));		// earlier range consumed later
+		assertEquals(10, recording.getSkippedCount());
+		recording.fetch(new ArrayList<>(), "19", "24", 100, Duration.ofSeconds(1));
+		assertEquals(10, recording.getSkippedCount());
+		assertEquals(15, recording.getLog().nextOffset());
+
+		ReplayStreamDataSupplier<Long> replay = new ReplayStreamDataSupplier<>(recording.getLog(), b -> b.getLong(0), false);
+		List<Long> list = new ArrayList<>();
+		replay.fetch(list, "-1", "24", 100, Duration.ofSeconds(1));
+		assertEquals(15, list.size());
+		assertEquals(Long.valueOf(10), list.get(0));
+		recording.stop();
+	}
+
+}
@@ -0,0 +1,104 @@
+/**
+ *
+ */
+package net.sf.jabb.dstream.mock;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.sf.jabb.dstream.ReceiveStatus;
+
+/**
+ * @author James Hu
+ *
+ */
+public class GeneratedStreamDataSupplierTest {
+
+	@Test
+	public void testSubMillisecondSpacing() throws Exception{
+		Instant start = Instant.ofEpochSecond(1000);
+		GeneratedStreamDataSupplier<Long> sds = new GeneratedStreamDataSupplier<>(4_000_000, start, start.plusSeconds(1), (p, seq, t) -> t);
+		assertEquals("-1", sds.firstPosition());
+		assertEquals("3999999", sds.lastPosition());
+		assertEquals(start.plusNanos(250), sds.enqueuedTime("0"));
+		assertEquals(start.plusSeconds(1), sds.enqueuedTime("3999999"));
+		assertEquals("2", sds.firstPosition(start.plusNanos(999), Duration.ZERO));
+		assertEquals("3", sds.firstPosition(start.plusNanos(1000), Duration.ZERO));
+
+		List<Long> list = new ArrayList<>();
+		ReceiveStatus status = sds.fetch(list, "9", "19", 100, Duration.ofSeconds(1));
+		assertEquals(10, list.size());
+		assertEquals(Long.valueOf(GeneratedStreamDataSupplier.nanosOf(start) + 11 * 250), list.get(0));
+		assertEquals("19", status.getLastPosition());
+		assertEquals(start.plusNanos(20 * 250), status.getLastEnqueuedTime());
+		assertTrue(status.isOutOfRangeReached());
+
+		list.clear();
+		status = sds.fetch(list, start.plusNanos(1000), start.plusNanos(2000), 100, Duration.ofSeconds(1));
+		assertEquals(4, list.size());
+		assertEquals("7", status.getLastPosition());
+		assertTrue(status.isOutOfRangeReached());
+	}
+
+	@Test
+	public void testPacing() throws Exception{
+		GeneratedStreamDataSupplier<byte[]> sds = new GeneratedStreamDataSupplier<>(1_000_000, Instant.now(), null,
+				GeneratedStreamDataSupplier.pooledBytes(16, 10, 20, 1));
+		long last = Long.parseLong(sds.lastPosition());
+		assertTrue(last < 1_000_000);
+
+		// events in the future arrive according to the clock
+		List<byte[]> list = new ArrayList<>();
+		ReceiveStatus status = sds.fetch(list, String.valueOf(last + 1_000_000), 10, Duration.ofSeconds(5));
+		assertEquals(10, list.size());
+		assertFalse(status.isOutOfRangeReached());
+
+		// without pacing all the events are available immediately
+		Instant future = Instant.now().plusSeconds(3600);
+		sds = new GeneratedStreamDataSupplier<>(1_000_000, future, future.plusSeconds(1), GeneratedStreamDataSupplier.pooledBytes(16, 10, 20, 1));
+		sds.setPaced(false);
+		assertEquals("999999", sds.lastPosition());
+		int[] count = new int[]{0};
+		status = sds.receive(m -> {
+			if (m != null){
+				assertTrue(m.length >= 10 && m.length <= 20);
+				count[0] ++;
+			}
+			return 1000L;
+		}, "-1", "999999");
+		assertEquals(1_000_000, count[0]);
+		assertEquals("999999", status.getLastPosition());
+		assertTrue(status.isOutOfRangeReached());
+	}
+
+	@Test
+	public void testDeterministicPartitions() throws Exception{
+		Instant start = Instant.ofEpochSecond(1000);
+		List<GeneratedStreamDataSupplier<String>> p1 = GeneratedStreamDataSupplier.partitions(4, 1000, start, start.plusSeconds(1),
+				GeneratedStreamDataSupplier.pooledJson(8, 6, 5, 42), 7);
+		List<GeneratedStreamDataSupplier<String>> p2 = GeneratedStreamDataSupplier.partitions(4, 1000, start, start.plusSeconds(1),
+				GeneratedStreamDataSupplier.pooledJson(8, 6, 5, 42), 7);
+		assertEquals(4, p1.size());
+		boolean phasesDiffer = false;
+		for (int i = 0; i < 4; i ++){
+			assertEquals(i, p1.get(i).getPartition());
+			assertEquals(p1.get(i).enqueuedTime("0"), p2.get(i).enqueuedTime("0"));
+			phasesDiffer |= !p1.get(i).enqueuedTime("0").equals(p1.get(0).enqueuedTime("0"));
+			List<String> l1 = new ArrayList<>();
+			List<String> l2 = new ArrayList<>();
+			p1.get(i).fetch(l1, "-1", "99", 100, Duration.ofSeconds(1));
+			p2.get(i).fetch(l2, "-1", "99", 100, Duration.ofSeconds(1));
+			assertEquals(100, l1.size());
+			assertEquals(l1, l2);
+			assertTrue(l1.get(0).startsWith("{\"f0\": "));
+		}
+		assertTrue(phasesDiffer);
+	}
+
+}
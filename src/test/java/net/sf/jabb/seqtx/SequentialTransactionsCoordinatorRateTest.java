@@ -0,0 +1,234 @@
+/**
+ *
+ */
+package net.sf.jabb.seqtx;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jabb.seqtx.ex.SequentialTransactionsCoordinatorException;
+import net.sf.jabb.util.test.RateTestUtility;
+
+import org.junit.Test;
+
+/**
+ * Base of throughput and latency benchmarks of SequentialTransactionsCoordinator implementations.
+ * For every combination of number of threads and number of series, worker threads keep doing
+ * getRecentTransactions, or startTransaction (proposal + start) followed by finishTransaction or abortTransaction.
+ * The report is printed in a fixed tab separated format so that results can be compared across commits.
+ * Exceptions thrown by the coordinator are counted by type and reported as "error:&lt;type&gt;" operations,
+ * and the test fails if any exception other than {@link SequentialTransactionsCoordinatorException} had been thrown.
+ * Subclasses can change the parameters in their constructors.
+ * @author James Hu
+ *
+ */
+public abstract class SequentialTransactionsCoordinatorRateTest {
+	static final String OP_PROPOSE = "propose";
+	static final String OP_START = "start";
+	static final String OP_FINISH = "finish";
+	static final String OP_ABORT = "abort";
+	static final String OP_GET_RECENT = "getRecent";
+	static final int MAX_SAMPLES_PER_THREAD = 200000;
+
+	protected int warmUpSeconds = 2;
+	protected int testSeconds = 10;
+	protected int[] numThreadsToTest = {1, 4, 16, 64};
+	protected int[] numSeriesToTest = {1, 10, 100, 1000};
+	protected int getRecentPercentage = 20;
+	protected int abortPercentage = 10;
+	protected int maxInProgressTransactions = 100;
+	protected int maxRetryingTransactions = 50;
+	protected Duration transactionTimeout = Duration.ofMinutes(5);
+
+	abstract protected SequentialTransactionsCoordinator createCoordinator() throws Exception;
+
+	/**
+	 * Latency samples of one thread
+	 */
+	static class LatencyRecorder{
+		Map<String, long[]> samples = new LinkedHashMap<>();
+		Map<String, Integer> counts = new LinkedHashMap<>();
+		Map<String, Long> totals = new LinkedHashMap<>();
+		Map<String, Long> errors = new LinkedHashMap<>();
+		Exception unexpected;
+		boolean enabled;
+
+		void record(String op, long startNanos){
+			if (!enabled){
+				return;
+			}
+			long latency = System.nanoTime() - startNanos;
+			long[] array = samples.computeIfAbsent(op, k->new long[MAX_SAMPLES_PER_THREAD]);
+			int count = counts.getOrDefault(op, 0);
+			array[count % MAX_SAMPLES_PER_THREAD] = latency;	// keep the latest when overflowed
+			counts.put(op, count + 1);
+			totals.merge(op, 1L, Long::sum);
+		}
+
+		void recordError(Exception e){
+			errors.merge(e.getClass().getSimpleName(), 1L, Long::sum);
+			if (unexpected == null && !(e instanceof SequentialTransactionsCoordinatorException)){
+				unexpected = e;
+			}
+		}
+	}
+
+	@Test
+	public void test() throws Exception{
+		System.out.println("coordinator\tthreads\tseries\tstarted/s\top\tcount\tp50(us)\tp90(us)\tp99(us)\tp99.9(us)\tmax(us)");
+		for (int numThreads: numThreadsToTest){
+			for (int numSeries: numSeriesToTest){
+				doTest(numThreads, numSeries);
+			}
+		}
+	}
+
+	protected void doTest(int numThreads, int numSeries) throws Exception{
+		SequentialTransactionsCoordinator coordinator = createCoordinator();
+		String[] seriesIds = new String[numSeries];
+		for (int i = 0; i < numSeries; i ++){
+			seriesIds[i] = "benchmark-series-" + i;
+			coordinator.clear(seriesIds[i]);
+		}
+
+		ConcurrentLinkedQueue<LatencyRecorder> recorders = new ConcurrentLinkedQueue<>();
+		ThreadLocal<LatencyRecorder> recorder = ThreadLocal.withInitial(()->{
+			LatencyRecorder r = new LatencyRecorder();
+			recorders.add(r);
+			return r;
+		});
+
+		double rate = RateTestUtility.doRateTest((String)null, numThreads, warmUpSeconds, TimeUnit.SECONDS,
+				endTime -> {
+					while(System.currentTimeMillis() < endTime){
+						doCycle(coordinator, seriesIds, recorder.get());
+					}
+				},
+				testSeconds, TimeUnit.SECONDS,
+				endTime -> {
+					LatencyRecorder r = recorder.get();
+					r.enabled = true;
+					return doCycle(coordinator, seriesIds, r);
+				});
+
+		String title = coordinator.getClass().getSimpleName() + "\t" + numThreads + "\t" + numSeries + "\t" + RateTestUtility.formatDouble("0.0", rate);
+		for (String op: Arrays.asList(OP_PROPOSE, OP_START, OP_FINISH, OP_ABORT, OP_GET_RECENT)){
+			report(title, op, recorders);
+		}
+		Map<String, Long> errors = new LinkedHashMap<>();
+		Exception unexpected = null;
+		for (LatencyRecorder r: recorders){
+			r.errors.forEach((type, count) -> errors.merge(type, count, Long::sum));
+			if (unexpected == null){
+				unexpected = r.unexpected;
+			}
+		}
+		errors.forEach((type, count) -> System.out.println(title + "\terror:" + type + "\t" + count));
+
+		for (String seriesId: seriesIds){
+			coordinator.clear(seriesId);
+		}
+		if (unexpected != null){
+			throw new AssertionError("Unexpected exception with " + numThreads + " threads and " + numSeries + " series", unexpected);
+		}
+	}
+
+	/**
+	 * Do one cycle of operations
+	 * @return	1 if a transaction had been started, 0 otherwise
+	 */
+	protected long doCycle(SequentialTransactionsCoordinator coordinator, String[] seriesIds, LatencyRecorder recorder){
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		String seriesId = seriesIds[random.nextInt(seriesIds.length)];
+		String processorId = Thread.currentThread().getName();
+		try{
+			if (random.nextInt(100) < getRecentPercentage){
+				long start = System.nanoTime();
+				coordinator.getRecentTransactions(seriesId);
+				recorder.record(OP_GET_RECENT, start);
+				return 0;
+			}
+
+			long start = System.nanoTime();
+			SequentialTransaction transaction = coordinator.startTransaction(seriesId, processorId, transactionTimeout, maxInProgressTransactions, maxRetryingTransactions);
+			recorder.record(OP_PROPOSE, start);
+			if (transaction == null){
+				return 0;
+			}
+			if (!transaction.hasStarted()){
+				String previousId = transaction.getTransactionId();
+				String previousPosition = transaction.getStartPosition();
+				String position = String.valueOf(previousPosition == null ? 1 : Long.parseLong(previousPosition) + 1);
+				transaction.setTransactionId(null);
+				transaction.setStartPosition(position);
+				transaction.setEndPosition(position);
+				transaction.setTimeout(transactionTimeout);
+				start = System.nanoTime();
+				transaction = coordinator.startTransaction(seriesId, previousId, previousPosition, transaction, maxInProgressTransactions, maxRetryingTransactions);
+				recorder.record(OP_START, start);
+				if (transaction == null || !transaction.hasStarted()){
+					return 0;
+				}
+			}
+
+			if (random.nextInt(100) < abortPercentage){
+				start = System.nanoTime();
+				coordinator.abortTransaction(seriesId, processorId, transaction.getTransactionId());
+				recorder.record(OP_ABORT, start);
+			}else{
+				start = System.nanoTime();
+				coordinator.finishTransaction(seriesId, processorId, transaction.getTransactionId());
+				recorder.record(OP_FINISH, start);
+			}
+			return 1;
+		}catch(Exception e){
+			recorder.recordError(e);
+			return 0;
+		}
+	}
+
+	protected void report(String title, String op, ConcurrentLinkedQueue<LatencyRecorder> recorders){
+		List<long[]> arrays = new ArrayList<>();
+		long total = 0;
+		int numSamples = 0;
+		for (LatencyRecorder r: recorders){
+			long[] array = r.samples.get(op);
+			if (array != null){
+				int count = Math.min(r.counts.get(op), MAX_SAMPLES_PER_THREAD);
+				arrays.add(Arrays.copyOf(array, count));
+				numSamples += count;
+				total += r.totals.get(op);
+			}
+		}
+		if (numSamples == 0){
+			return;
+		}
+		long[] all = new long[numSamples];
+		int i = 0;
+		for (long[] array: arrays){
+			System.arraycopy(array, 0, all, i, array.length);
+			i += array.length;
+		}
+		Arrays.sort(all);
+		System.out.println(title + "\t" + op + "\t" + total
+				+ "\t" + micros(percentile(all, 50)) + "\t" + micros(percentile(all, 90))
+				+ "\t" + micros(percentile(all, 99)) + "\t" + micros(percentile(all, 99.9))
+				+ "\t" + micros(all[all.length - 1]));
+	}
+
+	static long percentile(long[] sorted, double percentile){
+		int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	static String micros(long nanos){
+		return RateTestUtility.formatDouble("0.0", nanos / 1000.0);
+	}
+}
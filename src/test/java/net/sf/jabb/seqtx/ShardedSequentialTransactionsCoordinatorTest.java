@@ -0,0 +1,106 @@
+/**
+ *
+ */
+package net.sf.jabb.seqtx;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.jabb.seqtx.ex.TransactionStorageInfrastructureException;
+import net.sf.jabb.seqtx.mem.InMemSequentialTransactionsCoordinator;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Tests ShardedSequentialTransactionsCoordinator with in-memory shards
+ * @author James Hu
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ShardedSequentialTransactionsCoordinatorTest extends SequentialTransactionsCoordinatorTest {
+	static final int NUM_SHARDS = 4;
+
+	@Override
+	protected SequentialTransactionsCoordinator createCoordinator() {
+		List<SequentialTransactionsCoordinator> shards = new ArrayList<>(NUM_SHARDS);
+		for (int i = 0; i < NUM_SHARDS; i ++){
+			shards.add(new InMemSequentialTransactionsCoordinator());
+		}
+		return new ShardedSequentialTransactionsCoordinator(shards);
+	}
+
+	@Override
+	protected SequentialTransactionsCoordinator createPerProcessorCoordinator(){
+		return tracker;
+	}
+
+	@Test
+	public void test00StableMapping(){
+		ShardedSequentialTransactionsCoordinator c1 = (ShardedSequentialTransactionsCoordinator) createCoordinator();
+		ShardedSequentialTransactionsCoordinator c2 = (ShardedSequentialTransactionsCoordinator) createCoordinator();
+		int[] counts = new int[NUM_SHARDS];
+		for (int i = 0; i < 10000; i ++){
+			String id = "series-" + i;
+			int index = c1.shardIndex(id);
+			assertEquals(index, c2.shardIndex(id));
+			counts[index] ++;
+		}
+		for (int count: counts){
+			assertTrue("Distribution is too skewed: " + Arrays.toString(counts), count > 2000 && count < 3000);
+		}
+	}
+
+	@Test
+	public void test00AppendingShardMovesFewSeries(){
+		ShardedSequentialTransactionsCoordinator c1 = (ShardedSequentialTransactionsCoordinator) createCoordinator();
+		List<SequentialTransactionsCoordinator> shards = new ArrayList<>(c1.getShards());
+		shards.add(new InMemSequentialTransactionsCoordinator());
+		ShardedSequentialTransactionsCoordinator c2 = new ShardedSequentialTransactionsCoordinator(shards);
+		int moved = 0;
+		for (int i = 0; i < 10000; i ++){
+			String id = "series-" + i;
+			int index2 = c2.shardIndex(id);
+			if (c1.shardIndex(id) != index2){
+				assertEquals(NUM_SHARDS, index2);
+				moved ++;
+			}
+		}
+		assertTrue("Too many series moved: " + moved, moved > 1500 && moved < 2500);
+	}
+
+	@Test
+	public void test00RoutingAndClearAll() throws Exception{
+		ShardedSequentialTransactionsCoordinator c = (ShardedSequentialTransactionsCoordinator) createCoordinator();
+		for (int i = 0; i < 100; i ++){
+			String id = "series-" + i;
+			SequentialTransaction tx = c.startTransaction(id, processorId, Duration.ofMinutes(1), 5, 5);
+			tx.setStartPosition("1");
+			tx.setEndPosition("2");
+			assertNotNull(c.startTransaction(id, null, null, tx, 5, 5));
+			assertEquals(1, c.getRecentTransactions(id).size());
+			assertEquals(1, c.shard(id).getRecentTransactions(id).size());
+			for (SequentialTransactionsCoordinator shard: c.getShards()){
+				if (shard != c.shard(id)){
+					assertEquals(0, shard.getRecentTransactions(id).size());
+				}
+			}
+		}
+
+		c.clearAll();
+		for (int i = 0; i < 100; i ++){
+			assertEquals(0, c.getRecentTransactions("series-" + i).size());
+		}
+	}
+
+	@Test
+	public void test00ClearAll() throws TransactionStorageInfrastructureException{
+		tracker.clearAll();
+	}
+
+}
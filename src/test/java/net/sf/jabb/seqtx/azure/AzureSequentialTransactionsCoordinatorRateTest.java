@@ -0,0 +1,66 @@
+/**
+ *
+ */
+package net.sf.jabb.seqtx.azure;
+
+import net.sf.jabb.seqtx.SequentialTransactionsCoordinator;
+import net.sf.jabb.seqtx.SequentialTransactionsCoordinatorRateTest;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.SendingRequestEvent;
+import com.microsoft.azure.storage.StorageEvent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of AzureSequentialTransactionsCoordinator.
+ * The storage account is specified by environment variable SYSTEM_DEFAULT_AZURE_STORAGE_CONNECTION,
+ * which can point to the local storage emulator (<code>UseDevelopmentStorage=true</code>) so that results are not affected by network conditions.
+ * Extra latency can be injected before every request by system property <code>injectedLatencyMillis</code>
+ * to simulate remote storage when running against the emulator.
+ * @author James Hu
+ *
+ */
+public class AzureSequentialTransactionsCoordinatorRateTest extends SequentialTransactionsCoordinatorRateTest {
+	protected long injectedLatencyMillis = Long.getLong("injectedLatencyMillis", 0);
+	protected StorageEvent<SendingRequestEvent> latencyInjector;
+
+	public AzureSequentialTransactionsCoordinatorRateTest(){
+		numThreadsToTest = new int[]{1, 4, 16};
+		numSeriesToTest = new int[]{1, 10};
+	}
+
+	@Before
+	public void setUp(){
+		Assume.assumeTrue(System.getenv("SYSTEM_DEFAULT_AZURE_STORAGE_CONNECTION") != null);
+		if (injectedLatencyMillis > 0){
+			latencyInjector = new StorageEvent<SendingRequestEvent>(){
+				@Override
+				public void eventOccurred(SendingRequestEvent eventArg) {
+					Uninterruptibles.sleepUninterruptibly(injectedLatencyMillis, TimeUnit.MILLISECONDS);
+				}
+			};
+			OperationContext.getGlobalSendingRequestEventHandler().addListener(latencyInjector);
+		}
+	}
+
+	@After
+	public void tearDown(){
+		if (latencyInjector != null){
+			OperationContext.getGlobalSendingRequestEventHandler().removeListener(latencyInjector);
+		}
+	}
+
+	@Override
+	protected SequentialTransactionsCoordinator createCoordinator() throws Exception {
+		CloudStorageAccount storageAccount = CloudStorageAccount.parse(System.getenv("SYSTEM_DEFAULT_AZURE_STORAGE_CONNECTION"));
+		return new AzureSequentialTransactionsCoordinator(storageAccount, "BenchmarkTable");
+	}
+
+}
@@ -0,0 +1,21 @@
+/**
+ *
+ */
+package net.sf.jabb.seqtx.mem;
+
+import net.sf.jabb.seqtx.SequentialTransactionsCoordinator;
+import net.sf.jabb.seqtx.SequentialTransactionsCoordinatorRateTest;
+
+/**
+ * Benchmark of InMemSequentialTransactionsCoordinator
+ * @author James Hu
+ *
+ */
+public class InMemSequentialTransactionsCoordinatorRateTest extends SequentialTransactionsCoordinatorRateTest {
+
+	@Override
+	protected SequentialTransactionsCoordinator createCoordinator() {
+		return new InMemSequentialTransactionsCoordinator();
+	}
+
+}
@@ -0,0 +1,40 @@
+/**
+ *
+ */
+package net.sf.jabb.seqtx.mem;
+
+import java.time.Duration;
+
+import org.junit.AfterClass;
+import org.junit.FixMethodOrder;
+import org.junit.runners.MethodSorters;
+
+import net.sf.jabb.seqtx.SequentialTransactionsCoordinator;
+import net.sf.jabb.util.time.HierarchicalTimerWheel;
+
+/**
+ * Same tests as {@link InMemSequentialTransactionsCoordinatorTest} but with time outs tracked by a shared timer wheel
+ * @author James Hu
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class InMemSequentialTransactionsCoordinatorTimerWheelTest extends InMemSequentialTransactionsCoordinatorTest {
+	static protected HierarchicalTimerWheel timerWheel;
+
+	@Override
+	protected SequentialTransactionsCoordinator createCoordinator() {
+		synchronized(InMemSequentialTransactionsCoordinatorTimerWheelTest.class){
+			if (timerWheel == null){
+				timerWheel = new HierarchicalTimerWheel(InMemSequentialTransactionsCoordinator.DEFAULT_TIMER_WHEEL_TICK);
+				timerWheel.start(Duration.ofMillis(10));
+			}
+		}
+		return new InMemSequentialTransactionsCoordinator(timerWheel);
+	}
+
+	@AfterClass
+	static public void closeTimerWheel(){
+		timerWheel.close();
+	}
+
+}
@@ -0,0 +1,95 @@
+/**
+ *
+ */
+package net.sf.jabb.taskq;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.jabb.taskq.mem.InMemScheduledTaskQueues;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class PrefetchingTaskQueueConsumerTest {
+	static private final String Q = "TestQueue";
+
+	@Test
+	public void testConsumeAll() throws Exception{
+		ScheduledTaskQueues taskq = new InMemScheduledTaskQueues();
+		for (int i = 0; i < 1000; i ++){
+			taskq.put(Q, i);
+		}
+		Set<Object> consumed = ConcurrentHashMap.newKeySet();
+		AtomicInteger errors = new AtomicInteger();
+		try(PrefetchingTaskQueueConsumer consumer = new PrefetchingTaskQueueConsumer(taskq, Q, "node1", 50, Duration.ofSeconds(10), Duration.ofMillis(10))){
+			ExecutorService workers = Executors.newFixedThreadPool(8);
+			for (int w = 0; w < 8; w ++){
+				workers.execute(()->{
+					try{
+						ReadOnlyScheduledTask task;
+						while((task = consumer.poll(500, TimeUnit.MILLISECONDS)) != null){
+							if (!consumed.add(task.getDetail())){
+								errors.incrementAndGet();
+							}
+							consumer.finish(task);
+						}
+					}catch(Exception e){
+						errors.incrementAndGet();
+					}
+				});
+			}
+			workers.shutdown();
+			assertTrue(workers.awaitTermination(30, TimeUnit.SECONDS));
+			assertEquals(0, consumer.getLeasedCount());
+		}
+		assertEquals(0, errors.get());
+		assertEquals(1000, consumed.size());
+		assertEquals(0, taskq.get(Q, 10, "checker", Duration.ofSeconds(1)).size());
+	}
+
+	@Test
+	public void testLeaseRenewalAndRelease() throws Exception{
+		ScheduledTaskQueues taskq = new InMemScheduledTaskQueues();
+		for (int i = 0; i < 10; i ++){
+			taskq.put(Q, i);
+		}
+		PrefetchingTaskQueueConsumer consumer = new PrefetchingTaskQueueConsumer(taskq, Q, "node1", 10, Duration.ofMillis(300), Duration.ofMillis(10));
+		List<ReadOnlyScheduledTask> tasks = new ArrayList<>();
+		for (int i = 0; i < 4; i ++){
+			tasks.add(consumer.poll(1, TimeUnit.SECONDS));
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (consumer.getLeasedCount() < 10 && System.currentTimeMillis() < deadline){	// filling is asynchronous
+			Thread.sleep(10);
+		}
+		assertEquals(10, consumer.getLeasedCount());
+		assertEquals(6, consumer.getBufferedCount());
+
+		Thread.sleep(1000);		// much longer than the lease
+		assertEquals(0, taskq.get(Q, 10, "node2", Duration.ofSeconds(1)).size());
+		consumer.finishAll(tasks.subList(0, 2));
+		consumer.abort(tasks.get(2));
+		assertEquals(7, consumer.getLeasedCount());
+
+		consumer.close();
+		assertNull(consumer.poll());
+		List<ReadOnlyScheduledTask> released = taskq.get(Q, 10, "node2", Duration.ofSeconds(1));
+		assertEquals(7, released.size());		// 6 unconsumed and 1 aborted
+
+		consumer.finish(tasks.get(3));			// tasks being processed are still owned after closing
+	}
+
+}
@@ -0,0 +1,159 @@
+/**
+ *
+ */
+package net.sf.jabb.taskq;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.jabb.taskq.ScheduledTaskExecutor.QueueMetrics;
+import net.sf.jabb.taskq.ex.TaskQueueStorageInfrastructureException;
+import net.sf.jabb.taskq.mem.InMemScheduledTaskQueues;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class ScheduledTaskExecutorTest {
+	static private final String Q1 = "TestQueue1";
+	static private final String Q2 = "TestQueue2";
+
+	@Test
+	public void testExecuteMultipleQueues() throws Exception{
+		ScheduledTaskQueues taskq = new InMemScheduledTaskQueues();
+		for (int i = 0; i < 200; i ++){
+			taskq.put(Q1, i);
+			taskq.put(Q2, -i);
+		}
+		Set<Object> executed = ConcurrentHashMap.newKeySet();
+		CountDownLatch latch = new CountDownLatch(400);
+		AtomicInteger maxConcurrent = new AtomicInteger();
+		AtomicInteger concurrent = new AtomicInteger();
+		try(ScheduledTaskExecutor executor = new ScheduledTaskExecutor(taskq, "node1", 8, Duration.ofSeconds(10), Duration.ofMillis(10), Duration.ofMillis(100))){
+			executor.register(Q1, task->{
+				int c = concurrent.incrementAndGet();
+				maxConcurrent.accumulateAndGet(c, Math::max);
+				Thread.sleep(1);
+				executed.add(task.getDetail());
+				concurrent.decrementAndGet();
+				latch.countDown();
+			});
+			executor.start();
+			executor.register(Q2, task->{
+				executed.add(task.getDetail());
+				latch.countDown();
+			});
+			assertTrue(latch.await(30, TimeUnit.SECONDS));
+			Thread.sleep(200);
+
+			QueueMetrics metrics = executor.getMetrics(Q1);
+			assertEquals(200, metrics.getSucceeded());
+			assertEquals(0, metrics.getFailed());
+			assertEquals(200, metrics.getExecutionMillis().getCount());
+			assertEquals(200, metrics.getQueueWaitMillis().getCount());
+			assertEquals(1L, metrics.getAttempts().getMax().longValue());
+			assertEquals(200, executor.getMetrics(Q2).getSucceeded());
+			assertNull(executor.getMetrics("no-such-queue"));
+			assertEquals(2, executor.getMetrics().size());
+			assertEquals(0, executor.getRunningCount());
+		}
+		assertEquals(399, executed.size());		// 0 and -0 are the same
+		assertTrue(maxConcurrent.get() <= 8);
+		assertEquals(0, taskq.get(Q1, 10, "checker", Duration.ofSeconds(1)).size());
+		assertEquals(0, taskq.get(Q2, 10, "checker", Duration.ofSeconds(1)).size());
+	}
+
+	@Test
+	public void testAbortAndRetry() throws Exception{
+		ScheduledTaskQueues taskq = new InMemScheduledTaskQueues();
+		taskq.put(Q1, "flaky");
+		CountDownLatch latch = new CountDownLatch(3);
+		try(ScheduledTaskExecutor executor = new ScheduledTaskExecutor(taskq, "node1", 2, Duration.ofSeconds(10), Duration.ofMillis(10), Duration.ofMillis(50))){
+			executor.register(Q1, task->{
+				latch.countDown();
+				if (task.getAttempts() < 3){
+					throw new IllegalStateException("attempt " + task.getAttempts());
+				}
+			});
+			executor.start();
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			Thread.sleep(200);
+
+			QueueMetrics metrics = executor.getMetrics(Q1);
+			assertEquals(1, metrics.getSucceeded());
+			assertEquals(2, metrics.getFailed());
+			assertEquals(3L, metrics.getAttempts().getMax().longValue());
+			assertTrue(metrics.getEmptyPolls() > 0);
+		}
+		assertEquals(0, taskq.get(Q1, 10, "checker", Duration.ofSeconds(1)).size());
+	}
+
+	@Test
+	public void testLeaseRenewal() throws Exception{
+		ScheduledTaskQueues taskq = new InMemScheduledTaskQueues();
+		taskq.put(Q1, "slow");
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		try(ScheduledTaskExecutor executor = new ScheduledTaskExecutor(taskq, "node1", 1, Duration.ofMillis(300), Duration.ofMillis(10), Duration.ofMillis(50))){
+			executor.register(Q1, task->{
+				started.countDown();
+				release.await();
+			});
+			executor.start();
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			assertEquals(1, executor.getRunningCount());
+			Thread.sleep(1000);		// much longer than the lease
+			assertEquals(0, taskq.get(Q1, 10, "node2", Duration.ofSeconds(1)).size());
+			release.countDown();
+			Thread.sleep(200);
+			assertEquals(1, executor.getMetrics(Q1).getSucceeded());
+			assertEquals(0, executor.getRunningCount());
+		}
+	}
+
+	@Test
+	public void testLeaseRenewalDuringSlowPoll() throws Exception{
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ScheduledTaskQueues taskq = new InMemScheduledTaskQueues(){
+			@Override
+			public List<ReadOnlyScheduledTask> get(String queue, Instant expectedExecutionTime, int maxNumOfTasks, String processorId, Instant timeout)
+					throws TaskQueueStorageInfrastructureException {
+				if (queue.equals(Q2) && started.getCount() == 0 && release.getCount() > 0){
+					try {
+						release.await(1000, TimeUnit.MILLISECONDS);		// much longer than the lease
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return super.get(queue, expectedExecutionTime, maxNumOfTasks, processorId, timeout);
+			}
+		};
+		taskq.put(Q1, "slow");
+		try(ScheduledTaskExecutor executor = new ScheduledTaskExecutor(taskq, "node1", 2, Duration.ofMillis(300), Duration.ofMillis(10), Duration.ofMillis(50))){
+			executor.register(Q1, task->{
+				started.countDown();
+				release.await();
+			});
+			executor.register(Q2, task->{});
+			executor.start();
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			Thread.sleep(800);		// polling of Q2 is blocked
+			assertEquals(0, taskq.get(Q1, 10, "node2", Duration.ofSeconds(1)).size());
+			release.countDown();
+			Thread.sleep(200);
+			assertEquals(1, executor.getMetrics(Q1).getSucceeded());
+		}
+	}
+
+}
@@ -0,0 +1,147 @@
+/**
+ *
+ */
+package net.sf.jabb.taskq;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.jabb.taskq.ex.TaskQueueStorageInfrastructureException;
+import net.sf.jabb.taskq.mem.InMemScheduledTaskQueues;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class WeightedFairTaskQueuesConsumerTest {
+	static private final String FAST = "FastQueue";
+	static private final String BULK = "BulkQueue";
+	static private final String IDLE = "IdleQueue";
+
+	static class CountingTaskQueues extends InMemScheduledTaskQueues{
+		Map<String, AtomicInteger> gets = new ConcurrentHashMap<>();
+
+		@Override
+		public List<ReadOnlyScheduledTask> get(String queue, Instant expectedExecutionTime, int maxNumOfTasks, String processorId, Instant timeout)
+				throws TaskQueueStorageInfrastructureException {
+			gets.computeIfAbsent(queue, q->new AtomicInteger()).incrementAndGet();
+			return super.get(queue, expectedExecutionTime, maxNumOfTasks, processorId, timeout);
+		}
+	}
+
+	@Test
+	public void testWeightedShares() throws Exception{
+		ScheduledTaskQueues taskq = new InMemScheduledTaskQueues();
+		for (int i = 0; i < 1000; i ++){
+			taskq.put(BULK, i);
+		}
+		for (int i = 0; i < 100; i ++){
+			taskq.put(FAST, i);
+		}
+		WeightedFairTaskQueuesConsumer consumer = new WeightedFairTaskQueuesConsumer(taskq, "node1")
+				.addQueue(FAST, 3)
+				.addQueue(BULK, 1);
+
+		int fast = 0;
+		int bulk = 0;
+		for (int i = 0; i < 20; i ++){
+			for (ReadOnlyScheduledTask task: consumer.get(4)){
+				if (task.getTaskId().startsWith(FAST)){
+					fast ++;
+				}else{
+					bulk ++;
+				}
+			}
+		}
+		assertEquals(80, fast + bulk);
+		assertEquals(60, fast);
+		assertEquals(20, bulk);
+
+		// when the fast queue is drained, the bulk queue gets all the capacity
+		for (int i = 0; i < 20; i ++){
+			consumer.get(4);
+		}
+		List<ReadOnlyScheduledTask> tasks = consumer.get(4);
+		assertEquals(4, tasks.size());
+		for (ReadOnlyScheduledTask task: tasks){
+			assertTrue(task.getTaskId().startsWith(BULK));
+		}
+	}
+
+	@Test
+	public void testWeightedSharesWithSmallBatches() throws Exception{
+		for (int batch = 1; batch <= 3; batch ++){
+			ScheduledTaskQueues taskq = new InMemScheduledTaskQueues();
+			for (int i = 0; i < 1000; i ++){
+				taskq.put(BULK, i);
+				taskq.put(FAST, i);
+			}
+			WeightedFairTaskQueuesConsumer consumer = new WeightedFairTaskQueuesConsumer(taskq, "node1")
+					.addQueue(FAST, 3)
+					.addQueue(BULK, 1);
+
+			int fast = 0;
+			int bulk = 0;
+			while (fast + bulk < 120){
+				List<ReadOnlyScheduledTask> tasks = consumer.get(batch);
+				assertEquals(batch, tasks.size());
+				for (ReadOnlyScheduledTask task: tasks){
+					if (task.getTaskId().startsWith(FAST)){
+						fast ++;
+					}else{
+						bulk ++;
+					}
+				}
+			}
+			assertEquals("batch size " + batch, 90, fast);
+			assertEquals("batch size " + batch, 30, bulk);
+			for (Object state: consumer.queues){
+				assertTrue(((WeightedFairTaskQueuesConsumer.QueueState)state).deficit <= 2 * 3);
+			}
+		}
+	}
+
+	@Test
+	public void testBackoff() throws Exception{
+		CountingTaskQueues taskq = new CountingTaskQueues();
+		for (int i = 0; i < 100; i ++){
+			taskq.put(BULK, i);
+		}
+		WeightedFairTaskQueuesConsumer consumer = new WeightedFairTaskQueuesConsumer(taskq, "node1",
+				Duration.ofMinutes(1), Duration.ofMillis(200), Duration.ofSeconds(1))
+				.addQueue(IDLE, 1)
+				.addQueue(BULK, 1);
+
+		for (int i = 0; i < 10; i ++){
+			assertEquals(2, consumer.get(2).size());
+		}
+		assertEquals(1, taskq.gets.get(IDLE).get());
+		assertNotNull(consumer.getBackoffUntil(IDLE));
+		assertNull(consumer.getBackoffUntil(BULK));
+
+		Thread.sleep(300);
+		consumer.get(2);
+		assertEquals(2, taskq.gets.get(IDLE).get());
+
+		taskq.put(IDLE, "new");
+		consumer.resetBackoff();
+		assertNull(consumer.getBackoffUntil(IDLE));
+		boolean found = false;
+		for (ReadOnlyScheduledTask task: consumer.get(2)){
+			found |= "new".equals(task.getDetail());
+		}
+		assertTrue(found);
+
+		assertTrue(consumer.removeQueue(IDLE));
+		assertFalse(consumer.removeQueue(IDLE));
+	}
+
+}
@@ -9,7 +9,10 @@ import java.net.URISyntaxException;
 import java.security.InvalidKeyException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import net.sf.jabb.seqtx.SequentialTransactionsCoordinator;
 import net.sf.jabb.seqtx.SequentialTransactionsCoordinatorTest;
@@ -17,8 +20,10 @@ import net.sf.jabb.seqtx.azure.AzureSequentialTransactionsCoordinator;
 import net.sf.jabb.seqtx.ex.TransactionStorageInfrastructureException;
 import net.sf.jabb.taskq.ReadOnlyScheduledTask;
 import net.sf.jabb.taskq.ScheduledTaskQueues;
+import net.sf.jabb.taskq.SimpleScheduledTask;
 import net.sf.jabb.taskq.ex.NoSuchTaskException;
 import net.sf.jabb.taskq.ex.NotOwningTaskException;
+import net.sf.jabb.taskq.ex.ScheduledTaskQueuesException;
 import net.sf.jabb.taskq.ex.TaskQueueStorageInfrastructureException;
 
 import org.junit.AfterClass;
@@ -340,4 +345,36 @@ public class AzureScheduledTaskQueuesIntegrationTest {
 		}catch(NotOwningTaskException e){};
 	}
 
+	@Test
+	public void test18BatchOperations() throws TaskQueueStorageInfrastructureException{
+		taskq.clear(Q1);
+		List<SimpleScheduledTask> newTasks = new ArrayList<>();
+		for (int i = 0; i < 300; i ++){
+			newTasks.add(new SimpleScheduledTask("task " + i));
+		}
+		List<String> ids = taskq.putAll(Q1, newTasks);
+		assertEquals(300, ids.size());
+		assertFalse(ids.contains(null));
+		
+		List<ReadOnlyScheduledTask> tasks = taskq.get(Q1, 300, P1, Duration.ofMinutes(1));
+		assertEquals(300, tasks.size());
+		List<String> gotIds = tasks.stream().map(ReadOnlyScheduledTask::getTaskId).collect(Collectors.toList());
+		
+		Map<String, ScheduledTaskQueuesException> failures = taskq.renewTimeoutAll(gotIds, P2, Duration.ofMinutes(2));
+		assertEquals(300, failures.size());
+		failures = taskq.renewTimeoutAll(gotIds, P1, Duration.ofMinutes(2));
+		assertEquals(0, failures.size());
+		
+		failures = taskq.abortAll(gotIds.subList(0, 100), P1);
+		assertEquals(0, failures.size());
+		assertEquals(100, taskq.get(Q1, 300, P1, Duration.ofMinutes(1)).size());
+		
+		List<String> toBeFinished = new ArrayList<>(gotIds);
+		toBeFinished.add(Q1 + "/nonexisting");
+		failures = taskq.finishAll(toBeFinished, P1);
+		assertEquals(1, failures.size());
+		assertTrue(failures.get(Q1 + "/nonexisting") instanceof NoSuchTaskException);
+		assertEquals(0, taskq.get(Q1, 300, P1, Duration.ofMinutes(1)).size());
+	}
+
 }
@@ -0,0 +1,133 @@
+/**
+ *
+ */
+package net.sf.jabb.taskq.azure;
+
+import static org.junit.Assert.*;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.jabb.taskq.SimpleScheduledTask;
+import net.sf.jabb.taskq.ex.TaskQueueStorageInfrastructureException;
+
+import net.sf.jabb.util.codec.CompactDetailCodec;
+import net.sf.jabb.util.codec.JavaSerializationDetailCodec;
+
+import org.junit.Test;
+
+import com.microsoft.azure.storage.StorageErrorCodeStrings;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.TableOperation;
+
+/**
+ * @author James Hu
+ *
+ */
+public class AzureScheduledTaskQueuesTest {
+
+	@Test
+	public void testPartitionKeySuffixRanges(){
+		AzureScheduledTaskQueues taskq = new AzureScheduledTaskQueues();
+		for (int length: new int[]{0, 1, 2, 3, 6}){
+			taskq.setTaskIdLengthInPartitionKey(length);
+			for (int parallelism: new int[]{1, 3, 16, 17, 1000}){
+				taskq.setClaimParallelism(parallelism);
+				List<String[]> ranges = taskq.partitionKeySuffixRanges();
+				assertTrue(ranges.size() >= 1 && ranges.size() <= parallelism);
+				assertNull(ranges.get(0)[0]);
+				assertNull(ranges.get(ranges.size() - 1)[1]);
+				for (int i = 1; i < ranges.size(); i ++){
+					assertEquals(ranges.get(i - 1)[1], ranges.get(i)[0]);
+					assertTrue(ranges.get(i)[1] == null || ranges.get(i)[0].compareTo(ranges.get(i)[1]) < 0);
+				}
+				if (length > 0 && length <= 2){
+					int space = 1 << (4 * length);
+					for (int v = 0; v < space; v ++){
+						String suffix = String.format("%0" + length + "x", v);
+						long matches = ranges.stream().filter(r -> (r[0] == null || suffix.compareTo(r[0]) >= 0) && (r[1] == null || suffix.compareTo(r[1]) < 0)).count();
+						assertEquals(suffix, 1, matches);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testTaskDetailEncodedWhenStored(){
+		HashMap<String, Integer> detail = new HashMap<>();
+		detail.put("a", 1);
+		TaskEntity entity = new TaskEntity("queue", "task", detail, Instant.now(), 2);
+		detail.put("b", 2);		// changed after being set
+		byte[] stored = entity.getSerializedDetail();
+		assertTrue(JavaSerializationDetailCodec.isJavaSerialized(stored));		// legacy format by default
+		assertEquals(detail, JavaSerializationDetailCodec.INSTANCE.decode(stored));
+
+		TaskEntity read = new TaskEntity();
+		read.setSerializedDetail(stored);
+		assertSame(stored, read.getSerializedDetail());		// not decoded, stored as is
+		@SuppressWarnings("unchecked")
+		HashMap<String, Integer> readDetail = (HashMap<String, Integer>) read.getDetail();
+		assertEquals(detail, readDetail);
+		readDetail.put("c", 3);
+		assertEquals(readDetail, JavaSerializationDetailCodec.INSTANCE.decode(read.getSerializedDetail()));
+	}
+	
+	@Test
+	public void testDetailCodecPerQueues(){
+		AzureScheduledTaskQueues compact = new AzureScheduledTaskQueues();
+		compact.setDetailCodec(CompactDetailCodec.INSTANCE);
+		AzureScheduledTaskQueues legacy = new AzureScheduledTaskQueues();
+		assertSame(JavaSerializationDetailCodec.INSTANCE, legacy.getDetailCodec());
+		
+		TaskEntity compactEntity = compact.withDetailCodec(new TaskEntity("queue", "task", "detail", Instant.now(), 2));
+		TaskEntity legacyEntity = legacy.withDetailCodec(new TaskEntity("queue", "task", "detail", Instant.now(), 2));
+		assertFalse(JavaSerializationDetailCodec.isJavaSerialized(compactEntity.getSerializedDetail()));
+		assertTrue(JavaSerializationDetailCodec.isJavaSerialized(legacyEntity.getSerializedDetail()));
+		assertEquals("detail", CompactDetailCodec.INSTANCE.decode(compactEntity.getSerializedDetail()));
+	}
+	
+	@Test
+	public void testPutAllReportsResultPerTask() throws TaskQueueStorageInfrastructureException{
+		Map<TableOperation, TaskEntity> entities = Collections.synchronizedMap(new IdentityHashMap<>());
+		AzureScheduledTaskQueues taskq = new AzureScheduledTaskQueues(){
+			@Override
+			protected CloudTable getTableReference(){
+				return null;
+			}
+			@Override
+			protected List<TableOperation> insertOperations(TaskEntity task){
+				List<TableOperation> operations = super.insertOperations(task);
+				entities.put(operations.get(0), task);
+				return operations;
+			}
+			@Override
+			protected void execute(CloudTable table, List<TableOperation> operations) throws StorageException{
+				if (operations.size() > 1){		// the batch had been inserted partially by a retried request
+					throw new StorageException(StorageErrorCodeStrings.ENTITY_ALREADY_EXISTS, "already exists", 409, null, null);
+				}
+				Object detail = entities.get(operations.get(0)).getDetail();
+				if ("inserted".equals(detail)){
+					throw new StorageException(StorageErrorCodeStrings.ENTITY_ALREADY_EXISTS, "already exists", 409, null, null);
+				}else if ("failing".equals(detail)){
+					throw new StorageException(StorageErrorCodeStrings.SERVER_BUSY, "busy", 503, null, null);
+				}
+			}
+		};
+		taskq.setTaskIdLengthInPartitionKey(0);		// all in the same partition
+		
+		List<String> ids = taskq.putAll("TestQueue", Arrays.asList(
+				new SimpleScheduledTask("inserted"), new SimpleScheduledTask("failing"), new SimpleScheduledTask("new")));
+		assertEquals(3, ids.size());
+		assertNotNull(ids.get(0));
+		assertNull(ids.get(1));
+		assertNotNull(ids.get(2));
+	}
+
+}
@@ -0,0 +1,115 @@
+package net.sf.jabb.taskq.azure;
+
+import static org.junit.Assert.*;
+
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.jabb.taskq.ReadOnlyScheduledTask;
+import net.sf.jabb.taskq.ScheduledTaskQueues;
+import net.sf.jabb.taskq.ex.ScheduledTaskQueuesException;
+
+import org.junit.Test;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.TableOperation;
+
+/**
+ * The test case with time bucketed visibility index
+ * @author James Hu
+ *
+ */
+public class BucketedAzureScheduledTaskQueuesIntegrationTest extends AzureScheduledTaskQueuesIntegrationTest {
+	static private final String Q3 = "TestQueue3";
+
+	static private final String P1 = "Processor 1";
+
+	static private final Duration BUCKET_SIZE = Duration.ofSeconds(10);
+
+	static protected AzureScheduledTaskQueues createAzureScheduledTaskQueues()  throws InvalidKeyException, URISyntaxException{
+		String connectionString = System.getenv("SYSTEM_DEFAULT_AZURE_STORAGE_CONNECTION");
+		CloudStorageAccount storageAccount = CloudStorageAccount.parse(connectionString);
+		AzureScheduledTaskQueues taskq = new BucketedAzureScheduledTaskQueues(storageAccount, "TestTable", BUCKET_SIZE);
+		return taskq;
+
+	}
+
+	//@Override
+	protected ScheduledTaskQueues createScheduledTaskQueues() throws InvalidKeyException, URISyntaxException {
+		return createAzureScheduledTaskQueues();
+	}
+
+	@Test
+	public void test30StaleMarkersDeleted() throws ScheduledTaskQueuesException, StorageException{
+		BucketedAzureScheduledTaskQueues bucketed = (BucketedAzureScheduledTaskQueues) taskq;
+		bucketed.clear(Q3);
+		String id = bucketed.put(Q3, "task1");
+		CloudTable table = bucketed.getTableReference();
+		String[] keys = TaskEntity.partitionAndRowKeys(id, bucketed.taskIdLengthInPartitionKey);
+		TaskEntity task = table.execute(TableOperation.retrieve(keys[0], keys[1], TaskEntity.class)).getResultAsType();
+
+		// a marker left over in an earlier bucket, and a marker of a task that does not exist
+		VisibilityMarkerEntity leftOver = new VisibilityMarkerEntity(keys[0],
+				VisibilityMarkerEntity.rowKey(task.getVisibleTime().minusSeconds(60), BUCKET_SIZE.toMillis(), keys[1]));
+		leftOver.setVisibleTime(task.getVisibleTime().minusSeconds(60));
+		VisibilityMarkerEntity orphan = new VisibilityMarkerEntity(keys[0],
+				VisibilityMarkerEntity.rowKey(task.getVisibleTime(), BUCKET_SIZE.toMillis(), keys[1] + "-deleted"));
+		orphan.setVisibleTime(task.getVisibleTime());
+		table.execute(TableOperation.insert(leftOver));
+		table.execute(TableOperation.insert(orphan));
+
+		List<ReadOnlyScheduledTask> tasks = bucketed.get(Q3, 10, P1, Duration.ofSeconds(10));
+		assertEquals(1, tasks.size());
+		assertEquals(id, tasks.get(0).getTaskId());
+		assertNull(table.execute(TableOperation.retrieve(keys[0], leftOver.getRowKey(), VisibilityMarkerEntity.class)).getResultAsType());
+		assertNull(table.execute(TableOperation.retrieve(keys[0], orphan.getRowKey(), VisibilityMarkerEntity.class)).getResultAsType());
+
+		bucketed.finish(id, P1);
+		assertEquals(0, bucketed.get(Q3, 10, P1, Duration.ofSeconds(10)).size());
+	}
+
+	@Test
+	public void test31MigrateLegacyTasks() throws ScheduledTaskQueuesException, InvalidKeyException, URISyntaxException{
+		BucketedAzureScheduledTaskQueues bucketed = (BucketedAzureScheduledTaskQueues) taskq;
+		bucketed.clear(Q3);
+		AzureScheduledTaskQueues legacy = AzureScheduledTaskQueuesIntegrationTest.createAzureScheduledTaskQueues();
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < 3; i ++){
+			ids.add(legacy.put(Q3, "legacy" + i));
+		}
+		String bucketedId = bucketed.put(Q3, "bucketed");
+
+		// without legacy scan, only the task with marker can be found
+		bucketed.setLegacyScanEnabled(false);
+		List<ReadOnlyScheduledTask> tasks = bucketed.get(Q3, 10, P1, Duration.ofSeconds(10));
+		assertEquals(1, tasks.size());
+		assertEquals(bucketedId, tasks.get(0).getTaskId());
+		bucketed.finish(bucketedId, P1);
+
+		// legacy tasks are found by legacy scan, markers do not take up the room
+		bucketed.setLegacyScanEnabled(true);
+		tasks = bucketed.get(Q3, 2, P1, Duration.ofSeconds(10));
+		assertEquals(2, tasks.size());
+		for (ReadOnlyScheduledTask task: tasks){
+			assertTrue(ids.contains(task.getTaskId()));
+			bucketed.abort(task.getTaskId(), P1);		// gets its marker when being changed
+		}
+
+		assertEquals(1, bucketed.migrate(Q3));
+		assertEquals(0, bucketed.migrate(Q3));
+
+		bucketed.setLegacyScanEnabled(false);
+		tasks = bucketed.get(Q3, 10, P1, Duration.ofSeconds(10));
+		assertEquals(3, tasks.size());
+		for (ReadOnlyScheduledTask task: tasks){
+			assertTrue(ids.contains(task.getTaskId()));
+			bucketed.finish(task.getTaskId(), P1);
+		}
+	}
+
+}
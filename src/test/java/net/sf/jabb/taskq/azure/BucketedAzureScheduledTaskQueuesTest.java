@@ -0,0 +1,127 @@
+/**
+ *
+ */
+package net.sf.jabb.taskq.azure;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.microsoft.azure.storage.table.TableOperation;
+
+/**
+ * @author James Hu
+ *
+ */
+public class BucketedAzureScheduledTaskQueuesTest {
+
+	@Test
+	public void testMarkerRowKeys(){
+		long bucketMillis = Duration.ofMinutes(1).toMillis();
+		Instant t = Instant.parse("2016-03-01T10:00:30Z");
+		String taskId = "0f546875-2538-4f74-807a-71b5d9374747";
+		String rowKey = VisibilityMarkerEntity.rowKey(t, bucketMillis, taskId);
+		assertTrue(rowKey.startsWith(VisibilityMarkerEntity.ROW_KEY_PREFIX));
+		assertEquals(taskId, VisibilityMarkerEntity.taskIdInQueue(rowKey));
+		assertTrue(taskId.compareTo(VisibilityMarkerEntity.ROW_KEY_PREFIX) < 0);		// tasks and markers do not overlap
+
+		// same bucket
+		assertEquals(rowKey, VisibilityMarkerEntity.rowKey(t.plusSeconds(29), bucketMillis, taskId));
+		// ordered by bucket
+		String earlier = VisibilityMarkerEntity.rowKey(t.minusSeconds(31), bucketMillis, "ffffffff");
+		String later = VisibilityMarkerEntity.rowKey(t.plusSeconds(30), bucketMillis, "00000000");
+		assertTrue(earlier.compareTo(rowKey) < 0);
+		assertTrue(rowKey.compareTo(later) < 0);
+		String farLater = VisibilityMarkerEntity.rowKey(t.plus(Duration.ofDays(3650)), bucketMillis, "00000000");
+		assertTrue(later.compareTo(farLater) < 0);
+
+		// the upper bound of due buckets
+		String upper = VisibilityMarkerEntity.bucketPrefix(VisibilityMarkerEntity.bucket(t, bucketMillis) + 1);
+		assertTrue(rowKey.compareTo(upper) < 0);
+		assertTrue(later.compareTo(upper) > 0);
+	}
+
+	@Test
+	public void testOperations(){
+		BucketedAzureScheduledTaskQueues taskq = new BucketedAzureScheduledTaskQueues();
+		taskq.setBucketSize(Duration.ofSeconds(10));
+		Instant now = Instant.now();
+		TaskEntity task = new TaskEntity("TestQueue", "0f546875-2538-4f74-807a-71b5d9374747", "detail", now, 2);
+
+		List<TableOperation> operations = taskq.insertOperations(task);
+		assertEquals(2, operations.size());
+		String marker = task.getVisibilityMarker();
+		assertNotNull(marker);
+		assertTrue(marker.endsWith(task.getTaskIdInQueue()));
+		VisibilityMarkerEntity markerEntity = new VisibilityMarkerEntity(task);
+		assertEquals(task.getPartitionKey(), markerEntity.getPartitionKey());
+		assertEquals(marker, markerEntity.getRowKey());
+		assertEquals(now, markerEntity.getVisibleTime());
+		assertEquals(task.getTaskIdInQueue(), markerEntity.getTaskIdInQueue());
+
+		// still in the same bucket, the marker is replaced in place
+		task.setEtag("W/\"datetime'2016-03-01T10%3A00%3A30.0000000Z'\"");		// as if it had been retrieved
+		task.setVisibleTime(Instant.ofEpochMilli(now.toEpochMilli() / 10000 * 10000));
+		operations = taskq.replaceOperations(task);
+		assertEquals(2, operations.size());
+		assertEquals(marker, task.getVisibilityMarker());
+
+		// moved to another bucket
+		task.setVisibleTime(now.plusSeconds(60));
+		operations = taskq.replaceOperations(task);
+		assertEquals(3, operations.size());
+		assertNotEquals(marker, task.getVisibilityMarker());
+		assertTrue(marker.compareTo(task.getVisibilityMarker()) < 0);
+
+		operations = taskq.deleteOperations(task);
+		assertEquals(2, operations.size());
+
+		// legacy task without marker
+		TaskEntity legacy = new TaskEntity("TestQueue", "1f546875-2538-4f74-807a-71b5d9374747", "detail", now, 2);
+		legacy.setEtag(task.getEtag());
+		assertEquals(1, taskq.deleteOperations(legacy).size());
+		assertEquals(2, taskq.replaceOperations(legacy).size());
+		assertNotNull(legacy.getVisibilityMarker());
+	}
+	
+	@Test
+	public void testMatchMarkers(){
+		BucketedAzureScheduledTaskQueues taskq = new BucketedAzureScheduledTaskQueues();
+		taskq.setBucketSize(Duration.ofSeconds(10));
+		Instant now = Instant.now();
+		TaskEntity visible = new TaskEntity("TestQueue", "0f546875-2538-4f74-807a-71b5d9374747", "detail", now, 2);
+		taskq.insertOperations(visible);
+		TaskEntity future = new TaskEntity("TestQueue", "1f546875-2538-4f74-807a-71b5d9374747", "detail", now.plusSeconds(60), 2);
+		taskq.insertOperations(future);
+		TaskEntity deleted = new TaskEntity("TestQueue", "2f546875-2538-4f74-807a-71b5d9374747", "detail", now, 2);
+		taskq.insertOperations(deleted);
+		
+		VisibilityMarkerEntity leftOver = new VisibilityMarkerEntity(visible.getPartitionKey(), 
+				VisibilityMarkerEntity.rowKey(now.minusSeconds(60), Duration.ofSeconds(10).toMillis(), visible.getTaskIdInQueue()));
+		VisibilityMarkerEntity orphan = new VisibilityMarkerEntity(deleted);
+		List<VisibilityMarkerEntity> markers = Arrays.asList(leftOver, new VisibilityMarkerEntity(visible), new VisibilityMarkerEntity(future), orphan);
+		
+		List<VisibilityMarkerEntity> staleMarkers = new ArrayList<>();
+		List<TaskEntity> tasks = taskq.matchMarkers(markers, Arrays.asList(future, visible), now, staleMarkers);
+		assertEquals(1, tasks.size());
+		assertSame(visible, tasks.get(0));
+		assertEquals(Arrays.asList(leftOver, orphan), staleMarkers);
+	}
+	
+	@Test
+	public void testInvalidMarkerRowKey(){
+		try{
+			VisibilityMarkerEntity.taskIdInQueue("0f546875-2538-4f74-807a-71b5d9374747");
+			fail("Should throw IllegalArgumentException");
+		}catch(IllegalArgumentException e){
+			assertEquals("Not a row key of visibility marker: 0f546875-2538-4f74-807a-71b5d9374747", e.getMessage());
+		}
+	}
+
+}
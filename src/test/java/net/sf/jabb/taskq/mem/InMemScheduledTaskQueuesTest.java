@@ -0,0 +1,349 @@
+/**
+ *
+ */
+package net.sf.jabb.taskq.mem;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.jabb.taskq.ReadOnlyScheduledTask;
+import net.sf.jabb.taskq.ScheduledTaskQueues;
+import net.sf.jabb.taskq.SimpleScheduledTask;
+import net.sf.jabb.taskq.ex.NoSuchTaskException;
+import net.sf.jabb.taskq.ex.NotOwningTaskException;
+import net.sf.jabb.taskq.ex.ScheduledTaskQueuesException;
+import net.sf.jabb.taskq.ex.TaskQueueStorageInfrastructureException;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * @author James Hu
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class InMemScheduledTaskQueuesTest {
+	static private final String Q1 = "TestQueue1";
+	static private final String Q2 = "TestQueue2";
+
+	static private final String P1 = "Processor 1";
+	static private final String P2 = "Processor 2";
+
+	protected ScheduledTaskQueues taskq = new InMemScheduledTaskQueues();
+
+	@Test
+	public void test11CreateTask()
+			throws TaskQueueStorageInfrastructureException, NotOwningTaskException, NoSuchTaskException, InterruptedException{
+		Instant expectedExecutionTime = Instant.now();
+		String id = taskq.put(Q1, "task1", expectedExecutionTime);
+		assertNotNull(id);
+
+		List<ReadOnlyScheduledTask> tasks = taskq.get(Q1, 10, P1, Duration.ofSeconds(10));
+		assertEquals(1, tasks.size());
+		assertEquals(id, tasks.get(0).getTaskId());
+		assertEquals("task1", tasks.get(0).getDetail());
+		assertEquals(1, tasks.get(0).getAttempts());
+		assertEquals(expectedExecutionTime, tasks.get(0).getExpectedExecutionTime());
+
+		taskq.abort(id, P1);
+
+		String id2 = taskq.put(Q1, "task2", Duration.ofMillis(500));
+		assertNotNull(id2);
+
+		tasks = taskq.get(Q1, 10, P1, Duration.ofMillis(500));
+		assertEquals(1, tasks.size());
+		assertEquals(id, tasks.get(0).getTaskId());
+		assertEquals(2, tasks.get(0).getAttempts());
+		assertEquals(expectedExecutionTime, tasks.get(0).getExpectedExecutionTime());
+
+		Thread.sleep(600);
+
+		tasks = taskq.get(Q1, 10, P1, Duration.ofSeconds(10));
+		assertEquals(2, tasks.size());
+		assertEquals(1, tasks.stream().filter(t->t.getTaskId().equals(id2) && "task2".equals(t.getDetail())).count());
+
+		for (ReadOnlyScheduledTask t: tasks){
+			taskq.finish(t.getTaskId(), P1);
+		}
+		assertEquals(0, taskq.get(Q1, 10, P1, Duration.ofSeconds(10)).size());
+	}
+
+	@Test
+	public void test12ExpectedExecutionTime() throws TaskQueueStorageInfrastructureException{
+		Instant now = Instant.now();
+		String id3 = taskq.put(Q1, "task3", now.minusSeconds(1));
+		String id1 = taskq.put(Q1, "task1", now.minusSeconds(3));
+		String id2 = taskq.put(Q1, "task2", now.minusSeconds(2));
+		taskq.put(Q1, "task4", now.plusSeconds(100));
+
+		List<ReadOnlyScheduledTask> tasks = taskq.get(Q1, now.minusMillis(1500), 10, P1, Duration.ofSeconds(10));
+		assertEquals(2, tasks.size());
+		assertEquals(id1, tasks.get(0).getTaskId());
+		assertEquals(id2, tasks.get(1).getTaskId());
+
+		tasks = taskq.get(Q1, 10, P1, Duration.ofSeconds(10));
+		assertEquals(1, tasks.size());
+		assertEquals(id3, tasks.get(0).getTaskId());
+		taskq.clear(Q1);
+	}
+
+	@Test
+	public void test13CreateTaskWithPredecessor() throws TaskQueueStorageInfrastructureException, NotOwningTaskException, NoSuchTaskException{
+		String id1 = taskq.put(Q1, "task1");
+		String id2 = taskq.put(Q1, "task2");
+		String id3 = taskq.put(Q1, "task3", id1);
+		String id4 = taskq.put(Q2, "task4", id1);
+		taskq.put(Q2, "task5", id1);
+		String id6 = taskq.put(Q2, "task6", id4);
+		taskq.put(Q2, "task7", "non-existing/predecessor");
+
+		List<ReadOnlyScheduledTask> tasks = taskq.get(Q1, 10, P1, Duration.ofSeconds(10));
+		assertEquals(2, tasks.size());
+		assertEquals(id1, tasks.get(0).getTaskId());
+		assertEquals(id2, tasks.get(1).getTaskId());
+
+		tasks = taskq.get(Q2, 10, P1, Duration.ofSeconds(10));
+		assertEquals(1, tasks.size());
+		assertEquals("task7", tasks.get(0).getDetail());
+
+		try{
+			taskq.finish(id3, P1);
+			fail("Should throw NotOwningTaskException");
+		}catch(NotOwningTaskException e){}
+
+		taskq.abort(id1, P1);		// aborting does not release successors
+		assertEquals(0, taskq.get(Q2, 10, P1, Duration.ofSeconds(10)).size());
+		assertEquals(1, taskq.get(Q1, 10, P1, Duration.ofSeconds(10)).size());
+		taskq.finish(id1, P1);
+
+		tasks = taskq.get(Q1, 10, P1, Duration.ofSeconds(10));
+		assertEquals(1, tasks.size());
+		assertEquals(id3, tasks.get(0).getTaskId());
+
+		tasks = taskq.get(Q2, 10, P1, Duration.ofSeconds(10));
+		assertEquals(2, tasks.size());
+		assertEquals(id4, tasks.get(0).getTaskId());
+
+		taskq.clear(Q2);
+		assertEquals(0, taskq.get(Q2, 10, P1, Duration.ofSeconds(10)).size());
+		try{
+			taskq.finish(id6, P1);
+			fail("Should throw NoSuchTaskException");
+		}catch(NoSuchTaskException e){}
+
+		// clearing a queue releases successors in other queues
+		String id8 = taskq.put(Q2, "task8");
+		taskq.put(Q1, "task9", id8);
+		taskq.clear(Q1);
+		String id10 = taskq.put(Q1, "task10", id8);
+		taskq.clear(Q2);
+		tasks = taskq.get(Q1, 10, P1, Duration.ofSeconds(10));
+		assertEquals(1, tasks.size());
+		assertEquals(id10, tasks.get(0).getTaskId());
+		taskq.clearAll();
+	}
+
+	@Test
+	public void test14GetTasks() throws TaskQueueStorageInfrastructureException{
+		assertEquals(0, taskq.get(Q1, 10, P1, Duration.ofSeconds(10)).size());
+		for (int i = 0; i < 56; i ++){
+			taskq.put(Q1, "task " + i);
+		}
+		for (int i = 0; i < 5; i ++){
+			assertEquals(10, taskq.get(Q1, 10, P1, Duration.ofMinutes(1)).size());
+		}
+		assertEquals(6, taskq.get(Q1, 10, P1, Duration.ofMinutes(1)).size());
+		assertEquals(0, taskq.get(Q1, 10, P1, Duration.ofMinutes(1)).size());
+		taskq.clearAll();
+	}
+
+	@Test
+	public void test15FinishTask() throws TaskQueueStorageInfrastructureException, NotOwningTaskException, NoSuchTaskException{
+		taskq.put(Q1, "task1");
+		taskq.put(Q1, "task2");
+
+		List<ReadOnlyScheduledTask> tasks = taskq.get(Q1, 10, P1, Duration.ofSeconds(10));
+		assertEquals(2, tasks.size());
+
+		try{
+			taskq.finish(tasks.get(0).getTaskId(), P2);
+			fail("Should throw NotOwningTaskException");
+		}catch(NotOwningTaskException e){};
+
+		taskq.finish(tasks.get(0).getTaskId(), P1);
+		taskq.abort(tasks.get(1).getTaskId(), P1);
+		tasks = taskq.get(Q1, 10, P1, Duration.ofSeconds(10));
+		assertEquals(1, tasks.size());
+
+		String id = tasks.get(0).getTaskId();
+		taskq.finish(id, P1);
+		assertEquals(0, taskq.get(Q1, 10, P1, Duration.ofSeconds(10)).size());
+
+		try{
+			taskq.finish(id, P1);
+			fail("Should throw NoSuchTaskException");
+		}catch(NoSuchTaskException e){}
+	}
+
+	@Test
+	public void test16TimeoutTask() throws TaskQueueStorageInfrastructureException, InterruptedException, NotOwningTaskException, NoSuchTaskException{
+		String id1 = taskq.put(Q1, "task1");
+		String id2 = taskq.put(Q1, "task2");
+
+		assertEquals(2, taskq.get(Q1, 10, P1, Duration.ofMillis(300)).size());
+		assertEquals(0, taskq.get(Q1, 10, P1, Duration.ofMillis(300)).size());
+		Thread.sleep(400);
+		assertEquals(2, taskq.get(Q1, 10, P1, Duration.ofMillis(300)).size());
+		Thread.sleep(400);
+
+		try{
+			taskq.finish(id1, P1);
+			fail("should throw NotOwningTaskException");
+		}catch(NotOwningTaskException e){}
+		try{
+			taskq.abort(id1, P1);
+			fail("should throw NotOwningTaskException");
+		}catch(NotOwningTaskException e){}
+		try{
+			taskq.renewTimeout(id1, P1, Duration.ofSeconds(10));
+			fail("should throw NotOwningTaskException");
+		}catch(NotOwningTaskException e){}
+
+		List<ReadOnlyScheduledTask> tasks = taskq.get(Q1, 10, P2, Duration.ofMillis(300));
+		assertEquals(2, tasks.size());
+		assertEquals(3, tasks.get(0).getAttempts());
+		taskq.renewTimeout(id1, P2, Duration.ofSeconds(10));
+		Thread.sleep(400);
+
+		tasks = taskq.get(Q1, 10, P1, Duration.ofSeconds(10));
+		assertEquals(1, tasks.size());
+		assertEquals(id2, tasks.get(0).getTaskId());
+		taskq.finish(id1, P2);
+		taskq.finish(id2, P1);
+	}
+
+	@Test
+	public void test17AbortTask() throws TaskQueueStorageInfrastructureException, NotOwningTaskException, NoSuchTaskException{
+		String id1 = taskq.put(Q1, "task1");
+
+		List<ReadOnlyScheduledTask> tasks = taskq.get(Q1, 10, P1, Duration.ofSeconds(5));
+		assertEquals(1, tasks.size());
+		assertEquals(0, taskq.get(Q1, 10, P1, Duration.ofSeconds(5)).size());
+		taskq.abort(tasks.get(0).getTaskId(), P1);
+
+		assertEquals(1, taskq.get(Q1, 10, P1, Duration.ofSeconds(5)).size());
+
+		taskq.finish(id1, P1);
+		try{
+			taskq.abort(id1, P1);
+			fail("should throw NoSuchTaskException");
+		}catch(NoSuchTaskException e){};
+
+		id1 = taskq.put(Q1, "task1");
+		assertEquals(1, taskq.get(Q1, 10, P1, Duration.ofSeconds(5)).size());
+		taskq.abort(id1, P1);
+		try{
+			taskq.abort(id1, P1);
+			fail("should throw NotOwningTaskException");
+		}catch(NotOwningTaskException e){};
+	}
+
+	@Test
+	public void test18BatchOperations() throws TaskQueueStorageInfrastructureException{
+		List<String> ids = taskq.putAll(Q1, Arrays.asList(
+				new SimpleScheduledTask("task0"),
+				new SimpleScheduledTask("task1"),
+				new SimpleScheduledTask("task2", Duration.ofMinutes(10), null),
+				new SimpleScheduledTask("task3")));
+		assertEquals(4, ids.size());
+		assertEquals(4, new HashSet<>(ids).size());
+		String id4 = taskq.putAll(Q1, Arrays.asList(new SimpleScheduledTask("task4", Instant.now(), ids.get(0)))).get(0);
+
+		List<ReadOnlyScheduledTask> tasks = taskq.get(Q1, 10, P1, Duration.ofSeconds(10));
+		assertEquals(3, tasks.size());
+		assertEquals(ids.get(0), tasks.get(0).getTaskId());
+		assertEquals("task1", tasks.get(1).getDetail());
+
+		Map<String, ScheduledTaskQueuesException> failures = taskq.renewTimeoutAll(Arrays.asList(ids.get(0), ids.get(1), ids.get(2)), P1, Duration.ofSeconds(20));
+		assertEquals(1, failures.size());
+		assertTrue(failures.get(ids.get(2)) instanceof NotOwningTaskException);
+
+		failures = taskq.abortAll(Arrays.asList(ids.get(3), "nonexisting/id"), P1);
+		assertEquals(1, failures.size());
+		assertTrue(failures.get("nonexisting/id") instanceof NoSuchTaskException);
+
+		failures = taskq.finishAll(Arrays.asList(ids.get(0), ids.get(1)), P2);
+		assertEquals(2, failures.size());
+		failures = taskq.finishAll(Arrays.asList(ids.get(0), ids.get(1)), P1);
+		assertEquals(0, failures.size());
+
+		tasks = taskq.get(Q1, 10, P1, Duration.ofSeconds(10));
+		assertEquals(2, tasks.size());
+		assertEquals(id4, tasks.get(0).getTaskId());		// released with its original expected execution time
+		assertEquals(ids.get(3), tasks.get(1).getTaskId());	// visible again since it was aborted
+		taskq.clearAll();
+	}
+
+	@Test
+	public void test19TakeTask() throws Exception{
+		final String q = "TakeQueue";
+		// nothing available
+		long start = System.currentTimeMillis();
+		assertEquals(0, taskq.take(q, 10, P1, Duration.ofMinutes(1), Duration.ofMillis(200)).size());
+		assertTrue(System.currentTimeMillis() - start >= 200);
+		
+		// woken up by put
+		Thread putter = new Thread(()->{
+			try {
+				Thread.sleep(200);
+				taskq.put(q, "put later");
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		start = System.currentTimeMillis();
+		putter.start();
+		List<ReadOnlyScheduledTask> tasks = taskq.take(q, 10, P1, Duration.ofMinutes(1), Duration.ofSeconds(10));
+		assertEquals(1, tasks.size());
+		assertEquals("put later", tasks.get(0).getDetail());
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		putter.join();
+		taskq.finish(tasks.get(0).getTaskId(), P1);
+		
+		// woken up when the visible time arrives
+		Instant visibleTime = Instant.now().plusMillis(300);
+		String id = taskq.put(q, "delayed", visibleTime);
+		tasks = taskq.take(q, 10, P1, Duration.ofMinutes(1), Duration.ofSeconds(10));
+		assertEquals(1, tasks.size());
+		assertEquals(id, tasks.get(0).getTaskId());
+		assertFalse(Instant.now().isBefore(visibleTime));
+		assertTrue(Instant.now().isBefore(visibleTime.plusSeconds(5)));
+		
+		// woken up by abort
+		Thread aborter = new Thread(()->{
+			try {
+				Thread.sleep(200);
+				taskq.abort(id, P1);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		aborter.start();
+		tasks = taskq.take(q, 10, P2, Duration.ofMinutes(1), Duration.ofSeconds(10));
+		assertEquals(1, tasks.size());
+		assertEquals(id, tasks.get(0).getTaskId());
+		aborter.join();
+		
+		// not available before timeout
+		assertEquals(0, taskq.take(q, 10, P1, Duration.ofMinutes(1), Duration.ofMillis(100)).size());
+		taskq.clear(q);
+	}
+	
+}
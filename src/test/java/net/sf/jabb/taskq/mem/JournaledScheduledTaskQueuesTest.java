@@ -0,0 +1,265 @@
+/**
+ *
+ */
+package net.sf.jabb.taskq.mem;
+
+import static org.junit.Assert.*;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import net.sf.jabb.taskq.ReadOnlyScheduledTask;
+import net.sf.jabb.taskq.ex.TaskQueueStorageInfrastructureException;
+import net.sf.jabb.util.codec.CompactDetailCodec;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Runs all the test cases of {@link InMemScheduledTaskQueuesTest}, plus the ones about durability
+ * @author James Hu
+ *
+ */
+public class JournaledScheduledTaskQueuesTest extends InMemScheduledTaskQueuesTest {
+	static private final String Q = "DurableQueue";
+	static private final String P = "Processor";
+
+	protected Path directory;
+
+	public JournaledScheduledTaskQueuesTest(){
+		try {
+			directory = Files.createTempDirectory(JournaledScheduledTaskQueuesTest.class.getSimpleName());
+			taskq = new JournaledScheduledTaskQueues(directory);
+		} catch (Exception e) {
+			throw Throwables.propagate(e);
+		}
+	}
+
+	@After
+	public void cleanup() throws Exception{
+		((JournaledScheduledTaskQueues)taskq).close();
+		try(Stream<Path> paths = Files.walk(directory)){
+			paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	protected JournaledScheduledTaskQueues reopen() throws Exception{
+		((JournaledScheduledTaskQueues)taskq).close();
+		JournaledScheduledTaskQueues reopened = new JournaledScheduledTaskQueues(directory);
+		taskq = reopened;
+		return reopened;
+	}
+
+	@Test
+	public void test21Recovery() throws Exception{
+		Instant future = Instant.now().plusSeconds(3600);
+		String idFuture = taskq.put(Q, "future", future);
+		String idFinished = taskq.put(Q, "finished");
+		String idAborted = taskq.put(Q, "aborted");
+		String idClaimed = taskq.put(Q, "claimed");
+		String idSuccessor = taskq.put(Q, "successor", Instant.now(), idClaimed);
+		taskq.put("OtherQueue", "cleared");
+
+		List<ReadOnlyScheduledTask> tasks = taskq.get(Q, 3, P, Duration.ofMinutes(10));
+		assertEquals(3, tasks.size());
+		taskq.finish(idFinished, P);
+		taskq.abort(idAborted, P);
+		taskq.renewTimeout(idClaimed, P, Duration.ofMinutes(20));
+		taskq.clear("OtherQueue");
+
+		reopen();
+		assertEquals(0, taskq.get("OtherQueue", 10, P, Duration.ofMinutes(1)).size());
+		tasks = taskq.get(Q, 10, "P2", Duration.ofMinutes(1));
+		assertEquals(1, tasks.size());		// the claimed one is still owned, the successor is waiting, and the future one is not due
+		assertEquals(idAborted, tasks.get(0).getTaskId());
+		assertEquals("aborted", tasks.get(0).getDetail());
+		assertEquals(2, tasks.get(0).getAttempts());
+
+		taskq.finish(idClaimed, P);		// ownership survived
+		tasks = taskq.get(Q, 10, "P2", Duration.ofMinutes(1));
+		assertEquals(1, tasks.size());
+		assertEquals(idSuccessor, tasks.get(0).getTaskId());
+
+		tasks = taskq.get(Q, future, 10, "P3", Duration.ofMinutes(1));
+		assertEquals(3, tasks.size());		// including the 2 leased by P2
+		ReadOnlyScheduledTask futureTask = tasks.stream().filter(t -> t.getTaskId().equals(idFuture)).findFirst().get();
+		assertEquals(future, futureTask.getExpectedExecutionTime());
+		assertEquals("future", futureTask.getDetail());
+	}
+
+	@Test
+	public void test22TornTail() throws Exception{
+		String id1 = taskq.put(Q, "first");
+		JournaledScheduledTaskQueues journaled = (JournaledScheduledTaskQueues)taskq;
+		Path journal = journaled.getJournalPath();
+		journaled.close();
+		long size = Files.size(journal);
+		try(FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE, StandardOpenOption.APPEND)){
+			channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 100, 1, 2, 3}));	// a partial record
+		}
+
+		taskq = new JournaledScheduledTaskQueues(directory);
+		assertEquals(size, Files.size(journal));
+		String id2 = taskq.put(Q, "second");
+		reopen();
+		List<ReadOnlyScheduledTask> tasks = taskq.get(Q, 10, P, Duration.ofMinutes(1));
+		assertEquals(2, tasks.size());
+		assertEquals(id1, tasks.get(0).getTaskId());
+		assertEquals(id2, tasks.get(1).getTaskId());
+	}
+
+	@Test
+	public void test23Compaction() throws Exception{
+		JournaledScheduledTaskQueues journaled = (JournaledScheduledTaskQueues)taskq;
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < 1000; i ++){
+			ids.add(taskq.put(Q, i));
+		}
+		taskq.get(Q, 1000, P, Duration.ofMinutes(10));
+		assertEquals(0, taskq.finishAll(ids.subList(0, 990), P).size());
+		assertEquals(2990, journaled.getNumberOfRecords());
+		long size = Files.size(journaled.getJournalPath());
+
+		journaled.compact();
+		assertEquals(10, journaled.getNumberOfRecords());
+		assertTrue(Files.size(journaled.getJournalPath()) < size / 100);
+		String id = taskq.put(Q, "after compaction");
+
+		reopen();
+		taskq.finish(ids.get(999), P);
+		assertEquals(0, taskq.abortAll(ids.subList(990, 999), P).size());
+		List<ReadOnlyScheduledTask> tasks = taskq.get(Q, 100, P, Duration.ofMinutes(1));
+		assertEquals(10, tasks.size());
+		assertEquals(id, tasks.get(0).getTaskId());
+		assertEquals(990, tasks.get(1).getDetail());
+		assertEquals(2, tasks.get(1).getAttempts());
+	}
+
+	@Test
+	public void test24AutomaticCompactionAndGroupCommit() throws Exception{
+		((JournaledScheduledTaskQueues)taskq).close();
+		taskq = new JournaledScheduledTaskQueues(directory.resolve("auto.journal"), CompactDetailCodec.INSTANCE, Duration.ofMillis(10), 1000);
+		JournaledScheduledTaskQueues journaled = (JournaledScheduledTaskQueues)taskq;
+		Set<String> putIds = ConcurrentHashMap.newKeySet();
+		Set<String> finishedIds = ConcurrentHashMap.newKeySet();
+		ExecutorService threads = Executors.newFixedThreadPool(16);
+		List<Future<?>> workers = new ArrayList<>();
+		for (int t = 0; t < 16; t ++){
+			workers.add(threads.submit(()->{
+				String processorId = P + Thread.currentThread().getId();
+				for (int i = 0; i < 200; i ++){
+					putIds.add(taskq.put(Q, i));
+					if (i % 2 == 0){		// leave about half of the tasks in the queue, so that the snapshots are not empty
+						for (ReadOnlyScheduledTask task: taskq.get(Q, 1, processorId, Duration.ofMinutes(1))){
+							taskq.finish(task.getTaskId(), processorId);
+							finishedIds.add(task.getTaskId());
+						}
+					}
+				}
+				return null;
+			}));
+		}
+		threads.shutdown();
+		assertTrue(threads.awaitTermination(60, TimeUnit.SECONDS));
+		for (Future<?> worker: workers){
+			worker.get();		// fails the test with the exception of the worker if any
+		}
+		assertEquals(3200, putIds.size());
+		Set<String> expected = new HashSet<>(putIds);
+		expected.removeAll(finishedIds);
+		Thread.sleep(300);
+		assertTrue(journaled.getNumberOfRecords() <= 2L * expected.size());		// it had been compacted
+
+		journaled.close();
+		taskq = new JournaledScheduledTaskQueues(directory.resolve("auto.journal"), CompactDetailCodec.INSTANCE, null, 0);
+		Set<String> surviving = new HashSet<>();
+		taskq.get(Q, 10000, P, Duration.ofMinutes(1)).forEach(task -> surviving.add(task.getTaskId()));
+		assertEquals(expected, surviving);
+	}
+
+	@Test
+	public void test25SyncDuringCompaction() throws Exception{
+		((JournaledScheduledTaskQueues)taskq).close();
+		Path journalPath = directory.resolve("race.journal");
+		CountDownLatch writerInSync = new CountDownLatch(1);
+		CountDownLatch releaseWriter = new CountDownLatch(1);
+		Thread[] compactor = new Thread[1];
+		Thread[] writer = new Thread[1];
+		AtomicInteger snapshotRecords = new AtomicInteger();
+		JournaledScheduledTaskQueues journaled = new JournaledScheduledTaskQueues(journalPath, CompactDetailCodec.INSTANCE, null, 0){
+			@Override
+			protected void sync() throws TaskQueueStorageInfrastructureException{
+				if (Thread.currentThread() == writer[0] && releaseWriter.getCount() > 0){
+					writerInSync.countDown();
+					try {
+						releaseWriter.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				super.sync();
+			}
+
+			@Override
+			protected void writeTask(DataOutputStream out, InMemTask task) throws IOException{
+				if (Thread.currentThread() == compactor[0] && snapshotRecords.incrementAndGet() == 5){
+					releaseWriter.countDown();		// let the writer sync while part of the snapshot is in the buffer
+					try {
+						Thread.sleep(200);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				super.writeTask(out, task);
+			}
+		};
+		taskq = journaled;
+		for (int i = 0; i < 10; i ++){
+			taskq.put(Q, i);
+		}
+		String[] racingId = new String[1];
+		writer[0] = new Thread(() -> {
+			try {
+				racingId[0] = taskq.put(Q, "racing");
+			} catch (Exception e) {
+				throw Throwables.propagate(e);
+			}
+		});
+		writer[0].start();
+		assertTrue(writerInSync.await(10, TimeUnit.SECONDS));
+		compactor[0] = Thread.currentThread();
+		journaled.compact();
+		writer[0].join(10000);
+		assertNotNull(racingId[0]);
+		taskq.put(Q, "after");
+		journaled.close();
+
+		taskq = new JournaledScheduledTaskQueues(journalPath, CompactDetailCodec.INSTANCE, null, 0);
+		List<ReadOnlyScheduledTask> tasks = taskq.get(Q, 100, P, Duration.ofMinutes(1));
+		assertEquals(12, tasks.size());
+		assertTrue(tasks.stream().anyMatch(task -> task.getTaskId().equals(racingId[0])));
+	}
+
+}
@@ -0,0 +1,92 @@
+/**
+ *
+ */
+package net.sf.jabb.util.codec;
+
+import static org.junit.Assert.*;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class CompactDetailCodecTest {
+	DetailCodec codec = CompactDetailCodec.INSTANCE;
+
+	@Test
+	public void testScalars(){
+		for (Serializable s: new Serializable[]{"", "This is the transaction detail", "中文 😀",
+				0, 1, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 0L, Long.MAX_VALUE, Long.MIN_VALUE,
+				0.0d, -1.5d, Double.NaN, 3.25f, Boolean.TRUE, Boolean.FALSE, (short)-300, (byte)-7, 'x', '中'}){
+			byte[] encoded = codec.encode(s);
+			assertFalse(JavaSerializationDetailCodec.isJavaSerialized(encoded));
+			assertEquals(s, codec.decode(encoded));
+		}
+
+		byte[] bytes = new byte[]{1, 2, 3, (byte)0xAC, (byte)0xED};
+		assertArrayEquals(bytes, (byte[])codec.decode(codec.encode(bytes)));
+	}
+
+	@Test
+	public void testMaps(){
+		HashMap<Object, Object> map = new HashMap<>();
+		map.put("string", "value");
+		map.put("int", 123);
+		map.put("long", 1234567890123L);
+		map.put("double", 1.25d);
+		map.put("bool", true);
+		map.put("null", null);
+		map.put(5, "int key");
+		map.put("bytes", new byte[]{9, 8, 7});
+		byte[] encoded = codec.encode(map);
+		assertFalse(JavaSerializationDetailCodec.isJavaSerialized(encoded));
+		assertTrue(encoded.length < SerializationUtils.serialize(map).length / 2);
+		@SuppressWarnings("unchecked")
+		Map<Object, Object> decoded = (Map<Object, Object>) codec.decode(encoded);
+		assertEquals(HashMap.class, decoded.getClass());
+		assertArrayEquals((byte[])map.remove("bytes"), (byte[])decoded.remove("bytes"));
+		assertEquals(map, decoded);
+
+		LinkedHashMap<String, Long> linked = new LinkedHashMap<>();
+		for (long i = 100; i > 0; i --){
+			linked.put("k" + i, i * i);
+		}
+		Object decodedLinked = codec.decode(codec.encode(linked));
+		assertEquals(LinkedHashMap.class, decodedLinked.getClass());
+		assertEquals(new ArrayList<>(linked.entrySet()), new ArrayList<>(((LinkedHashMap<?, ?>)decodedLinked).entrySet()));
+
+		assertEquals(new HashMap<>(), codec.decode(codec.encode(new HashMap<>())));
+	}
+
+	@Test
+	public void testFallback(){
+		TreeMap<String, String> treeMap = new TreeMap<>();
+		treeMap.put("a", "b");
+		HashMap<String, Object> nested = new HashMap<>();
+		nested.put("nested", new HashMap<>());
+		for (Serializable s: new Serializable[]{Instant.now(), treeMap, nested, new ArrayList<>(Arrays.asList(1, 2))}){
+			byte[] encoded = codec.encode(s);
+			assertTrue(JavaSerializationDetailCodec.isJavaSerialized(encoded));
+			assertEquals(s, codec.decode(encoded));
+		}
+	}
+
+	@Test
+	public void testDecodeJavaSerialized(){
+		for (Serializable s: new Serializable[]{"legacy detail", 12345, new HashMap<>()}){
+			assertEquals(s, codec.decode(SerializationUtils.serialize(s)));
+		}
+	}
+
+}
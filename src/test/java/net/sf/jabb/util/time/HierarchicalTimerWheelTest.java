@@ -0,0 +1,127 @@
+/**
+ *
+ */
+package net.sf.jabb.util.time;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class HierarchicalTimerWheelTest {
+	static final long START = 1_000_000_000_000L;
+
+	static class ManualClockTimerWheel extends HierarchicalTimerWheel{
+		static AtomicLong now = new AtomicLong(START);
+
+		ManualClockTimerWheel(Duration tickDuration, int numLevels){
+			super(tickDuration, numLevels);
+		}
+
+		@Override
+		protected long currentTimeMillis(){
+			return now.get();
+		}
+	}
+
+	@Test
+	public void testFiringOrderAndPrecision(){
+		ManualClockTimerWheel.now.set(START);
+		HierarchicalTimerWheel wheel = new ManualClockTimerWheel(Duration.ofMillis(1), 3);	// 3 levels covers 262144 ticks
+		Random random = new Random(1234);
+		List<Long> deadlines = new ArrayList<>();
+		List<Long> fired = new ArrayList<>();
+		for (int i = 0; i < 2000; i ++){
+			long d = START + random.nextInt(1_000_000);		// beyond the range of 3 levels, so overflow is also covered
+			deadlines.add(d);
+			wheel.schedule(Instant.ofEpochMilli(d), ()->{
+				long now = ManualClockTimerWheel.now.get();
+				assertTrue("Fired too early", now >= d);
+				assertTrue("Fired too late", now <= d + 5);
+				fired.add(d);
+			});
+		}
+		assertEquals(2000, wheel.size());
+
+		for (long t = START; t <= START + 1_000_000; t += 1 + random.nextInt(5)){
+			ManualClockTimerWheel.now.set(t);
+			wheel.advance();
+		}
+		ManualClockTimerWheel.now.addAndGet(10);
+		wheel.advance();
+		assertEquals(0, wheel.size());
+		assertEquals(2000, fired.size());
+		deadlines.sort(null);
+		List<Long> sortedFired = new ArrayList<>(fired);
+		sortedFired.sort(null);
+		assertEquals(deadlines, sortedFired);
+	}
+
+	@Test
+	public void testCancel(){
+		ManualClockTimerWheel.now.set(START);
+		HierarchicalTimerWheel wheel = new ManualClockTimerWheel(Duration.ofMillis(10), 2);
+		List<HierarchicalTimerWheel.Handle> handles = new ArrayList<>();
+		AtomicLong count = new AtomicLong();
+		for (int i = 0; i < 100; i ++){
+			handles.add(wheel.schedule(Duration.ofMillis(i * 100), ()->count.incrementAndGet()));
+		}
+		for (int i = 0; i < 100; i += 2){
+			assertTrue(handles.get(i).cancel());
+			assertFalse(handles.get(i).cancel());
+			assertTrue(handles.get(i).isCancelled());
+		}
+		assertEquals(50, wheel.size());
+		ManualClockTimerWheel.now.addAndGet(100 * 100);
+		assertEquals(50, wheel.advance());
+		assertEquals(50, count.get());
+		for (int i = 1; i < 100; i += 2){
+			assertTrue(handles.get(i).isExpired());
+			assertFalse(handles.get(i).cancel());
+		}
+	}
+
+	@Test
+	public void testPastDeadline(){
+		ManualClockTimerWheel.now.set(START);
+		HierarchicalTimerWheel wheel = new ManualClockTimerWheel(Duration.ofMillis(1), 2);
+		ManualClockTimerWheel.now.addAndGet(500);
+		wheel.advance();
+		AtomicLong count = new AtomicLong();
+		wheel.schedule(Instant.ofEpochMilli(START - 100), ()->count.incrementAndGet());
+		wheel.schedule(Instant.ofEpochMilli(START + 100), ()->count.incrementAndGet());
+		assertEquals(0, count.get());
+		ManualClockTimerWheel.now.addAndGet(1);
+		assertEquals(2, wheel.advance());
+		assertEquals(2, count.get());
+	}
+
+	@Test
+	public void testBackgroundThread() throws InterruptedException{
+		try(HierarchicalTimerWheel wheel = new HierarchicalTimerWheel(Duration.ofMillis(1))){
+			wheel.start(Duration.ofMillis(5));
+			CountDownLatch latch = new CountDownLatch(3);
+			Instant start = Instant.now();
+			for (int i = 1; i <= 3; i ++){
+				wheel.schedule(Duration.ofMillis(50 * i), ()->{
+					assertFalse(Instant.now().isBefore(start.plusMillis(50)));
+					latch.countDown();
+				});
+			}
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+		}
+	}
+
+}